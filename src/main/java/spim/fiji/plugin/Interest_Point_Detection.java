@@ -16,6 +16,7 @@ import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
+import spim.fiji.plugin.interestpointdetection.DetectionCache;
 import spim.fiji.plugin.interestpointdetection.DifferenceOf;
 import spim.fiji.plugin.interestpointdetection.DifferenceOfGaussian;
 import spim.fiji.plugin.interestpointdetection.DifferenceOfMean;
@@ -47,6 +48,7 @@ public class Interest_Point_Detection implements PlugIn
 	public static boolean defaultAdditionalSmoothing = false;
 	public static boolean defaultSetMinMax = false;
 	public static String defaultLabel = "beads";
+	public static boolean defaultReuseDetections = true;
 	
 	static
 	{
@@ -130,6 +132,7 @@ public class Interest_Point_Detection implements PlugIn
 		gd.addCheckbox( "Define_anisotropy for segmentation", defaultDefineAnisotropy );
 		gd.addCheckbox( "Additional_smoothing", defaultAdditionalSmoothing );
 		gd.addCheckbox( "Set_minimal_and_maximal_intensity", defaultSetMinMax );
+		gd.addCheckbox( "Reuse_detections of unchanged views (same images and parameters)", defaultReuseDetections );
 		
 		gd.addMessage( "" );
 		GUIHelper.addWebsite( gd );
@@ -152,6 +155,7 @@ public class Interest_Point_Detection implements PlugIn
 		final boolean defineAnisotropy = defaultDefineAnisotropy = gd.getNextBoolean();
 		final boolean additionalSmoothing = defaultAdditionalSmoothing = gd.getNextBoolean();
 		final boolean setMinMax = defaultSetMinMax = gd.getNextBoolean();
+		final boolean reuseDetections = defaultReuseDetections = gd.getNextBoolean();
 		
 		final InterestPointDetection ipd = staticAlgorithms.get( algorithm ).newInstance(
 				data,
@@ -161,71 +165,227 @@ public class Interest_Point_Detection implements PlugIn
 		if ( !ipd.queryParameters( downsample, defineAnisotropy, additionalSmoothing, setMinMax ) )
 			return false;
 		
-		// now extract all the detections
-		for ( final TimePoint tp : SpimData2.getAllTimePointsSorted( data, viewIds ) )
+		// several views of all timepoints are processed at the same time, every view is stored as soon as it is finished
+		if ( ipd instanceof DifferenceOf )
 		{
-			final HashMap< ViewId, List< InterestPoint > > points = ipd.findInterestPoints( tp );
-			
-			if ( ipd instanceof DifferenceOf )
+			final DifferenceOf dof = (DifferenceOf)ipd;
+			final ArrayList< ViewDescription > views = new ArrayList< ViewDescription >();
+
+			for ( final TimePoint tp : SpimData2.getAllTimePointsSorted( data, viewIds ) )
+				views.addAll( SpimData2.getAllViewIdsForTimePointSorted( data, viewIds, tp ) );
+
+			// only views whose images or parameters changed are detected again
+			final DetectionCache cache = saveXML ? new DetectionCache( data ) : null;
+			final HashMap< ViewId, String > fingerprints = new HashMap< ViewId, String >();
+			final boolean[] success = new boolean[]{ true };
+
+			if ( cache != null )
 			{
-				IOFunctions.println( "Opening of files took: " + ((DifferenceOf)ipd).getBenchmark().openFiles/1000 + " sec." );
-				IOFunctions.println( "Detecting interest points took: " + ((DifferenceOf)ipd).getBenchmark().computation/1000 + " sec." );
+				final ArrayList< ViewDescription > toDetect = new ArrayList< ViewDescription >();
+
+				// the downsampling is part of the parameters, it might depend on the z-resolution of the first view
+				if ( views.size() > 0 )
+					dof.resolveDownsampleXY( views.get( 0 ) );
+
+				for ( final ViewDescription vd : views )
+				{
+					final String fingerprint = cache.getFingerprint( vd );
+					final int channelId = vd.getViewSetup().getChannel().getId();
+					final InterestPointList cached = reuseDetections ? cache.lookup( vd, label, ipd.getParameters( channelId ), fingerprint ) : null;
+
+					fingerprints.put( vd, fingerprint );
+
+					if ( cached == null )
+						toDetect.add( vd );
+					else if ( cached != data.getViewInterestPoints().getViewInterestPointLists( vd ).getInterestPointList( label ) )
+						if ( !addInterestPoints( data, ipd, label, vd, DetectionCache.copy( cached.getInterestPoints() ), saveXML, cache, fingerprint ) )
+							return false;
+				}
+
+				if ( toDetect.size() < views.size() )
+					IOFunctions.println(
+							"(" + new Date( System.currentTimeMillis() ) + "): Reusing interest points of " + ( views.size() - toDetect.size() ) +
+							" unchanged views, detecting " + toDetect.size() + " views." );
+
+				views.clear();
+				views.addAll( toDetect );
 			}
-			
-			// save the file and the path in the XML
-			final SequenceDescription seqDesc = data.getSequenceDescription();
-			
-			for ( final ViewId viewId : points.keySet() )
+
+			// the xml is saved as soon as all views of a timepoint are finished, so the saved interest points are linked
+			// (and can be reused) even if the run does not finish
+			final HashMap< Integer, Integer > remainingViews = new HashMap< Integer, Integer >();
+
+			for ( final ViewDescription vd : views )
+				if ( vd.isPresent() )
+					remainingViews.put( vd.getTimePointId(), remainingViews.containsKey( vd.getTimePointId() ) ? remainingViews.get( vd.getTimePointId() ) + 1 : 1 );
+
+			dof.findInterestPoints( views, new DifferenceOf.DetectionListener()
 			{
-				final ViewDescription viewDesc = seqDesc.getViewDescription( viewId.getTimePointId(), viewId.getViewSetupId() );
-				final int channelId = viewDesc.getViewSetup().getChannel().getId();		
-				
-				final InterestPointList list = new InterestPointList(
-						data.getBasePath(),
-						new File( "interestpoints", "tpId_" + viewId.getTimePointId() + "_viewSetupId_" + viewId.getViewSetupId() + "." + label ) );
-				
-				list.setParameters( ipd.getParameters( channelId ) );
-				list.setInterestPoints( points.get( viewId ) );
-
-				if ( saveXML )
+				@Override
+				public boolean finished( final ViewDescription vd, final List< InterestPoint > points, final int finished, final int total )
 				{
-					if ( !list.saveInterestPoints() )
+					IOFunctions.println(
+							"(" + new Date( System.currentTimeMillis() ) + "): Found " + points.size() + " interest points in tp=" + vd.getTimePointId() +
+							", setup=" + vd.getViewSetupId() + " (" + finished + " of " + total + " views)" );
+
+					if ( !addInterestPoints( data, ipd, label, vd, points, saveXML, cache, fingerprints.get( vd ) ) )
 					{
-						IOFunctions.println( "Error saving interest point list: " + new File( list.getBaseDir(), list.getFile().toString() + list.getInterestPointsExt() ) );
+						success[ 0 ] = false;
 						return false;
 					}
-	
-					list.setCorrespondingInterestPoints( new ArrayList< CorrespondingInterestPoints >() );
-					if ( !list.saveCorrespondingInterestPoints() )
-						IOFunctions.println( "Failed to clear corresponding interest point list: " + new File( list.getBaseDir(), list.getFile().toString() + list.getCorrespondencesExt() ) );
+
+					final int remaining = remainingViews.get( vd.getTimePointId() ) - 1;
+					remainingViews.put( vd.getTimePointId(), remaining );
+
+					if ( remaining == 0 && saveXML )
+					{
+						updateMetaData( data );
+
+						if ( SpimData2.saveXML( data, xmlFileName, clusterExtension ) == null )
+						{
+							success[ 0 ] = false;
+							return false;
+						}
+					}
+
+					return true;
 				}
+			});
 
-				final ViewInterestPointLists vipl = data.getViewInterestPoints().getViewInterestPointLists( viewId );
-				vipl.addInterestPointList( label, list );
-			}
-			
-			// update metadata if necessary
-			if ( data.getSequenceDescription().getImgLoader() instanceof AbstractImgLoader )
+			IOFunctions.println( "Opening of files took: " + dof.getBenchmark().openFiles/1000 + " sec." );
+			IOFunctions.println( "Detecting interest points took: " + dof.getBenchmark().computation/1000 + " sec." );
+
+			if ( !success[ 0 ] )
+				return false;
+
+			updateMetaData( data );
+
+			// save the xml (also contains the reused interest points and views of timepoints that were not complete)
+			if ( saveXML && SpimData2.saveXML( data, xmlFileName, clusterExtension ) == null )
+				return false;
+
+			return true;
+		}
+
+		// now extract all the detections
+		for ( final TimePoint tp : SpimData2.getAllTimePointsSorted( data, viewIds ) )
+		{
+			final HashMap< ViewId, List< InterestPoint > > points = ipd.findInterestPoints( tp );
+
+			for ( final ViewId viewId : points.keySet() )
+				if ( !addInterestPoints( data, ipd, label, viewId, points.get( viewId ), saveXML ) )
+					return false;
+
+			updateMetaData( data );
+
+			// save the xml
+			if ( saveXML && SpimData2.saveXML( data, xmlFileName, clusterExtension ) == null )
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Links the interest points of one view into the XML (and saves them)
+	 * 
+	 * @param data
+	 * @param ipd - the detection that found the points
+	 * @param label - the label of the interest points
+	 * @param viewId - the view
+	 * @param points - the interest points of the view
+	 * @param saveXML - save the interest points to disk
+	 * @return false if the interest points could not be saved
+	 */
+	protected static boolean addInterestPoints(
+			final SpimData2 data,
+			final InterestPointDetection ipd,
+			final String label,
+			final ViewId viewId,
+			final List< InterestPoint > points,
+			final boolean saveXML )
+	{
+		return addInterestPoints( data, ipd, label, viewId, points, saveXML, null, null );
+	}
+
+	/**
+	 * Links the interest points of one view into the XML (and saves them together with the fingerprint of the image data)
+	 * 
+	 * @param data
+	 * @param ipd - the detection that found the points
+	 * @param label - the label of the interest points
+	 * @param viewId - the view
+	 * @param points - the interest points of the view
+	 * @param saveXML - save the interest points to disk
+	 * @param cache - stores the fingerprint, can be null
+	 * @param fingerprint - the fingerprint of the image data of the view, can be null
+	 * @return false if the interest points could not be saved
+	 */
+	protected static boolean addInterestPoints(
+			final SpimData2 data,
+			final InterestPointDetection ipd,
+			final String label,
+			final ViewId viewId,
+			final List< InterestPoint > points,
+			final boolean saveXML,
+			final DetectionCache cache,
+			final String fingerprint )
+	{
+		// save the file and the path in the XML
+		final SequenceDescription seqDesc = data.getSequenceDescription();
+		final ViewDescription viewDesc = seqDesc.getViewDescription( viewId.getTimePointId(), viewId.getViewSetupId() );
+		final int channelId = viewDesc.getViewSetup().getChannel().getId();		
+		
+		final InterestPointList list = new InterestPointList(
+				data.getBasePath(),
+				new File( "interestpoints", "tpId_" + viewId.getTimePointId() + "_viewSetupId_" + viewId.getViewSetupId() + "." + label ) );
+		
+		list.setParameters( ipd.getParameters( channelId ) );
+		list.setInterestPoints( points );
+
+		if ( saveXML )
+		{
+			if ( !list.saveInterestPoints() )
 			{
-				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Updating metadata ... " );
-				try
-				{
-					( (AbstractImgLoader)data.getSequenceDescription().getImgLoader() ).updateXMLMetaData( data, false );
-				}
-				catch( Exception e )
-				{
-					IOFunctions.println( "Failed to update metadata, this should not happen: " + e );
-				}
+				IOFunctions.println( "Error saving interest point list: " + new File( list.getBaseDir(), list.getFile().toString() + list.getInterestPointsExt() ) );
+				return false;
 			}
-			
-			// save the xml
-			if ( saveXML )
-				SpimData2.saveXML( data, xmlFileName, clusterExtension );
+
+			list.setCorrespondingInterestPoints( new ArrayList< CorrespondingInterestPoints >() );
+			if ( !list.saveCorrespondingInterestPoints() )
+				IOFunctions.println( "Failed to clear corresponding interest point list: " + new File( list.getBaseDir(), list.getFile().toString() + list.getCorrespondencesExt() ) );
+
+			if ( cache != null )
+				cache.save( list, fingerprint );
 		}
 
+		final ViewInterestPointLists vipl = data.getViewInterestPoints().getViewInterestPointLists( viewId );
+		vipl.addInterestPointList( label, list );
+
 		return true;
 	}
 
+	/**
+	 * Update metadata if necessary
+	 * 
+	 * @param data
+	 */
+	protected static void updateMetaData( final SpimData2 data )
+	{
+		if ( data.getSequenceDescription().getImgLoader() instanceof AbstractImgLoader )
+		{
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Updating metadata ... " );
+			try
+			{
+				( (AbstractImgLoader)data.getSequenceDescription().getImgLoader() ).updateXMLMetaData( data, false );
+			}
+			catch( Exception e )
+			{
+				IOFunctions.println( "Failed to update metadata, this should not happen: " + e );
+			}
+		}
+	}
+
 	public static void main( final String[] args )
 	{
 		new ImageJ();
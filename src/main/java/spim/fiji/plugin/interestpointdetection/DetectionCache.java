@@ -0,0 +1,221 @@
+package spim.fiji.plugin.interestpointdetection;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+
+import mpicbg.spim.data.sequence.ImgLoader;
+import mpicbg.spim.data.sequence.ViewDescription;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.data.sequence.ViewSetup;
+import mpicbg.spim.io.IOFunctions;
+import mpicbg.spim.io.TextFileAccess;
+import spim.fiji.spimdata.SpimData2;
+import spim.fiji.spimdata.imgloaders.LightSheetZ1ImgLoader;
+import spim.fiji.spimdata.imgloaders.MicroManagerImgLoader;
+import spim.fiji.spimdata.imgloaders.StackImgLoader;
+import spim.fiji.spimdata.interestpoints.InterestPoint;
+import spim.fiji.spimdata.interestpoints.InterestPointList;
+import spim.fiji.spimdata.interestpoints.ViewInterestPointLists;
+import bdv.img.hdf5.Hdf5ImageLoader;
+
+/**
+ * Finds interest points of a view that were detected before from the same image data with the same parameters,
+ * so only new or changed views have to be detected again. Every saved interest point list gets a fingerprint of
+ * its image data next to it (.fingerprint.txt), a list is reused if the fingerprint and the parameters stored in
+ * the XML ({@link InterestPointList#getParameters()}) are identical.
+ *
+ * Views stored in individual files are identified by the path, size and modification date of the file. For
+ * container files (HDF5, CZI, MicroManager) the path, size and modification date of the container together with
+ * the dimensions and calibration of the view is used, so resaving or appending to the container means detecting
+ * again. Views of other image loaders are always detected.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class DetectionCache
+{
+	final SpimData2 data;
+
+	public DetectionCache( final SpimData2 data )
+	{
+		this.data = data;
+	}
+
+	/**
+	 * @param viewId - the view
+	 * @return the fingerprint of the image data of the view, null if it cannot be determined
+	 */
+	public String getFingerprint( final ViewId viewId )
+	{
+		final ViewDescription vd = data.getSequenceDescription().getViewDescription( viewId );
+		final ImgLoader imgLoader = data.getSequenceDescription().getImgLoader();
+
+		if ( vd == null || !vd.isPresent() )
+			return null;
+
+		if ( imgLoader instanceof StackImgLoader )
+		{
+			final File file = ( (StackImgLoader< ? >)imgLoader ).getFile( viewId );
+
+			if ( file == null )
+				return null;
+
+			return "file=" + file.getAbsolutePath() + " length=" + file.length() + " modified=" + file.lastModified();
+		}
+
+		final File container;
+
+		if ( imgLoader instanceof Hdf5ImageLoader )
+			container = ( (Hdf5ImageLoader)imgLoader ).getHdf5File();
+		else if ( imgLoader instanceof LightSheetZ1ImgLoader )
+			container = ( (LightSheetZ1ImgLoader)imgLoader ).getCZIFile();
+		else if ( imgLoader instanceof MicroManagerImgLoader )
+			container = ( (MicroManagerImgLoader)imgLoader ).getFile();
+		else
+			return null;
+
+		final ViewSetup vs = vd.getViewSetup();
+
+		if ( container == null || !vs.hasSize() )
+			return null;
+
+		// the pixel data is not read, but it can only change if the container is written
+		String fingerprint = "file=" + container.getAbsolutePath() + " length=" + container.length() + " modified=" + container.lastModified() + " tp=" + viewId.getTimePointId() + " setup=" + viewId.getViewSetupId() + " size=";
+
+		for ( int d = 0; d < vs.getSize().numDimensions(); ++d )
+			fingerprint += vs.getSize().dimension( d ) + ",";
+
+		if ( vs.hasVoxelSize() )
+		{
+			fingerprint += " voxelsize=";
+
+			for ( int d = 0; d < vs.getVoxelSize().numDimensions(); ++d )
+				fingerprint += vs.getVoxelSize().dimension( d ) + ",";
+		}
+
+		return fingerprint;
+	}
+
+	/**
+	 * Looks for an interest point list of the view with the same parameters and fingerprint, the list of the
+	 * requested label is preferred
+	 *
+	 * @param viewId - the view
+	 * @param label - the label of the new interest points
+	 * @param parameters - the parameters of the detection
+	 * @param fingerprint - the fingerprint of the image data, see {@link #getFingerprint(ViewId)}
+	 * @return the list (with loaded interest points) or null if the view has to be detected
+	 */
+	public InterestPointList lookup( final ViewId viewId, final String label, final String parameters, final String fingerprint )
+	{
+		if ( fingerprint == null )
+			return null;
+
+		final ViewInterestPointLists vipl = data.getViewInterestPoints().getViewInterestPointLists( viewId );
+
+		if ( vipl == null )
+			return null;
+
+		if ( vipl.contains( label ) && matches( vipl.getInterestPointList( label ), parameters, fingerprint ) )
+			return vipl.getInterestPointList( label );
+
+		for ( final Entry< String, InterestPointList > entry : vipl.getHashMap().entrySet() )
+			if ( !entry.getKey().equals( label ) && matches( entry.getValue(), parameters, fingerprint ) )
+				return entry.getValue();
+
+		return null;
+	}
+
+	protected boolean matches( final InterestPointList list, final String parameters, final String fingerprint )
+	{
+		if ( list == null || !parameters.equals( list.getParameters() ) || !fingerprint.equals( load( list ) ) )
+			return false;
+
+		if ( list.getInterestPoints() == null )
+			return list.loadInterestPoints();
+
+		return true;
+	}
+
+	/**
+	 * @param list - the list of interest points
+	 * @return the file storing the fingerprint of the image data the list was detected in
+	 */
+	public File getFingerprintFile( final InterestPointList list )
+	{
+		return new File( list.getBaseDir(), list.getFile().toString() + ".fingerprint.txt" );
+	}
+
+	/**
+	 * @param list - the list of interest points
+	 * @return the stored fingerprint or null if there is none
+	 */
+	public String load( final InterestPointList list )
+	{
+		final File file = getFingerprintFile( list );
+
+		if ( !file.exists() )
+			return null;
+
+		try
+		{
+			final BufferedReader in = TextFileAccess.openFileReadEx( file );
+			final String fingerprint = in.readLine();
+			in.close();
+
+			return fingerprint;
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Could not load fingerprint '" + file.getAbsolutePath() + "': " + e );
+			return null;
+		}
+	}
+
+	/**
+	 * @param list - the list of interest points, must be saved already
+	 * @param fingerprint - the fingerprint of the image data the list was detected in, nothing is saved if null
+	 */
+	public void save( final InterestPointList list, final String fingerprint )
+	{
+		final File file = getFingerprintFile( list );
+
+		if ( fingerprint == null )
+		{
+			// the old fingerprint does not describe the new interest points anymore
+			if ( file.exists() )
+				file.delete();
+
+			return;
+		}
+
+		try
+		{
+			final PrintWriter out = TextFileAccess.openFileWriteEx( file );
+			out.println( fingerprint );
+			out.close();
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Could not save fingerprint '" + file.getAbsolutePath() + "': " + e );
+		}
+	}
+
+	/**
+	 * @param points - the interest points
+	 * @return a copy of the interest points for a new list
+	 */
+	public static List< InterestPoint > copy( final List< InterestPoint > points )
+	{
+		final ArrayList< InterestPoint > copy = new ArrayList< InterestPoint >( points.size() );
+
+		for ( final InterestPoint p : points )
+			copy.add( new InterestPoint( p.getId(), p.getL().clone() ) );
+
+		return copy;
+	}
+}
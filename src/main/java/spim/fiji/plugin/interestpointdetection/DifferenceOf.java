@@ -4,27 +4,46 @@ import static mpicbg.spim.data.generic.sequence.ImgLoaderHints.LOAD_COMPLETELY;
 import ij.gui.GenericDialog;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
 import mpicbg.spim.data.sequence.Channel;
 import mpicbg.spim.data.sequence.ImgLoader;
 import mpicbg.spim.data.sequence.MultiResolutionImgLoader;
+import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.data.sequence.VoxelDimensions;
 import mpicbg.spim.io.IOFunctions;
+import net.imglib2.Cursor;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.gauss3.Gauss3;
 import net.imglib2.exception.IncompatibleTypeException;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.view.Views;
+import spim.Threads;
 import spim.fiji.plugin.util.GUIHelper;
 import spim.fiji.spimdata.SpimData2;
+import spim.fiji.spimdata.ViewSetupUtils;
 import spim.fiji.spimdata.interestpoints.InterestPoint;
+import spim.process.fusion.FusionHelper;
+import spim.process.fusion.PipelineMemory;
 import spim.process.interestpointdetection.Downsample;
 
 public abstract class DifferenceOf extends InterestPointDetection
@@ -54,6 +73,20 @@ public abstract class DifferenceOf extends InterestPointDetection
 
 	public static double defaultMinIntensity = 0.0;
 	public static double defaultMaxIntensity = 65535.0;
+
+	// how many views are processed at the same time (0 == number of threads), limited by the memory
+	public static int defaultParallelViews = 0;
+	public static long defaultDetectionMemoryMB = -1;
+
+	// the downsampled input and the temporary images of the detection per view
+	public static int detectionCopies = 4;
+
+	// detect in overlapping blocks of the downsampled view that are loaded one by one
+	public static boolean defaultBlockwise = false;
+	public static int defaultBlockSize = 256;
+
+	// how many views are opened and downsampled ahead while detecting sequentially
+	public static int defaultPrefetchViews = 1;
 	
 	protected double imageSigmaX, imageSigmaY, imageSigmaZ;
 	protected double additionalSigmaX, additionalSigmaY, additionalSigmaZ;
@@ -63,6 +96,17 @@ public abstract class DifferenceOf extends InterestPointDetection
 	// downsampleXY == -1 : a bit more then z-resolution
 	protected int localization, downsampleXY, downsampleZ;
 
+	protected int parallelViews = 1;
+	protected long detectionMemoryMB = 0;
+
+	protected boolean blockwise = false;
+	protected int blockSize = 256;
+
+	protected int prefetchViews = 1;
+
+	// set if a listener asked to stop, no further views are detected then
+	protected volatile boolean stopped = false;
+
 	final ArrayList< Channel > channelsToProcess;
 
 	public DifferenceOf( final SpimData2 spimData, final List< ViewId > viewIdsToProcess )
@@ -136,6 +180,15 @@ public abstract class DifferenceOf extends InterestPointDetection
 					"Only adjust the initial sigma's if this is not the case.", GUIHelper.mediumstatusfont );
 		}
 
+		if ( defaultDetectionMemoryMB <= 0 )
+			defaultDetectionMemoryMB = Runtime.getRuntime().maxMemory() / ( 1024 * 1024 ) / 2;
+
+		gd.addCheckbox( "Detect_block-wise (for views larger than the memory)", defaultBlockwise );
+		gd.addNumericField( "Block_size", defaultBlockSize, 0, 5, "pixels (after downsampling)" );
+		gd.addNumericField( "Views_processed_in_parallel", defaultParallelViews, 0, 5, "(0 = number of threads)" );
+		gd.addNumericField( "Memory_for_parallel_detection", defaultDetectionMemoryMB, 0, 10, "MB" );
+		gd.addNumericField( "Views_to_prefetch", defaultPrefetchViews, 0, 5, "(if views are processed sequentially)" );
+
 		addAddtionalParameters( gd );
 
 		gd.showDialog();
@@ -238,12 +291,366 @@ public abstract class DifferenceOf extends InterestPointDetection
 			imageSigmaX = imageSigmaY = imageSigmaZ = 0.5;
 		}
 
+		blockwise = defaultBlockwise = gd.getNextBoolean();
+		blockSize = defaultBlockSize = Math.max( 16, (int)Math.round( gd.getNextNumber() ) );
+		defaultParallelViews = Math.max( 0, (int)Math.round( gd.getNextNumber() ) );
+		parallelViews = defaultParallelViews == 0 ? Threads.numThreads() : defaultParallelViews;
+		detectionMemoryMB = defaultDetectionMemoryMB = Math.max( 1, Math.round( gd.getNextNumber() ) );
+		prefetchViews = defaultPrefetchViews = Math.max( 0, (int)Math.round( gd.getNextNumber() ) );
+
 		if ( !queryAdditionalParameters( gd ) )
 			return false;
 		else
 			return true;
 	}
 	
+	/**
+	 * Receives the interest points of every view as soon as its detection is finished
+	 */
+	public static interface DetectionListener
+	{
+		/**
+		 * Called by only one thread at a time
+		 *
+		 * @param vd - the view
+		 * @param points - its interest points
+		 * @param finished - how many views are finished
+		 * @param total - the number of views
+		 * @return false to stop the detection (e.g. because the result cannot be saved), views that are being
+		 * detected at this moment are still finished
+		 */
+		public boolean finished( final ViewDescription vd, final List< InterestPoint > points, final int finished, final int total );
+	}
+
+	/**
+	 * Detects the interest points of one (downsampled and presmoothed) view
+	 *
+	 * @param input - the image
+	 * @param vd - the view
+	 * @param minIntensity - the intensity that is normalized to 0 (NaN to use the minimum of the input)
+	 * @param maxIntensity - the intensity that is normalized to 1 (NaN to use the maximum of the input)
+	 * @return the interest points in the coordinates of the input image
+	 */
+	protected abstract ArrayList< InterestPoint > compute(
+			final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input,
+			final ViewDescription vd,
+			final double minIntensity,
+			final double maxIntensity );
+
+	/**
+	 * @param channel - the channel
+	 * @return the overlap of neighboring blocks necessary to detect the same interest points as in the entire image
+	 */
+	protected abstract int getHalo( final Channel channel );
+
+	/**
+	 * @return true if the detection cannot be run for several views at the same time (e.g. on the GPU)
+	 */
+	protected boolean sequentialOnly() { return false; }
+
+	/**
+	 * @return how many copies of the downsampled image the detection needs
+	 */
+	protected int getDetectionCopies() { return detectionCopies; }
+
+	@Override
+	public HashMap< ViewId, List< InterestPoint > > findInterestPoints( final TimePoint t )
+	{
+		return findInterestPoints( SpimData2.getAllViewIdsForTimePointSorted( spimData, viewIdsToProcess, t ), null );
+	}
+
+	/**
+	 * Detects the interest points in several views, which can be of different timepoints. As many views as defined
+	 * by parallelViews are processed at the same time, as long as their estimated memory fits into detectionMemoryMB.
+	 *
+	 * @param views - the views to process (views that are not present are ignored)
+	 * @param listener - notified as soon as each view is finished, can be null
+	 * @return the interest points of all views that could be processed
+	 */
+	public HashMap< ViewId, List< InterestPoint > > findInterestPoints( final List< ViewDescription > views, final DetectionListener listener )
+	{
+		final HashMap< ViewId, List< InterestPoint > > interestPoints = new HashMap< ViewId, List< InterestPoint > >();
+		final ArrayList< ViewDescription > present = new ArrayList< ViewDescription >();
+
+		stopped = false;
+
+		for ( final ViewDescription vd : views )
+			if ( vd.isPresent() )
+				present.add( vd );
+
+		final int numParallel = sequentialOnly() ? 1 : Math.min( Math.max( 1, parallelViews ), present.size() );
+
+		if ( numParallel <= 1 )
+		{
+			if ( prefetchViews > 0 && !blockwise && present.size() > 1 )
+				detectPrefetched( present, interestPoints, listener );
+			else
+				for ( final ViewDescription vd : present )
+					if ( !stopped )
+						detect( vd, interestPoints, listener, present.size() );
+
+			return interestPoints;
+		}
+
+		IOFunctions.println(
+				"(" + new Date( System.currentTimeMillis() ) + "): Detecting interest points in " + present.size() + " views, " +
+				numParallel + " at a time (memory: " + detectionMemoryMB + " MB)" );
+
+		final ExecutorService taskExecutor = Executors.newFixedThreadPool( numParallel );
+		final PipelineMemory memory = new PipelineMemory( detectionMemoryMB );
+		final HashMap< ViewId, List< InterestPoint > > results = new HashMap< ViewId, List< InterestPoint > >();
+
+		for ( final ViewDescription vd : present )
+		{
+			final long sizeMB = estimateMemoryMB( vd );
+
+			// start the next view only once its memory is available
+			if ( !memory.waitFor( sizeMB ) || stopped )
+				break;
+
+			memory.add( sizeMB );
+
+			taskExecutor.submit( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						if ( !stopped )
+							detect( vd, results, listener, present.size() );
+					}
+					finally
+					{
+						memory.release( sizeMB );
+					}
+				}
+			});
+		}
+
+		taskExecutor.shutdown();
+
+		try
+		{
+			taskExecutor.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS );
+		}
+		catch ( final InterruptedException e )
+		{
+			IOFunctions.println( "Interest point detection interrupted: " + e );
+			taskExecutor.shutdownNow();
+		}
+
+		synchronized ( results )
+		{
+			interestPoints.putAll( results );
+		}
+
+		return interestPoints;
+	}
+
+	/**
+	 * Opens, downsamples and presmoothes one view, detects its interest points and adds them to the results
+	 *
+	 * @param vd - the view
+	 * @param results - the interest points of all views so far
+	 * @param listener - notified when the view is finished, can be null
+	 * @param total - the number of views to process
+	 */
+	protected void detect( final ViewDescription vd, final HashMap< ViewId, List< InterestPoint > > results, final DetectionListener listener, final int total )
+	{
+		detect( vd, null, results, listener, total );
+	}
+
+	/**
+	 * Detects the interest points of one view, see {@link #detect(ViewDescription, HashMap, DetectionListener, int)}
+	 *
+	 * @param vd - the view
+	 * @param opened - the view opened and downsampled in advance, or null to open it now
+	 * @param results - the interest points of all views so far
+	 * @param listener - notified when the view is finished, can be null
+	 * @param total - the number of views to process
+	 */
+	protected void detect( final ViewDescription vd, final OpenedView opened, final HashMap< ViewId, List< InterestPoint > > results, final DetectionListener listener, final int total )
+	{
+		// make sure not everything crashes if one file is missing
+		try
+		{
+			//
+			// open the corresponding image (if present at this timepoint)
+			//
+			long time1 = System.currentTimeMillis();
+			long time2;
+
+			final AffineTransform3D correctCoordinates = new AffineTransform3D();
+			final ArrayList< InterestPoint > ips;
+
+			if ( blockwise )
+			{
+				// opening and computation are interleaved
+				time2 = time1;
+				ips = detectBlockwise( vd, correctCoordinates );
+			}
+			else
+			{
+				final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input;
+
+				if ( opened == null )
+				{
+					input = openAndDownsample( spimData, vd, correctCoordinates );
+				}
+				else
+				{
+					input = opened.input;
+					correctCoordinates.set( opened.t );
+
+					// only the time waiting for the prefetched view counts
+					time1 -= opened.waitTime;
+				}
+
+				time2 = System.currentTimeMillis();
+
+				preSmooth( input );
+
+				ips = compute( input, vd, minIntensity, maxIntensity );
+			}
+
+			correctForDownsampling( ips, correctCoordinates );
+
+			long time3 = System.currentTimeMillis();
+
+			synchronized ( results )
+			{
+				benchmark.openFiles += time2 - time1;
+				benchmark.computation += time3 - time2;
+
+				results.put( vd, ips );
+
+				if ( listener != null && !listener.finished( vd, Collections.unmodifiableList( ips ), results.size(), total ) )
+				{
+					IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Stopping the interest point detection." );
+					stopped = true;
+				}
+			}
+		}
+		catch ( Exception  e )
+		{
+			IOFunctions.println( "An error occured (" + getDescription() + "): " + e ); 
+			IOFunctions.println( "Failed to segment angleId: " + 
+					vd.getViewSetup().getAngle().getId() + " channelId: " +
+					vd.getViewSetup().getChannel().getId() + " illumId: " +
+					vd.getViewSetup().getIllumination().getId() + ". Continuing with next one." );
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Detects the interest points of the views one after the other, while up to prefetchViews of the following views
+	 * are opened and downsampled in the background (one at a time, the I/O is sequential anyways)
+	 *
+	 * @param views - the views to process
+	 * @param results - filled with the interest points of all views
+	 * @param listener - notified as soon as each view is finished, can be null
+	 */
+	protected void detectPrefetched( final List< ViewDescription > views, final HashMap< ViewId, List< InterestPoint > > results, final DetectionListener listener )
+	{
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Detecting interest points in " + views.size() + " views, prefetching " + prefetchViews + " view(s)" );
+
+		final ExecutorService prefetcher = Executors.newSingleThreadExecutor();
+		final LinkedList< Future< OpenedView > > inFlight = new LinkedList< Future< OpenedView > >();
+
+		int next = 0;
+
+		for ( int i = 0; i < views.size() && !stopped; ++i )
+		{
+			// the current view and at most prefetchViews after it are open or being opened
+			for ( ; next < views.size() && next <= i + prefetchViews; ++next )
+			{
+				final ViewDescription vd = views.get( next );
+
+				inFlight.add( prefetcher.submit( new Callable< OpenedView >()
+				{
+					@Override
+					public OpenedView call() throws Exception
+					{
+						final AffineTransform3D t = new AffineTransform3D();
+						return new OpenedView( openAndDownsample( spimData, vd, t ), t );
+					}
+				}) );
+			}
+
+			final ViewDescription vd = views.get( i );
+			final long time = System.currentTimeMillis();
+
+			try
+			{
+				final OpenedView opened = inFlight.removeFirst().get();
+				opened.waitTime = System.currentTimeMillis() - time;
+
+				detect( vd, opened, results, listener, views.size() );
+			}
+			catch ( final ExecutionException e )
+			{
+				IOFunctions.println( "An error occured (" + getDescription() + "): " + e.getCause() );
+				IOFunctions.println( "Failed to open tp=" + vd.getTimePointId() + ", setup=" + vd.getViewSetupId() + ". Continuing with next one." );
+				e.printStackTrace();
+			}
+			catch ( final InterruptedException e )
+			{
+				IOFunctions.println( "Interest point detection interrupted: " + e );
+				break;
+			}
+		}
+
+		prefetcher.shutdownNow();
+	}
+
+	/**
+	 * A view that was opened and downsampled in advance
+	 */
+	protected static class OpenedView
+	{
+		final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input;
+		final AffineTransform3D t;
+		long waitTime = 0;
+
+		public OpenedView( final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input, final AffineTransform3D t )
+		{
+			this.input = input;
+			this.t = t;
+		}
+	}
+
+	/**
+	 * @param vd - the view
+	 * @return the approximate memory needed to detect the interest points of the view (in MB)
+	 */
+	protected long estimateMemoryMB( final ViewDescription vd )
+	{
+		final Dimensions dim = ViewSetupUtils.getSizeOrLoad( vd.getViewSetup(), vd.getTimePoint(), spimData.getSequenceDescription().getImgLoader() );
+
+		if ( dim == null )
+			return 1;
+
+		long numPixels = 1;
+
+		for ( int d = 0; d < dim.numDimensions(); ++d )
+			numPixels *= dim.dimension( d );
+
+		// if the downsampling depends on the z-resolution it is not known yet, assume none
+		final long dsXY = Math.max( 1, downsampleXY );
+		final long numPixelsDownsampled = numPixels / ( dsXY * dsXY * Math.max( 1, downsampleZ ) );
+
+		// one block including its halo at a time, the image is loaded lazily
+		if ( blockwise )
+		{
+			final long blockPixels = (long)Math.pow( blockSize + 2 * getHalo( vd.getViewSetup().getChannel() ), 3 );
+			return Math.max( 1, ( blockPixels * dsXY * dsXY * Math.max( 1, downsampleZ ) * 4 + blockPixels * 4 * getDetectionCopies() ) / ( 1024 * 1024 ) );
+		}
+
+		// the loaded image (at full resolution unless a multiresolution level is used) and all downsampled copies
+		return Math.max( 1, ( numPixels * 4 + numPixelsDownsampled * 4 * getDetectionCopies() ) / ( 1024 * 1024 ) );
+	}
+
 	protected < T extends RealType< T > > void preSmooth( final RandomAccessibleInterval< T > img )
 	{
 		if ( additionalSigmaX > 0.0 || additionalSigmaY > 0.0 || additionalSigmaZ > 0.0 )
@@ -338,6 +745,23 @@ public abstract class DifferenceOf extends InterestPointDetection
 		}
 	}
 
+	/**
+	 * Resolves a downsampling in XY that depends on the z-resolution (downsampleXY == 0 : a bit less then
+	 * z-resolution, downsampleXY == -1 : a bit more then z-resolution), the first view defines it for all
+	 * views (several views might be opened at the same time). It is part of {@link #getParameters(int)},
+	 * so it has to be resolved before the parameters are compared to previous detections.
+	 *
+	 * @param vd - the view
+	 * @return the downsampling in XY
+	 */
+	public synchronized int resolveDownsampleXY( final ViewDescription vd )
+	{
+		if ( downsampleXY < 1 )
+			downsampleXY = downsampleFactor( downsampleXY, downsampleZ, vd.getViewSetup().getVoxelSize() );
+
+		return downsampleXY;
+	}
+
 	public int downsampleFactor( final int downsampleXY, final int downsampleZ, final VoxelDimensions v )
 	{
 		final double calXY = Math.min( v.dimension( 0 ), v.dimension( 1 ) );
@@ -354,21 +778,197 @@ public abstract class DifferenceOf extends InterestPointDetection
 		return (int)Math.round( exp2 );
 	}
 	
+	/**
+	 * Detects the interest points in overlapping blocks of the downsampled view. Only one block (plus its halo)
+	 * is loaded and downsampled at a time, the view is accessed lazily through the ImgLoader. Interest points
+	 * that are located in the halo are dropped (they belong to the neighboring block), all blocks are normalized
+	 * with the same intensity range.
+	 *
+	 * @param vd - the view
+	 * @param t - filled with the transformation from the downsampled to the full resolution image
+	 * @return the interest points in the coordinates of the downsampled view
+	 */
+	protected ArrayList< InterestPoint > detectBlockwise( final ViewDescription vd, final AffineTransform3D t )
+	{
+		final int[] f = new int[ 3 ];
+		final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input = open( spimData, vd, t, f, false );
+
+		// the dimensions after downsampling
+		final long[] dim = new long[ 3 ];
+
+		for ( int d = 0; d < 3; ++d )
+		{
+			dim[ d ] = input.dimension( d );
+
+			for ( int r = f[ d ]; r > 1; r /= 2 )
+				dim[ d ] /= 2;
+		}
+
+		// all blocks have to be normalized the same way
+		double min = minIntensity;
+		double max = maxIntensity;
+
+		if ( Double.isNaN( min ) || Double.isNaN( max ) || Double.isInfinite( min ) || Double.isInfinite( max ) || min == max )
+		{
+			final float[] minmax = FusionHelper.minMax( input );
+			min = minmax[ 0 ];
+			max = minmax[ 1 ];
+		}
+
+		final int halo = getHalo( vd.getViewSetup().getChannel() ) +
+				(int)Math.ceil( 4 * Math.max( additionalSigmaX, Math.max( additionalSigmaY, additionalSigmaZ ) ) );
+
+		final long[] numBlocks = new long[ 3 ];
+
+		for ( int d = 0; d < 3; ++d )
+			numBlocks[ d ] = ( dim[ d ] + blockSize - 1 ) / blockSize;
+
+		IOFunctions.println(
+				"(" + new Date( System.currentTimeMillis() ) + "): Block-wise detection, " + numBlocks[ 0 ] + "x" + numBlocks[ 1 ] + "x" + numBlocks[ 2 ] +
+				" blocks of " + blockSize + " pixels, halo=" + halo );
+
+		final ArrayList< InterestPoint > ips = new ArrayList< InterestPoint >();
+		final long[] coreMin = new long[ 3 ];
+		final long[] coreMax = new long[ 3 ];
+		final long[] blockMin = new long[ 3 ];
+		final long[] blockMax = new long[ 3 ];
+
+		int id = 0;
+
+		for ( long bz = 0; bz < numBlocks[ 2 ]; ++bz )
+			for ( long by = 0; by < numBlocks[ 1 ]; ++by )
+				for ( long bx = 0; bx < numBlocks[ 0 ]; ++bx )
+				{
+					final long[] b = new long[]{ bx, by, bz };
+
+					for ( int d = 0; d < 3; ++d )
+					{
+						coreMin[ d ] = b[ d ] * blockSize;
+						coreMax[ d ] = Math.min( coreMin[ d ] + blockSize, dim[ d ] ) - 1;
+						blockMin[ d ] = Math.max( 0, coreMin[ d ] - halo );
+						blockMax[ d ] = Math.min( dim[ d ] - 1, coreMax[ d ] + halo );
+					}
+
+					final Img< net.imglib2.type.numeric.real.FloatType > block = openBlock( input, f, blockMin, blockMax );
+
+					preSmooth( block );
+
+					for ( final InterestPoint ip : compute( block, vd, min, max ) )
+					{
+						final double[] l = new double[ 3 ];
+						boolean inside = true;
+
+						for ( int d = 0; d < 3; ++d )
+						{
+							l[ d ] = ip.getL()[ d ] + blockMin[ d ];
+
+							final long p = Math.round( l[ d ] );
+							inside &= ( p >= coreMin[ d ] && p <= coreMax[ d ] );
+						}
+
+						// globally unique ids
+						if ( inside )
+							ips.add( new InterestPoint( id++, l ) );
+					}
+				}
+
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Found " + ips.size() + " peaks in all blocks." );
+
+		return ips;
+	}
+
+	/**
+	 * Copies one block from the (lazily loaded) image and downsamples it
+	 *
+	 * @param input - the image as loaded from the ImgLoader
+	 * @param f - the remaining downsampling factors (powers of 2)
+	 * @param min - the minimum of the block in the downsampled image
+	 * @param max - the maximum of the block in the downsampled image
+	 * @return the downsampled block
+	 */
+	@SuppressWarnings("unchecked")
+	protected static Img< net.imglib2.type.numeric.real.FloatType > openBlock(
+			final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input,
+			final int[] f,
+			final long[] min,
+			final long[] max )
+	{
+		final long[] srcMin = new long[ 3 ];
+		final long[] srcMax = new long[ 3 ];
+
+		for ( int d = 0; d < 3; ++d )
+		{
+			srcMin[ d ] = min[ d ] * f[ d ];
+			srcMax[ d ] = ( max[ d ] + 1 ) * f[ d ] - 1;
+		}
+
+		final ArrayImgFactory< net.imglib2.type.numeric.real.FloatType > factory = new ArrayImgFactory< net.imglib2.type.numeric.real.FloatType >();
+		final Img< net.imglib2.type.numeric.real.FloatType > block = factory.create( new FinalInterval( srcMin, srcMax ), new net.imglib2.type.numeric.real.FloatType() );
+
+		final Cursor< net.imglib2.type.numeric.real.FloatType > in = Views.flatIterable( Views.interval( input, srcMin, srcMax ) ).cursor();
+		final Cursor< net.imglib2.type.numeric.real.FloatType > out = block.cursor();
+
+		while ( out.hasNext() )
+			out.next().set( in.next() );
+
+		RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > downsampled = block;
+
+		for ( int dsx = f[ 0 ]; dsx > 1; dsx /= 2 )
+			downsampled = Downsample.simple2x( downsampled, factory, new boolean[]{ true, false, false } );
+
+		for ( int dsy = f[ 1 ]; dsy > 1; dsy /= 2 )
+			downsampled = Downsample.simple2x( downsampled, factory, new boolean[]{ false, true, false } );
+
+		for ( int dsz = f[ 2 ]; dsz > 1; dsz /= 2 )
+			downsampled = Downsample.simple2x( downsampled, factory, new boolean[]{ false, false, true } );
+
+		return (Img< net.imglib2.type.numeric.real.FloatType >)downsampled;
+	}
+
 	protected RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > openAndDownsample(
 			final SpimData2 spimData,
 			final ViewDescription vd,
 			final AffineTransform3D t )
+	{
+		final int[] f = new int[ 3 ];
+		RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input = open( spimData, vd, t, f, true );
+
+		final ImgFactory< net.imglib2.type.numeric.real.FloatType > factory = ((Img<net.imglib2.type.numeric.real.FloatType>)input).factory();
+
+		for ( int dsx = f[ 0 ]; dsx > 1; dsx /= 2 )
+			input = Downsample.simple2x( input, factory, new boolean[]{ true, false, false } );
+
+		for ( int dsy = f[ 1 ]; dsy > 1; dsy /= 2 )
+			input = Downsample.simple2x( input, factory, new boolean[]{ false, true, false } );
+
+		for ( int dsz = f[ 2 ]; dsz > 1; dsz /= 2 )
+			input = Downsample.simple2x( input, factory, new boolean[]{ false, false, true } );
+
+		return input;
+	}
+
+	/**
+	 * Opens the best (precomputed) resolution level of a view for the requested downsampling
+	 *
+	 * @param spimData
+	 * @param vd - the view
+	 * @param t - set to the transformation from the downsampled to the full resolution image
+	 * @param f - filled with the downsampling that remains to be done for the opened image
+	 * @param loadCompletely - load the image into memory or access it lazily (if supported by the ImgLoader)
+	 * @return the opened image
+	 */
+	protected RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > open(
+			final SpimData2 spimData,
+			final ViewDescription vd,
+			final AffineTransform3D t,
+			final int[] f,
+			final boolean loadCompletely )
 	{
 		IOFunctions.println(
 				"(" + new Date(System.currentTimeMillis()) + "): "
 				+ "Requesting Img from ImgLoader (tp=" + vd.getTimePointId() + ", setup=" + vd.getViewSetupId() + ")" );
 
-		int downsampleXY = this.downsampleXY;
-
-		// downsampleXY == 0 : a bit less then z-resolution
-		// downsampleXY == -1 : a bit more then z-resolution
-		if ( downsampleXY < 1 )
-			this.downsampleXY = downsampleXY = downsampleFactor( downsampleXY, downsampleZ, vd.getViewSetup().getVoxelSize() );
+		final int downsampleXY = resolveDownsampleXY( vd );
 
 		if ( downsampleXY > 1 )
 			IOFunctions.println( "(" + new Date( System.currentTimeMillis() )  + "): Downsampling in XY " + downsampleXY + "x ..." );
@@ -383,6 +983,7 @@ public abstract class DifferenceOf extends InterestPointDetection
 		RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input = null;
 
 		ImgLoader imgLoader = spimData.getSequenceDescription().getImgLoader();
+		final ImgLoaderHint[] hints = loadCompletely ? new ImgLoaderHint[]{ LOAD_COMPLETELY } : new ImgLoaderHint[ 0 ];
 
 		if ( ( dsx > 1 || dsy > 1 || dsz > 1 ) && MultiResolutionImgLoader.class.isInstance( imgLoader ) )
 		{
@@ -419,28 +1020,21 @@ public abstract class DifferenceOf extends InterestPointDetection
 					"Using precomputed Multiresolution Images [" + fx + "x" + fy + "x" + fz + "], " +
 					"Remaining downsampling [" + dsx + "x" + dsy + "x" + dsz + "]" );
 
-			input = mrImgLoader.getSetupImgLoader( vd.getViewSetupId() ).getFloatImage( vd.getTimePointId(), bestLevel, false, LOAD_COMPLETELY );
+			input = mrImgLoader.getSetupImgLoader( vd.getViewSetupId() ).getFloatImage( vd.getTimePointId(), bestLevel, false, hints );
 		}
 		else
 		{
-			input = imgLoader.getSetupImgLoader( vd.getViewSetupId() ).getFloatImage( vd.getTimePointId(), false, LOAD_COMPLETELY );
+			input = imgLoader.getSetupImgLoader( vd.getViewSetupId() ).getFloatImage( vd.getTimePointId(), false, hints );
 			t.identity();
 		}
 
-		final ImgFactory< net.imglib2.type.numeric.real.FloatType > f = ((Img<net.imglib2.type.numeric.real.FloatType>)input).factory();
-
 		t.set( downsampleXY, 0, 0 );
 		t.set( downsampleXY, 1, 1 );
 		t.set( downsampleZ, 2, 2 );
 
-		for ( ;dsx > 1; dsx /= 2 )
-			input = Downsample.simple2x( input, f, new boolean[]{ true, false, false } );
-
-		for ( ;dsy > 1; dsy /= 2 )
-			input = Downsample.simple2x( input, f, new boolean[]{ false, true, false } );
-
-		for ( ;dsz > 1; dsz /= 2 )
-			input = Downsample.simple2x( input, f, new boolean[]{ false, false, true } );
+		f[ 0 ] = dsx;
+		f[ 1 ] = dsy;
+		f[ 2 ] = dsz;
 
 		return input;
 	}
@@ -4,17 +4,16 @@ import ij.ImagePlus;
 import ij.gui.GenericDialog;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
 import mpicbg.imglib.image.Image;
 import mpicbg.imglib.type.numeric.real.FloatType;
 import mpicbg.imglib.wrapper.ImgLib2;
 import mpicbg.spim.data.sequence.Channel;
-import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
+import mpicbg.spim.registration.bead.laplace.LaPlaceFunctions;
 import mpicbg.spim.segmentation.InteractiveDoG;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
@@ -28,6 +27,7 @@ import spim.process.cuda.CUDASeparableConvolution;
 import spim.process.cuda.CUDATools;
 import spim.process.cuda.NativeLibraryTools;
 import spim.process.interestpointdetection.ProcessDOG;
+import spim.process.interestpointdetection.ProcessDOGImgLib2;
 
 public class DifferenceOfGaussian extends DifferenceOf implements GenericDialogAppender
 {
@@ -41,7 +41,7 @@ public class DifferenceOfGaussian extends DifferenceOf implements GenericDialogA
 	public static boolean defaultFindMin[];
 	public static boolean defaultFindMax[];
 
-	public static String[] computationOnChoice = new String[]{ "CPU (Java)", "GPU approximate (Nvidia CUDA via JNA)", "GPU accurate (Nvidia CUDA via JNA)" };
+	public static String[] computationOnChoice = new String[]{ "CPU (Java)", "GPU approximate (Nvidia CUDA via JNA)", "GPU accurate (Nvidia CUDA via JNA)", "CPU (Java, ImgLib2 only, less memory)" };
 	public static int defaultComputationChoiceIndex = 0;
 
 	double[] sigma;
@@ -58,6 +58,9 @@ public class DifferenceOfGaussian extends DifferenceOf implements GenericDialogA
 	CUDASeparableConvolution cuda = null;
 	boolean accurateCUDA = false;
 
+	// use the pure ImgLib2 implementation
+	boolean imglib2 = false;
+
 	public DifferenceOfGaussian( final SpimData2 spimData, final List< ViewId > viewIdsToProcess )
 	{
 		super( spimData, viewIdsToProcess );
@@ -74,78 +77,78 @@ public class DifferenceOfGaussian extends DifferenceOf implements GenericDialogA
 
 
 	@Override
-	public HashMap< ViewId, List< InterestPoint > > findInterestPoints( final TimePoint t )
+	protected ArrayList< InterestPoint > compute(
+			final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input,
+			final ViewDescription vd,
+			final double minIntensity,
+			final double maxIntensity )
 	{
-		final HashMap< ViewId, List< InterestPoint > > interestPoints = new HashMap< ViewId, List< InterestPoint > >();
-		
-		for ( final ViewDescription vd : SpimData2.getAllViewIdsForTimePointSorted( spimData, viewIdsToProcess, t ) )
-		{
-			// make sure not everything crashes if one file is missing
-			try
-			{
-				//
-				// open the corresponding image (if present at this timepoint)
-				//
-				long time1 = System.currentTimeMillis();
-
-				if ( !vd.isPresent() )
-					continue;
-
-				final Channel c = vd.getViewSetup().getChannel();
-
-				final AffineTransform3D correctCoordinates = new AffineTransform3D();
-				final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input = openAndDownsample( spimData, vd, correctCoordinates );
-
-				long time2 = System.currentTimeMillis();
-
-				benchmark.openFiles += time2 - time1;
-
-				preSmooth( input );
-
-				final Image< FloatType > img = ImgLib2.wrapFloatToImgLib1( (Img<net.imglib2.type.numeric.real.FloatType>)input );
-
-				//
-				// compute Difference-of-Mean
-				//
-				final ArrayList< InterestPoint > ips = 
-					ProcessDOG.compute(
-						cuda,
-						deviceList,
-						accurateCUDA,
-						percentGPUMem,
-						img,
-						(Img<net.imglib2.type.numeric.real.FloatType>)input,
-						(float)sigma[ c.getId() ],
-						(float)threshold[ c.getId() ],
-						localization,
-						Math.min( imageSigmaX, (float)sigma[ c.getId() ] ),
-						Math.min( imageSigmaY, (float)sigma[ c.getId() ] ),
-						Math.min( imageSigmaZ, (float)sigma[ c.getId() ] ),
-						findMin[ c.getId() ],
-						findMax[ c.getId() ],
-						minIntensity,
-						maxIntensity );
-
-				img.close();
+		final Channel c = vd.getViewSetup().getChannel();
+
+		if ( imglib2 )
+			return ProcessDOGImgLib2.compute(
+					(Img<net.imglib2.type.numeric.real.FloatType>)input,
+					(float)sigma[ c.getId() ],
+					(float)threshold[ c.getId() ],
+					localization,
+					Math.min( imageSigmaX, (float)sigma[ c.getId() ] ),
+					Math.min( imageSigmaY, (float)sigma[ c.getId() ] ),
+					Math.min( imageSigmaZ, (float)sigma[ c.getId() ] ),
+					findMin[ c.getId() ],
+					findMax[ c.getId() ],
+					minIntensity,
+					maxIntensity );
+
+		final Image< FloatType > img = ImgLib2.wrapFloatToImgLib1( (Img<net.imglib2.type.numeric.real.FloatType>)input );
+
+		final ArrayList< InterestPoint > ips = 
+			ProcessDOG.compute(
+				cuda,
+				deviceList,
+				accurateCUDA,
+				percentGPUMem,
+				img,
+				(Img<net.imglib2.type.numeric.real.FloatType>)input,
+				(float)sigma[ c.getId() ],
+				(float)threshold[ c.getId() ],
+				localization,
+				Math.min( imageSigmaX, (float)sigma[ c.getId() ] ),
+				Math.min( imageSigmaY, (float)sigma[ c.getId() ] ),
+				Math.min( imageSigmaZ, (float)sigma[ c.getId() ] ),
+				findMin[ c.getId() ],
+				findMax[ c.getId() ],
+				minIntensity,
+				maxIntensity );
+
+		img.close();
+
+		return ips;
+	}
 
-				correctForDownsampling( ips, correctCoordinates );
+	/**
+	 * The GPU memory is only sufficient for one view at a time
+	 */
+	@Override
+	protected boolean sequentialOnly() { return deviceList != null; }
 
-				interestPoints.put( vd, ips );
+	@Override
+	protected int getDetectionCopies()
+	{
+		if ( !imglib2 )
+			return detectionCopies;
 
-				benchmark.computation += System.currentTimeMillis() - time2;
-			}
-			catch ( Exception  e )
-			{
-				IOFunctions.println( "An error occured (DOG): " + e ); 
-				IOFunctions.println( "Failed to segment angleId: " + 
-						vd.getViewSetup().getAngle().getId() + " channelId: " +
-						vd.getViewSetup().getChannel().getId() + " illumId: " +
-						vd.getViewSetup().getIllumination().getId() + ". Continuing with next one." );
-				e.printStackTrace();
-			}
-		}
+		// the input and the larger gaussian, additional smoothing uses Gauss3 with two temporary images
+		if ( additionalSigmaX > 0.0 || additionalSigmaY > 0.0 || additionalSigmaZ > 0.0 )
+			return 4;
+		else
+			return 2;
+	}
 
-		return interestPoints;
+	@Override
+	protected int getHalo( final Channel channel )
+	{
+		// the kernel of the larger gaussian, the 3x3x3 neighborhood and a few moves of the localization
+		return (int)Math.ceil( 3 * sigma[ channel.getId() ] * LaPlaceFunctions.computeK( 4 ) ) + 5;
 	}
 
 	@Override
@@ -315,7 +318,8 @@ public class DifferenceOfGaussian extends DifferenceOf implements GenericDialogA
 		return "DOG s=" + sigma[ channelId ] + " t=" + threshold[ channelId ] + " min=" + findMin[ channelId ] + " max=" + findMax[ channelId ] +
 				" imageSigmaX=" + imageSigmaX + " imageSigmaY=" + imageSigmaY + " imageSigmaZ=" + imageSigmaZ + " downsampleXY=" + downsampleXY +
 				" downsampleZ=" + downsampleZ + " additionalSigmaX=" + additionalSigmaX  + " additionalSigmaY=" + additionalSigmaY + 
-				" additionalSigmaZ=" + additionalSigmaZ + " minIntensity=" + minIntensity + " maxIntensity=" + maxIntensity;
+				" additionalSigmaZ=" + additionalSigmaZ + " minIntensity=" + minIntensity + " maxIntensity=" + maxIntensity +
+				" localization=" + localization;
 	}
 
 	@Override
@@ -335,7 +339,9 @@ public class DifferenceOfGaussian extends DifferenceOf implements GenericDialogA
 		else
 			accurateCUDA = true;
 
-		if ( computationTypeIndex >= 1 )
+		imglib2 = ( computationTypeIndex == 3 );
+
+		if ( computationTypeIndex == 1 || computationTypeIndex == 2 )
 		{
 			final ArrayList< String > potentialNames = new ArrayList< String >();
 			potentialNames.add( "separable" );
@@ -53,6 +53,7 @@ import spim.fiji.spimdata.explorer.popup.ResavePopup;
 import spim.fiji.spimdata.explorer.popup.Separator;
 import spim.fiji.spimdata.explorer.popup.SpecifyCalibrationPopup;
 import spim.fiji.spimdata.explorer.popup.ViewExplorerSetable;
+import spim.fiji.spimdata.explorer.popup.VirtualFusionPopup;
 import spim.fiji.spimdata.explorer.popup.VisualizeDetectionsPopup;
 import spim.fiji.spimdata.explorer.util.ColorStream;
 import spim.fiji.spimdata.interestpoints.InterestPointList;
@@ -83,6 +84,7 @@ public class ViewSetupExplorerPanel< AS extends AbstractSpimData< ? >, X extends
 		staticPopups.add( new RegisterInterestPointsPopup() );
 		staticPopups.add( new BoundingBoxPopup() );
 		staticPopups.add( new FusionPopup() );
+		staticPopups.add( new VirtualFusionPopup() );
 		staticPopups.add( new Separator() );
 
 		staticPopups.add( new LabelPopUp( " Calibration/Transformations" ) );
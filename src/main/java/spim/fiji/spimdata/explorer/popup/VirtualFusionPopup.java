@@ -0,0 +1,215 @@
+package spim.fiji.spimdata.explorer.popup;
+
+import ij.gui.GenericDialog;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.JComponent;
+import javax.swing.JMenuItem;
+
+import mpicbg.spim.data.generic.AbstractSpimData;
+import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
+import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.display.RealARGBColorConverter;
+import net.imglib2.type.numeric.real.FloatType;
+import spim.fiji.plugin.fusion.Fusion;
+import spim.fiji.spimdata.SpimData2;
+import spim.fiji.spimdata.boundingbox.BoundingBox;
+import spim.fiji.spimdata.explorer.ViewSetupExplorerPanel;
+import spim.process.fusion.boundingbox.BoundingBoxGUI;
+import spim.process.fusion.weightedavg.VirtualFusedImg;
+import spim.process.fusion.weightedavg.VirtualFusionSource;
+import bdv.BigDataViewer;
+import bdv.tools.brightness.RealARGBColorConverterSetup;
+import bdv.viewer.SourceAndConverter;
+
+/**
+ * Shows the weighted-average fusion of the selected views in the BigDataViewer, the fused image
+ * is computed on demand for the visible region only.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class VirtualFusionPopup extends JMenuItem implements ViewExplorerSetable
+{
+	private static final long serialVersionUID = 5234649267634013390L;
+
+	public static int defaultBoundingBox = 0;
+	public static int defaultDownsampling = 1;
+	public static double defaultDisplayMax = 1000;
+
+	ViewSetupExplorerPanel< ?, ? > panel;
+
+	public VirtualFusionPopup()
+	{
+		super( "Virtual Fusion in BigDataViewer ..." );
+
+		this.addActionListener( new MyActionListener() );
+	}
+
+	@Override
+	public JComponent setViewExplorer( ViewSetupExplorerPanel<? extends AbstractSpimData<? extends AbstractSequenceDescription<?, ?, ?>>, ?> panel )
+	{
+		this.panel = panel;
+		return this;
+	}
+
+	public class MyActionListener implements ActionListener
+	{
+		@Override
+		public void actionPerformed( final ActionEvent e )
+		{
+			if ( panel == null )
+			{
+				IOFunctions.println( "Panel not set for " + this.getClass().getSimpleName() );
+				return;
+			}
+
+			if ( !SpimData2.class.isInstance( panel.getSpimData() ) )
+			{
+				IOFunctions.println( "Only supported for SpimData2 objects: " + this.getClass().getSimpleName() );
+				return;
+			}
+
+			new Thread( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					showVirtualFusion( panel, (SpimData2)panel.getSpimData(), panel.selectedRowsViewId() );
+				}
+			} ).start();
+		}
+	}
+
+	public static boolean showVirtualFusion( final ViewSetupExplorerPanel< ?, ? > panel, final SpimData2 spimData, final List< ViewId > viewIds )
+	{
+		if ( viewIds.size() == 0 )
+		{
+			IOFunctions.println( "No views selected." );
+			return false;
+		}
+
+		// the saved bounding boxes or the one around all selected views
+		final List< BoundingBox > boxes = spimData.getBoundingBoxes().getBoundingBoxes();
+		final String[] choices = new String[ boxes.size() + 1 ];
+
+		choices[ 0 ] = "Maximal bounding box of all selected views";
+
+		for ( int i = 0; i < boxes.size(); ++i )
+			choices[ i + 1 ] = boxes.get( i ).getTitle();
+
+		if ( defaultBoundingBox >= choices.length )
+			defaultBoundingBox = 0;
+
+		final GenericDialog gd = new GenericDialog( "Virtual Fusion" );
+
+		gd.addChoice( "Bounding_box", choices, choices[ defaultBoundingBox ] );
+		gd.addNumericField( "Downsampling", defaultDownsampling, 0 );
+		gd.addCheckbox( "Blend images smoothly", Fusion.defaultUseBlending );
+		gd.addCheckbox( "Content-based fusion (slow, computed for entire views)", false );
+		gd.addNumericField( "Cell_size", VirtualFusedImg.defaultCellSize, 0, 5, "px" );
+		gd.addNumericField( "Cache_size", VirtualFusedImg.defaultCacheSizeMB, 0, 5, "MB" );
+		gd.addNumericField( "Display_range_max", defaultDisplayMax, 0 );
+
+		gd.showDialog();
+
+		if ( gd.wasCanceled() )
+			return false;
+
+		final int bbIndex = defaultBoundingBox = gd.getNextChoiceIndex();
+		final int downsampling = defaultDownsampling = Math.max( 1, (int)Math.round( gd.getNextNumber() ) );
+		final boolean useBlending = Fusion.defaultUseBlending = gd.getNextBoolean();
+		final boolean useContentBased = gd.getNextBoolean();
+		VirtualFusedImg.defaultCellSize = Math.max( 8, (int)Math.round( gd.getNextNumber() ) );
+		VirtualFusedImg.defaultCacheSizeMB = Math.max( 1, (int)Math.round( gd.getNextNumber() ) );
+		final double displayMax = defaultDisplayMax = gd.getNextNumber();
+
+		final BoundingBox box;
+
+		if ( bbIndex == 0 )
+		{
+			final double[] minBB = new double[ 3 ];
+			final double[] maxBB = new double[ 3 ];
+
+			BoundingBoxGUI.computeMaxBoundingBoxDimensions( spimData, viewIds, minBB, maxBB );
+
+			final int[] min = new int[ 3 ];
+			final int[] max = new int[ 3 ];
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				min[ d ] = (int)Math.floor( minBB[ d ] );
+				max[ d ] = (int)Math.ceil( maxBB[ d ] );
+			}
+
+			box = new BoundingBox( "Maximal bounding box", min, max );
+		}
+		else
+		{
+			box = boxes.get( bbIndex - 1 );
+		}
+
+		final BoundingBoxGUI bb = new BoundingBoxGUI( spimData, viewIds, box )
+		{
+			@Override
+			public int getDownSampling() { return downsampling; }
+		};
+
+		// use the running BigDataViewer or open one
+		final BDVPopup bdvPopup = ViewSetupExplorerPanel.bdvPopup();
+		BigDataViewer bdv = bdvPopup == null ? null : bdvPopup.bdv;
+
+		if ( bdv == null || !bdv.getViewerFrame().isVisible() )
+		{
+			bdv = BDVPopup.createBDV( panel );
+
+			if ( bdvPopup != null )
+				bdvPopup.bdv = bdv;
+		}
+
+		if ( bdv == null )
+			return false;
+
+		final int numSetups = spimData.getSequenceDescription().getViewSetupsOrdered().size();
+
+		// show only the virtually fused image(s)
+		for ( int i = 0; i < numSetups; ++i )
+			bdv.getViewer().getVisibilityAndGrouping().setSourceActive( i, false );
+
+		final ArrayList< Channel > channels = SpimData2.getAllChannelsSorted( spimData, viewIds );
+
+		// cells are fused in the background, repaint whenever one is done
+		final BigDataViewer viewer = bdv;
+		final Runnable requestRepaint = new Runnable()
+		{
+			@Override
+			public void run() { viewer.getViewer().requestRepaint(); }
+		};
+
+		for ( int c = 0; c < channels.size(); ++c )
+		{
+			final Channel channel = channels.get( c );
+			final String name = "Virtual fusion (" + box.getTitle() + ", ch=" + channel.getName() + ")";
+
+			final VirtualFusionSource source = new VirtualFusionSource( spimData, viewIds, bb, channel, useBlending, useContentBased, name, requestRepaint );
+
+			final RealARGBColorConverter< FloatType > converter = new RealARGBColorConverter.Imp1< FloatType >( 0, displayMax );
+			final int setupId = 10000 + bdv.getSetupAssignments().getConverterSetups().size();
+
+			bdv.getViewer().addSource( new SourceAndConverter< FloatType >( source, converter ) );
+			bdv.getSetupAssignments().addSetup( new RealARGBColorConverterSetup( setupId, converter ) );
+			bdv.getViewer().getVisibilityAndGrouping().setSourceActive( bdv.getViewer().getState().numSources() - 1, true );
+
+			IOFunctions.println( "Added '" + name + "' to the BigDataViewer, cells are fused in the background when they are displayed." );
+		}
+
+		bdv.getViewer().requestRepaint();
+
+		return true;
+	}
+}
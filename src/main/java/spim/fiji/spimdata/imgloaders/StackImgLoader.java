@@ -3,6 +3,7 @@ package spim.fiji.spimdata.imgloaders;
 import java.io.File;
 
 import mpicbg.spim.data.legacy.LegacyImgLoaderWrapper;
+import mpicbg.spim.data.sequence.ViewId;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
@@ -22,6 +23,12 @@ public abstract class StackImgLoader< I extends LegacyStackImgLoader > extends L
 	public int getLayoutAngles() { return legacyImgLoader.layoutAngles; }
 	public ImgFactory< ? extends NativeType< ? > > getImgFactory() { return legacyImgLoader.getImgFactory(); }
 
+	/**
+	 * @param view - the view
+	 * @return the file the view is stored in, null if it does not exist
+	 */
+	public File getFile( final ViewId view ) { return legacyImgLoader.getFile( view ); }
+
 	@Override
 	public String toString() {
 		return legacyImgLoader.toString();
@@ -0,0 +1,43 @@
+package spim.process.fusion;
+
+/**
+ * Keeps track of the memory occupied by the prepared stacks of a pipelined fusion/deconvolution
+ * that are not processed yet
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class PipelineMemory
+{
+	final long budgetMB;
+	long usedMB = 0;
+
+	public PipelineMemory( final long budgetMB ) { this.budgetMB = budgetMB; }
+
+	/**
+	 * Waits until another stack of the given size fits into the budget, there is always room for one stack
+	 *
+	 * @return false if interrupted
+	 */
+	public synchronized boolean waitFor( final long sizeMB )
+	{
+		try
+		{
+			while ( usedMB > 0 && usedMB + sizeMB > budgetMB )
+				wait();
+
+			return true;
+		}
+		catch ( final InterruptedException e )
+		{
+			return false;
+		}
+	}
+
+	public synchronized void add( final long sizeMB ) { usedMB += sizeMB; }
+
+	public synchronized void release( final long sizeMB )
+	{
+		usedMB -= sizeMB;
+		notifyAll();
+	}
+}
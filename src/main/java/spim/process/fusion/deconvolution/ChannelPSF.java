@@ -1,14 +1,12 @@
 package spim.process.fusion.deconvolution;
 
 import mpicbg.spim.data.sequence.Channel;
-import net.imglib2.type.numeric.real.FloatType;
 
 public class ChannelPSF
 {
 	final Channel channel;
 	final String label;
 	final Channel otherChannel;
-	ExtractPSF< FloatType > extractPSF;
 	
 	public ChannelPSF( final Channel channel, final String label )
 	{
@@ -35,7 +33,4 @@ public class ChannelPSF
 	public Channel getChannel() { return channel; }
 	public String getLabel() { return label; }
 	public Channel getOtherChannel() { return otherChannel; }
-	
-	public void setExtractPSFInstance( final ExtractPSF< FloatType > e ) { this.extractPSF = e; }
-	public ExtractPSF< FloatType > getExtractPSFInstance(){ return extractPSF; }
 }
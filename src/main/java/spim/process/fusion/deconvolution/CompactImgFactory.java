@@ -0,0 +1,80 @@
+package spim.process.fusion.deconvolution;
+
+import net.imglib2.exception.IncompatibleTypeException;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.basictypeaccess.FloatAccess;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Fraction;
+
+/**
+ * An {@link ImgFactory} for {@link FloatType} images that store their values with less than 32 bits
+ * per pixel. The images behave like any other {@link FloatType} image, the values are encoded when they
+ * are written and decoded when they are read. Used to keep the transformed input views and weights of
+ * the deconvolution in half the memory (or less), psi and the temporary images remain 32-bit float.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class CompactImgFactory extends ImgFactory< FloatType >
+{
+	public static enum Storage
+	{
+		/** 16-bit float, about 3 significant digits, any range up to +-65504 */
+		HALF_FLOAT,
+		/** 16-bit fixed point, values in [0...1] */
+		FIXED_POINT_16BIT,
+		/** 8-bit fixed point, values in [0...1] */
+		FIXED_POINT_8BIT
+	};
+
+	final Storage storage;
+
+	public CompactImgFactory( final Storage storage )
+	{
+		this.storage = storage;
+	}
+
+	public Storage getStorage() { return storage; }
+
+	/**
+	 * @return the number of bytes per pixel
+	 */
+	public int bytesPerPixel() { return bytesPerPixel( storage ); }
+
+	public static int bytesPerPixel( final Storage storage )
+	{
+		return storage == Storage.FIXED_POINT_8BIT ? 1 : 2;
+	}
+
+	@Override
+	public Img< FloatType > create( final long[] dim, final FloatType type )
+	{
+		if ( storage == Storage.HALF_FLOAT )
+			return create( dim, new HalfFloatArray( 0 ) );
+		else if ( storage == Storage.FIXED_POINT_16BIT )
+			return create( dim, new FixedPointShortArray( 0 ) );
+		else
+			return create( dim, new FixedPointByteArray( 0 ) );
+	}
+
+	protected static < A extends FloatAccess & ArrayDataAccess< A > > Img< FloatType > create( final long[] dim, final A creator )
+	{
+		// planes instead of one array, so that large volumes do not exceed the maximal array size
+		final PlanarImg< FloatType, A > img = new PlanarImg< FloatType, A >( creator, dim, new Fraction() );
+		img.setLinkedType( new FloatType( img ) );
+
+		return img;
+	}
+
+	@SuppressWarnings( "unchecked" )
+	@Override
+	public < S > ImgFactory< S > imgFactory( final S type ) throws IncompatibleTypeException
+	{
+		if ( FloatType.class.isInstance( type ) )
+			return (ImgFactory< S >)this;
+		else
+			throw new IncompatibleTypeException( this, type.getClass().getCanonicalName() + " is not supported by the CompactImgFactory." );
+	}
+}
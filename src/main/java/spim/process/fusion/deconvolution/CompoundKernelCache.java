@@ -0,0 +1,309 @@
+package spim.process.fusion.deconvolution;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.Cursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import spim.process.fusion.deconvolution.MVDeconFFT.PSFTYPE;
+
+/**
+ * Caches the compound kernels (kernel2) of the efficient bayesian multi-view deconvolution in memory and on disk.
+ * Computing them needs two FFT convolutions for every pair of views, which is repeated for every timepoint
+ * and channel although the PSFs usually do not change.
+ *
+ * The key is a content hash of the kernel of the view, the kernels of all other views and the type of iteration,
+ * so a cached kernel is only reused if it was computed from exactly the same PSFs.
+ *
+ * The kernels on disk are limited to {@link #maxDiskCacheMB}, the ones that were used least recently are
+ * deleted first.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class CompoundKernelCache
+{
+	// use the cache at all
+	public static boolean enabled = true;
+
+	// where the kernels are stored on disk (null means only in memory)
+	public static String cacheDirectory = new File( System.getProperty( "java.io.tmpdir" ), "mvdeconvolution-kernels" ).getAbsolutePath();
+
+	// how many kernels are kept in memory
+	public static int maxKernelsInMemory = 256;
+
+	// how much disk space the kernels may use (0 means unlimited)
+	public static long maxDiskCacheMB = 1024;
+
+	final static int MAGIC = 0x4d56434b;
+
+	final static LinkedHashMap< String, ArrayImg< FloatType, ? > > memoryCache = new LinkedHashMap< String, ArrayImg< FloatType, ? > >( 16, 0.75f, true )
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry( final Map.Entry< String, ArrayImg< FloatType, ? > > eldest )
+		{
+			return size() > maxKernelsInMemory;
+		}
+	};
+
+	/**
+	 * @param iterationType - the type of iteration
+	 * @param kernel - kernel1 of the view
+	 * @param otherKernels - kernel1 of all other views
+	 * @return the key for the compound kernel or null if the cache is disabled
+	 */
+	public static String key( final PSFTYPE iterationType, final ArrayImg< FloatType, ? > kernel, final List< ArrayImg< FloatType, ? > > otherKernels )
+	{
+		if ( !enabled )
+			return null;
+
+		// the order of the other views does not matter for the compound kernel
+		final ArrayList< String > otherHashes = new ArrayList< String >();
+
+		for ( final ArrayImg< FloatType, ? > otherKernel : otherKernels )
+			otherHashes.add( hash( otherKernel ) );
+
+		Collections.sort( otherHashes );
+
+		final StringBuilder key = new StringBuilder( iterationType.name() + "_" + hash( kernel ) );
+
+		for ( final String otherHash : otherHashes )
+			key.append( "_" + otherHash );
+
+		return hash( key.toString().getBytes() );
+	}
+
+	/**
+	 * @param key - the key
+	 * @return a copy of the cached compound kernel or null if it was never computed
+	 */
+	public static synchronized ArrayImg< FloatType, ? > get( final String key )
+	{
+		if ( key == null )
+			return null;
+
+		ArrayImg< FloatType, ? > kernel = memoryCache.get( key );
+
+		if ( kernel == null && cacheDirectory != null )
+		{
+			final File file = new File( cacheDirectory, key + ".kernel" );
+
+			kernel = load( file );
+
+			if ( kernel != null )
+			{
+				memoryCache.put( key, kernel );
+
+				// it was used recently, delete others first
+				file.setLastModified( System.currentTimeMillis() );
+			}
+		}
+
+		if ( kernel == null )
+			return null;
+
+		return kernel.copy();
+	}
+
+	/**
+	 * @param key - the key
+	 * @param kernel - the compound kernel, a copy is stored
+	 */
+	public static synchronized void put( final String key, final ArrayImg< FloatType, ? > kernel )
+	{
+		if ( key == null )
+			return;
+
+		memoryCache.put( key, kernel.copy() );
+
+		if ( cacheDirectory != null )
+		{
+			save( new File( cacheDirectory, key + ".kernel" ), kernel );
+			limitDiskCache( new File( cacheDirectory ) );
+		}
+	}
+
+	/**
+	 * Deletes the least recently used kernels in the directory until they need less than {@link #maxDiskCacheMB}
+	 *
+	 * @param dir - the cache directory
+	 */
+	protected static void limitDiskCache( final File dir )
+	{
+		if ( maxDiskCacheMB <= 0 )
+			return;
+
+		final File[] files = dir.listFiles();
+
+		if ( files == null )
+			return;
+
+		final ArrayList< File > kernels = new ArrayList< File >();
+		long size = 0;
+
+		for ( final File file : files )
+			if ( file.isFile() && file.getName().endsWith( ".kernel" ) )
+			{
+				kernels.add( file );
+				size += file.length();
+			}
+
+		final long maxSize = maxDiskCacheMB * 1024l * 1024l;
+
+		if ( size <= maxSize )
+			return;
+
+		// oldest first
+		final File[] sorted = kernels.toArray( new File[ kernels.size() ] );
+
+		Arrays.sort( sorted, new Comparator< File >()
+		{
+			@Override
+			public int compare( final File o1, final File o2 )
+			{
+				return Long.compare( o1.lastModified(), o2.lastModified() );
+			}
+		} );
+
+		for ( int i = 0; i < sorted.length && size > maxSize; ++i )
+		{
+			final long length = sorted[ i ].length();
+
+			if ( sorted[ i ].delete() )
+				size -= length;
+		}
+	}
+
+	/**
+	 * Removes all kernels from memory (the ones on disk remain, limited to {@link #maxDiskCacheMB})
+	 */
+	public static synchronized void clear()
+	{
+		memoryCache.clear();
+	}
+
+	protected static void save( final File file, final ArrayImg< FloatType, ? > kernel )
+	{
+		try
+		{
+			final File dir = file.getParentFile();
+
+			if ( !dir.exists() )
+				dir.mkdirs();
+
+			// write to a temporary file first, so another instance never reads an incomplete kernel
+			final File tmpFile = new File( dir, file.getName() + ".tmp" );
+			final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmpFile ) ) );
+
+			out.writeInt( MAGIC );
+			out.writeInt( kernel.numDimensions() );
+
+			for ( int d = 0; d < kernel.numDimensions(); ++d )
+				out.writeLong( kernel.dimension( d ) );
+
+			for ( final FloatType t : kernel )
+				out.writeFloat( t.get() );
+
+			out.close();
+
+			if ( !tmpFile.renameTo( file ) )
+				tmpFile.delete();
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Could not save compound kernel '" + file.getAbsolutePath() + "': " + e );
+		}
+	}
+
+	protected static ArrayImg< FloatType, ? > load( final File file )
+	{
+		if ( !file.exists() )
+			return null;
+
+		try
+		{
+			final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+
+			if ( in.readInt() != MAGIC )
+			{
+				in.close();
+				return null;
+			}
+
+			final long[] dim = new long[ in.readInt() ];
+
+			for ( int d = 0; d < dim.length; ++d )
+				dim[ d ] = in.readLong();
+
+			final ArrayImg< FloatType, ? > kernel = ArrayImgs.floats( dim );
+			final Cursor< FloatType > cursor = kernel.cursor();
+
+			while ( cursor.hasNext() )
+				cursor.next().set( in.readFloat() );
+
+			in.close();
+
+			return kernel;
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Could not load compound kernel '" + file.getAbsolutePath() + "': " + e );
+			return null;
+		}
+	}
+
+	/**
+	 * @param kernel - the kernel
+	 * @return the content hash of the dimensions and all pixel values
+	 */
+	public static String hash( final ArrayImg< FloatType, ? > kernel )
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate( 8 * kernel.numDimensions() + 4 * (int)kernel.size() );
+
+		for ( int d = 0; d < kernel.numDimensions(); ++d )
+			buffer.putLong( kernel.dimension( d ) );
+
+		for ( final FloatType t : kernel )
+			buffer.putFloat( t.get() );
+
+		return hash( buffer.array() );
+	}
+
+	protected static String hash( final byte[] data )
+	{
+		try
+		{
+			final byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest( data );
+			final StringBuilder hex = new StringBuilder();
+
+			for ( final byte b : digest )
+				hex.append( String.format( "%02x", b & 0xff ) );
+
+			return hex.toString();
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			throw new RuntimeException( "SHA-1 not available: " + e );
+		}
+	}
+}
@@ -8,11 +8,19 @@ import java.awt.Checkbox;
 import java.awt.Choice;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import mpicbg.imglib.util.Util;
 import mpicbg.spim.data.sequence.Angle;
@@ -43,6 +51,8 @@ import spim.process.cuda.CUDAFourierConvolution;
 import spim.process.cuda.CUDATools;
 import spim.process.cuda.NativeLibraryTools;
 import spim.process.fusion.FusionHelper;
+import spim.process.fusion.PipelineMemory;
+import spim.process.fusion.deconvolution.CompactImgFactory.Storage;
 import spim.process.fusion.deconvolution.MVDeconFFT.PSFTYPE;
 import spim.process.fusion.deconvolution.ProcessForDeconvolution.WeightType;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
@@ -72,14 +82,29 @@ public class EfficientBayesianBased extends Fusion
 		"No weights (produces artifacts on partially overlapping data)",
 		"Illustrate overlap of views per pixel (do not deconvolve)" };
 
+	public static String[] inputStorageChoice = new String[]{
+		"32-bit float",
+		"16-bit float (half the memory)",
+		"16-bit fixed point (half the memory)" };
+
+	public static String[] weightStorageChoice = new String[]{
+		"32-bit float",
+		"16-bit fixed point (half the memory)",
+		"8-bit fixed point (quarter of the memory)" };
+
 	public static boolean makeAllPSFSameSize = false;
 
 	public static int defaultFFTImgType = 0;
 	public static int defaultIterationType = 1;
 	public static int defaultWeightType = 1;
 	public static boolean defaultSaveMemory = false;
+	public static boolean defaultMemoryMapped = false;
+	public static String defaultMemoryMappedDirectory = "";
+	public static int defaultInputStorage = 0;
+	public static int defaultWeightStorage = 0;
 	public static int defaultOSEMspeedupIndex = 0;
 	public static int defaultNumIterations = 10;
+	public static double defaultConvergenceTolerance = 0;
 	public static boolean defaultUseTikhonovRegularization = true;
 	public static double defaultLambda = 0.006;
 	public static int defaultBlockSizeIndex = 0, defaultBlockSizeX = 256, defaultBlockSizeY = 256, defaultBlockSizeZ = 256;
@@ -87,6 +112,13 @@ public class EfficientBayesianBased extends Fusion
 	public static int defaultExtractPSF = 0;
 	public static int defaultDisplayPSF = 1;
 	public static boolean defaultDebugMode = false;
+	public static boolean defaultCheckpoints = false;
+	public static String defaultCheckpointDirectory = "";
+	public static int defaultCheckpointEveryNIterations = 10;
+	public static double defaultCheckpointEveryMinutes = 30;
+	public static boolean defaultResumeFromCheckpoint = true;
+	public static boolean defaultPipelined = false;
+	public static long defaultPipelineMemoryMB = -1;
 	public static boolean defaultAdjustBlending = false;
 	public static int defaultDebugInterval = 1;
 	public static double defaultOSEMspeedup = 1;
@@ -104,8 +136,13 @@ public class EfficientBayesianBased extends Fusion
 	PSFTYPE iterationType;
 	WeightType weightType;
 	boolean saveMemory;
+	boolean memoryMapped;
+	String memoryMappedDirectory;
+	int inputStorageIndex;
+	int weightStorageIndex;
 	int osemspeedupIndex;
 	int numIterations;
+	double convergenceTolerance;
 	boolean useTikhonovRegularization;
 	double lambda;
 	int blockSizeIndex;
@@ -113,11 +150,17 @@ public class EfficientBayesianBased extends Fusion
 	int extractPSFIndex;
 	int displayPSF;
 	boolean debugMode;
+	boolean checkpoints;
+	boolean pipelined;
+	long pipelineMemoryMB;
 	boolean adjustBlending;
 
-	// set in fuseData method
+	// set in fuseData method, memory-mapped images use a new factory for every stack (see getStackFactory)
 	ImgFactory< FloatType > factory;
 
+	// the export of the previous stack in pipelined mode
+	Future< ? > lastExport;
+
 	/**
 	 * The ImgFactory used for Blocks and for computing the actual FFT ... should be ArrayImg if there is no good reason
 	 */
@@ -143,8 +186,8 @@ public class EfficientBayesianBased extends Fusion
 	 */
 	ArrayList< CUDADevice > deviceList = null;
 
-	Choice gpu, block, it, weight;
-	Checkbox saveMem;
+	Choice gpu, block, it, weight, inputStorage, weightStorage;
+	Checkbox saveMem, memMapped;
 
 	public EfficientBayesianBased( final SpimData2 spimData, final List< ViewId > viewIdsToProcess )
 	{
@@ -169,114 +212,481 @@ public class EfficientBayesianBased extends Fusion
 	
 			// set up ImgFactory
 			this.factory = bb.getImgFactory( new FloatType() );
+
+			if ( memoryMapped && !useBlocks )
+				IOFunctions.println( "WARNING: Memory-mapped images are used without blocks, the FFTs of the entire image will still be computed in RAM." );
 	
-			final ProcessForDeconvolution pfd = new ProcessForDeconvolution(
-					spimData,
-					viewIdsToProcess,
-					bb,
-					new int[]{ blendingBorderX, blendingBorderY, blendingBorderZ },
-					new int[]{ blendingRangeX, blendingRangeY, blendingRangeZ } );
-			
 			// set debug mode
 			MVDeconvolution.debug = debugMode;
 			MVDeconvolution.debugInterval = debugInterval;
-	
-			int stack = 0;
-	
+
+			// set early termination
+			MVDeconvolution.convergenceTolerance = convergenceTolerance;
+
+			// set checkpointing
+			if ( checkpoints )
+			{
+				MVDeconvolution.checkpointDirectory = defaultCheckpointDirectory;
+				MVDeconvolution.checkpointEveryNIterations = defaultCheckpointEveryNIterations;
+				MVDeconvolution.checkpointEveryMinutes = defaultCheckpointEveryMinutes;
+				MVDeconvolution.resumeFromCheckpoint = defaultResumeFromCheckpoint;
+			}
+			else
+			{
+				MVDeconvolution.checkpointDirectory = null;
+			}
+
+			final ArrayList< Pair< TimePoint, Channel > > stacks = new ArrayList< Pair< TimePoint, Channel > >();
+
 			for ( final TimePoint t : timepointsToProcess )
 				for ( final Channel c : channelsToProcess )
+					stacks.add( new ValuePair< TimePoint, Channel >( t, c ) );
+
+			if ( pipelined && weightType != WeightType.WEIGHTS_ONLY && stacks.size() > 1 )
+				return fuseDataPipelined( bb, exporter, titler, stacks );
+
+			final ProcessForDeconvolution pfd = createProcessForDeconvolution( bb );
+			final HashMap< Channel, ExtractPSF< FloatType > > channelPSFs = new HashMap< Channel, ExtractPSF< FloatType > >();
+			TimePoint lastTimepoint = null;
+
+			int stack = 0;
+
+			for ( final Pair< TimePoint, Channel > tc : stacks )
+			{
+				final TimePoint t = tc.getA();
+				final Channel c = tc.getB();
+				final ImgFactory< FloatType > stackFactory = getStackFactory();
+
+				// channels can only use the PSFs of another channel of the same timepoint
+				if ( t != lastTimepoint )
+					channelPSFs.clear();
+
+				lastTimepoint = t;
+
+				// fuse the images, create weights, extract PSFs we need for the deconvolution
+				if ( !prepareStack( pfd, t, c, stackFactory, channelPSFs ) )
 				{
-					final List< Angle > anglesToProcess = SpimData2.getAllAnglesForChannelTimepointSorted( spimData, viewIdsToProcess, c, t );
-					final List< Illumination > illumsToProcess = SpimData2.getAllIlluminationsForChannelTimepointSorted( spimData, viewIdsToProcess, c, t );
+					IOFunctions.println(
+							"FAILED to deconvolve timepoint=" + t.getName() + " (id=" + t.getId() + ")" +
+							", channel=" + c.getName() + " (id=" + c.getId() + ")" );
+
+					releaseStackFactory( stackFactory );
+					continue;
+				}
+
+				// on the first run update the osemspeedup if necessary
+				if ( stack++ == 0 )
+					updateOSEMspeedup( pfd );
+
+				// setup & run the deconvolution
+				displayParametersAndPSFs( bb, pfd.getExtractPSF() );
+
+				if ( weightType == WeightType.WEIGHTS_ONLY )
+					return true;
+
+				if ( !deconvolveAndExport( pfd, t, c, stackFactory, bb, exporter, titler, null ) )
+					return false;
+			}
+		}
+		catch ( OutOfMemoryError oome )
+		{
+			IJ.log( "Out of Memory" );
+			IJ.error("Multi-View Registration", "Out of memory.  Check \"Edit > Options > Memory & Threads\"");
+			return false;
+		}
+		
+		return true;
+	}
 	
-					// fuse the images, create weights, extract PSFs we need for the deconvolution
-					if ( !pfd.fuseStacksAndGetPSFs(
-							t, c,
-							factory,
-							osemspeedupIndex,
-							osemSpeedUp,
-							weightType,
-							extractPSFLabels,
-							new long[]{ psfSizeX, psfSizeY, psfSizeZ },
-							psfFiles,
-							transformPSFs ) )
+	/**
+	 * Deconvolves all timepoints and channels in a pipeline: a background thread prepares the inputs, weights
+	 * and PSFs of the next stacks (as long as they fit into the memory budget) while the current one is iterating,
+	 * the deconvolved images are exported in another background thread.
+	 *
+	 * @param bb - the bounding box
+	 * @param exporter - the exporter
+	 * @param titler - sets the title of the exported images
+	 * @param stacks - all timepoint/channel combinations in the order of processing
+	 * @return true if successful
+	 */
+	protected boolean fuseDataPipelined(
+			final BoundingBoxGUI bb,
+			final ImgExport exporter,
+			final FixedNameImgTitler titler,
+			final List< Pair< TimePoint, Channel > > stacks )
+	{
+		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Pipelined deconvolution, memory for prepared stacks: " + pipelineMemoryMB + " MB" );
+
+		final LinkedBlockingQueue< PreparedStack > prepared = new LinkedBlockingQueue< PreparedStack >();
+		final PipelineMemory memory = new PipelineMemory( pipelineMemoryMB );
+		final AtomicBoolean stop = new AtomicBoolean( false );
+
+		// prepares the stacks strictly in order (channels might use the PSFs of another channel of the same timepoint)
+		final Thread preparation = new Thread( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				long lastSizeMB = 0;
+
+				// the PSFs of the current timepoint, only this thread changes them
+				final HashMap< Channel, ExtractPSF< FloatType > > channelPSFs = new HashMap< Channel, ExtractPSF< FloatType > >();
+				TimePoint lastTimepoint = null;
+
+				for ( final Pair< TimePoint, Channel > tc : stacks )
+				{
+					// wait until the stacks that are not deconvolved yet leave enough memory for one more
+					if ( !memory.waitFor( lastSizeMB ) || stop.get() )
+						return;
+
+					if ( tc.getA() != lastTimepoint )
+						channelPSFs.clear();
+
+					lastTimepoint = tc.getA();
+
+					final ProcessForDeconvolution pfd = createProcessForDeconvolution( bb );
+					final ImgFactory< FloatType > stackFactory = getStackFactory();
+					final boolean success = prepareStack( pfd, tc.getA(), tc.getB(), stackFactory, channelPSFs );
+
+					if ( !success )
+						releaseStackFactory( stackFactory );
+
+					// the deconvolution stopped while this stack was prepared, nobody will take it
+					if ( stop.get() )
+					{
+						releaseStackFactory( stackFactory );
+						return;
+					}
+
+					lastSizeMB = success ? pfd.getApproximateMemoryMB() : 0;
+					memory.add( lastSizeMB );
+
+					prepared.add( new PreparedStack( tc, success ? pfd : null, stackFactory, lastSizeMB ) );
+				}
+			}
+		}, "deconvolution-preparation" );
+
+		// exports the deconvolved images in order
+		final ExecutorService exportService = Executors.newSingleThreadExecutor();
+		lastExport = null;
+
+		preparation.start();
+
+		boolean success = true;
+		int stack = 0;
+
+		// set if the loop completed without errors, otherwise the preparation is stopped
+		boolean completed = false;
+
+		// the stack that is deconvolved right now, its factory is released by deconvolveAndExport() or the export
+		PreparedStack current = null;
+
+		try
+		{
+			try
+			{
+				for ( int i = 0; i < stacks.size() && success; ++i )
+				{
+					PreparedStack p;
+
+					while ( ( p = prepared.poll( 1, TimeUnit.SECONDS ) ) == null )
+					{
+						if ( !preparation.isAlive() && prepared.isEmpty() )
+						{
+							IOFunctions.println( "Preparation of the stacks for deconvolution stopped unexpectedly." );
+							success = false;
+							break;
+						}
+					}
+
+					if ( p == null )
+						break;
+
+					final TimePoint t = p.stack.getA();
+					final Channel c = p.stack.getB();
+
+					if ( p.pfd == null )
 					{
 						IOFunctions.println(
 								"FAILED to deconvolve timepoint=" + t.getName() + " (id=" + t.getId() + ")" +
 								", channel=" + c.getName() + " (id=" + c.getId() + ")" );
-	
-						continue;
 					}
-					
-					// on the first run update the osemspeedup if necessary
-					if ( stack++ == 0 )
+					else
 					{
-						if ( osemspeedupIndex == 1 )
-							osemSpeedUp = pfd.getMinOverlappingViews();
-						else if ( osemspeedupIndex == 2 )
-							osemSpeedUp = pfd.getAvgOverlappingViews();
-					}
-	
-					// setup & run the deconvolution
-					displayParametersAndPSFs( bb, c, extractPSFLabels );
-	
-					if ( weightType == WeightType.WEIGHTS_ONLY )
-						return true;
-	
-					final MVDeconInput deconvolutionData = new MVDeconInput( factory );
-	
-					IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Block & FFT image factory: " + computeFactory.getClass().getSimpleName() );
+						// on the first run update the osemspeedup if necessary
+						if ( stack++ == 0 )
+							updateOSEMspeedup( p.pfd );
 
-					for ( final ViewDescription vd : pfd.getViewDescriptions() )
-					{
-						// device list for CPU or CUDA processing
-						final int[] devList = new int[ deviceList.size() ];
-						for ( int i = 0; i < devList.length; ++i )
-							devList[ i ] = deviceList.get( i ).getDeviceId();
-	
-						deconvolutionData.add( new MVDeconFFT(
-								pfd.getTransformedImgs().get( vd ),
-								pfd.getTransformedWeights().get( vd ),
-								pfd.getExtractPSF().getTransformedPSF( vd ),
-								computeFactory, devList, useBlocks, blockSize, saveMemory ) );
+						// the PSFs belong to the prepared stack, the preparation thread might work on the next one already
+						displayParametersAndPSFs( bb, p.pfd.getExtractPSF() );
+
+						current = p;
+						success = deconvolveAndExport( p.pfd, t, c, p.factory, bb, exporter, titler, exportService );
+						current = null;
 					}
-	
-					if ( !useTikhonovRegularization )
-						lambda = 0;
-	
-					final Img< FloatType > deconvolved;
-	
+
+					memory.release( p.sizeMB );
+				}
+			}
+			catch ( final InterruptedException e )
+			{
+				IOFunctions.println( "Pipelined deconvolution interrupted: " + e );
+				success = false;
+			}
+
+			completed = success;
+		}
+		finally
+		{
+			// also if an Error (e.g. OutOfMemoryError) is thrown, the preparation must stop and no thread may keep the JVM alive
+			if ( !completed )
+			{
+				stop.set( true );
+				preparation.interrupt();
+
+				if ( current != null )
+					releaseStackFactory( current.factory );
+
+				// stacks that were prepared but will not be deconvolved
+				for ( final PreparedStack p : prepared )
+					releaseStackFactory( p.factory );
+			}
+
+			exportService.shutdown();
+		}
+
+		// wait for the remaining exports
+		try
+		{
+			exportService.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS );
+		}
+		catch ( final InterruptedException e )
+		{
+			IOFunctions.println( "Interrupted while waiting for the export: " + e );
+			return false;
+		}
+
+		// stacks that were prepared but not deconvolved anymore
+		for ( final PreparedStack p : prepared )
+			releaseStackFactory( p.factory );
+
+		return success;
+	}
+
+	protected ProcessForDeconvolution createProcessForDeconvolution( final BoundingBoxGUI bb )
+	{
+		final ProcessForDeconvolution pfd = new ProcessForDeconvolution(
+				spimData,
+				viewIdsToProcess,
+				bb,
+				new int[]{ blendingBorderX, blendingBorderY, blendingBorderZ },
+				new int[]{ blendingRangeX, blendingRangeY, blendingRangeZ } );
+
+		// compact storage of the transformed views & weights (memory-mapped images stay 32-bit)
+		if ( memoryMapped )
+			pfd.setStorageFactories( null, null );
+		else
+			pfd.setStorageFactories( getInputStorageFactory( inputStorageIndex ), getWeightStorageFactory( weightStorageIndex ) );
+
+		return pfd;
+	}
+
+	/**
+	 * @return the factory for the images of one stack, memory-mapped images get their own files for every stack
+	 */
+	protected ImgFactory< FloatType > getStackFactory()
+	{
+		if ( memoryMapped )
+			return new MappedImgFactory( memoryMappedDirectory == null || memoryMappedDirectory.trim().length() == 0 ? null : new File( memoryMappedDirectory ) );
+		else
+			return factory;
+	}
+
+	/**
+	 * Deletes the temporary files of a stack once its deconvolution is finished and exported (if memory-mapped)
+	 *
+	 * @param stackFactory - the factory returned by getStackFactory()
+	 */
+	protected static void releaseStackFactory( final ImgFactory< FloatType > stackFactory )
+	{
+		if ( stackFactory instanceof MappedImgFactory )
+			( (MappedImgFactory)stackFactory ).release();
+	}
+
+	/**
+	 * Fuses the images, creates the weights and extracts the PSFs needed for the deconvolution of one stack
+	 */
+	protected boolean prepareStack(
+			final ProcessForDeconvolution pfd,
+			final TimePoint t,
+			final Channel c,
+			final ImgFactory< FloatType > stackFactory,
+			final HashMap< Channel, ExtractPSF< FloatType > > channelPSFs )
+	{
+		return pfd.fuseStacksAndGetPSFs(
+				t, c,
+				stackFactory,
+				osemspeedupIndex,
+				osemSpeedUp,
+				weightType,
+				extractPSFLabels,
+				channelPSFs,
+				new long[]{ psfSizeX, psfSizeY, psfSizeZ },
+				psfFiles,
+				transformPSFs );
+	}
+
+	protected void updateOSEMspeedup( final ProcessForDeconvolution pfd )
+	{
+		if ( osemspeedupIndex == 1 )
+			osemSpeedUp = pfd.getMinOverlappingViews();
+		else if ( osemspeedupIndex == 2 )
+			osemSpeedUp = pfd.getAvgOverlappingViews();
+	}
+
+	/**
+	 * Deconvolves one prepared stack and exports the result, the temporary files of the stack are deleted afterwards
+	 *
+	 * @param stackFactory - the factory the stack was prepared with, see getStackFactory()
+	 * @param exportService - if not null the export is done asynchronously in this service
+	 * @return false if the deconvolution could not be initialized
+	 */
+	protected boolean deconvolveAndExport(
+			final ProcessForDeconvolution pfd,
+			final TimePoint t,
+			final Channel c,
+			final ImgFactory< FloatType > stackFactory,
+			final BoundingBoxGUI bb,
+			final ImgExport exporter,
+			final FixedNameImgTitler titler,
+			final ExecutorService exportService )
+	{
+		final List< Angle > anglesToProcess = SpimData2.getAllAnglesForChannelTimepointSorted( spimData, viewIdsToProcess, c, t );
+		final List< Illumination > illumsToProcess = SpimData2.getAllIlluminationsForChannelTimepointSorted( spimData, viewIdsToProcess, c, t );
+
+		final MVDeconInput deconvolutionData = new MVDeconInput( stackFactory );
+
+		IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Block & FFT image factory: " + computeFactory.getClass().getSimpleName() );
+
+		for ( final ViewDescription vd : pfd.getViewDescriptions() )
+		{
+			// device list for CPU or CUDA processing
+			final int[] devList = new int[ deviceList.size() ];
+			for ( int i = 0; i < devList.length; ++i )
+				devList[ i ] = deviceList.get( i ).getDeviceId();
+
+			deconvolutionData.add( new MVDeconFFT(
+					pfd.getTransformedImgs().get( vd ),
+					pfd.getTransformedWeights().get( vd ),
+					pfd.getExtractPSF().getTransformedPSF( vd ),
+					computeFactory, devList, useBlocks, blockSize, saveMemory,
+					pfd.getDeconvolvedInterval() ) );
+		}
+
+		if ( !useTikhonovRegularization )
+			lambda = 0;
+
+		final Img< FloatType > deconvolved;
+		final String title = "TP" + t.getName() + "_Ch" + c.getName() + FusionHelper.getIllumName( illumsToProcess ) + FusionHelper.getAngleName( anglesToProcess );
+
+		try
+		{
+			deconvolved = new MVDeconvolution( deconvolutionData, iterationType, numIterations, lambda, osemSpeedUp, osemspeedupIndex, title ).getPsi();
+		} 
+		catch (IncompatibleTypeException e)
+		{
+			IOFunctions.println( "Failed to initialize deconvolution: " + e );
+			e.printStackTrace();
+			releaseStackFactory( stackFactory );
+			return false;
+		}
+
+		final ViewSetup newViewSetup = newViewsetups.get( SpimData2.getViewSetup( spimData.getSequenceDescription().getViewSetupsOrdered(), c, anglesToProcess.get( 0 ), illumsToProcess.get( 0 ) ) );
+
+		// export the final image
+		final Runnable export = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					titler.setTitle( title );
+					exporter.exportImage( deconvolved, bb, t, newViewSetup, 0, 1 );
+				}
+				finally
+				{
+					releaseStackFactory( stackFactory );
+				}
+			}
+		};
+
+		if ( exportService == null )
+		{
+			export.run();
+		}
+		else
+		{
+			// wait for the previous export, so at most one deconvolved image waits for export
+			// (they are not part of the memory budget of the pipeline)
+			if ( lastExport != null )
+			{
+				try
+				{
+					lastExport.get();
+				}
+				catch ( final InterruptedException e )
+				{
+					IOFunctions.println( "Interrupted while waiting for the export: " + e );
+					releaseStackFactory( stackFactory );
+					return false;
+				}
+				catch ( final ExecutionException e )
+				{
+					IOFunctions.println( "Export failed: " + e );
+				}
+			}
+
+			lastExport = exportService.submit( new Runnable()
+			{
+				@Override
+				public void run()
+				{
 					try
 					{
-						deconvolved = new MVDeconvolution( deconvolutionData, iterationType, numIterations, lambda, osemSpeedUp, osemspeedupIndex, "deconvolved" ).getPsi();
-					} 
-					catch (IncompatibleTypeException e)
+						export.run();
+					}
+					catch ( final Throwable e )
 					{
-						IOFunctions.println( "Failed to initialize deconvolution: " + e );
+						IOFunctions.println( "Failed to export '" + title + "': " + e );
 						e.printStackTrace();
-						return false;
 					}
-	
-					// export the final image
-					titler.setTitle( "TP" + t.getName() + "_Ch" + c.getName() + FusionHelper.getIllumName( illumsToProcess ) + FusionHelper.getAngleName( anglesToProcess ) );
-					exporter.exportImage(
-							deconvolved,
-							bb,
-							t,
-							newViewsetups.get( SpimData2.getViewSetup( spimData.getSequenceDescription().getViewSetupsOrdered(), c, anglesToProcess.get( 0 ), illumsToProcess.get( 0 ) ) ),
-							0, 1 );
 				}
+			});
 		}
-		catch ( OutOfMemoryError oome )
+
+		return true;
+	}
+
+	/**
+	 * A stack (timepoint/channel) that is prepared for deconvolution
+	 */
+	protected static class PreparedStack
+	{
+		final Pair< TimePoint, Channel > stack;
+		final ProcessForDeconvolution pfd;
+		final ImgFactory< FloatType > factory;
+		final long sizeMB;
+
+		public PreparedStack( final Pair< TimePoint, Channel > stack, final ProcessForDeconvolution pfd, final ImgFactory< FloatType > factory, final long sizeMB )
 		{
-			IJ.log( "Out of Memory" );
-			IJ.error("Multi-View Registration", "Out of memory.  Check \"Edit > Options > Memory & Threads\"");
-			return false;
+			this.stack = stack;
+			this.pfd = pfd;
+			this.factory = factory;
+			this.sizeMB = sizeMB;
 		}
-		
-		return true;
 	}
-	
+
 	@Override
 	public boolean queryParameters()
 	{
@@ -311,6 +721,18 @@ public class EfficientBayesianBased extends Fusion
 		if ( !getDebug() )
 			return false;
 
+		// check checkpointing parameters
+		if ( !getCheckpoints() )
+			return false;
+
+		// check where to put memory-mapped images
+		if ( !getMemoryMapped() )
+			return false;
+
+		// check memory for pipelining
+		if ( !getPipeline() )
+			return false;
+
 		return true;
 	}
 	
@@ -327,21 +749,36 @@ public class EfficientBayesianBased extends Fusion
 		public void itemStateChanged(ItemEvent e) { m.update(); } });
 		saveMem.addItemListener( new ItemListener() { @Override
 		public void itemStateChanged(ItemEvent e) { m.update(); } });
+		memMapped.addItemListener( new ItemListener() { @Override
+		public void itemStateChanged(ItemEvent e) { m.update(); } });
+		inputStorage.addItemListener( new ItemListener() { @Override
+		public void itemStateChanged(ItemEvent e) { m.update(); } });
+		weightStorage.addItemListener( new ItemListener() { @Override
+		public void itemStateChanged(ItemEvent e) { m.update(); } });
 	}
 
 	@Override
 	public void queryAdditionalParameters( final GenericDialog gd )
 	{
 		gd.addChoice( "ImgLib2_container_FFTs", BoundingBoxGUI.imgTypes, BoundingBoxGUI.imgTypes[ defaultFFTImgType ] );
-		gd.addCheckbox( "Save_memory (not keep FFT's on CPU, 2x time & 0.5x memory)", defaultSaveMemory );
+		gd.addCheckbox( "Save_memory (keep FFT's of the PSFs on disk instead of RAM)", defaultSaveMemory );
 		saveMem = (Checkbox)gd.getCheckboxes().lastElement();
+		gd.addCheckbox( "Memory-mapped_images (out-of-core, for volumes larger than RAM)", defaultMemoryMapped );
+		memMapped = (Checkbox)gd.getCheckboxes().lastElement();
+		gd.addChoice( "Store_transformed_views_as", inputStorageChoice, inputStorageChoice[ defaultInputStorage ] );
+		inputStorage = (Choice)gd.getChoices().lastElement();
+		gd.addChoice( "Store_weights_as", weightStorageChoice, weightStorageChoice[ defaultWeightStorage ] );
+		weightStorage = (Choice)gd.getChoices().lastElement();
 		gd.addChoice( "Type_of_iteration", iterationTypeString, iterationTypeString[ defaultIterationType ] );
 		it = (Choice)gd.getChoices().lastElement();
 		gd.addChoice( "Image_weights", weightsString, weightsString[ defaultWeightType ] );
 		weight = (Choice)gd.getChoices().lastElement();
 		gd.addChoice( "OSEM_acceleration", osemspeedupChoice, osemspeedupChoice[ defaultOSEMspeedupIndex ] );
 		gd.addNumericField( "Number_of_iterations", defaultNumIterations, 0 );
+		gd.addNumericField( "Stop_if_relative_change_below (0 = run all iterations)", defaultConvergenceTolerance, 6 );
 		gd.addCheckbox( "Debug_mode", defaultDebugMode );
+		gd.addCheckbox( "Write_checkpoints (resume interrupted deconvolutions)", defaultCheckpoints );
+		gd.addCheckbox( "Pipeline_timepoints (prepare next timepoint while deconvolving)", defaultPipelined );
 		gd.addCheckbox( "Adjust_blending_parameters (if stripes are visible)", defaultAdjustBlending );
 		gd.addCheckbox( "Use_Tikhonov_regularization", defaultUseTikhonovRegularization );
 		gd.addNumericField( "Tikhonov_parameter", defaultLambda, 4 );
@@ -366,6 +803,9 @@ public class EfficientBayesianBased extends Fusion
 			computeFactory = new CellImgFactory< FloatType >( 256 );
 
 		saveMemory = defaultSaveMemory = gd.getNextBoolean();
+		memoryMapped = defaultMemoryMapped = gd.getNextBoolean();
+		inputStorageIndex = defaultInputStorage = gd.getNextChoiceIndex();
+		weightStorageIndex = defaultWeightStorage = gd.getNextChoiceIndex();
 		defaultIterationType = gd.getNextChoiceIndex();
 
 		if ( defaultIterationType == 0 )
@@ -390,7 +830,10 @@ public class EfficientBayesianBased extends Fusion
 
 		osemspeedupIndex = defaultOSEMspeedupIndex = gd.getNextChoiceIndex();
 		numIterations = defaultNumIterations = (int)Math.round( gd.getNextNumber() );
+		convergenceTolerance = defaultConvergenceTolerance = Math.max( 0, gd.getNextNumber() );
 		debugMode = defaultDebugMode = gd.getNextBoolean();
+		checkpoints = defaultCheckpoints = gd.getNextBoolean();
+		pipelined = defaultPipelined = gd.getNextBoolean();
 		adjustBlending = defaultAdjustBlending = gd.getNextBoolean();
 		useTikhonovRegularization = defaultUseTikhonovRegularization = gd.getNextBoolean();
 		lambda = defaultLambda = gd.getNextNumber();
@@ -441,15 +884,20 @@ public class EfficientBayesianBased extends Fusion
 		else
 			blockSize = fusedSizeMB;
 		
-		// transformed weight images + input data
+		// transformed weight images + input data (relative to 32-bit float)
+		final double inputFactor = getStorageFactor( getInputStorageFactory( inputStorage.getSelectedIndex() ) );
+		final double weightFactor = getStorageFactor( getWeightStorageFactory( weightStorage.getSelectedIndex() ) );
+
 		long totalRam;
 
-		if ( weight.getSelectedIndex() == 0 ) // Precompute weights for all views (more memory, faster)
-			totalRam = fusedSizeMB * ( getMaxNumViewsPerTimepoint() * 2 );
+		if ( memMapped.getState() == true ) // input, weights, output and tmp images are memory-mapped
+			totalRam = 0;
+		else if ( weight.getSelectedIndex() == 0 ) // Precompute weights for all views (more memory, faster)
+			totalRam = Math.round( fusedSizeMB * ( getMaxNumViewsPerTimepoint() * ( inputFactor + weightFactor ) ) );
 		else if ( weight.getSelectedIndex() == 1 ) // Virtual weights (less memory, slower)
-			totalRam = fusedSizeMB * ( getMaxNumViewsPerTimepoint() + 1 );
+			totalRam = Math.round( fusedSizeMB * ( getMaxNumViewsPerTimepoint() * inputFactor + 1 ) );
 		else // No weights (produces artifacts on partially overlapping data)
-			totalRam = fusedSizeMB * ( getMaxNumViewsPerTimepoint() );
+			totalRam = Math.round( fusedSizeMB * ( getMaxNumViewsPerTimepoint() * inputFactor ) );
 
 		// fft of psf's
 		if ( gpu.getSelectedIndex() == 0 )
@@ -471,20 +919,69 @@ public class EfficientBayesianBased extends Fusion
 			totalRam += blockSize * 2;
 
 		// the output + 2xtmp
-		totalRam += fusedSizeMB * 3;
+		if ( memMapped.getState() == false )
+			totalRam += fusedSizeMB * 3;
 
 		return totalRam;
 	}
 
-	protected void displayParametersAndPSFs( final BoundingBoxGUI bb, final Channel channel, final HashMap< Channel, ChannelPSF > extractPSFLabels  )
+	/**
+	 * @param index - the index of the inputStorageChoice
+	 * @return the factory for the transformed views, null means the same as for the deconvolved image
+	 */
+	protected static ImgFactory< FloatType > getInputStorageFactory( final int index )
+	{
+		if ( index == 1 )
+			return new CompactImgFactory( Storage.HALF_FLOAT );
+		else if ( index == 2 )
+			return new CompactImgFactory( Storage.FIXED_POINT_16BIT );
+		else
+			return null;
+	}
+
+	/**
+	 * @param index - the index of the weightStorageChoice
+	 * @return the factory for the precomputed weights, null means the same as for the deconvolved image
+	 */
+	protected static ImgFactory< FloatType > getWeightStorageFactory( final int index )
+	{
+		if ( index == 1 )
+			return new CompactImgFactory( Storage.FIXED_POINT_16BIT );
+		else if ( index == 2 )
+			return new CompactImgFactory( Storage.FIXED_POINT_8BIT );
+		else
+			return null;
+	}
+
+	/**
+	 * @param factory - the storage factory (or null)
+	 * @return the memory needed relative to 32-bit float
+	 */
+	protected static double getStorageFactor( final ImgFactory< FloatType > factory )
+	{
+		if ( factory instanceof CompactImgFactory )
+			return ( (CompactImgFactory)factory ).bytesPerPixel() / 4.0;
+		else
+			return 1.0;
+	}
+
+	/**
+	 * @param bb - the bounding box
+	 * @param ePSF - the PSFs of the stack that is deconvolved next
+	 */
+	protected void displayParametersAndPSFs( final BoundingBoxGUI bb, final ExtractPSF< FloatType > ePSF )
 	{
 		IOFunctions.println( "Type of iteration: " + iterationType );
 		IOFunctions.println( "Number iterations: " + numIterations );
+		if ( convergenceTolerance > 0 )
+			IOFunctions.println( "Stopping early if relative change < " + convergenceTolerance );
 		IOFunctions.println( "OSEM speedup: " + osemSpeedUp );
 		IOFunctions.println( "Using blocks: " + useBlocks );
 		if ( useBlocks )
 			IOFunctions.println( "Block size: " + Util.printCoordinates( blockSize ) );
 		IOFunctions.println( "Using CUDA: " + useCUDA );
+		if ( !memoryMapped )
+			IOFunctions.println( "Storing transformed views as " + inputStorageChoice[ inputStorageIndex ] + ", weights as " + weightStorageChoice[ weightStorageIndex ] );
 
 		IOFunctions.println( "Blending border: " + blendingBorderX + "x" + blendingBorderY + "x" + blendingBorderZ );
 		IOFunctions.println( "Blending range: " + blendingRangeX + "x" + blendingRangeY + "x" + blendingRangeZ );
@@ -527,7 +1024,6 @@ public class EfficientBayesianBased extends Fusion
 		// "Show combined PSF's (original scale)",
 		// "Show individual PSF's (original scale)" };
 		
-		final ExtractPSF< FloatType > ePSF = extractPSFLabels.get( channel ).getExtractPSFInstance(); 
 		final DisplayImage di = new DisplayImage();
 
 		if ( displayPSF == 1 )
@@ -1038,6 +1534,85 @@ public class EfficientBayesianBased extends Fusion
 		return true;
 	}
 	
+	protected boolean getCheckpoints()
+	{
+		if ( !checkpoints || weightType == WeightType.WEIGHTS_ONLY )
+			return true;
+
+		final GenericDialogPlus gd = new GenericDialogPlus( "Checkpoints" );
+
+		gd.addDirectoryField( "Checkpoint_directory", defaultCheckpointDirectory, 50 );
+		gd.addNumericField( "Write_checkpoint_every_n_iterations, n = ", defaultCheckpointEveryNIterations, 0 );
+		gd.addNumericField( "Write_checkpoint_every_t_minutes, t = ", defaultCheckpointEveryMinutes, 1 );
+		gd.addCheckbox( "Resume_from_existing_checkpoints", defaultResumeFromCheckpoint );
+		gd.addMessage( "Note: a value of 0 disables the respective criterion. Checkpoints are deleted once a deconvolution finishes.", GUIHelper.mediumstatusfont );
+
+		gd.showDialog();
+
+		if ( gd.wasCanceled() )
+			return false;
+
+		defaultCheckpointDirectory = gd.getNextString();
+		defaultCheckpointEveryNIterations = (int)Math.round( gd.getNextNumber() );
+		defaultCheckpointEveryMinutes = gd.getNextNumber();
+		defaultResumeFromCheckpoint = gd.getNextBoolean();
+
+		if ( defaultCheckpointDirectory == null || defaultCheckpointDirectory.trim().length() == 0 )
+		{
+			IOFunctions.println( "No directory for checkpoints selected. Stopping." );
+			return false;
+		}
+
+		return true;
+	}
+
+	protected boolean getPipeline()
+	{
+		if ( !pipelined || weightType == WeightType.WEIGHTS_ONLY )
+			return true;
+
+		if ( defaultPipelineMemoryMB <= 0 )
+			defaultPipelineMemoryMB = Runtime.getRuntime().maxMemory() / ( 1024 * 1024 ) / 2;
+
+		final GenericDialog gd = new GenericDialog( "Pipelined deconvolution" );
+
+		gd.addNumericField( "Memory_for_prepared_timepoints", defaultPipelineMemoryMB, 0, 10, "MB" );
+		gd.addMessage(
+				"Note: the next timepoints are prepared while the current one is deconvolved as long as their transformed\n" +
+				"views and weights fit into this memory (including the one that is deconvolved). The deconvolved images\n" +
+				"are exported in the background, so two deconvolved images need to fit into the remaining memory.", GUIHelper.mediumstatusfont );
+
+		gd.showDialog();
+
+		if ( gd.wasCanceled() )
+			return false;
+
+		pipelineMemoryMB = defaultPipelineMemoryMB = Math.max( 1, Math.round( gd.getNextNumber() ) );
+
+		return true;
+	}
+
+	protected boolean getMemoryMapped()
+	{
+		if ( !memoryMapped )
+			return true;
+
+		final GenericDialogPlus gd = new GenericDialogPlus( "Memory-mapped images" );
+
+		gd.addDirectoryField( "Directory_for_temporary_files", defaultMemoryMappedDirectory, 50 );
+		gd.addMessage( "Note: leave empty to use the system temp directory. It should be on a fast local disk and\n" +
+				"have space for about (2 x number of views + 3) times the size of the deconvolved image.", GUIHelper.mediumstatusfont );
+
+		gd.showDialog();
+
+		if ( gd.wasCanceled() )
+			return false;
+
+		memoryMappedDirectory = defaultMemoryMappedDirectory = gd.getNextString();
+
+		return true;
+	}
+
 	protected boolean getBlocks()
 	{
 		if ( blockSizeIndex == 0 )
@@ -53,6 +53,21 @@ public class ExtractPSF< T extends RealType< T > & NativeType< T > >
 		this.mapViewIds = new HashMap< ViewId, ViewId >();
 	}
 
+	/**
+	 * Uses the PSF's of another instance (e.g. of another channel) with an own mapping, so the other
+	 * instance is not changed
+	 *
+	 * @param other - the instance that holds the PSF's, they must not be changed anymore
+	 */
+	public ExtractPSF( final ExtractPSF< T > other )
+	{
+		this.pointSpreadFunctions = other.pointSpreadFunctions;
+		this.originalPSFs = other.originalPSFs;
+		this.viewIds = other.viewIds;
+
+		this.mapViewIds = new HashMap< ViewId, ViewId >( other.mapViewIds );
+	}
+
 	/**
 	 * @return - the current mapping, should be appended by any process that wants to use exisiting PSF's
 	 */
@@ -0,0 +1,51 @@
+package spim.process.fusion.deconvolution;
+
+import net.imglib2.img.basictypeaccess.FloatAccess;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+
+/**
+ * A {@link FloatAccess} for values in [0...1] that are stored as 8-bit fixed point numbers
+ * (unsigned byte, 1 == 255). Values outside of [0...1] are clamped. Sufficient for the
+ * blending weights of the deconvolution, which only need a quarter of the memory then.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class FixedPointByteArray implements FloatAccess, ArrayDataAccess< FixedPointByteArray >
+{
+	final static float scale = 255;
+	final static float invScale = 1.0f / scale;
+
+	final byte[] data;
+
+	public FixedPointByteArray( final int numEntities )
+	{
+		this.data = new byte[ numEntities ];
+	}
+
+	public FixedPointByteArray( final byte[] data )
+	{
+		this.data = data;
+	}
+
+	@Override
+	public float getValue( final int index ) { return ( data[ index ] & 0xff ) * invScale; }
+
+	@Override
+	public void setValue( final int index, final float value )
+	{
+		if ( value <= 0 || Float.isNaN( value ) )
+			data[ index ] = 0;
+		else if ( value >= 1 )
+			data[ index ] = (byte)255;
+		else
+			data[ index ] = (byte)Math.round( value * scale );
+	}
+
+	@Override
+	public FixedPointByteArray createArray( final int numEntities ) { return new FixedPointByteArray( numEntities ); }
+
+	@Override
+	public Object getCurrentStorageArray() { return data; }
+
+	public int getArrayLength() { return data.length; }
+}
@@ -0,0 +1,51 @@
+package spim.process.fusion.deconvolution;
+
+import net.imglib2.img.basictypeaccess.FloatAccess;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+
+/**
+ * A {@link FloatAccess} for values in [0...1] that are stored as 16-bit fixed point numbers
+ * (unsigned short, 1 == 65535). Values outside of [0...1] are clamped. Used for the weights
+ * and the normalized input views of the deconvolution.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class FixedPointShortArray implements FloatAccess, ArrayDataAccess< FixedPointShortArray >
+{
+	final static float scale = 65535;
+	final static float invScale = 1.0f / scale;
+
+	final short[] data;
+
+	public FixedPointShortArray( final int numEntities )
+	{
+		this.data = new short[ numEntities ];
+	}
+
+	public FixedPointShortArray( final short[] data )
+	{
+		this.data = data;
+	}
+
+	@Override
+	public float getValue( final int index ) { return ( data[ index ] & 0xffff ) * invScale; }
+
+	@Override
+	public void setValue( final int index, final float value )
+	{
+		if ( value <= 0 || Float.isNaN( value ) )
+			data[ index ] = 0;
+		else if ( value >= 1 )
+			data[ index ] = (short)65535;
+		else
+			data[ index ] = (short)Math.round( value * scale );
+	}
+
+	@Override
+	public FixedPointShortArray createArray( final int numEntities ) { return new FixedPointShortArray( numEntities ); }
+
+	@Override
+	public Object getCurrentStorageArray() { return data; }
+
+	public int getArrayLength() { return data.length; }
+}
@@ -0,0 +1,106 @@
+package spim.process.fusion.deconvolution;
+
+import net.imglib2.img.basictypeaccess.FloatAccess;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+
+/**
+ * A {@link FloatAccess} that stores every value as 16-bit (half precision) float, i.e. 1 sign bit,
+ * 5 bits exponent and 10 bits mantissa. This halves the memory of images that do not need
+ * the full precision of 32-bit floats (e.g. the transformed input views of the deconvolution),
+ * values are encoded when they are set and decoded when they are read.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class HalfFloatArray implements FloatAccess, ArrayDataAccess< HalfFloatArray >
+{
+	// all 2^16 possible values, decoding is just a lookup
+	final static float[] decodeTable;
+
+	static
+	{
+		decodeTable = new float[ 65536 ];
+
+		for ( int i = 0; i < decodeTable.length; ++i )
+			decodeTable[ i ] = decode( (short)i );
+	}
+
+	final short[] data;
+
+	public HalfFloatArray( final int numEntities )
+	{
+		this.data = new short[ numEntities ];
+	}
+
+	public HalfFloatArray( final short[] data )
+	{
+		this.data = data;
+	}
+
+	@Override
+	public float getValue( final int index ) { return decodeTable[ data[ index ] & 0xffff ]; }
+
+	@Override
+	public void setValue( final int index, final float value ) { data[ index ] = encode( value ); }
+
+	@Override
+	public HalfFloatArray createArray( final int numEntities ) { return new HalfFloatArray( numEntities ); }
+
+	@Override
+	public Object getCurrentStorageArray() { return data; }
+
+	public int getArrayLength() { return data.length; }
+
+	/**
+	 * @param value - a 32-bit float
+	 * @return the closest 16-bit float (values beyond +-65504 are clamped)
+	 */
+	public static final short encode( final float value )
+	{
+		final int bits = Float.floatToIntBits( value );
+		final int sign = ( bits >>> 16 ) & 0x8000;
+		final int abs = bits & 0x7fffffff;
+
+		// infinity or NaN
+		if ( abs >= 0x7f800000 )
+			return (short)( sign | 0x7c00 | ( abs > 0x7f800000 ? 0x200 : 0 ) );
+
+		// too large, clamp to the largest half (65504)
+		if ( abs >= 0x477ff000 )
+			return (short)( sign | 0x7bff );
+
+		// normalized half, round to nearest even
+		if ( abs >= 0x38800000 )
+			return (short)( sign | ( ( abs + 0xfff + ( ( abs >>> 13 ) & 1 ) - 0x38000000 ) >>> 13 ) );
+
+		// too small, rounds to zero
+		if ( abs < 0x33000000 )
+			return (short)sign;
+
+		// denormalized half
+		final int shift = 126 - ( abs >>> 23 );
+		final int mantissa = ( abs & 0x7fffff ) | 0x800000;
+
+		return (short)( sign | ( ( mantissa + ( 1 << ( shift - 1 ) ) ) >>> shift ) );
+	}
+
+	/**
+	 * @param half - a 16-bit float
+	 * @return the same value as 32-bit float
+	 */
+	public static final float decode( final short half )
+	{
+		final int sign = ( half & 0x8000 ) << 16;
+		final int exponent = ( half >>> 10 ) & 0x1f;
+		final int mantissa = half & 0x3ff;
+
+		// zero or denormalized
+		if ( exponent == 0 )
+			return ( sign == 0 ? 1 : -1 ) * mantissa * 5.9604645e-8f;
+
+		// infinity or NaN
+		if ( exponent == 31 )
+			return Float.intBitsToFloat( sign | 0x7f800000 | ( mantissa << 13 ) );
+
+		return Float.intBitsToFloat( sign | ( ( exponent + 112 ) << 23 ) | ( mantissa << 13 ) );
+	}
+}
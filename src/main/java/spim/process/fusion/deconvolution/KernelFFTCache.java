@@ -0,0 +1,373 @@
+package spim.process.fusion.deconvolution;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.FinalDimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.fft2.FFT;
+import net.imglib2.algorithm.fft2.FFTMethods;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Caches the Fourier transforms of the deconvolution kernels (PSF's) so that they are
+ * computed only once per deconvolution run and reused by every block of every iteration.
+ *
+ * The spectra are keyed by (view, kernel, padded size). If the cache exceeds its memory
+ * budget, the least recently used spectra are written to disk and reloaded when needed,
+ * which is still much cheaper than computing the FFT again.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class KernelFFTCache
+{
+	/**
+	 * The memory budget in MB, if negative a quarter of the maximal heap size is used
+	 */
+	public static long defaultMemoryBudgetMB = -1;
+
+	/**
+	 * Where the spectra are written to if the memory budget is exceeded, null means the temp directory
+	 */
+	public static String defaultSpillDirectory = null;
+
+	final long memoryBudget;
+	final File spillDirectory;
+
+	// the spectra in memory, in access order (least recently used first)
+	final LinkedHashMap< Key, ArrayImg< ComplexFloatType, ? > > inMemory;
+
+	// the spectra that were written to disk
+	final HashMap< Key, File > onDisk;
+
+	long memoryUsed = 0;
+	int computed = 0, reloaded = 0;
+
+	/**
+	 * @param memoryBudget - the maximal amount of bytes used for spectra in RAM (0 means everything is written to disk)
+	 * @param spillDirectory - where to write spectra that exceed the memory budget (null means temp directory)
+	 */
+	public KernelFFTCache( final long memoryBudget, final File spillDirectory )
+	{
+		this.memoryBudget = memoryBudget;
+		this.spillDirectory = spillDirectory;
+		this.inMemory = new LinkedHashMap< Key, ArrayImg< ComplexFloatType, ? > >( 16, 0.75f, true );
+		this.onDisk = new HashMap< Key, File >();
+	}
+
+	/**
+	 * @param saveMemory - if true, all spectra are kept on disk only
+	 * @return a new cache using the default budget and spill directory
+	 */
+	public static KernelFFTCache createDefault( final boolean saveMemory )
+	{
+		final long budget;
+
+		if ( saveMemory )
+			budget = 0;
+		else if ( defaultMemoryBudgetMB < 0 )
+			budget = Runtime.getRuntime().maxMemory() / 4;
+		else
+			budget = defaultMemoryBudgetMB * 1024l * 1024l;
+
+		final File dir = defaultSpillDirectory == null ? null : new File( defaultSpillDirectory );
+
+		return new KernelFFTCache( budget, dir );
+	}
+
+	/**
+	 * Returns the Fourier transform of a kernel padded to a certain size as required by
+	 * the FFT-based convolution. It is computed on the first request and cached afterwards.
+	 * The returned image must not be modified.
+	 *
+	 * @param view - the view the kernel belongs to (part of the key)
+	 * @param kernelId - which kernel of the view (e.g. 1 or 2, part of the key)
+	 * @param kernel - the kernel itself
+	 * @param paddedDimensions - the size of the padded image (part of the key)
+	 * @param service - the ExecutorService used if the FFT needs to be computed
+	 * @return - the spectrum of the kernel
+	 */
+	public synchronized Img< ComplexFloatType > getKernelFFT(
+			final Object view,
+			final int kernelId,
+			final RandomAccessibleInterval< FloatType > kernel,
+			final long[] paddedDimensions,
+			final ExecutorService service )
+	{
+		final Key key = new Key( view, kernelId, paddedDimensions );
+
+		ArrayImg< ComplexFloatType, ? > fft = inMemory.get( key );
+
+		if ( fft != null )
+			return fft;
+
+		final File file = onDisk.get( key );
+
+		if ( file != null )
+		{
+			fft = load( file, paddedDimensions );
+
+			if ( fft != null )
+			{
+				++reloaded;
+
+				// if we are not allowed to keep anything we just hand it out
+				if ( memoryBudget > 0 )
+					put( key, fft, false );
+
+				return fft;
+			}
+
+			onDisk.remove( key );
+		}
+
+		fft = computeKernelFFT( kernel, paddedDimensions, service );
+		++computed;
+
+		put( key, fft, true );
+
+		return fft;
+	}
+
+	/**
+	 * Computes the spectrum of a kernel the same way {@link net.imglib2.algorithm.fft2.FFTConvolution} does,
+	 * i.e. zero-extended, centered at the origin and periodically wrapped into the padded size.
+	 *
+	 * @param kernel - the kernel
+	 * @param paddedDimensions - the size of the padded real image
+	 * @param service - the ExecutorService for the FFT
+	 * @return the spectrum as ArrayImg
+	 */
+	public static ArrayImg< ComplexFloatType, ? > computeKernelFFT(
+			final RandomAccessibleInterval< FloatType > kernel,
+			final long[] paddedDimensions,
+			final ExecutorService service )
+	{
+		final Interval kernelConvolutionInterval = FFTMethods.paddingIntervalCentered( kernel, new FinalDimensions( paddedDimensions ) );
+
+		final RandomAccessibleInterval< FloatType > kernelInput =
+				Views.interval(
+						Views.extendPeriodic( Views.interval( Views.extendZero( kernel ), kernelConvolutionInterval ) ),
+						new FinalInterval( paddedDimensions ) );
+
+		return (ArrayImg< ComplexFloatType, ? >)FFT.realToComplex( kernelInput, new ArrayImgFactory< ComplexFloatType >(), service );
+	}
+
+	/**
+	 * @param imgDimensions - the size of the image (or block) that is convolved
+	 * @param kernel - the kernel
+	 * @return the size of the padded real image that is used for the FFT
+	 */
+	public static long[] paddedDimensions( final long[] imgDimensions, final Interval kernel )
+	{
+		final int n = imgDimensions.length;
+		final long[] newDimensions = new long[ n ];
+		final long[] paddedDimensions = new long[ n ];
+		final long[] fftDimensions = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+			newDimensions[ d ] = imgDimensions[ d ] + kernel.dimension( d ) - 1;
+
+		FFTMethods.dimensionsRealToComplexFast( new FinalDimensions( newDimensions ), paddedDimensions, fftDimensions );
+
+		return paddedDimensions;
+	}
+
+	/**
+	 * Removes all spectra of a certain view, e.g. because its kernels changed
+	 *
+	 * @param view - the view
+	 */
+	public synchronized void remove( final Object view )
+	{
+		final Iterator< Entry< Key, ArrayImg< ComplexFloatType, ? > > > it = inMemory.entrySet().iterator();
+
+		while ( it.hasNext() )
+		{
+			final Entry< Key, ArrayImg< ComplexFloatType, ? > > entry = it.next();
+
+			if ( entry.getKey().view == view )
+			{
+				memoryUsed -= sizeInBytes( entry.getValue() );
+				it.remove();
+			}
+		}
+
+		final Iterator< Entry< Key, File > > itDisk = onDisk.entrySet().iterator();
+
+		while ( itDisk.hasNext() )
+		{
+			final Entry< Key, File > entry = itDisk.next();
+
+			if ( entry.getKey().view == view )
+			{
+				entry.getValue().delete();
+				itDisk.remove();
+			}
+		}
+	}
+
+	/**
+	 * Deletes all spectra from memory and disk
+	 */
+	public synchronized void clear()
+	{
+		IOFunctions.println( "Kernel FFT cache: computed " + computed + " spectra, reloaded " + reloaded + " from disk." );
+
+		inMemory.clear();
+		memoryUsed = 0;
+
+		for ( final File file : onDisk.values() )
+			file.delete();
+
+		onDisk.clear();
+	}
+
+	protected void put( final Key key, final ArrayImg< ComplexFloatType, ? > fft, final boolean isNew )
+	{
+		final long size = sizeInBytes( fft );
+
+		// make space by writing the least recently used spectra to disk
+		final Iterator< Entry< Key, ArrayImg< ComplexFloatType, ? > > > it = inMemory.entrySet().iterator();
+
+		while ( memoryUsed + size > memoryBudget && it.hasNext() )
+		{
+			final Entry< Key, ArrayImg< ComplexFloatType, ? > > entry = it.next();
+
+			if ( !onDisk.containsKey( entry.getKey() ) )
+				spill( entry.getKey(), entry.getValue() );
+
+			memoryUsed -= sizeInBytes( entry.getValue() );
+			it.remove();
+		}
+
+		if ( memoryUsed + size <= memoryBudget )
+		{
+			inMemory.put( key, fft );
+			memoryUsed += size;
+		}
+		else if ( isNew )
+		{
+			spill( key, fft );
+		}
+	}
+
+	protected void spill( final Key key, final ArrayImg< ComplexFloatType, ? > fft )
+	{
+		try
+		{
+			final File file = File.createTempFile( "kernelfft_", ".bin", spillDirectory );
+			file.deleteOnExit();
+
+			final float[] data = ( (FloatArray)fft.update( null ) ).getCurrentStorageArray();
+			final RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+			final FileChannel channel = raf.getChannel();
+
+			final ByteBuffer buffer = ByteBuffer.allocateDirect( data.length * 4 ).order( ByteOrder.nativeOrder() );
+			buffer.asFloatBuffer().put( data );
+
+			while ( buffer.hasRemaining() )
+				channel.write( buffer );
+
+			channel.close();
+			raf.close();
+
+			onDisk.put( key, file );
+		}
+		catch ( final IOException e )
+		{
+			// we will have to recompute it if needed again
+			IOFunctions.println( "Failed to write kernel FFT to disk, it will be recomputed: " + e );
+		}
+	}
+
+	protected static ArrayImg< ComplexFloatType, ? > load( final File file, final long[] paddedDimensions )
+	{
+		final long[] fftDimensions = paddedDimensions.clone();
+		fftDimensions[ 0 ] = paddedDimensions[ 0 ] / 2 + 1;
+
+		final ArrayImg< ComplexFloatType, ? > fft = new ArrayImgFactory< ComplexFloatType >().create( fftDimensions, new ComplexFloatType() );
+		final float[] data = ( (FloatArray)fft.update( null ) ).getCurrentStorageArray();
+
+		try
+		{
+			final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+			final FileChannel channel = raf.getChannel();
+
+			final ByteBuffer buffer = ByteBuffer.allocateDirect( data.length * 4 ).order( ByteOrder.nativeOrder() );
+
+			while ( buffer.hasRemaining() && channel.read( buffer ) >= 0 );
+
+			channel.close();
+			raf.close();
+
+			buffer.rewind();
+			buffer.asFloatBuffer().get( data );
+
+			return fft;
+		}
+		catch ( final Exception e )
+		{
+			IOFunctions.println( "Failed to load kernel FFT '" + file.getAbsolutePath() + "', it will be recomputed: " + e );
+			return null;
+		}
+	}
+
+	protected static long sizeInBytes( final Img< ComplexFloatType > fft )
+	{
+		return fft.size() * 8;
+	}
+
+	protected static class Key
+	{
+		final Object view;
+		final int kernelId;
+		final long[] paddedDimensions;
+		final int hash;
+
+		public Key( final Object view, final int kernelId, final long[] paddedDimensions )
+		{
+			this.view = view;
+			this.kernelId = kernelId;
+			this.paddedDimensions = paddedDimensions.clone();
+			this.hash = 31 * ( 31 * System.identityHashCode( view ) + kernelId ) + Arrays.hashCode( paddedDimensions );
+		}
+
+		@Override
+		public int hashCode() { return hash; }
+
+		@Override
+		public boolean equals( final Object o )
+		{
+			if ( !( o instanceof Key ) )
+				return false;
+
+			final Key k = (Key)o;
+
+			return k.view == view && k.kernelId == kernelId && Arrays.equals( k.paddedDimensions, paddedDimensions );
+		}
+
+		@Override
+		public String toString() { return "kernel" + kernelId + Util.printCoordinates( paddedDimensions ); }
+	}
+}
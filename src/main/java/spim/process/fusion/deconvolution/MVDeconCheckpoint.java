@@ -0,0 +1,447 @@
+package spim.process.fusion.deconvolution;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.Cursor;
+import net.imglib2.Dimensions;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import spim.process.fusion.deconvolution.MVDeconFFT.PSFTYPE;
+
+/**
+ * Writes binary checkpoints of the deconvolved image (psi) and the iteration state so that a long
+ * deconvolution can be resumed after it was interrupted.
+ *
+ * psi is written into a temporary file between two iterations (which mostly only costs a copy into the
+ * page cache), flushing to disk and replacing the previous checkpoint happens in a background thread
+ * while the next iterations are computed. Files are not memory-mapped, as a mapping cannot be released
+ * explicitly and would prevent replacing or deleting the file on some platforms.
+ *
+ * Format (little endian): int magic, int version, int iteration, int numDimensions, int iteration type,
+ * int numViews, double lambda, long[] dimensions, followed by all pixels as float in flat iteration order.
+ * A checkpoint is only resumed if the iteration type, lambda and the number of views are the same.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class MVDeconCheckpoint
+{
+	final static int MAGIC = 0x4d564443;
+	final static int VERSION = 2;
+
+	// size of the header without the dimensions
+	final static int HEADER_SIZE = 6 * 4 + 8;
+
+	// size of the buffer used for reading and writing the pixels (multiple of 4)
+	final static int BUFFER_SIZE = 16 * 1024 * 1024;
+
+	final File file, tmpFile;
+	final int everyNIterations;
+	final long everyMillis;
+
+	// the parameters the checkpoint is only valid for
+	final PSFTYPE iterationType;
+	final double lambda;
+	final int numViews;
+
+	long lastCheckpointTime;
+	int lastCheckpointIteration = -1;
+	Thread writer = null;
+
+	/**
+	 * @param directory - where the checkpoints are written
+	 * @param name - the name of the deconvolved image, must be unique for all deconvolutions writing into the same directory
+	 * @param everyNIterations - write a checkpoint every n iterations (&lt;= 0 means never)
+	 * @param everyMinutes - write a checkpoint if the last one was written more than t minutes ago (&lt;= 0 means never)
+	 * @param iterationType - the type of iteration of the deconvolution
+	 * @param lambda - the regularization parameter of the deconvolution
+	 * @param numViews - the number of views that are deconvolved
+	 */
+	public MVDeconCheckpoint(
+			final File directory,
+			final String name,
+			final int everyNIterations,
+			final double everyMinutes,
+			final PSFTYPE iterationType,
+			final double lambda,
+			final int numViews )
+	{
+		if ( !directory.exists() )
+			directory.mkdirs();
+
+		final String fileName = name.replaceAll( "[^a-zA-Z0-9_\\-\\.,]", "_" );
+
+		this.file = new File( directory, fileName + ".checkpoint" );
+		this.tmpFile = new File( directory, fileName + ".checkpoint.tmp" );
+		this.everyNIterations = everyNIterations;
+		this.everyMillis = Math.round( everyMinutes * 60 * 1000 );
+		this.lastCheckpointTime = System.currentTimeMillis();
+		this.iterationType = iterationType;
+		this.lambda = lambda;
+		this.numViews = numViews;
+	}
+
+	public File getFile() { return file; }
+
+	/**
+	 * @param iteration - the number of iterations that are completed
+	 * @return if a checkpoint should be written now
+	 */
+	public boolean isDue( final int iteration )
+	{
+		if ( iteration == lastCheckpointIteration )
+			return false;
+
+		if ( everyNIterations > 0 && iteration % everyNIterations == 0 )
+			return true;
+
+		if ( everyMillis > 0 && System.currentTimeMillis() - lastCheckpointTime >= everyMillis )
+			return true;
+
+		return false;
+	}
+
+	/**
+	 * Writes psi into the temporary checkpoint file and flushes it to disk in the background. If the
+	 * previous checkpoint is still being written, it waits for it first.
+	 *
+	 * @param psi - the current deconvolved image
+	 * @param iteration - the number of iterations that are completed
+	 */
+	public void write( final Img< FloatType > psi, final int iteration )
+	{
+		waitForWriter();
+
+		final long time = System.currentTimeMillis();
+
+		final int n = psi.numDimensions();
+		final long headerSize = HEADER_SIZE + 8 * n;
+		final long numPixels = psi.size();
+
+		RandomAccessFile raf = null;
+
+		try
+		{
+			tmpFile.delete();
+
+			raf = new RandomAccessFile( tmpFile, "rw" );
+			raf.setLength( headerSize + numPixels * 4 );
+
+			final FileChannel channel = raf.getChannel();
+			final ByteBuffer bytes = ByteBuffer.allocateDirect( BUFFER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+			final FloatBuffer buffer = bytes.asFloatBuffer();
+			final Cursor< FloatType > cursor = Views.flatIterable( psi ).cursor();
+
+			long offset = headerSize;
+			long remaining = numPixels;
+
+			while ( remaining > 0 )
+			{
+				final int chunk = (int)Math.min( remaining, BUFFER_SIZE / 4 );
+
+				buffer.clear();
+
+				for ( int i = 0; i < chunk; ++i )
+					buffer.put( cursor.next().get() );
+
+				bytes.position( 0 );
+				bytes.limit( chunk * 4 );
+
+				while ( bytes.hasRemaining() )
+					offset += channel.write( bytes, offset );
+
+				bytes.clear();
+
+				remaining -= chunk;
+			}
+
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Checkpoint of iteration " + iteration + " written to temporary file (" + ( System.currentTimeMillis() - time ) + " ms), flushing in background." );
+
+			final RandomAccessFile output = raf;
+
+			this.writer = new Thread( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						// the header is written last, an incomplete file is never valid
+						final ByteBuffer header = ByteBuffer.allocate( (int)headerSize ).order( ByteOrder.LITTLE_ENDIAN );
+						header.putInt( MAGIC );
+						header.putInt( VERSION );
+						header.putInt( iteration );
+						header.putInt( n );
+						header.putInt( iterationType.ordinal() );
+						header.putInt( numViews );
+						header.putDouble( lambda );
+
+						for ( int d = 0; d < n; ++d )
+							header.putLong( psi.dimension( d ) );
+
+						header.flip();
+
+						while ( header.hasRemaining() )
+							channel.write( header, header.position() );
+
+						channel.force( true );
+						output.close();
+
+						// replace the previous checkpoint, there is always a valid one on disk
+						try
+						{
+							Files.move( tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+						}
+						catch ( final AtomicMoveNotSupportedException e )
+						{
+							Files.move( tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+						}
+
+						IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Checkpoint of iteration " + iteration + " written to '" + file.getAbsolutePath() + "'." );
+					}
+					catch ( final IOException e )
+					{
+						IOFunctions.println( "Failed to write checkpoint '" + tmpFile.getAbsolutePath() + "': " + e );
+						close( output );
+						tmpFile.delete();
+					}
+				}
+			});
+
+			this.writer.start();
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Failed to write checkpoint '" + tmpFile.getAbsolutePath() + "': " + e );
+			close( raf );
+			tmpFile.delete();
+		}
+
+		this.lastCheckpointTime = System.currentTimeMillis();
+		this.lastCheckpointIteration = iteration;
+	}
+
+	/**
+	 * Waits until the checkpoint that is currently written is finished
+	 */
+	public void waitForWriter()
+	{
+		if ( writer == null )
+			return;
+
+		try
+		{
+			writer.join();
+		}
+		catch ( final InterruptedException e )
+		{
+			IOFunctions.println( "Interrupted while writing checkpoint: " + e );
+		}
+
+		writer = null;
+	}
+
+	/**
+	 * Deletes the checkpoint, e.g. once the deconvolution finished
+	 */
+	public void delete()
+	{
+		waitForWriter();
+
+		file.delete();
+		tmpFile.delete();
+	}
+
+	/**
+	 * @return the number of iterations completed in the checkpoint on disk, or -1 if there is no valid checkpoint
+	 */
+	public int readIteration()
+	{
+		final ByteBuffer header = readHeader( -1 );
+
+		if ( header == null )
+			return -1;
+
+		return header.getInt( 8 );
+	}
+
+	/**
+	 * Loads psi from the last checkpoint.
+	 *
+	 * @param dimensions - the expected dimensions of psi
+	 * @param factory - the ImgFactory to instantiate psi
+	 * @return the loaded image or null if there is no valid checkpoint for these dimensions
+	 */
+	public Img< FloatType > load( final Dimensions dimensions, final ImgFactory< FloatType > factory )
+	{
+		final int n = dimensions.numDimensions();
+
+		final ByteBuffer header = readHeader( n );
+
+		if ( header == null )
+			return null;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			if ( header.getLong( HEADER_SIZE + d * 8 ) != dimensions.dimension( d ) )
+			{
+				IOFunctions.println( "Dimensions of checkpoint '" + file.getAbsolutePath() + "' do not match, ignoring it." );
+				return null;
+			}
+		}
+
+		final Img< FloatType > psi = factory.create( dimensions, new FloatType() );
+
+		final long headerSize = HEADER_SIZE + 8 * n;
+		final long numPixels = psi.size();
+
+		RandomAccessFile raf = null;
+
+		try
+		{
+			raf = new RandomAccessFile( file, "r" );
+
+			final FileChannel channel = raf.getChannel();
+			final ByteBuffer bytes = ByteBuffer.allocateDirect( BUFFER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+			final FloatBuffer buffer = bytes.asFloatBuffer();
+			final Cursor< FloatType > cursor = Views.flatIterable( psi ).cursor();
+
+			long offset = headerSize;
+			long remaining = numPixels;
+
+			while ( remaining > 0 )
+			{
+				final int chunk = (int)Math.min( remaining, BUFFER_SIZE / 4 );
+
+				bytes.clear();
+				bytes.limit( chunk * 4 );
+
+				if ( !readFully( channel, bytes, offset ) )
+				{
+					IOFunctions.println( "Checkpoint '" + file.getAbsolutePath() + "' is truncated, ignoring it." );
+					return null;
+				}
+
+				buffer.clear();
+
+				for ( int i = 0; i < chunk; ++i )
+					cursor.next().set( buffer.get() );
+
+				offset += chunk * 4;
+				remaining -= chunk;
+			}
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Failed to load checkpoint '" + file.getAbsolutePath() + "': " + e );
+			return null;
+		}
+		finally
+		{
+			close( raf );
+		}
+
+		return psi;
+	}
+
+	/**
+	 * @param numDimensions - the expected number of dimensions, or -1 if any
+	 * @return the header or null if the checkpoint does not exist, is invalid or was computed with other parameters
+	 */
+	protected ByteBuffer readHeader( final int numDimensions )
+	{
+		if ( !file.exists() )
+			return null;
+
+		RandomAccessFile raf = null;
+
+		try
+		{
+			raf = new RandomAccessFile( file, "r" );
+
+			final FileChannel channel = raf.getChannel();
+
+			final ByteBuffer start = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+
+			final int n = readFully( channel, start, 0 ) ? start.getInt( 12 ) : -1;
+
+			if ( n <= 0 || start.getInt( 0 ) != MAGIC || start.getInt( 4 ) != VERSION || ( numDimensions >= 0 && n != numDimensions ) )
+			{
+				IOFunctions.println( "Checkpoint '" + file.getAbsolutePath() + "' is invalid, ignoring it." );
+				return null;
+			}
+
+			if ( start.getInt( 16 ) != iterationType.ordinal() || start.getInt( 20 ) != numViews || start.getDouble( 24 ) != lambda )
+			{
+				IOFunctions.println( "Checkpoint '" + file.getAbsolutePath() + "' was computed with a different iteration type, lambda or number of views, ignoring it." );
+				return null;
+			}
+
+			final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE + 8 * n ).order( ByteOrder.LITTLE_ENDIAN );
+
+			if ( !readFully( channel, header, 0 ) )
+			{
+				IOFunctions.println( "Checkpoint '" + file.getAbsolutePath() + "' is invalid, ignoring it." );
+				return null;
+			}
+
+			return header;
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Failed to read checkpoint '" + file.getAbsolutePath() + "': " + e );
+			return null;
+		}
+		finally
+		{
+			close( raf );
+		}
+	}
+
+	/**
+	 * Reads until the buffer is full.
+	 *
+	 * @param channel - the channel to read from
+	 * @param buffer - the buffer to fill from its position to its limit
+	 * @param position - the position in the file to start reading at
+	 * @return false if the end of the file was reached before the buffer was full
+	 */
+	protected static boolean readFully( final FileChannel channel, final ByteBuffer buffer, long position ) throws IOException
+	{
+		while ( buffer.hasRemaining() )
+		{
+			final int read = channel.read( buffer, position );
+
+			if ( read < 0 )
+				return false;
+
+			position += read;
+		}
+
+		return true;
+	}
+
+	protected static void close( final RandomAccessFile raf )
+	{
+		if ( raf == null )
+			return;
+
+		try
+		{
+			raf.close();
+		}
+		catch ( final IOException e ) {}
+	}
+}
@@ -7,8 +7,13 @@ import java.util.concurrent.atomic.AtomicInteger;
 import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.postprocessing.deconvolution2.LRInput;
 import net.imglib2.Cursor;
+import net.imglib2.FinalDimensions;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.fft2.FFT;
 import net.imglib2.algorithm.fft2.FFTConvolution;
+import net.imglib2.algorithm.fft2.FFTMethods;
 import net.imglib2.exception.IncompatibleTypeException;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
@@ -30,10 +35,16 @@ public class MVDeconFFT
 	public static CUDAFourierConvolution cuda = null;
 	
 	private RandomAccessibleInterval< FloatType > image, weight;
+
+	// the interval of the deconvolved image, image and weight might only cover a part of it
+	final private Interval deconvolvedInterval;
+
 	private ArrayImg< FloatType, ? > kernel1, kernel2;
-	FFTConvolution< FloatType > fftConvolution1, fftConvolution2;
 	protected int numViews = 0;
 
+	// the Fourier transforms of kernel1 and kernel2 for all blocks and iterations
+	KernelFFTCache kernelFFTCache = null;
+
 	final protected ExecutorService service;
 	PSFTYPE iterationType;
 	ArrayList< MVDeconFFT > views;
@@ -62,8 +73,32 @@ public class MVDeconFFT
 			final ImgFactory< FloatType > blockFactory,
 			final int[] deviceList, final boolean useBlocks,
 			final int[] blockSize, final boolean saveMemory )
+	{
+		this( image, weight, kernel, blockFactory, deviceList, useBlocks, blockSize, saveMemory, image );
+	}
+
+	/**
+	 * @param image - the transformed view, might only cover the part of the deconvolved interval the view contributes to
+	 * @param weight - the weights of the view, same interval as the image
+	 * @param kernel - the transformed PSF of the view
+	 * @param blockFactory - the imgfactory for the blocks and the FFTs
+	 * @param deviceList - the devices to compute on (-1 is CPU)
+	 * @param useBlocks - compute the convolutions in blocks
+	 * @param blockSize - the size of the blocks
+	 * @param saveMemory - do not keep the FFTs of the kernels in memory
+	 * @param deconvolvedInterval - the interval of the deconvolved image (psi)
+	 */
+	public MVDeconFFT(
+			final RandomAccessibleInterval< FloatType > image,
+			final RandomAccessibleInterval< FloatType > weight,
+			final ArrayImg< FloatType, ? > kernel,
+			final ImgFactory< FloatType > blockFactory,
+			final int[] deviceList, final boolean useBlocks,
+			final int[] blockSize, final boolean saveMemory,
+			final Interval deconvolvedInterval )
 	{
 		this.image = image;
+		this.deconvolvedInterval = deconvolvedInterval;
 		this.kernel1 = kernel;
 		this.weight = weight;
 		this.n = image.numDimensions();
@@ -112,9 +147,11 @@ public class MVDeconFFT
 			final long[] imgSize = new long[ n ];
 			final long[] kernelSize = new long[ n ];
 
-			image.dimensions( imgSize );
+			deconvolvedInterval.dimensions( imgSize );
 			kernel.dimensions( kernelSize );
 
+			// the blocks are ordered with x moving fastest and z slowest, so all blocks of one z-slab are processed
+			// before the next one, which keeps the pages of memory-mapped images (MappedImgFactory) in the cache
 			final BlockGeneratorFixedSizePrecise blockGenerator = new BlockGeneratorFixedSizePrecise( Util.int2long( this.blockSize ) );
 			this.blocks = blockGenerator.divideIntoBlocks( imgSize, kernelSize );
 
@@ -128,12 +165,12 @@ public class MVDeconFFT
 			this.blockSize = new int[ n ];
 
 			for ( int d = 0; d < this.blockSize.length; ++d )
-				this.blockSize[ d ] = (int)image.dimension( d ) + (int)kernel.dimension( d ) - 1;
+				this.blockSize[ d ] = (int)deconvolvedInterval.dimension( d ) + (int)kernel.dimension( d ) - 1;
 
 			final long[] imgSize = new long[ n ];
 			final long[] kernelSize = new long[ n ];
 
-			image.dimensions( imgSize );
+			deconvolvedInterval.dimensions( imgSize );
 			kernel.dimensions( kernelSize );
 
 			final BlockGeneratorFixedSizePrecise blockGenerator = new BlockGeneratorFixedSizePrecise( Util.int2long( this.blockSize ) );
@@ -173,7 +210,32 @@ public class MVDeconFFT
 			numViews = 1;
 		}
 		
-		if ( numViews == 1 || iterationType == PSFTYPE.INDEPENDENT )
+		// the compound kernels are expensive, reuse them if the same PSFs were used before
+		final String cacheKey;
+
+		if ( numViews > 1 && ( iterationType == PSFTYPE.EFFICIENT_BAYESIAN || iterationType == PSFTYPE.OPTIMIZATION_I ) )
+		{
+			final ArrayList< ArrayImg< FloatType, ? > > otherKernels = new ArrayList< ArrayImg< FloatType, ? > >();
+
+			for ( final MVDeconFFT view : views )
+				if ( view != this )
+					otherKernels.add( view.kernel1 );
+
+			cacheKey = CompoundKernelCache.key( iterationType, kernel1, otherKernels );
+		}
+		else
+		{
+			cacheKey = null;
+		}
+
+		final ArrayImg< FloatType, ? > cachedKernel2 = CompoundKernelCache.get( cacheKey );
+
+		if ( cachedKernel2 != null )
+		{
+			IOFunctions.println( "Using cached compound kernel." );
+			this.kernel2 = cachedKernel2;
+		}
+		else if ( numViews == 1 || iterationType == PSFTYPE.INDEPENDENT )
 		{
 			// compute the inverted kernel (switch dimensions)
 			this.kernel2 = computeInvertedKernel( this.kernel1 );
@@ -300,6 +362,9 @@ public class MVDeconFFT
 			// compute the inverted squared kernel
 			this.kernel2 = computeInvertedKernel( exponentialKernel );	
 		}
+
+		if ( cacheKey != null && cachedKernel2 == null )
+			CompoundKernelCache.put( cacheKey, kernel2 );
 	}
 
 	public static ArrayImg< FloatType, ? > computeExponentialKernel( final ArrayImg< FloatType, ? > kernel, final int numViews )
@@ -345,16 +410,139 @@ public class MVDeconFFT
 		this.kernel1 = kernel;
 		init( iterationType, views );
 		setCurrentIteration( -1 );
+
+		if ( kernelFFTCache != null )
+			kernelFFTCache.remove( this );
 	}
 
+	/**
+	 * @param kernelFFTCache - the cache for the Fourier transforms of the kernels, usually shared by all views
+	 */
+	public void setKernelFFTCache( final KernelFFTCache kernelFFTCache ) { this.kernelFFTCache = kernelFFTCache; }
+	public KernelFFTCache getKernelFFTCache() { return kernelFFTCache; }
+	public boolean saveMemory() { return saveMemory; }
+
 	public RandomAccessibleInterval< FloatType > getImage() { return image; }
 	public RandomAccessibleInterval< FloatType > getWeight() { return weight; }
+	public Interval getDeconvolvedInterval() { return deconvolvedInterval; }
 	public ArrayImg< FloatType, ? > getKernel1() { return kernel1; }
 	public ArrayImg< FloatType, ? > getKernel2() { return kernel2; }
 	
+	/**
+	 * @return true if the convolutions are computed on the CPU in one block, then convolveCPU() can also be applied to parts of the image
+	 */
+	public boolean convolvesInOneBlockOnCPU() { return useCPU && !useBlocks; }
+
 	public void setCurrentIteration( final int i ) { this.i = i; }
 	public int getCurrentIteration() { return i; }
 
+	/**
+	 * Convolves an image on the CPU with kernel1 or kernel2, the Fourier transform of the kernel
+	 * is only computed once and then taken from the {@link KernelFFTCache}.
+	 * 
+	 * @param image - the image (or block) to convolve
+	 * @param output - where to write the result, can be the same as image
+	 * @param kernelId - 1 for kernel1, 2 for kernel2
+	 */
+	protected void convolveCPU( final RandomAccessibleInterval< FloatType > image, final RandomAccessibleInterval< FloatType > output, final int kernelId )
+	{
+		if ( kernelFFTCache == null )
+			kernelFFTCache = KernelFFTCache.createDefault( saveMemory );
+
+		final ArrayImg< FloatType, ? > kernel = ( kernelId == 1 ) ? kernel1 : kernel2;
+
+		final long[] imgSize = new long[ n ];
+		image.dimensions( imgSize );
+
+		final long[] paddedDimensions = KernelFFTCache.paddedDimensions( imgSize, kernel );
+		final Img< ComplexFloatType > kernelFFT = kernelFFTCache.getKernelFFT( this, kernelId, kernel, paddedDimensions, service );
+
+		// the image is extended by mirroring, exactly like FFTConvolution does
+		final Interval imgConvolutionInterval = FFTMethods.paddingIntervalCentered( image, new FinalDimensions( paddedDimensions ) );
+		final Img< ComplexFloatType > imgFFT = FFT.realToComplex( Views.interval( Views.extendMirrorSingle( image ), imgConvolutionInterval ), fftFactory, service );
+
+		multiplyComplex( imgFFT, kernelFFT );
+
+		FFT.complexToRealUnpad( imgFFT, output, service );
+	}
+
+	/**
+	 * Convolves all blocks on the CPU, several blocks are processed at the same time depending
+	 * on the available memory (see {@link MVDeconFFTThreads#numBlocksInFlight(int, int[], Interval)}).
+	 * 
+	 * @param image - the image to convolve
+	 * @param result - where to paste the convolved blocks
+	 * @param kernelId - 1 for kernel1, 2 for kernel2
+	 */
+	protected void convolveBlocksCPU( final Img< FloatType > image, final Img< FloatType > result, final int kernelId )
+	{
+		final int numBlocksInFlight = MVDeconFFTThreads.numBlocksInFlight( blocks.length, blockSize, kernelId == 1 ? kernel1 : kernel2 );
+
+		if ( numBlocksInFlight == 1 )
+		{
+			final Img< FloatType > block = blockFactory.create( blockSize, new FloatType() );
+
+			for ( int i = 0; i < blocks.length; ++i )
+			{
+				if ( kernelId == 1 )
+					MVDeconFFTThreads.convolve1BlockCPU( blocks[ i ], image, result, block, this, i );
+				else
+					MVDeconFFTThreads.convolve2BlockCPU( blocks[ i ], image, result, block, this );
+			}
+
+			return;
+		}
+
+		final AtomicInteger ai = new AtomicInteger();
+		final Thread[] threads = new Thread[ numBlocksInFlight ];
+
+		for ( int i = 0; i < numBlocksInFlight; ++i )
+			threads[ i ] = MVDeconFFTThreads.getCPUThread( ai, blockFactory, blocks, blockSize, image, result, this, kernelId );
+
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ].start();
+
+		try
+		{
+			for ( int ithread = 0; ithread < threads.length; ++ithread )
+				threads[ ithread ].join();
+		}
+		catch (InterruptedException ie)
+		{
+			throw new RuntimeException(ie);
+		}
+	}
+
+	/**
+	 * Multiplies the first image in place with the second one
+	 * 
+	 * @param img - the spectrum of the image, will be overwritten
+	 * @param kernel - the spectrum of the kernel
+	 */
+	final protected static void multiplyComplex( final Img< ComplexFloatType > img, final Img< ComplexFloatType > kernel )
+	{
+		if ( img.iterationOrder().equals( kernel.iterationOrder() ) )
+		{
+			final Cursor< ComplexFloatType > cursorA = img.cursor();
+			final Cursor< ComplexFloatType > cursorB = kernel.cursor();
+
+			while ( cursorA.hasNext() )
+				cursorA.next().mul( cursorB.next() );
+		}
+		else
+		{
+			final Cursor< ComplexFloatType > cursorA = img.localizingCursor();
+			final RandomAccess< ComplexFloatType > raB = kernel.randomAccess();
+
+			while ( cursorA.hasNext() )
+			{
+				cursorA.fwd();
+				raB.setPosition( cursorA );
+				cursorA.get().mul( raB.get() );
+			}
+		}
+	}
+
 	/**
 	 * convolves the image with kernel1
 	 * 
@@ -367,49 +555,17 @@ public class MVDeconFFT
 		{
 			if ( useBlocks )
 			{
-				final Img< FloatType > block = blockFactory.create( blockSize, new FloatType() );
-
-				if ( this.fftConvolution1 == null )
-				{
-					this.fftConvolution1 = new FFTConvolution< FloatType >( block, this.kernel1 );
-					this.fftConvolution1.setExecutorService( service );
-					this.fftConvolution1.setKeepImgFFT( false );
-				}
-
-				for ( int i = 0; i < blocks.length; ++i )
-					MVDeconFFTThreads.convolve1BlockCPU( blocks[ i ], image, result, block, fftConvolution1, i );
-
-				if ( saveMemory )
-				{
-					this.fftConvolution1 = null;
-					System.gc();
-				}
+				convolveBlocksCPU( image, result, 1 );
 
 				return;
 			}
 			else
 			{
-				if ( this.fftConvolution1 == null )
-				{
-					this.fftConvolution1 = new FFTConvolution< FloatType >( this.image, this.kernel1, fftFactory );
-					this.fftConvolution1.setExecutorService( service );
-					this.fftConvolution1.setKeepImgFFT( false );
-				}
-
 				//IJ.log( "Using CPU only to compute as one block ... " );
 				long time = System.currentTimeMillis();
-				final FFTConvolution< FloatType > fftConv = fftConvolution1;
-				fftConv.setImg( image );
-				fftConv.setOutput( result );
-				fftConv.convolve();
+				convolveCPU( image, result, 1 );
 				System.out.println( " image: compute " + (System.currentTimeMillis() - time) );
 
-				if ( saveMemory )
-				{
-					this.fftConvolution1 = null;
-					System.gc();
-				}
-
 				return;
 			}
 		}
@@ -459,45 +615,13 @@ public class MVDeconFFT
 		{
 			if ( useBlocks )
 			{
-				final Img< FloatType > block = blockFactory.create( blockSize, new FloatType() );
-
-				if ( this.fftConvolution2 == null )
-				{
-					this.fftConvolution2 = new FFTConvolution< FloatType >( block, this.kernel2 );
-					this.fftConvolution2.setExecutorService( service );
-					this.fftConvolution2.setKeepImgFFT( false );
-				}
-
-				for ( int i = 0; i < blocks.length; ++i )
-					MVDeconFFTThreads.convolve2BlockCPU( blocks[ i ], image, result, block, fftConvolution2 );
-
-				if ( saveMemory )
-				{
-					this.fftConvolution2 = null;
-					System.gc();
-				}
+				convolveBlocksCPU( image, result, 2 );
 
 				return;
 			}
 			else
 			{
-				if ( this.fftConvolution2 == null )
-				{
-					this.fftConvolution2 = new FFTConvolution< FloatType >( this.image, this.kernel2, fftFactory );
-					this.fftConvolution2.setExecutorService( service );
-					this.fftConvolution2.setKeepImgFFT( false );
-				}
-
-				final FFTConvolution< FloatType > fftConv = fftConvolution2;
-				fftConv.setImg( image );
-				fftConv.setOutput( result );
-				fftConv.convolve();
-
-				if ( saveMemory )
-				{
-					this.fftConvolution2 = null;
-					System.gc();
-				}
+				convolveCPU( image, result, 2 );
 
 				return;
 			}
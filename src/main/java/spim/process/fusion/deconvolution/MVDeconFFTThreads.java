@@ -2,7 +2,7 @@ package spim.process.fusion.deconvolution;
 
 import java.util.concurrent.atomic.AtomicInteger;
 
-import net.imglib2.algorithm.fft2.FFTConvolution;
+import net.imglib2.Interval;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.img.array.ArrayImg;
@@ -10,23 +10,74 @@ import net.imglib2.img.basictypeaccess.array.FloatArray;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
+import spim.Threads;
 import spim.process.cuda.Block;
 import spim.process.interestpointdetection.DifferenceOfGaussianCUDA.CUDAOutput;
 
 public class MVDeconFFTThreads
 {
+	/**
+	 * The memory (in MB) that may be used by blocks processed concurrently on the CPU, negative means half of the available memory
+	 */
+	public static long blockMemoryBudgetMB = -1;
+
+	/**
+	 * The maximal number of blocks processed concurrently on the CPU, negative means number of threads
+	 */
+	public static int maxBlocksInFlight = -1;
+
+	/**
+	 * Computes how many blocks can be convolved on the CPU at the same time, each needs its own
+	 * block image and FFT workspace.
+	 * 
+	 * @param numBlocks - the total number of blocks
+	 * @param blockSize - the size of each block
+	 * @param kernel - the kernel it is convolved with
+	 * @return the number of blocks that can be in flight at the same time (at least 1)
+	 */
+	public static int numBlocksInFlight( final int numBlocks, final int[] blockSize, final Interval kernel )
+	{
+		final long budget;
+
+		if ( blockMemoryBudgetMB < 0 )
+		{
+			final Runtime r = Runtime.getRuntime();
+			budget = ( r.maxMemory() - ( r.totalMemory() - r.freeMemory() ) ) / 2;
+		}
+		else
+		{
+			budget = blockMemoryBudgetMB * 1024l * 1024l;
+		}
+
+		final long[] paddedDimensions = KernelFFTCache.paddedDimensions( Util.int2long( blockSize ), kernel );
+
+		long blockPixels = 1;
+		long paddedPixels = 1;
+
+		for ( int d = 0; d < blockSize.length; ++d )
+		{
+			blockPixels *= blockSize[ d ];
+			paddedPixels *= paddedDimensions[ d ];
+		}
+
+		// the block itself plus the complex FFT of the padded block (and temporary memory while computing it)
+		final long memoryPerBlock = blockPixels * 4 + ( paddedPixels / 2 + 1 ) * 8 * 2;
+
+		final int maxBlocks = maxBlocksInFlight > 0 ? maxBlocksInFlight : Threads.numThreads();
+
+		return (int)Math.max( 1, Math.min( Math.min( numBlocks, maxBlocks ), budget / memoryPerBlock ) );
+	}
+
 	final protected static void convolve1BlockCPU(
 			final Block blockStruct, final Img< FloatType > image, final Img< FloatType > result,
-			final Img< FloatType > block, final FFTConvolution< FloatType > fftConvolution1, final int i )
+			final Img< FloatType > block, final MVDeconFFT view, final int i )
 	{
 		long time = System.currentTimeMillis();
 		blockStruct.copyBlock( Views.extendMirrorSingle( image ), block );
 		System.out.println( " block " + i + "(CPU): copy " + (System.currentTimeMillis() - time) );
 
 		time = System.currentTimeMillis();
-		fftConvolution1.setImg( block );
-		fftConvolution1.setOutput( block );
-		fftConvolution1.convolve();
+		view.convolveCPU( block, block, 1 );
 		System.out.println( " block " + i + "(CPU): compute " + (System.currentTimeMillis() - time) );
 
 		time = System.currentTimeMillis();
@@ -36,14 +87,12 @@ public class MVDeconFFTThreads
 	
 	final protected static void convolve2BlockCPU(
 			final Block blockStruct, final Img< FloatType > image, final Img< FloatType > result,
-			final Img< FloatType > block, final FFTConvolution< FloatType > fftConvolution2 )
+			final Img< FloatType > block, final MVDeconFFT view )
 	{
 		blockStruct.copyBlock( Views.extendMirrorSingle( image ), block );
 
-		fftConvolution2.setImg( block );
-		fftConvolution2.setOutput( block );
-		fftConvolution2.convolve();
-		
+		view.convolveCPU( block, block, 2 );
+
 		blockStruct.pasteBlock( result, block );
 	}
 	
@@ -91,6 +140,32 @@ public class MVDeconFFTThreads
 		blockStruct.pasteBlock( result, block );
 	}
 
+	final protected static Thread getCPUThread(
+			final AtomicInteger ai, final ImgFactory< FloatType > blockFactory, final Block[] blocks, final int[] blockSize,
+			final Img< FloatType > image, final Img< FloatType > result, final MVDeconFFT view, final int kernelId )
+	{
+		final Thread cpuThread = new Thread( new Runnable()
+		{
+			public void run()
+			{
+				// every block in flight has its own copy & paste buffer
+				final Img< FloatType > block = blockFactory.create( Util.int2long( blockSize ), new FloatType() );
+
+				int i;
+
+				while ( ( i = ai.getAndIncrement() ) < blocks.length )
+				{
+					if ( kernelId == 1 )
+						convolve1BlockCPU( blocks[ i ], image, result, block, view, i );
+					else
+						convolve2BlockCPU( blocks[ i ], image, result, block, view );
+				}
+			}
+		});
+
+		return cpuThread;
+	}
+
 	final protected static Thread getCUDAThread1(
 			final AtomicInteger ai, final ImgFactory< FloatType > blockFactory, final Block[] blocks, final int[] blockSize,
 			final Img< FloatType > image, final Img< FloatType > result, final int deviceId, final Img< FloatType > kernel1 )
@@ -12,6 +12,7 @@ public class MVDeconInput
 	public final static float minValue = 0.0001f;
 	final ArrayList< MVDeconFFT > views = new ArrayList< MVDeconFFT >();
 	final private ImgFactory< FloatType > imgFactory;
+	private KernelFFTCache kernelFFTCache = null;
 
 	/**
 	 * the imgfactory used for PSI, the temporary images and inputs
@@ -42,11 +43,27 @@ public class MVDeconInput
 	 */
 	public MVDeconInput init( final PSFTYPE iterationType ) throws IncompatibleTypeException
 	{
+		// normalize all kernels first, so the compound kernels are always computed (and cached) from the same input
+		for ( final MVDeconFFT view : views )
+			AdjustInput.normImg( view.getKernel1() );
+
 		for ( final MVDeconFFT view : views )
 			view.init( iterationType, views );
-		
+
+		// one cache for the kernel FFTs of all views
+		if ( kernelFFTCache == null && views.size() > 0 )
+			kernelFFTCache = KernelFFTCache.createDefault( views.get( 0 ).saveMemory() );
+
+		for ( final MVDeconFFT view : views )
+			view.setKernelFFTCache( kernelFFTCache );
+
 		return this;
 	}
+
+	/**
+	 * @return - the cache for the Fourier transforms of all kernels, null before {@link #init(PSFTYPE)} is called
+	 */
+	public KernelFFTCache getKernelFFTCache() { return kernelFFTCache; }
 	
 	/**
 	 * @return - the image data
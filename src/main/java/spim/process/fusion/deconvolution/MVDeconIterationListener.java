@@ -0,0 +1,15 @@
+package spim.process.fusion.deconvolution;
+
+/**
+ * Is notified after every iteration of the {@link MVDeconvolution}
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public interface MVDeconIterationListener
+{
+	/**
+	 * @param deconvolution - the running deconvolution
+	 * @param metrics - the metrics of the iteration that just finished
+	 */
+	public void iterationFinished( final MVDeconvolution deconvolution, final MVDeconIterationMetrics metrics );
+}
@@ -0,0 +1,92 @@
+package spim.process.fusion.deconvolution;
+
+/**
+ * The metrics of one iteration of the multi-view deconvolution. The change of psi is summed up
+ * over the updates of all views in this iteration.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class MVDeconIterationMetrics
+{
+	final int iteration;
+	final double sumChange, maxChange, sumPsi;
+	final long[] timePerView, timeConvolve1, timeConvolve2;
+	final long timeTotal;
+
+	public MVDeconIterationMetrics(
+			final int iteration,
+			final double sumChange,
+			final double maxChange,
+			final double sumPsi,
+			final long[] timePerView,
+			final long[] timeConvolve1,
+			final long[] timeConvolve2,
+			final long timeTotal )
+	{
+		this.iteration = iteration;
+		this.sumChange = sumChange;
+		this.maxChange = maxChange;
+		this.sumPsi = sumPsi;
+		this.timePerView = timePerView;
+		this.timeConvolve1 = timeConvolve1;
+		this.timeConvolve2 = timeConvolve2;
+		this.timeTotal = timeTotal;
+	}
+
+	/**
+	 * @return the index of the iteration (starting at 0)
+	 */
+	public int getIteration() { return iteration; }
+
+	/**
+	 * @return the sum of the absolute change of all pixels of psi
+	 */
+	public double getSumChange() { return sumChange; }
+
+	/**
+	 * @return the maximal absolute change of a single pixel caused by one view
+	 */
+	public double getMaxChange() { return maxChange; }
+
+	/**
+	 * @return the sum of all pixels of psi after the iteration
+	 */
+	public double getSumPsi() { return sumPsi; }
+
+	/**
+	 * @return sum of the absolute change relative to the sum of psi
+	 */
+	public double getRelativeChange() { return sumPsi > 0 ? sumChange / sumPsi : 0; }
+
+	/**
+	 * @return the time in ms it took to process each view
+	 */
+	public long[] getTimePerView() { return timePerView; }
+
+	/**
+	 * @return the time in ms it took to compute the first convolution (psi with kernel1) for each view
+	 */
+	public long[] getTimeConvolve1() { return timeConvolve1; }
+
+	/**
+	 * @return the time in ms it took to compute the second convolution (quotient with kernel2) for each view
+	 */
+	public long[] getTimeConvolve2() { return timeConvolve2; }
+
+	/**
+	 * @return the time in ms for the entire iteration
+	 */
+	public long getTimeTotal() { return timeTotal; }
+
+	@Override
+	public String toString()
+	{
+		long conv = 0;
+
+		for ( int view = 0; view < timePerView.length; ++view )
+			conv += timeConvolve1[ view ] + timeConvolve2[ view ];
+
+		return "iteration: " + iteration + " --- sum change: " + sumChange + " --- relative change: " + getRelativeChange() +
+				" --- max change per pixel: " + maxChange + " --- time: " + timeTotal + " ms (convolutions: " + conv + " ms)";
+	}
+}
@@ -17,6 +17,8 @@ import java.util.concurrent.Future;
 import mpicbg.spim.io.IOFunctions;
 import net.imglib2.Cursor;
 import net.imglib2.Dimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
@@ -24,6 +26,7 @@ import net.imglib2.exception.IncompatibleTypeException;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.RealSum;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
@@ -46,6 +49,16 @@ public class MVDeconvolution
 
 	public static boolean debug = true;
 	public static int debugInterval = 1;
+
+	// write checkpoints of psi into this directory (null means no checkpoints)
+	public static String checkpointDirectory = null;
+	public static int checkpointEveryNIterations = 10;
+	public static double checkpointEveryMinutes = 30;
+	public static boolean resumeFromCheckpoint = true;
+
+	// stop once the relative change of psi per iteration is below this value (0 means always run all iterations)
+	public static double convergenceTolerance = 0;
+	public static int minNumIterations = 5;
 	final static float minValue = 0.0001f;
 
 	final int numViews, numDimensions;
@@ -54,14 +67,15 @@ public class MVDeconvolution
 	ImageStack stack;
 	CompositeImage ci;
 
-	boolean collectStatistics = true;
-
 	// current iteration
 	int i = 0;
 
 	// the multi-view deconvolved image
 	Img< FloatType > psi;
 
+	// the sum of all pixels of psi, updated with the changes of every iteration
+	double sumPsi;
+
 	// temporary images that are reused for computation
 	final Img< FloatType > tmp1, tmp2;
 
@@ -69,6 +83,13 @@ public class MVDeconvolution
 	final MVDeconInput views;
 	ArrayList< MVDeconFFT > data;
 	String name;
+
+	// writes the checkpoints (if desired)
+	MVDeconCheckpoint checkpoint = null;
+
+	// the metrics of all iterations & who wants to be notified
+	final ArrayList< MVDeconIterationMetrics > metrics = new ArrayList< MVDeconIterationMetrics >();
+	final ArrayList< MVDeconIterationListener > listeners = new ArrayList< MVDeconIterationListener >();
 	
 	public MVDeconvolution(
 			final MVDeconInput views,
@@ -79,12 +100,31 @@ public class MVDeconvolution
 			final int osemspeedupindex,
 			final String name ) throws IncompatibleTypeException
 	{
+		this( views, iterationType, numIterations, lambda, osemspeedup, osemspeedupindex, name, null );
+	}
+
+	/**
+	 * @param listener - is notified after every iteration (can be null)
+	 */
+	public MVDeconvolution(
+			final MVDeconInput views,
+			final PSFTYPE iterationType,
+			final int numIterations,
+			final double lambda,
+			double osemspeedup,
+			final int osemspeedupindex,
+			final String name,
+			final MVDeconIterationListener listener ) throws IncompatibleTypeException
+	{
+		if ( listener != null )
+			this.listeners.add( listener );
+
 		this.psi = null;
 		this.name = name;
 		this.data = views.getViews();
 		this.views = views;
 		this.numViews = data.size();
-		this.numDimensions = data.get( 0 ).getImage().numDimensions();
+		this.numDimensions = data.get( 0 ).getDeconvolvedInterval().numDimensions();
 		this.lambda = lambda;
 
 		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Deconvolved & temporary image factory: " + views.imgFactory().getClass().getSimpleName() );
@@ -92,14 +132,36 @@ public class MVDeconvolution
 		// init all views
 		views.init( iterationType );
 
-		if ( initialImage != null )
+		if ( checkpointDirectory != null )
+		{
+			this.checkpoint = new MVDeconCheckpoint( new File( checkpointDirectory ), name, checkpointEveryNIterations, checkpointEveryMinutes, iterationType, lambda, numViews );
+
+			if ( initialImage == null && resumeFromCheckpoint && checkpoint.readIteration() >= 0 )
+			{
+				IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Resuming from checkpoint '" + checkpoint.getFile().getAbsolutePath() + "'" );
+
+				this.i = checkpoint.readIteration();
+				this.psi = checkpoint.load( data.get( 0 ).getDeconvolvedInterval(), views.imgFactory() );
+
+				if ( this.psi == null )
+					this.i = 0;
+				else
+					IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Continuing after iteration " + i );
+			}
+		}
+
+		if ( this.psi != null )
+		{
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Using psi of the checkpoint as starting point." );
+		}
+		else if ( initialImage != null )
 		{
 			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Loading intial image '" + initialImage + "'" );
 			this.psi = loadInitialImage(
 					initialImage,
 					checkNumbers,
 					minValue,
-					data.get( 0 ).getImage(),
+					data.get( 0 ).getDeconvolvedInterval(),
 					views.imgFactory() );
 		}
 		else
@@ -109,7 +171,7 @@ public class MVDeconvolution
 
 			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Fusing image for first iteration" );
 
-			this.psi = views.imgFactory().create( data.get( 0 ).getImage(), new FloatType() );
+			this.psi = views.imgFactory().create( data.get( 0 ).getDeconvolvedInterval(), new FloatType() );
 			final double avg = fuseFirstIteration( psi, views.getViews() );
 
 			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Average intensity in overlapping area: " + avg );
@@ -123,6 +185,9 @@ public class MVDeconvolution
 			}
 		}
 
+		// the views only update psi where they contribute, the sum is tracked from the changes
+		this.sumPsi = AdjustInput.sumImg( psi );
+
 		// instantiate the temporary images
 		this.tmp1 = views.imgFactory().create( psi, new FloatType() );
 		this.tmp2 = views.imgFactory().create( psi, new FloatType() );
@@ -169,9 +234,26 @@ public class MVDeconvolution
 				}
 			}
 
-			runIteration();
+			final MVDeconIterationMetrics m = runIteration();
+
+			if ( convergenceTolerance > 0 && i >= minNumIterations && m.getRelativeChange() < convergenceTolerance )
+			{
+				IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Converged after " + i + " iterations, relative change " + m.getRelativeChange() + " < " + convergenceTolerance );
+				break;
+			}
+
+			if ( checkpoint != null && i < numIterations && checkpoint.isDue( i ) )
+				checkpoint.write( psi, i );
 		}
 
+		// the deconvolution is finished, the checkpoint is not needed anymore
+		if ( checkpoint != null )
+			checkpoint.delete();
+
+		// the kernel FFTs are only valid for this run
+		if ( views.getKernelFFTCache() != null )
+			views.getKernelFFTCache().clear();
+
 		IOFunctions.println( "DONE (" + new Date(System.currentTimeMillis()) + ")." );
 	}
 
@@ -189,10 +271,11 @@ public class MVDeconvolution
 		final ArrayList< RandomAccessibleInterval< FloatType > > imgs = new ArrayList< RandomAccessibleInterval< FloatType > >();
 		final ArrayList< RandomAccessibleInterval< FloatType > > weights = new ArrayList< RandomAccessibleInterval< FloatType > >();
 
+		// views that only cover a part of psi contribute nothing outside of it
 		for ( final MVDeconFFT mvdecon : views )
 		{
-			imgs.add( mvdecon.getImage() );
-			weights.add( mvdecon.getWeight() );
+			imgs.add( extendToInterval( mvdecon.getImage(), psi ) );
+			weights.add( extendToInterval( mvdecon.getWeight(), psi ) );
 		}
 
 		for ( final ImagePortion portion : portions )
@@ -311,23 +394,41 @@ public class MVDeconvolution
 	public Img< FloatType > getPsi() { return psi; }	
 	public int getCurrentIteration() { return i; }
 
-	public void runIteration()
+	/**
+	 * @return the metrics of all iterations computed so far
+	 */
+	public ArrayList< MVDeconIterationMetrics > getMetrics() { return metrics; }
+
+	public void addListener( final MVDeconIterationListener listener ) { listeners.add( listener ); }
+
+	public MVDeconIterationMetrics runIteration()
 	{
-		runIteration( psi, tmp1, tmp2, data, lambda, minValue, collectStatistics, i++ );
+		final MVDeconIterationMetrics m = runIteration( psi, tmp1, tmp2, data, lambda, minValue, sumPsi, i++ );
+
+		sumPsi = m.getSumPsi();
+
+		metrics.add( m );
+
+		for ( final MVDeconIterationListener l : listeners )
+			l.iterationFinished( this, m );
+
+		return m;
 	}
 
-	final private static void runIteration(
+	final private static MVDeconIterationMetrics runIteration(
 			final Img< FloatType > psi,
 			final Img< FloatType > tmp1, // a temporary image using the same ImgFactory as PSI
 			final Img< FloatType > tmp2, // a temporary image using the same ImgFactory as PSI
 			final ArrayList< MVDeconFFT > data,
 			final double lambda,
 			final float minValue,
-			final boolean collectStatistic,
+			final double sumPsiBefore,
 			final int iteration )
 	{
 		IOFunctions.println( "iteration: " + iteration + " (" + new Date(System.currentTimeMillis()) + ")" );
 
+		final long timeStart = System.currentTimeMillis();
+
 		final int numViews = data.size();
 		final int nThreads = Threads.numThreads();
 		final int nPortions = nThreads * 2;
@@ -336,129 +437,264 @@ public class MVDeconvolution
 		final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( psi.size(), nPortions );
 		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
 
+		// one thread pool for all passes of this iteration
+		final ExecutorService taskExecutor = Executors.newFixedThreadPool( nThreads );
+
+		// the statistics are collected while computing the final values of each view
+		// [0] sum of change, [1] max change, [2] sum of the signed change (to update the sum of psi)
+		final double[][] stats = new double[ nPortions ][ 3 ];
+
+		final long[] timePerView = new long[ numViews ];
+		final long[] timeConvolve1 = new long[ numViews ];
+		final long[] timeConvolve2 = new long[ numViews ];
+
 		for ( int view = 0; view < numViews; ++view )
 		{
 			final MVDeconFFT processingData = data.get( view );
+			final RandomAccessibleInterval< FloatType > image = processingData.getImage();
+			final RandomAccessibleInterval< FloatType > weight = processingData.getWeight();
+
+			// the part of psi covered by the view, the quotient is 0 everywhere else
+			final FinalInterval viewInterval = Intervals.intersect( image, psi );
+			final boolean coversPsi = extendToInterval( image, psi ) == image;
+
+			// convolve only around the view if the convolution is not done in blocks (psi only changes where the view has a weight)
+			final boolean convolveView = !coversPsi && processingData.convolvesInOneBlockOnCPU() && contains( viewInterval, weight );
+
+			final long timeView = System.currentTimeMillis();
 
 			//
 			// convolve psi (current guess of the image) with the PSF of the current view
 			// [psi >> tmp1]
 			//
+			// (if possible only where it is needed for the quotient)
+			//
+			if ( convolveView )
+			{
+				final Interval interval = expand( viewInterval, processingData.getKernel1(), psi );
+				processingData.convolveCPU( Views.zeroMin( Views.interval( psi, interval ) ), Views.zeroMin( Views.interval( tmp1, interval ) ), 1 );
+			}
+			else
+			{
+				processingData.convolve1( psi, tmp1 );
+			}
 
-			processingData.convolve1( psi, tmp1 );
+			timeConvolve1[ view ] = System.currentTimeMillis() - timeView;
 
 			//
 			// compute quotient img/psiBlurred
 			// [tmp1, img >> tmp1]
 			//
-			for ( final ImagePortion portion : portions )
+			// (only where the view covers psi, outside the quotient is 0)
+			//
+			tasks.clear();
+
+			final RandomAccessibleInterval< FloatType > psiBlurredView = coversPsi ? tmp1 : Views.interval( tmp1, viewInterval );
+			final RandomAccessibleInterval< FloatType > observedImg = coversPsi ? image : Views.interval( image, viewInterval );
+			final Vector< ImagePortion > quotientPortions = coversPsi ? portions : FusionHelper.divideIntoPortions( Intervals.numElements( viewInterval ), nPortions );
+
+			for ( final ImagePortion portion : quotientPortions )
 			{
 				tasks.add( new Callable< Void >()
 				{
 					@Override
 					public Void call() throws Exception
 					{
-						computeQuotient( portion.getStartPosition(), portion.getLoopSize(), tmp1, processingData.getImage() );
+						computeQuotient( portion.getStartPosition(), portion.getLoopSize(), psiBlurredView, observedImg );
 						return null;
 					}
 				});
 			}
 
-			execTasks( tasks, nThreads, "compute quotient" );
-
-			//
-			// blur the residuals image with the kernel
-			// (this cannot be don in-place as it might be computed in blocks sequentially,
-			// and the input for the n+1'th block cannot be formed by the written back output
-			// of the n'th block)
-			// [tmp1 >> tmp2]
-			//
-			processingData.convolve2( tmp1, tmp2 );
-
-			// copy psi if collecting statistics
-			if ( collectStatistic )
+			// the block-wise convolution reads the entire quotient
+			if ( !coversPsi && !convolveView )
 			{
-				tasks.clear();
-
-				for ( final ImagePortion portion : portions )
+				for ( final Interval outside : outside( tmp1, viewInterval ) )
 				{
 					tasks.add( new Callable< Void >()
 					{
 						@Override
 						public Void call() throws Exception
 						{
-							copyImg( portion.getStartPosition(), portion.getLoopSize(), psi, tmp1 );
+							for ( final FloatType t : Views.iterable( Views.interval( tmp1, outside ) ) )
+								t.setZero();
+
 							return null;
 						}
 					});
 				}
-				
-				execTasks( tasks, nThreads, "duplicate PSI" );
 			}
 
+			execTasks( taskExecutor, tasks, "compute quotient" );
+
+			//
+			// blur the residuals image with the kernel
+			// (this cannot be don in-place as it might be computed in blocks sequentially,
+			// and the input for the n+1'th block cannot be formed by the written back output
+			// of the n'th block)
+			// [tmp1 >> tmp2]
+			//
+			// (if possible only where the view has a weight, the quotient is extended with zeros)
+			//
+			final long timeConv2 = System.currentTimeMillis();
+
+			if ( convolveView )
+			{
+				final Interval interval = expand( viewInterval, processingData.getKernel2(), psi );
+				processingData.convolveCPU(
+						Views.zeroMin( Views.interval( Views.extendZero( Views.interval( tmp1, viewInterval ) ), interval ) ),
+						Views.zeroMin( Views.interval( tmp2, interval ) ), 2 );
+			}
+			else
+			{
+				processingData.convolve2( tmp1, tmp2 );
+			}
+
+			timeConvolve2[ view ] = System.currentTimeMillis() - timeConv2;
+
 			//
-			// compute final values
+			// compute final values, apply the weights, regularize and collect statistics in one pass,
+			// only where the view has a weight (psi does not change anywhere else)
 			// [psi, weights, tmp2 >> psi]
 			//
 			tasks.clear();
 
-			for ( final ImagePortion portion : portions )
+			final RandomAccessibleInterval< FloatType > psiView = Views.interval( psi, weight );
+			final RandomAccessibleInterval< FloatType > tmp2View = Views.interval( tmp2, weight );
+			final Vector< ImagePortion > viewPortions = FusionHelper.divideIntoPortions( Views.iterable( weight ).size(), nPortions );
+
+			for ( int i = 0; i < viewPortions.size(); ++i )
 			{
+				final ImagePortion portion = viewPortions.get( i );
+				final double[] portionStats = stats[ i ];
+
 				tasks.add( new Callable< Void >()
 				{
 					@Override
 					public Void call() throws Exception
 					{
-						computeFinalValues( portion.getStartPosition(), portion.getLoopSize(), psi, tmp2, processingData.getWeight(), lambda );
+						computeFinalValues( portion.getStartPosition(), portion.getLoopSize(), psiView, tmp2View, weight, lambda, portionStats );
 						return null;
 					}
 				});
 			}
 
-			execTasks( tasks, nThreads, "compute final values" );
+			execTasks( taskExecutor, tasks, "compute final values" );
+
+			timePerView[ view ] = System.currentTimeMillis() - timeView;
 		}
 
-		if ( collectStatistic )
+		taskExecutor.shutdown();
+
+		// accumulate the results from the individual threads
+		double sumChange = 0;
+		double maxChange = -1;
+		double sumPsi = sumPsiBefore;
+
+		for ( int i = 0; i < stats.length; ++i )
 		{
-			final double[][] sumMax = new double[ nPortions ][ 2 ];
-			tasks.clear();
+			sumChange += stats[ i ][ 0 ];
+			maxChange = Math.max( maxChange, stats[ i ][ 1 ] );
+			sumPsi += stats[ i ][ 2 ];
+		}
 
-			for ( int i = 0; i < portions.size(); ++i )
-			{
-				final ImagePortion portion = portions.get( i );
-				final int portionId = i;
+		final MVDeconIterationMetrics metrics = new MVDeconIterationMetrics(
+				iteration, sumChange, maxChange, sumPsi, timePerView, timeConvolve1, timeConvolve2, System.currentTimeMillis() - timeStart );
 
-				tasks.add( new Callable< Void >()
-				{
-					@Override
-					public Void call() throws Exception
-					{
-						collectStatistics( portion.getStartPosition(), portion.getLoopSize(), psi, tmp1, sumMax[ portionId ] );
-						return null;
-					}
-				});
-			}
+		IOFunctions.println( metrics.toString() );
 
-			execTasks( tasks, nThreads, "collect statistics" );
+		return metrics;
+	}
 
-			// accumulate the results from the individual threads
-			double sumChange = 0;
-			double maxChange = -1;
+	/**
+	 * @param img - the image of a view, might only cover a part of the interval
+	 * @param interval - the interval of psi
+	 * @return the image itself if it covers the interval, otherwise the image extended with zeros to the interval
+	 */
+	protected static final RandomAccessibleInterval< FloatType > extendToInterval( final RandomAccessibleInterval< FloatType > img, final Interval interval )
+	{
+		for ( int d = 0; d < interval.numDimensions(); ++d )
+			if ( img.min( d ) != interval.min( d ) || img.max( d ) != interval.max( d ) )
+				return Views.interval( Views.extendZero( img ), interval );
+
+		return img;
+	}
 
-			for ( int i = 0; i < nPortions; ++i )
+	/**
+	 * @param interval - the interval
+	 * @param kernel - the kernel
+	 * @param bounds - the bounds of the result
+	 * @return the interval extended by half the kernel size (every pixel of the interval can be convolved exactly), limited to the bounds
+	 */
+	protected static final Interval expand( final Interval interval, final Interval kernel, final Interval bounds )
+	{
+		final int n = interval.numDimensions();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = Math.max( bounds.min( d ), interval.min( d ) - kernel.dimension( d ) / 2 - 1 );
+			max[ d ] = Math.min( bounds.max( d ), interval.max( d ) + kernel.dimension( d ) / 2 + 1 );
+		}
+
+		return new FinalInterval( min, max );
+	}
+
+	/**
+	 * @param interval - the interval
+	 * @param contained - the interval that should be inside
+	 * @return true if contained lies within interval
+	 */
+	protected static final boolean contains( final Interval interval, final Interval contained )
+	{
+		for ( int d = 0; d < interval.numDimensions(); ++d )
+			if ( contained.min( d ) < interval.min( d ) || contained.max( d ) > interval.max( d ) )
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * @param interval - the entire interval
+	 * @param inner - an interval inside of it
+	 * @return non-overlapping intervals that cover everything of interval that is not part of inner
+	 */
+	protected static final ArrayList< Interval > outside( final Interval interval, final Interval inner )
+	{
+		final int n = interval.numDimensions();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		interval.min( min );
+		interval.max( max );
+
+		final ArrayList< Interval > outside = new ArrayList< Interval >();
+
+		for ( int d = 0; d < n; ++d )
+		{
+			if ( inner.min( d ) > min[ d ] )
 			{
-				sumChange += sumMax[ i ][ 0 ];
-				maxChange = Math.max( maxChange, sumMax[ i ][ 1 ] );
+				final long[] maxBefore = max.clone();
+				maxBefore[ d ] = inner.min( d ) - 1;
+				outside.add( new FinalInterval( min.clone(), maxBefore ) );
+				min[ d ] = inner.min( d );
 			}
 
-			IOFunctions.println( "iteration: " + iteration + " --- sum change: " + sumChange + " --- max change per pixel: " + maxChange );
+			if ( inner.max( d ) < max[ d ] )
+			{
+				final long[] minAfter = min.clone();
+				minAfter[ d ] = inner.max( d ) + 1;
+				outside.add( new FinalInterval( minAfter, max.clone() ) );
+				max[ d ] = inner.max( d );
+			}
 		}
+
+		return outside;
 	}
 
-	private static final void execTasks( final ArrayList< Callable< Void > > tasks, final int nThreads, final String jobDescription )
+	private static final void execTasks( final ExecutorService taskExecutor, final ArrayList< Callable< Void > > tasks, final String jobDescription )
 	{
-		final ExecutorService taskExecutor = Executors.newFixedThreadPool( nThreads );
-
 		try
 		{
 			// invokeAll() returns when all tasks are complete
@@ -470,48 +706,6 @@ public class MVDeconvolution
 			e.printStackTrace();
 			return;
 		}
-
-		taskExecutor.shutdown();
-	}
-
-	/**
-	 * One thread of a method to collect statistics for each iteration of the multiview deconvolution
-	 * 
-	 * @param start
-	 * @param loopSize
-	 * @param psi
-	 * @param lastIteration
-	 * @param sumMax
-	 */
-	private static final void collectStatistics(
-			final long start,
-			final long loopSize,
-			final Img< FloatType > psi,
-			final Img< FloatType > lastIteration,
-			final double[] sumMax )
-	{
-		double sumChange = 0;
-		double maxChange = -1;
-		
-		final Cursor< FloatType > cursorPsi = psi.cursor();
-		final Cursor< FloatType > cursorLast = lastIteration.cursor();
-		
-		cursorPsi.jumpFwd( start );
-		cursorLast.jumpFwd( start );
-		
-		for ( long l = 0; l < loopSize; ++l )
-		{
-			final float last = cursorLast.next().get();
-			final float next = cursorPsi.next().get();
-
-			final float change = Math.abs( next - last );
-
-			sumChange += change;
-			maxChange = Math.max( maxChange, change );
-		}
-
-		sumMax[ 0 ] = sumChange;
-		sumMax[ 1 ] = maxChange;
 	}
 
 	/**
@@ -571,52 +765,8 @@ public class MVDeconvolution
 	}
 
 	/**
-	 * One thread of a method to compute the quotient between two images of the multiview deconvolution
-	 * 
-	 * @param start
-	 * @param loopSize
-	 * @param source
-	 * @param target
-	 */
-	private static final void copyImg(
-			final long start,
-			final long loopSize,
-			final RandomAccessibleInterval< FloatType > source,
-			final RandomAccessibleInterval< FloatType > target )
-	{
-		final IterableInterval< FloatType > sourceIterable = Views.iterable( source );
-		final IterableInterval< FloatType > targetIterable = Views.iterable( target );
-
-		if ( sourceIterable.iterationOrder().equals( sourceIterable.iterationOrder() ) )
-		{
-			final Cursor< FloatType > cursorSource = sourceIterable.cursor();
-			final Cursor< FloatType > cursorTarget = targetIterable.cursor();
-	
-			cursorSource.jumpFwd( start );
-			cursorTarget.jumpFwd( start );
-	
-			for ( long l = 0; l < loopSize; ++l )
-				cursorTarget.next().set( cursorSource.next() );
-		}
-		else
-		{
-			final RandomAccess< FloatType > raSource = source.randomAccess();
-			final Cursor< FloatType > cursorTarget = targetIterable.localizingCursor();
-
-			cursorTarget.jumpFwd( start );
-
-			for ( long l = 0; l < loopSize; ++l )
-			{
-				cursorTarget.fwd();
-				raSource.setPosition( cursorTarget );
-
-				cursorTarget.get().set( raSource.get() );
-			}
-		}
-	}
-
-	/**
-	 * One thread of a method to compute the final values of one iteration of the multiview deconvolution
+	 * One thread of a method to compute the final values of one iteration of the multiview deconvolution,
+	 * the Tikhonov regularization, the weighting and (optionally) the statistics are computed in the same pass
 	 * 
 	 * @param start
 	 * @param loopSize
@@ -624,6 +774,7 @@ public class MVDeconvolution
 	 * @param integral
 	 * @param weight
 	 * @param lambda
+	 * @param stats - the sum and maximum of the absolute change are added to [0] and [1], the sum of the signed change is added to [2]
 	 */
 	private static final void computeFinalValues(
 			final long start,
@@ -631,12 +782,17 @@ public class MVDeconvolution
 			final RandomAccessibleInterval< FloatType > psi,
 			final RandomAccessibleInterval< FloatType > integral,
 			final RandomAccessibleInterval< FloatType > weight,
-			final double lambda )
+			final double lambda,
+			final double[] stats )
 	{
 		final IterableInterval< FloatType > psiIterable = Views.iterable( psi );
 		final IterableInterval< FloatType > integralIterable = Views.iterable( integral );
 		final IterableInterval< FloatType > weightIterable = Views.iterable( weight );
 
+		double sumChange = 0;
+		double maxChange = -1;
+		double sumSignedChange = 0;
+
 		if (
 			psiIterable.iterationOrder().equals( integralIterable.iterationOrder() ) && 
 			psiIterable.iterationOrder().equals( weightIterable.iterationOrder() ) )
@@ -651,46 +807,18 @@ public class MVDeconvolution
 
 			for ( long l = 0; l < loopSize; ++l )
 			{
-				cursorPsi.fwd();
-				cursorIntegral.fwd();
-				cursorWeight.fwd();
-	
-				final float lastPsiValue = cursorPsi.get().get();
-	
-				float value = lastPsiValue * cursorIntegral.get().get();
-	
-				if ( value > 0 )
-				{
-					//
-					// perform Tikhonov regularization if desired
-					//
-					if ( lambda > 0 )
-						value = ( (float)( (Math.sqrt( 1.0 + 2.0*lambda*value ) - 1.0) / lambda ) );
-				}
-				else
-				{
-					value = minValue;
-				}
-	
-				//
-				// get the final value and some statistics
-				//
-				float nextPsiValue;
-	
-				if ( Double.isNaN( value ) )
-					nextPsiValue = (float)minValue;
-				else
-					nextPsiValue = (float)Math.max( minValue, value );
-	
-				// compute the difference between old and new
-				float change = nextPsiValue - lastPsiValue;
-	
-				// apply the appropriate amount
-				change *= cursorWeight.get().get();
-				nextPsiValue = lastPsiValue + change;
-	
+				final FloatType psiValue = cursorPsi.next();
+				final float lastPsiValue = psiValue.get();
+				final float nextPsiValue = computeNextValue( lastPsiValue, cursorIntegral.next().get(), cursorWeight.next().get(), lambda );
+
 				// store the new value
-				cursorPsi.get().set( (float)nextPsiValue );
+				psiValue.set( nextPsiValue );
+
+				final float change = Math.abs( nextPsiValue - lastPsiValue );
+
+				sumChange += change;
+				maxChange = Math.max( maxChange, change );
+				sumSignedChange += nextPsiValue - lastPsiValue;
 			}
 		}
 		else
@@ -706,44 +834,69 @@ public class MVDeconvolution
 				cursorPsi.fwd();
 				raIntegral.setPosition( cursorPsi );
 				raWeight.setPosition( cursorPsi );
-	
-				final float lastPsiValue = cursorPsi.get().get();
-	
-				float value = lastPsiValue * raIntegral.get().get();
-	
-				if ( value > 0 )
-				{
-					//
-					// perform Tikhonov regularization if desired
-					//
-					if ( lambda > 0 )
-						value = ( (float)( (Math.sqrt( 1.0 + 2.0*lambda*value ) - 1.0) / lambda ) );
-				}
-				else
-				{
-					value = minValue;
-				}
-	
-				//
-				// get the final value and some statistics
-				//
-				float nextPsiValue;
-	
-				if ( Double.isNaN( value ) )
-					nextPsiValue = (float)minValue;
-				else
-					nextPsiValue = (float)Math.max( minValue, value );
-	
-				// compute the difference between old and new
-				float change = nextPsiValue - lastPsiValue;
-	
-				// apply the appropriate amount
-				change *= raWeight.get().get();
-				nextPsiValue = lastPsiValue + change;
-	
+
+				final FloatType psiValue = cursorPsi.get();
+				final float lastPsiValue = psiValue.get();
+				final float nextPsiValue = computeNextValue( lastPsiValue, raIntegral.get().get(), raWeight.get().get(), lambda );
+
 				// store the new value
-				cursorPsi.get().set( (float)nextPsiValue );
+				psiValue.set( nextPsiValue );
+
+				final float change = Math.abs( nextPsiValue - lastPsiValue );
+
+				sumChange += change;
+				maxChange = Math.max( maxChange, change );
+				sumSignedChange += nextPsiValue - lastPsiValue;
 			}
 		}
+
+		stats[ 0 ] += sumChange;
+		stats[ 1 ] = Math.max( stats[ 1 ], maxChange );
+		stats[ 2 ] += sumSignedChange;
+	}
+
+	/**
+	 * Computes the updated value of psi for a single pixel
+	 * 
+	 * @param lastPsiValue - the current value of psi
+	 * @param integral - the convolved quotient
+	 * @param weight - the weight of the view at this pixel
+	 * @param lambda - the Tikhonov parameter (0 means no regularization)
+	 * @return the new value of psi
+	 */
+	private static final float computeNextValue( final float lastPsiValue, final float integral, final float weight, final double lambda )
+	{
+		float value = lastPsiValue * integral;
+
+		if ( value > 0 )
+		{
+			//
+			// perform Tikhonov regularization if desired
+			//
+			if ( lambda > 0 )
+				value = ( (float)( (Math.sqrt( 1.0 + 2.0*lambda*value ) - 1.0) / lambda ) );
+		}
+		else
+		{
+			value = minValue;
+		}
+
+		//
+		// get the final value
+		//
+		float nextPsiValue;
+
+		if ( Double.isNaN( value ) )
+			nextPsiValue = (float)minValue;
+		else
+			nextPsiValue = (float)Math.max( minValue, value );
+
+		// compute the difference between old and new
+		float change = nextPsiValue - lastPsiValue;
+
+		// apply the appropriate amount
+		change *= weight;
+
+		return lastPsiValue + change;
 	}
 }
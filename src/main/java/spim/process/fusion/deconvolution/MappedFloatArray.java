@@ -0,0 +1,114 @@
+package spim.process.fusion.deconvolution;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.img.basictypeaccess.FloatAccess;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+
+/**
+ * A {@link FloatAccess} that is backed by a memory-mapped region of a file. Used as plane (z-slab) of
+ * a {@link net.imglib2.img.planar.PlanarImg} by the {@link MappedImgFactory}, so that the operating
+ * system can page the data in and out instead of keeping it on the Java heap.
+ *
+ * When used as a creator, every call of {@link #createArray(int)} maps the next free region of the
+ * same file. The creator owns the file, {@link #close()} closes and deletes it.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class MappedFloatArray implements FloatAccess, ArrayDataAccess< MappedFloatArray >
+{
+	final FloatBuffer data;
+	final int numEntities;
+
+	// only used by the creator
+	final File f;
+	final RandomAccessFile file;
+	long nextOffset;
+
+	/**
+	 * Creates the creator, i.e. the instance that maps the regions of a new temporary file.
+	 *
+	 * @param directory - where to create the file (null means temp directory)
+	 * @throws IOException
+	 */
+	public MappedFloatArray( final File directory ) throws IOException
+	{
+		this.f = File.createTempFile( "mapped_", ".raw", directory );
+		this.f.deleteOnExit();
+
+		this.file = new RandomAccessFile( f, "rw" );
+		this.nextOffset = 0;
+		this.data = null;
+		this.numEntities = 0;
+	}
+
+	protected MappedFloatArray( final FloatBuffer data, final int numEntities )
+	{
+		this.data = data;
+		this.numEntities = numEntities;
+		this.f = null;
+		this.file = null;
+	}
+
+	/**
+	 * Closes and deletes the file of a creator. Regions that are mapped already stay valid until they are
+	 * garbage collected, on systems that do not allow to delete a mapped file it is deleted on exit.
+	 */
+	public synchronized void close()
+	{
+		if ( file == null )
+			return;
+
+		try
+		{
+			file.close();
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Cannot close memory-mapped file '" + f.getAbsolutePath() + "': " + e );
+		}
+
+		f.delete();
+	}
+
+	@Override
+	public float getValue( final int index ) { return data.get( index ); }
+
+	@Override
+	public void setValue( final int index, final float value ) { data.put( index, value ); }
+
+	@Override
+	public synchronized MappedFloatArray createArray( final int numEntities )
+	{
+		if ( file == null )
+			throw new RuntimeException( "This MappedFloatArray is not a creator, cannot map a new region." );
+
+		try
+		{
+			final long size = numEntities * 4l;
+			final FileChannel channel = file.getChannel();
+
+			// the mapping of a new region initializes it with zeros
+			final FloatBuffer buffer = channel.map( MapMode.READ_WRITE, nextOffset, size ).order( ByteOrder.nativeOrder() ).asFloatBuffer();
+			nextOffset += size;
+
+			return new MappedFloatArray( buffer, numEntities );
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( "Cannot map " + numEntities + " floats into memory: " + e );
+		}
+	}
+
+	@Override
+	public Object getCurrentStorageArray() { return data; }
+
+	public int getArrayLength() { return numEntities; }
+}
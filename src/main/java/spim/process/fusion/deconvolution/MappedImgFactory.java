@@ -0,0 +1,90 @@
+package spim.process.fusion.deconvolution;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import net.imglib2.exception.IncompatibleTypeException;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Fraction;
+
+/**
+ * An {@link ImgFactory} for {@link FloatType} images that are stored in memory-mapped temporary files
+ * instead of the Java heap. Each z-slab (plane) is a separately mapped region, so volumes larger than the
+ * physical memory can be processed; the operating system pages in what is currently needed. The files
+ * are closed and deleted by {@link #release()}, so one factory is used per deconvolved stack.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class MappedImgFactory extends ImgFactory< FloatType >
+{
+	final File directory;
+	final ArrayList< MappedFloatArray > creators = new ArrayList< MappedFloatArray >();
+
+	/**
+	 * @param directory - where to put the temporary files (null means temp directory)
+	 */
+	public MappedImgFactory( final File directory )
+	{
+		this.directory = directory;
+
+		if ( directory != null && !directory.exists() )
+			directory.mkdirs();
+	}
+
+	public File getDirectory() { return directory; }
+
+	@Override
+	public Img< FloatType > create( final long[] dim, final FloatType type )
+	{
+		final MappedFloatArray creator;
+
+		try
+		{
+			creator = new MappedFloatArray( directory );
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( "Cannot create temporary file for memory-mapped image in '" + directory + "': " + e );
+		}
+
+		synchronized ( creators )
+		{
+			creators.add( creator );
+		}
+
+		// every plane is mapped to its own region of the file
+		final PlanarImg< FloatType, MappedFloatArray > img = new PlanarImg< FloatType, MappedFloatArray >( creator, dim, new Fraction() );
+		img.setLinkedType( new FloatType( img ) );
+
+		return img;
+	}
+
+	/**
+	 * Closes and deletes the files of all images created so far. Their mapped planes stay readable until they
+	 * are garbage collected (e.g. a displayed result), but the data is not kept on disk anymore.
+	 */
+	public void release()
+	{
+		synchronized ( creators )
+		{
+			for ( final MappedFloatArray creator : creators )
+				creator.close();
+
+			creators.clear();
+		}
+	}
+
+	@SuppressWarnings( "unchecked" )
+	@Override
+	public < S > ImgFactory< S > imgFactory( final S type ) throws IncompatibleTypeException
+	{
+		if ( FloatType.class.isInstance( type ) )
+			return (ImgFactory< S >)this;
+		else
+			throw new IncompatibleTypeException( this, type.getClass().getCanonicalName() + " is not supported by the MappedImgFactory." );
+	}
+}
@@ -21,15 +21,21 @@ import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
 import net.imglib2.Cursor;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalDimensions;
 import net.imglib2.FinalInterval;
+import net.imglib2.FinalRealInterval;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 import spim.Threads;
 import spim.fiji.ImgLib2Temp.Pair;
@@ -76,9 +82,18 @@ public class ProcessForDeconvolution
 	HashMap< ViewId, RandomAccessibleInterval< FloatType > > imgs, weights;
 	ExtractPSF< FloatType > ePSF;
 
+	// the factories for the transformed views and the precomputed weights, e.g. a CompactImgFactory (null means the imgFactory is used)
+	ImgFactory< FloatType > inputFactory = null, weightFactory = null;
+
+	// the approximate amount of memory occupied by the transformed views and weights
+	long memoryBytes = 0;
+
 	public static String[] files;
 	public static boolean debugImport = false;
 
+	// store the transformed views and weights only where the view overlaps with the bounding box
+	public static boolean cropToFootprint = true;
+
 	public ProcessForDeconvolution(
 			final SpimData2 spimData,
 			final List< ViewId > viewIdsToProcess,
@@ -97,7 +112,20 @@ public class ProcessForDeconvolution
 	public HashMap< ViewId, RandomAccessibleInterval< FloatType > > getTransformedImgs() { return imgs; }
 	public HashMap< ViewId, RandomAccessibleInterval< FloatType > > getTransformedWeights() { return weights; }
 	public ArrayList< ViewDescription > getViewDescriptions() { return viewDescriptions; }
+	public Interval getDeconvolvedInterval() { return new FinalInterval( bb.getDimensions() ); }
 	public int getMinOverlappingViews() { return minOverlappingViews; }
+	public long getApproximateMemoryMB() { return memoryBytes / ( 1024 * 1024 ); }
+
+	/**
+	 * @param inputFactory - the factory for the transformed views (null means the imgFactory passed to fuseStacksAndGetPSFs)
+	 * @param weightFactory - the factory for precomputed weights (null means the imgFactory passed to fuseStacksAndGetPSFs)
+	 */
+	public void setStorageFactories( final ImgFactory< FloatType > inputFactory, final ImgFactory< FloatType > weightFactory )
+	{
+		this.inputFactory = inputFactory;
+		this.weightFactory = weightFactory;
+	}
+
 	public double getAvgOverlappingViews() { return avgOverlappingViews; }
 
 	/** 
@@ -105,6 +133,7 @@ public class ProcessForDeconvolution
 	 * 
 	 * @param timepoint
 	 * @param channel
+	 * @param channelPSFs - the PSF's of the channels of this timepoint that were prepared before, the PSF's of this channel are added
 	 * @return
 	 */
 	public boolean fuseStacksAndGetPSFs(
@@ -115,6 +144,7 @@ public class ProcessForDeconvolution
 			double osemspeedup,
 			WeightType weightType,
 			final HashMap< Channel, ChannelPSF > extractPSFLabels,
+			final HashMap< Channel, ExtractPSF< FloatType > > channelPSFs,
 			final long[] psfSize,
 			final HashMap< Channel, ArrayList< Pair< Pair< Angle, Illumination >, String > > > psfFiles,
 			final boolean transformLoadedPSFs )
@@ -135,6 +165,11 @@ public class ProcessForDeconvolution
 		this.imgs = new HashMap< ViewId, RandomAccessibleInterval< FloatType > >();
 		this.weights = new HashMap< ViewId, RandomAccessibleInterval< FloatType > >();
 
+		final ImgFactory< FloatType > inputFactory = this.inputFactory == null ? imgFactory : this.inputFactory;
+		final ImgFactory< FloatType > weightFactory = this.weightFactory == null ? imgFactory : this.weightFactory;
+
+		this.memoryBytes = 0;
+
 		final Img< FloatType > overlapImg;
 
 		if ( weightType == WeightType.WEIGHTS_ONLY )
@@ -151,14 +186,14 @@ public class ProcessForDeconvolution
 			ePSF = loadPSFs( channel, viewDescriptions, psfFiles, transformLoadedPSFs );
 		else
 		{
-			ePSF = assignOtherChannel( channel, extractPSFLabels );
+			ePSF = assignOtherChannel( channel, extractPSFLabels, channelPSFs );
 		}
 
 		if ( ePSF == null )
 			return false;
 
-		// remember the extracted or loaded PSFs
-		extractPSFLabels.get( channel ).setExtractPSFInstance( ePSF );
+		// remember the extracted or loaded PSFs for the other channels of this timepoint
+		channelPSFs.put( channel, ePSF );
 
 		// we will need to run some batches until all is fused
 		for ( int i = 0; i < viewDescriptions.size(); ++i )
@@ -168,6 +203,27 @@ public class ProcessForDeconvolution
 			IOFunctions.println( "Transforming view " + i + " of " + (viewDescriptions.size()-1) + " (viewsetup=" + vd.getViewSetupId() + ", tp=" + vd.getTimePointId() + ")" );
 			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Reserving memory for transformed & weight image.");
 
+			spimData.getViewRegistrations().getViewRegistration( vd ).updateModel();
+			final AffineTransform3D transform = spimData.getViewRegistrations().getViewRegistration( vd ).getModel();
+			final long[] offset = new long[]{ bb.min( 0 ), bb.min( 1 ), bb.min( 2 ) };
+
+			// the part of the bounding box the view contributes to (WEIGHTS_ONLY and LOAD_WEIGHTS need the entire bounding box)
+			final Interval footprint;
+
+			if ( cropToFootprint && ( weightType == WeightType.PRECOMPUTED_WEIGHTS || weightType == WeightType.VIRTUAL_WEIGHTS || weightType == WeightType.NO_WEIGHTS ) )
+			{
+				final Dimensions size = ViewSetupUtils.getSizeOrLoad( vd.getViewSetup(), vd.getTimePoint(), spimData.getSequenceDescription().getImgLoader() );
+				footprint = getFootprint( size, transform, offset, new FinalDimensions( bb.getDimensions() ) );
+
+				IOFunctions.println(
+						"(" + new Date(System.currentTimeMillis()) + "): Footprint of the view: " + Util.printInterval( footprint ) + " (" +
+						Math.round( 100.0 * Intervals.numElements( footprint ) / Intervals.numElements( new FinalDimensions( bb.getDimensions() ) ) ) + "% of the bounding box)" );
+			}
+			else
+			{
+				footprint = new FinalInterval( bb.getDimensions() );
+			}
+
 			// creating the output
 			RandomAccessibleInterval< FloatType > transformedImg; // might be null if WEIGHTS_ONLY
 			final RandomAccessibleInterval< FloatType > weightImg; // never null (except LOAD_WEIGHTS which is not implemented yet)
@@ -175,9 +231,12 @@ public class ProcessForDeconvolution
 			if ( weightType == WeightType.WEIGHTS_ONLY )
 				transformedImg = overlapImg;
 			else
-				transformedImg = imgFactory.create( bb.getDimensions(), new FloatType() );
+			{
+				transformedImg = create( inputFactory, footprint );
+				memoryBytes += Intervals.numElements( footprint ) * bytesPerPixel( inputFactory );
+			}
 
-			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Transformed image factory: " + imgFactory.getClass().getSimpleName() );
+			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Transformed image factory: " + inputFactory.getClass().getSimpleName() );
 
 			// loading the input if necessary
 			final RandomAccessibleInterval< FloatType > img;
@@ -198,12 +257,11 @@ public class ProcessForDeconvolution
 			// initializing weights
 			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Initializing transformation & weights: " + weightType.name() );
 
-			spimData.getViewRegistrations().getViewRegistration( vd ).updateModel();
-			final AffineTransform3D transform = spimData.getViewRegistrations().getViewRegistration( vd ).getModel();
-			final long[] offset = new long[]{ bb.min( 0 ), bb.min( 1 ), bb.min( 2 ) };
-
 			if ( weightType == WeightType.PRECOMPUTED_WEIGHTS || weightType == WeightType.WEIGHTS_ONLY )
-				weightImg = imgFactory.create( bb.getDimensions(), new FloatType() );
+			{
+				weightImg = create( weightFactory, footprint );
+				memoryBytes += Intervals.numElements( footprint ) * bytesPerPixel( weightFactory );
+			}
 			else if ( weightType == WeightType.NO_WEIGHTS )
 				weightImg = Views.interval( new ConstantRandomAccessible< FloatType >( new FloatType( 1 ), transformedImg.numDimensions() ), transformedImg );
 			else if ( weightType == WeightType.VIRTUAL_WEIGHTS )
@@ -302,9 +360,12 @@ public class ProcessForDeconvolution
 		final WeightNormalizer wn;
 
 		if ( weightType == WeightType.WEIGHTS_ONLY || weightType == WeightType.PRECOMPUTED_WEIGHTS || weightType == WeightType.LOAD_WEIGHTS )
-			wn = new WeightNormalizer( weightsSorted );
+			wn = new WeightNormalizer( weightsSorted, getDeconvolvedInterval() );
 		else if ( weightType == WeightType.VIRTUAL_WEIGHTS )
-			wn = new WeightNormalizer( weightsSorted, imgFactory );
+		{
+			wn = new WeightNormalizer( weightsSorted, imgFactory, getDeconvolvedInterval() );
+			memoryBytes += Intervals.numElements( getDeconvolvedInterval() ) * bytesPerPixel( imgFactory );
+		}
 		else //if ( processType == ProcessType.NO_WEIGHTS )
 			wn = null;
 
@@ -341,6 +402,74 @@ public class ProcessForDeconvolution
 		return true;
 	}
 
+	/**
+	 * Computes the part of the bounding box a view contributes to, i.e. the bounding box of the transformed view
+	 * intersected with the bounding box.
+	 *
+	 * @param viewSize - the size of the untransformed view
+	 * @param transform - the transformation of the view
+	 * @param offset - the minimum of the bounding box in global coordinates
+	 * @param bbDimensions - the dimensions of the bounding box
+	 * @return the footprint in the coordinates of the bounding box (at least one pixel)
+	 */
+	public static Interval getFootprint( final Dimensions viewSize, final AffineTransform3D transform, final long[] offset, final Dimensions bbDimensions )
+	{
+		final int n = bbDimensions.numDimensions();
+
+		final double[] minView = new double[ n ];
+		final double[] maxView = new double[ n ];
+
+		for ( int d = 0; d < n; ++d )
+			maxView[ d ] = viewSize.dimension( d ) - 1;
+
+		final RealInterval transformed = transform.estimateBounds( new FinalRealInterval( minView, maxView ) );
+
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			// one pixel more on each side for the linear interpolation
+			min[ d ] = Math.min( bbDimensions.dimension( d ) - 1, Math.max( 0, (long)Math.floor( transformed.realMin( d ) ) - offset[ d ] - 1 ) );
+			max[ d ] = Math.max( min[ d ], Math.min( bbDimensions.dimension( d ) - 1, (long)Math.ceil( transformed.realMax( d ) ) - offset[ d ] + 1 ) );
+		}
+
+		return new FinalInterval( min, max );
+	}
+
+	/**
+	 * @param factory - the factory
+	 * @return the bytes per pixel on the heap (memory-mapped images do not count)
+	 */
+	protected static int bytesPerPixel( final ImgFactory< FloatType > factory )
+	{
+		if ( factory instanceof CompactImgFactory )
+			return ( (CompactImgFactory)factory ).bytesPerPixel();
+		else if ( factory instanceof MappedImgFactory )
+			return 0;
+		else
+			return 4;
+	}
+
+	/**
+	 * @param factory - the factory to instantiate the image
+	 * @param interval - the interval of the image
+	 * @return an image that is positioned at the min of the interval
+	 */
+	protected static RandomAccessibleInterval< FloatType > create( final ImgFactory< FloatType > factory, final Interval interval )
+	{
+		final Img< FloatType > img = factory.create( interval, new FloatType() );
+
+		final long[] min = new long[ interval.numDimensions() ];
+		interval.min( min );
+
+		for ( int d = 0; d < min.length; ++d )
+			if ( min[ d ] != 0 )
+				return Views.translate( img, min );
+
+		return img;
+	}
+
 	private static void adjustForOSEM( final HashMap< ViewId, RandomAccessibleInterval< FloatType > > weights, final WeightType weightType, final double osemspeedup )
 	{
 		if ( osemspeedup == 1.0 )
@@ -399,12 +528,25 @@ public class ProcessForDeconvolution
 		return ExtractPSF.loadAndTransformPSFs( psfFiles.get( ch ), allInputData, new FloatType(), models );
 	}
 
-	protected ExtractPSF< FloatType > assignOtherChannel( final Channel channel, final HashMap< Channel, ChannelPSF > extractPSFLabels )
+	/**
+	 * @return the PSF's of the other channel with a mapping for the views of this channel, null if the other channel was not prepared
+	 */
+	protected ExtractPSF< FloatType > assignOtherChannel(
+			final Channel channel,
+			final HashMap< Channel, ChannelPSF > extractPSFLabels,
+			final HashMap< Channel, ExtractPSF< FloatType > > channelPSFs )
 	{
 		final ChannelPSF thisChannelPSF = extractPSFLabels.get( channel );
-		final ChannelPSF otherChannelPSF = extractPSFLabels.get( thisChannelPSF.getOtherChannel() );
-
 		final Channel otherChannel = thisChannelPSF.getOtherChannel();
+
+		if ( !channelPSFs.containsKey( otherChannel ) )
+		{
+			IOFunctions.println( "PSF's of channel " + otherChannel.getName() + " are not available for channel " + channel.getName() + "." );
+			return null;
+		}
+
+		// the other channel might be deconvolved at the same time, it keeps its own mapping
+		final ExtractPSF< FloatType > ePSF = new ExtractPSF< FloatType >( channelPSFs.get( otherChannel ) );
 		for ( int i = 0; i < viewDescriptions.size(); ++i )
 		{
 			// the viewid to map from
@@ -431,7 +573,7 @@ public class ProcessForDeconvolution
 			}
 		}
 
-		return otherChannelPSF.getExtractPSFInstance();
+		return ePSF;
 	}
 
 	protected ArrayList< double[] > getLocationsOfCorrespondingBeads( final TimePoint tp, final ViewDescription inputData, final String label )
@@ -482,12 +624,13 @@ public class ProcessForDeconvolution
 						public String call() throws Exception
 						{
 							final ArrayList< Cursor< FloatType > > cursors = new ArrayList< Cursor< FloatType > >(); 
-							final Cursor< FloatType > sum = w.cursor();
-							final Cursor< FloatType > sumOsem = wosem.cursor();
+							// flat iteration, the weights can come from a different factory than w and wosem
+							final Cursor< FloatType > sum = Views.flatIterable( w ).cursor();
+							final Cursor< FloatType > sumOsem = Views.flatIterable( wosem ).cursor();
 							
 							for ( final RandomAccessibleInterval< FloatType > imgW : weights )
 							{
-								final Cursor< FloatType > c = Views.iterable( imgW ).cursor();
+								final Cursor< FloatType > c = Views.flatIterable( imgW ).cursor();
 								c.jumpFwd( portion.getStartPosition() );
 								cursors.add( c );
 							}
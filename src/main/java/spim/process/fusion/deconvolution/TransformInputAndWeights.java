@@ -3,6 +3,8 @@ package spim.process.fusion.deconvolution;
 import java.util.concurrent.Callable;
 
 import net.imglib2.Cursor;
+import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccess;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
@@ -63,17 +65,32 @@ public class TransformInputAndWeights implements Callable< String >
 		final RealRandomAccess< FloatType > ir = Views.interpolate( Views.extendMirrorSingle( img ), f ).realRandomAccess();
 		final RealRandomAccess< FloatType > wr = blending.realRandomAccess();
 
-		final Cursor< FloatType > cursor = Views.iterable( transformedImg ).localizingCursor();
-		final Cursor< FloatType > cursorW = Views.iterable( weightImg ).cursor();
+		final IterableInterval< FloatType > transformedIterable = Views.iterable( transformedImg );
+		final IterableInterval< FloatType > weightIterable = Views.iterable( weightImg );
+
+		final Cursor< FloatType > cursor = transformedIterable.localizingCursor();
 
 		final float[] s = new float[ 3 ];
 		final float[] t = new float[ 3 ];
 
 		cursor.jumpFwd( portion.getStartPosition() );
-		cursorW.jumpFwd( portion.getStartPosition() );
 
-		for ( int j = 0; j < portion.getLoopSize(); ++j )
-			loop( cursor, cursorW, ir, wr, transform, s, t, offsetX, offsetY, offsetZ, imgSizeX, imgSizeY, imgSizeZ );
+		// the images can come from different factories (e.g. compact storage), then the weights are set by position
+		if ( transformedIterable.iterationOrder().equals( weightIterable.iterationOrder() ) )
+		{
+			final Cursor< FloatType > cursorW = weightIterable.cursor();
+			cursorW.jumpFwd( portion.getStartPosition() );
+
+			for ( int j = 0; j < portion.getLoopSize(); ++j )
+				loop( cursor, cursorW, ir, wr, transform, s, t, offsetX, offsetY, offsetZ, imgSizeX, imgSizeY, imgSizeZ );
+		}
+		else
+		{
+			final RandomAccess< FloatType > raW = weightImg.randomAccess();
+
+			for ( int j = 0; j < portion.getLoopSize(); ++j )
+				loop( cursor, raW, ir, wr, transform, s, t, offsetX, offsetY, offsetZ, imgSizeX, imgSizeY, imgSizeZ );
+		}
 
 		return portion + " finished successfully (transform input & precompute weights).";
 	}
@@ -110,4 +127,37 @@ public class TransformInputAndWeights implements Callable< String >
 			w.set( wr.get() );
 		}
 	}
+
+	private static final void loop(
+			final Cursor< FloatType > cursor,
+			final RandomAccess< FloatType > raW,
+			final RealRandomAccess< FloatType > ir,
+			final RealRandomAccess< FloatType > wr,
+			final AffineTransform3D transform,
+			final float[] s, final float[] t,
+			final int offsetX, final int offsetY, final int offsetZ,
+			final int imgSizeX, final int imgSizeY, final int imgSizeZ )
+	{
+		// move img cursor forward any get the value (saves one access)
+		final FloatType v = cursor.next();
+		cursor.localize( s );
+
+		// move the weight to the same position
+		raW.setPosition( cursor );
+
+		s[ 0 ] += offsetX;
+		s[ 1 ] += offsetY;
+		s[ 2 ] += offsetZ;
+
+		transform.applyInverse( t, s );
+
+		if ( FusionHelper.intersects( t[ 0 ], t[ 1 ], t[ 2 ], imgSizeX, imgSizeY, imgSizeZ ) )
+		{
+			ir.setPosition( t );
+			wr.setPosition( t );
+
+			v.set( ir.get() );
+			raW.get().set( wr.get() );
+		}
+	}
 }
@@ -4,6 +4,8 @@ import java.util.concurrent.Callable;
 
 import net.imglib2.Cursor;
 import net.imglib2.Interval;
+import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccess;
 import net.imglib2.realtransform.AffineTransform3D;
@@ -57,14 +59,23 @@ public class TransformWeights implements Callable< String >
 		// make the blending and get the transformations
 		final RealRandomAccess< FloatType > wr = blending.realRandomAccess();
 
-		final Cursor< FloatType > cursorO = Views.iterable( overlapImg ).localizingCursor();
-		final Cursor< FloatType > cursorB = Views.iterable( blendingImg ).cursor();
+		final IterableInterval< FloatType > overlapIterable = Views.iterable( overlapImg );
+		final IterableInterval< FloatType > blendingIterable = Views.iterable( blendingImg );
+
+		final Cursor< FloatType > cursorO = overlapIterable.localizingCursor();
+
+		// the images can come from different factories (e.g. compact storage), then the weights are set by position
+		final boolean compatibleIteration = overlapIterable.iterationOrder().equals( blendingIterable.iterationOrder() );
+		final Cursor< FloatType > cursorB = compatibleIteration ? blendingIterable.cursor() : null;
+		final RandomAccess< FloatType > raB = compatibleIteration ? null : blendingImg.randomAccess();
 
 		final float[] s = new float[ 3 ];
 		final float[] t = new float[ 3 ];
 
 		cursorO.jumpFwd( portion.getStartPosition() );
-		cursorB.jumpFwd( portion.getStartPosition() );
+
+		if ( compatibleIteration )
+			cursorB.jumpFwd( portion.getStartPosition() );
 
 		for ( int j = 0; j < portion.getLoopSize(); ++j )
 		{
@@ -73,7 +84,17 @@ public class TransformWeights implements Callable< String >
 			cursorO.localize( s );
 			
 			// move weight cursor forward and get the value 
-			final FloatType b = cursorB.next();
+			final FloatType b;
+
+			if ( compatibleIteration )
+			{
+				b = cursorB.next();
+			}
+			else
+			{
+				raB.setPosition( cursorO );
+				b = raB.get();
+			}
 
 			s[ 0 ] += offsetX;
 			s[ 1 ] += offsetY;
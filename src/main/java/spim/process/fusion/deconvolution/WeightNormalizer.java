@@ -10,11 +10,14 @@ import java.util.concurrent.Future;
 
 import mpicbg.spim.io.IOFunctions;
 import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 import spim.Threads;
 import spim.process.fusion.FusionHelper;
@@ -24,21 +27,43 @@ import spim.process.fusion.weights.NormalizingRandomAccessibleInterval;
 public class WeightNormalizer
 {
 	final List< RandomAccessibleInterval< FloatType > > weights;
+	final Interval interval;
 	final Img< FloatType > sumWeights;
 
 	int minOverlappingViews;
 	double avgOverlappingViews;
 
 	public WeightNormalizer( final List< RandomAccessibleInterval< FloatType > > weights )
+	{
+		this( weights, weights.get( 0 ) );
+	}
+
+	/**
+	 * @param weights - the weights of all views, each might only cover a part of the interval
+	 * @param interval - the interval (starting at 0) in which the weights are normalized
+	 */
+	public WeightNormalizer( final List< RandomAccessibleInterval< FloatType > > weights, final Interval interval )
 	{
 		this.weights = weights;
+		this.interval = interval;
 		this.sumWeights = null;
 	}
 
 	public WeightNormalizer( final List< RandomAccessibleInterval< FloatType > > weights, final ImgFactory< FloatType > factory )
+	{
+		this( weights, factory, weights.get( 0 ) );
+	}
+
+	/**
+	 * @param weights - the weights of all views, each might only cover a part of the interval
+	 * @param factory - the factory for the image holding the sum of all weights
+	 * @param interval - the interval (starting at 0) in which the weights are normalized
+	 */
+	public WeightNormalizer( final List< RandomAccessibleInterval< FloatType > > weights, final ImgFactory< FloatType > factory, final Interval interval )
 	{
 		this.weights = weights;
-		this.sumWeights = factory.create( weights.get( 0 ), new FloatType() );
+		this.interval = interval;
+		this.sumWeights = factory.create( interval, new FloatType() );
 	}
 
 	public int getMinOverlappingViews() { return minOverlappingViews; }
@@ -48,18 +73,20 @@ public class WeightNormalizer
 	public boolean process()
 	{
 		// split up into many parts for multithreading
-		final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( Views.iterable( weights.get( 0 ) ).size(), Threads.numThreads() * 2 );
+		final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( Intervals.numElements( interval ), Threads.numThreads() * 2 );
 
 		// set up executor service
 		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
 		final ArrayList< Callable< double[] > > tasks = new ArrayList< Callable< double[] > >();
 
+		final ArrayList< IterableInterval< FloatType > > iterableWeights = iterableWeights();
+
 		for ( final ImagePortion portion : portions )
 		{
 			if ( sumWeights == null )
-				tasks.add( new ApplyDirectly( portion ) );
+				tasks.add( new ApplyDirectly( portion, iterableWeights ) );
 			else
-				tasks.add( new ComputeSumImage( portion, sumWeights ) );
+				tasks.add( new ComputeSumImage( portion, iterableWeights, sumWeights ) );
 		}
 
 		// run threads
@@ -104,26 +131,62 @@ public class WeightNormalizer
 		return true;
 	}
 
+	/**
+	 * @return the weights as iterables over the entire interval, if any weight only covers a part of
+	 * the interval it is extended with zeros and all are iterated in flat order
+	 */
+	protected ArrayList< IterableInterval< FloatType > > iterableWeights()
+	{
+		boolean allCoverInterval = true;
+
+		for ( final RandomAccessibleInterval< FloatType > w : weights )
+			if ( MVDeconvolution.extendToInterval( w, interval ) != w )
+				allCoverInterval = false;
+
+		final ArrayList< IterableInterval< FloatType > > iterables = new ArrayList< IterableInterval< FloatType > >();
+
+		for ( final RandomAccessibleInterval< FloatType > w : weights )
+		{
+			if ( allCoverInterval )
+				iterables.add( Views.iterable( w ) );
+			else
+				iterables.add( Views.flatIterable( MVDeconvolution.extendToInterval( w, interval ) ) );
+		}
+
+		return iterables;
+	}
+
 	final private static void apply( final ArrayList< Cursor< FloatType > > cursors, final double sumW )
 	{
 		for ( final Cursor< FloatType > c : cursors )
-			c.get().set( (float)( c.get().get() / sumW ) );
+		{
+			final FloatType w = c.get();
+
+			// outside of a view there is nothing to normalize
+			if ( w.get() != 0 )
+				w.set( (float)( w.get() / sumW ) );
+		}
 	}
 
 	final private class ApplyDirectly implements Callable< double[] >
 	{
 		final ImagePortion portion;
+		final ArrayList< IterableInterval< FloatType > > iterableWeights;
 
-		public ApplyDirectly( final ImagePortion portion ) { this.portion = portion; }
+		public ApplyDirectly( final ImagePortion portion, final ArrayList< IterableInterval< FloatType > > iterableWeights )
+		{
+			this.portion = portion;
+			this.iterableWeights = iterableWeights;
+		}
 
 		@Override
 		public double[] call() throws Exception
 		{
 			final ArrayList< Cursor< FloatType > > cursors = new ArrayList< Cursor< FloatType > >();
 
-			for ( final RandomAccessibleInterval< FloatType > imgW : weights )
+			for ( final IterableInterval< FloatType > imgW : iterableWeights )
 			{
-				final Cursor< FloatType > c = Views.iterable( imgW ).cursor();
+				final Cursor< FloatType > c = imgW.cursor();
 				c.jumpFwd( portion.getStartPosition() );
 				cursors.add( c );
 			}
@@ -161,11 +224,13 @@ public class WeightNormalizer
 	final private class ComputeSumImage implements Callable< double[] >
 	{
 		final ImagePortion portion;
+		final ArrayList< IterableInterval< FloatType > > iterableWeights;
 		final Img< FloatType > sumWeights;
 
-		public ComputeSumImage( final ImagePortion portion, final Img< FloatType > sumWeights )
+		public ComputeSumImage( final ImagePortion portion, final ArrayList< IterableInterval< FloatType > > iterableWeights, final Img< FloatType > sumWeights )
 		{ 
 			this.portion = portion;
+			this.iterableWeights = iterableWeights;
 			this.sumWeights = sumWeights;
 		}
 
@@ -175,15 +240,15 @@ public class WeightNormalizer
 			final ArrayList< Cursor< FloatType > > cursors = new ArrayList< Cursor< FloatType > >(); 
 			final RandomAccess< FloatType > ra = sumWeights.randomAccess();
 
-			for ( int i = 0; i < weights.size(); ++i )
+			for ( int i = 0; i < iterableWeights.size(); ++i )
 			{
-				final RandomAccessibleInterval< FloatType > imgW = weights.get( i );
+				final IterableInterval< FloatType > imgW = iterableWeights.get( i );
 				final Cursor< FloatType > c;
 
 				if ( i == 0 )
-					c = Views.iterable( imgW ).localizingCursor();
+					c = imgW.localizingCursor();
 				else
-					c = Views.iterable( imgW ).cursor();
+					c = imgW.cursor();
 
 				c.jumpFwd( portion.getStartPosition() );
 				cursors.add( c );
@@ -37,7 +37,7 @@ import bdv.img.hdf5.Hdf5ImageLoader;
 import bdv.img.hdf5.Partition;
 import bdv.spimdata.tools.MergePartitionList;
 
-public class AppendSpimData2HDF5 implements ImgExport
+public class AppendSpimData2HDF5 implements ImgExportBlocks
 {
 	public static String defaultPath = null;
 
@@ -57,6 +57,9 @@ public class AppendSpimData2HDF5 implements ImgExport
 
 	private final ProgressWriter progressWriter = new ProgressWriterIJ();
 
+	// the current block-wise export
+	private HDF5PyramidWriter blockWriter;
+
 	@Override
 	public boolean finish()
 	{
@@ -167,6 +170,13 @@ public class AppendSpimData2HDF5 implements ImgExport
 		final ProgressWriter progressWriter = new SubTaskProgressWriter( this.progressWriter, 0.0, 1.0 ); // TODO
 		WriteSequenceToHdf5.writeViewToHdf5PartitionFile( ushortimg, partition, tp.getId(), vs.getId(), mipmapInfo, writeMipmapInfo, deflate, null, null, progressWriter );
 
+		updateRegistration( bb, tp, vs );
+
+		return true;
+	}
+
+	protected void updateRegistration( final BoundingBoxGUI bb, final TimePoint tp, final ViewSetup vs )
+	{
 		// update the registrations
 		final ViewRegistration vr = spimData.getViewRegistrations().getViewRegistration( new ViewId( tp.getId(), vs.getId() ) );
 
@@ -179,10 +189,66 @@ public class AppendSpimData2HDF5 implements ImgExport
 
 		vr.getTransformList().clear();
 		vr.getTransformList().add( vt );
+	}
+
+	/**
+	 * All resolution levels are computed from each block, so its depth must be a multiple of the largest downsampling in z
+	 */
+	@Override
+	public int getBlockAlignment()
+	{
+		final ArrayList< ExportMipmapInfo > mipmapInfos = new ArrayList< ExportMipmapInfo >();
+
+		for ( final ViewSetup vs : newViewSetups )
+			mipmapInfos.add( perSetupExportMipmapInfo.get( vs.getId() ) );
+
+		return HDF5PyramidWriter.getBlockAlignment( mipmapInfos );
+	}
+
+	@Override
+	public < T extends RealType< T > & NativeType< T > > boolean startBlockExport( final T type, final BoundingBoxGUI bb, final TimePoint tp, final ViewSetup vs )
+	{
+		if ( !ExportSpimData2HDF5.canExportBlockwise( type, params ) )
+			return false;
+
+		final Partition partition = viewIdToPartition.get( new ViewId( tp.getId(), vs.getId() ) );
+		final ExportMipmapInfo mipmapInfo = perSetupExportMipmapInfo.get( vs.getId() );
+
+		blockWriter = new HDF5PyramidWriter( partition, tp, vs, mipmapInfo, bb.getDimensions(), params.getDeflate(), ExportSpimData2HDF5.getBlockConverter( type, params ) );
+
+		updateRegistration( bb, tp, vs );
+
+		return true;
+	}
+
+	@Override
+	public < T extends RealType< T > & NativeType< T > > boolean exportBlock( final RandomAccessibleInterval< T > block )
+	{
+		blockWriter.writeBlock( block );
+
+		return true;
+	}
+
+	@Override
+	public boolean finishBlockExport()
+	{
+		if ( blockWriter != null )
+			blockWriter.close();
+
+		blockWriter = null;
 
 		return true;
 	}
 
+	@Override
+	public void abortBlockExport()
+	{
+		if ( blockWriter != null )
+			blockWriter.abort();
+
+		blockWriter = null;
+	}
+
 	@Override
 	public void queryAdditionalParameters( final GenericDialog gd, final SpimData2 spimData )
 	{}
@@ -50,7 +50,7 @@ import bdv.export.WriteSequenceToHdf5;
 import bdv.img.hdf5.Hdf5ImageLoader;
 import bdv.img.hdf5.Partition;
 
-public class ExportSpimData2HDF5 implements ImgExport
+public class ExportSpimData2HDF5 implements ImgExportBlocks
 {
 
 	private List< TimePoint > newTimepoints;
@@ -67,6 +67,9 @@ public class ExportSpimData2HDF5 implements ImgExport
 
 	private final ProgressWriter progressWriter = new ProgressWriterIJ();
 
+	// the current block-wise export
+	private HDF5PyramidWriter blockWriter;
+
 	@Override
 	public boolean finish()
 	{
@@ -260,6 +263,13 @@ public class ExportSpimData2HDF5 implements ImgExport
 		final ProgressWriter progressWriter = new SubTaskProgressWriter( this.progressWriter, 0.0, 1.0 ); // TODO
 		WriteSequenceToHdf5.writeViewToHdf5PartitionFile( ushortimg, partition, tp.getId(), vs.getId(), mipmapInfo, writeMipmapInfo, deflate, null, null, progressWriter );
 
+		updateRegistration( bb, tp, vs );
+
+		return true;
+	}
+
+	protected void updateRegistration( final BoundingBoxGUI bb, final TimePoint tp, final ViewSetup vs )
+	{
 		// update the registrations
 		final ViewRegistration vr = spimData.getViewRegistrations().getViewRegistration( new ViewId( tp.getId(), vs.getId() ) );
 
@@ -272,10 +282,97 @@ public class ExportSpimData2HDF5 implements ImgExport
 
 		vr.getTransformList().clear();
 		vr.getTransformList().add( vt );
+	}
+
+	/**
+	 * All resolution levels are computed from each block, so its depth must be a multiple of the largest downsampling in z
+	 */
+	@Override
+	public int getBlockAlignment()
+	{
+		return HDF5PyramidWriter.getBlockAlignment( perSetupExportMipmapInfo.values() );
+	}
+
+	@Override
+	public < T extends RealType< T > & NativeType< T > > boolean startBlockExport( final T type, final BoundingBoxGUI bb, final TimePoint tp, final ViewSetup vs )
+	{
+		if ( !canExportBlockwise( type, params ) )
+			return false;
+
+		final Partition partition = viewIdToPartition.get( new ViewId( tp.getId(), vs.getId() ) );
+		final ExportMipmapInfo mipmapInfo = perSetupExportMipmapInfo.get( vs.getId() );
+
+		blockWriter = new HDF5PyramidWriter( partition, tp, vs, mipmapInfo, bb.getDimensions(), params.getDeflate(), getBlockConverter( type, params ) );
+
+		updateRegistration( bb, tp, vs );
+
+		return true;
+	}
+
+	/**
+	 * @param type - the pixel type of the fused blocks
+	 * @param params - the export parameters
+	 * @return if the image can be written block-wise, 32 bit images need a fixed min/max for the 16 bit conversion
+	 */
+	public static < T extends RealType< T > > boolean canExportBlockwise( final T type, final Parameters params )
+	{
+		if ( UnsignedShortType.class.isInstance( type ) )
+			return true;
+
+		// min and max of the entire image are not known before it is fused
+		if ( params.getConvertChoice() == 0 || Double.isNaN( params.getMin() ) || Double.isNaN( params.getMax() ) )
+		{
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Block-wise export to HDF5 needs a fixed min/max for 16bit conversion, exporting the entire image." );
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @param type - the pixel type of the fused blocks
+	 * @param params - the export parameters
+	 * @return the converter to 16 bit, or null if the blocks are 16 bit already
+	 */
+	public static < T extends RealType< T > > RealUnsignedShortConverter< T > getBlockConverter( final T type, final Parameters params )
+	{
+		if ( UnsignedShortType.class.isInstance( type ) )
+			return null;
+
+		IOFunctions.println( "Min intensity for 16bit conversion: " + params.getMin() );
+		IOFunctions.println( "Max intensity for 16bit conversion: " + params.getMax() );
+
+		return new RealUnsignedShortConverter< T >( params.getMin(), params.getMax() );
+	}
+
+	@Override
+	public < T extends RealType< T > & NativeType< T > > boolean exportBlock( final RandomAccessibleInterval< T > block )
+	{
+		blockWriter.writeBlock( block );
 
 		return true;
 	}
 
+	@Override
+	public boolean finishBlockExport()
+	{
+		if ( blockWriter != null )
+			blockWriter.close();
+
+		blockWriter = null;
+
+		return true;
+	}
+
+	@Override
+	public void abortBlockExport()
+	{
+		if ( blockWriter != null )
+			blockWriter.abort();
+
+		blockWriter = null;
+	}
+
 	@Override
 	public void queryAdditionalParameters( GenericDialog gd, SpimData2 spimData )
 	{
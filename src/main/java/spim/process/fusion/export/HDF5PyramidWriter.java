@@ -0,0 +1,286 @@
+package spim.process.fusion.export;
+
+import java.io.File;
+
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewSetup;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.RealUnsignedShortConverter;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
+import bdv.export.ExportMipmapInfo;
+import bdv.img.hdf5.Partition;
+import ch.systemsx.cisd.base.mdarray.MDShortArray;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.HDF5IntStorageFeatures;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+
+/**
+ * Writes one view (timepoint and setup) into an HDF5 partition as it is fused, block by block. All
+ * resolution levels are computed while the blocks stream through, so the full resolution image never
+ * has to be read back. Every level is averaged from the next higher level of the same block (if the
+ * downsampling factors are multiples of each other, otherwise from full resolution), the blocks must
+ * be slabs in z whose depth is a multiple of all downsampling factors in z (see {@link #getBlockAlignment(Iterable)}).
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class HDF5PyramidWriter
+{
+	final IHDF5Writer writer;
+	final ExportMipmapInfo mipmapInfo;
+	final RealUnsignedShortConverter< ? > converter;
+
+	final long[] dimensions;
+	final long[][] levelDimensions;
+	final String[] levelPaths;
+
+	/**
+	 * Opens the partition file and creates the datasets of all resolution levels
+	 *
+	 * @param partition - the partition the view is written to
+	 * @param tp - the timepoint
+	 * @param vs - the viewsetup
+	 * @param mipmapInfo - the resolution levels and their chunk sizes
+	 * @param dimensions - the dimensions of the full resolution image
+	 * @param deflate - compress the data
+	 * @param converter - converts the blocks to 16 bit, null if they are UnsignedShortType already
+	 */
+	public HDF5PyramidWriter(
+			final Partition partition,
+			final TimePoint tp,
+			final ViewSetup vs,
+			final ExportMipmapInfo mipmapInfo,
+			final long[] dimensions,
+			final boolean deflate,
+			final RealUnsignedShortConverter< ? > converter )
+	{
+		final int timepointIdPartition = partition.getTimepointIdSequenceToPartition().get( tp.getId() );
+		final int setupIdPartition = partition.getSetupIdSequenceToPartition().get( vs.getId() );
+
+		this.mipmapInfo = mipmapInfo;
+		this.dimensions = dimensions.clone();
+		this.converter = converter;
+		this.writer = HDF5Factory.open( new File( partition.getPath() ) );
+
+		writer.writeDoubleMatrix( bdv.img.hdf5.Util.getResolutionsPath( setupIdPartition ), mipmapInfo.getResolutions() );
+		writer.writeIntMatrix( bdv.img.hdf5.Util.getSubdivisionsPath( setupIdPartition ), mipmapInfo.getSubdivisions() );
+
+		final HDF5IntStorageFeatures features = deflate ? HDF5IntStorageFeatures.INT_AUTO_SCALING_DEFLATE : HDF5IntStorageFeatures.INT_AUTO_SCALING;
+		final int numLevels = mipmapInfo.getNumLevels();
+
+		this.levelDimensions = new long[ numLevels ][ 3 ];
+		this.levelPaths = new String[ numLevels ];
+
+		for ( int level = 0; level < numLevels; ++level )
+		{
+			final int[] factor = mipmapInfo.getExportResolutions()[ level ];
+
+			for ( int d = 0; d < 3; ++d )
+				levelDimensions[ level ][ d ] = Math.max( dimensions[ d ] / factor[ d ], 1 );
+
+			levelPaths[ level ] = bdv.img.hdf5.Util.getCellsPath( timepointIdPartition, setupIdPartition, level );
+			writer.int16().createMDArray( levelPaths[ level ], reorder( levelDimensions[ level ] ), reorder( mipmapInfo.getSubdivisions()[ level ] ), features );
+		}
+	}
+
+	/**
+	 * @param mipmapInfos - the resolution levels of all setups that are written
+	 * @return the least common multiple of all downsampling factors in z, the depth of every block (except the last one) must be a multiple of it
+	 */
+	public static int getBlockAlignment( final Iterable< ExportMipmapInfo > mipmapInfos )
+	{
+		long alignment = 1;
+
+		for ( final ExportMipmapInfo mipmapInfo : mipmapInfos )
+			for ( final int[] resolution : mipmapInfo.getExportResolutions() )
+				alignment = leastCommonMultiple( alignment, Math.max( 1, resolution[ 2 ] ) );
+
+		if ( alignment > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "The downsampling factors in z have no common multiple that fits into a block: " + alignment );
+
+		return (int)alignment;
+	}
+
+	protected static long leastCommonMultiple( final long a, final long b )
+	{
+		long x = a, y = b;
+
+		while ( y != 0 )
+		{
+			final long t = x % y;
+			x = y;
+			y = t;
+		}
+
+		return ( a / x ) * b;
+	}
+
+	/**
+	 * Writes the next block and the part of all lower resolution levels that is computed from it
+	 *
+	 * @param block - the block, its interval is the location in the full resolution image
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public < T extends RealType< T > > void writeBlock( final RandomAccessibleInterval< T > block )
+	{
+		final int sx = (int)block.dimension( 0 );
+		final int sy = (int)block.dimension( 1 );
+		final int sz = (int)block.dimension( 2 );
+		final long z0 = block.min( 2 );
+
+		// the block as 16 bit in xyz order
+		final short[] data = new short[ sx * sy * sz ];
+		final Cursor< T > cursor = Views.flatIterable( block ).cursor();
+		final UnsignedShortType ushort = new UnsignedShortType();
+
+		for ( int i = 0; i < data.length; ++i )
+		{
+			if ( converter == null )
+				ushort.set( (UnsignedShortType)cursor.next() );
+			else
+				((RealUnsignedShortConverter)converter).convert( cursor.next(), ushort );
+
+			data[ i ] = (short)ushort.get();
+		}
+
+		// the level the next one is computed from, starting with full resolution
+		short[] srcData = data;
+		int[] srcDim = new int[]{ sx, sy, sz };
+		long srcFirstPlane = z0;
+		int[] srcFactor = new int[]{ 1, 1, 1 };
+
+		for ( int level = 0; level < levelPaths.length; ++level )
+		{
+			final int[] f = mipmapInfo.getExportResolutions()[ level ];
+			final long[] dim = levelDimensions[ level ];
+
+			// the planes of this level that are computed from this block
+			final long firstPlane = z0 / f[ 2 ];
+			final long lastPlane = ( z0 + sz == dimensions[ 2 ] ) ? dim[ 2 ] : ( z0 + sz ) / f[ 2 ];
+
+			if ( lastPlane <= firstPlane )
+				continue;
+
+			final int[] levelBlockDim = new int[]{ (int)dim[ 0 ], (int)dim[ 1 ], (int)( lastPlane - firstPlane ) };
+			final short[] levelData;
+
+			if ( f[ 0 ] == srcFactor[ 0 ] && f[ 1 ] == srcFactor[ 1 ] && f[ 2 ] == srcFactor[ 2 ] )
+			{
+				levelData = srcData;
+			}
+			else if ( f[ 0 ] % srcFactor[ 0 ] == 0 && f[ 1 ] % srcFactor[ 1 ] == 0 && f[ 2 ] % srcFactor[ 2 ] == 0 )
+			{
+				final int[] relative = new int[]{ f[ 0 ] / srcFactor[ 0 ], f[ 1 ] / srcFactor[ 1 ], f[ 2 ] / srcFactor[ 2 ] };
+				levelData = downsample( srcData, srcDim[ 0 ], srcDim[ 1 ], srcDim[ 2 ], srcFirstPlane, relative, levelBlockDim, firstPlane );
+			}
+			else
+			{
+				levelData = downsample( data, sx, sy, sz, z0, f, levelBlockDim, firstPlane );
+			}
+
+			writer.int16().writeMDArrayBlockWithOffset( levelPaths[ level ], new MDShortArray( levelData, reorder( levelBlockDim ) ), new long[]{ firstPlane, 0, 0 } );
+
+			srcData = levelData;
+			srcDim = levelBlockDim;
+			srcFirstPlane = firstPlane;
+			srcFactor = f;
+		}
+	}
+
+	/**
+	 * Closes the HDF5 file
+	 */
+	public void close()
+	{
+		writer.close();
+	}
+
+	/**
+	 * Removes the datasets of all resolution levels, so an incomplete view is never read, and closes the HDF5 file
+	 */
+	public void abort()
+	{
+		try
+		{
+			for ( final String path : levelPaths )
+				if ( writer.exists( path ) )
+					writer.object().delete( path );
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	/**
+	 * Averages the pixels of a block for a lower resolution level
+	 *
+	 * @param data - the source pixels in xyz order
+	 * @param sx - width of the source
+	 * @param sy - height of the source
+	 * @param sz - depth of the source
+	 * @param z0 - the first plane of the source in its level
+	 * @param f - the downsampling factors relative to the source
+	 * @param levelBlockDim - the dimensions of the result
+	 * @param firstPlane - the first plane of the result in its level
+	 * @return the downsampled pixels
+	 */
+	public static short[] downsample( final short[] data, final int sx, final int sy, final int sz, final long z0, final int[] f, final int[] levelBlockDim, final long firstPlane )
+	{
+		final short[] levelData = new short[ levelBlockDim[ 0 ] * levelBlockDim[ 1 ] * levelBlockDim[ 2 ] ];
+
+		int i = 0;
+
+		for ( int z = 0; z < levelBlockDim[ 2 ]; ++z )
+		{
+			final int zs0 = (int)( ( firstPlane + z ) * f[ 2 ] - z0 );
+			final int zs1 = Math.min( zs0 + f[ 2 ], sz );
+
+			for ( int y = 0; y < levelBlockDim[ 1 ]; ++y )
+			{
+				final int ys0 = y * f[ 1 ];
+				final int ys1 = Math.min( ys0 + f[ 1 ], sy );
+
+				for ( int x = 0; x < levelBlockDim[ 0 ]; ++x )
+				{
+					final int xs0 = x * f[ 0 ];
+					final int xs1 = Math.min( xs0 + f[ 0 ], sx );
+
+					long sum = 0;
+					int count = 0;
+
+					for ( int zs = zs0; zs < zs1; ++zs )
+						for ( int ys = ys0; ys < ys1; ++ys )
+						{
+							final int offset = ( zs * sy + ys ) * sx;
+
+							for ( int xs = xs0; xs < xs1; ++xs )
+							{
+								sum += data[ offset + xs ] & 0xffff;
+								++count;
+							}
+						}
+
+					levelData[ i++ ] = (short)( count == 0 ? 0 : Math.round( (double)sum / count ) );
+				}
+			}
+		}
+
+		return levelData;
+	}
+
+	/**
+	 * @return the dimensions in zyx order as HDF5 stores them
+	 */
+	public static long[] reorder( final long[] dim )
+	{
+		return new long[]{ dim[ 2 ], dim[ 1 ], dim[ 0 ] };
+	}
+
+	public static int[] reorder( final int[] dim )
+	{
+		return new int[]{ dim[ 2 ], dim[ 1 ], dim[ 0 ] };
+	}
+}
@@ -0,0 +1,55 @@
+package spim.process.fusion.export;
+
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewSetup;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import spim.process.fusion.boundingbox.BoundingBoxGUI;
+
+/**
+ * An {@link ImgExport} that can write a fused image block by block, so it never needs to be held
+ * in memory entirely. The blocks are slabs in z that span the entire xy-plane, they are delivered
+ * in order from first to last plane.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public interface ImgExportBlocks extends ImgExport
+{
+	/**
+	 * @return the depth of every block (except the last one) will be a multiple of this value
+	 */
+	public int getBlockAlignment();
+
+	/**
+	 * Called before the first block of an image is exported
+	 *
+	 * @param type - the pixel type of the blocks
+	 * @param bb - the bounding box used to fuse this image
+	 * @param tp - the current (new) timepoint
+	 * @param vs - the current (new) viewsetup
+	 * @return - false if the image cannot be exported block-wise, it has to be exported using exportImage() then
+	 */
+	public < T extends RealType< T > & NativeType< T > > boolean startBlockExport( final T type, final BoundingBoxGUI bb, final TimePoint tp, final ViewSetup vs );
+
+	/**
+	 * Exports the next block
+	 *
+	 * @param block - the block, its interval is the location in the fused image (without bounding box offset)
+	 * @return - true if successful
+	 */
+	public < T extends RealType< T > & NativeType< T > > boolean exportBlock( final RandomAccessibleInterval< T > block );
+
+	/**
+	 * Called after the last block of an image was exported
+	 *
+	 * @return - true if successful
+	 */
+	public boolean finishBlockExport();
+
+	/**
+	 * Called instead of finishBlockExport() if a block could not be fused or exported, closes all files
+	 * and removes what was written of the incomplete image
+	 */
+	public void abortBlockExport();
+}
@@ -17,11 +17,12 @@ import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.img.imageplus.ImagePlusImg;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
 import spim.fiji.spimdata.SpimData2;
 import spim.process.fusion.FusionHelper;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 
-public class Save3dTIFF implements ImgExportTitle
+public class Save3dTIFF implements ImgExportTitle, ImgExportBlocks
 {
 	public static boolean defaultUseXMLPath = true;
 	public static String defaultPath = null;
@@ -30,6 +31,11 @@ public class Save3dTIFF implements ImgExportTitle
 	boolean compress;
 	
 	ImgTitler imgTitler = new DefaultImgTitler();
+
+	// the state of the current block-wise export
+	File blockDirectory = null;
+	String blockTitle = null;
+	BoundingBoxGUI blockBB = null;
 	
 	public Save3dTIFF( final String path ) { this( path, false ); }
 	public Save3dTIFF( final String path, final boolean compress )
@@ -112,6 +118,108 @@ public class Save3dTIFF implements ImgExportTitle
 		}
 	}
 
+	/**
+	 * Block-wise export writes every plane as a separate TIFF into a directory named after the image
+	 */
+	@Override
+	public int getBlockAlignment() { return 1; }
+
+	@Override
+	public < T extends RealType< T > & NativeType< T > > boolean startBlockExport( final T type, final BoundingBoxGUI bb, final TimePoint tp, final ViewSetup vs )
+	{
+		String title = getImgTitler().getImageTitle( tp, vs );
+
+		if ( title.endsWith( ".tif" ) )
+			title = title.substring( 0, title.length() - ".tif".length() );
+
+		this.blockTitle = title;
+		this.blockBB = bb;
+		this.blockDirectory = new File( path, title );
+
+		if ( !blockDirectory.exists() && !blockDirectory.mkdirs() )
+		{
+			IOFunctions.println( "Cannot create directory '" + blockDirectory.getAbsolutePath() + "', saving as one TIFF stack instead." );
+			this.blockDirectory = null;
+			return false;
+		}
+
+		IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Saving planes as TIFF into " + blockDirectory.getAbsolutePath() );
+
+		return true;
+	}
+
+	@Override
+	public < T extends RealType< T > & NativeType< T > > boolean exportBlock( final RandomAccessibleInterval< T > block )
+	{
+		final float[] minmax = FusionHelper.minMax( block );
+
+		for ( long z = block.min( 2 ); z <= block.max( 2 ); ++z )
+		{
+			final String name = blockTitle + "_z" + String.format( "%05d", z );
+			final ImagePlus imp = ImageJFunctions.wrap( Views.hyperSlice( block, 2, z ), name ).duplicate();
+
+			imp.setTitle( name );
+
+			if ( blockBB != null )
+			{
+				imp.getCalibration().xOrigin = -(blockBB.min( 0 ) / blockBB.getDownSampling());
+				imp.getCalibration().yOrigin = -(blockBB.min( 1 ) / blockBB.getDownSampling());
+				imp.getCalibration().zOrigin = -(blockBB.min( 2 ) / blockBB.getDownSampling()) - z;
+				imp.getCalibration().pixelWidth = imp.getCalibration().pixelHeight = imp.getCalibration().pixelDepth = blockBB.getDownSampling();
+			}
+
+			imp.setDisplayRange( minmax[ 0 ], minmax[ 1 ] );
+
+			final String fileName = new File( blockDirectory, name + ".tif" ).getAbsolutePath();
+
+			final boolean success;
+
+			if ( compress )
+				success = new FileSaver( imp ).saveAsZip( fileName );
+			else
+				success = new FileSaver( imp ).saveAsTiff( fileName );
+
+			if ( !success )
+			{
+				IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Failed to save file " + fileName );
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	@Override
+	public boolean finishBlockExport()
+	{
+		this.blockDirectory = null;
+		this.blockTitle = null;
+		this.blockBB = null;
+
+		return true;
+	}
+
+	@Override
+	public void abortBlockExport()
+	{
+		if ( blockDirectory != null )
+		{
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Removing incomplete planes from " + blockDirectory.getAbsolutePath() );
+
+			final File[] files = blockDirectory.listFiles();
+
+			if ( files != null )
+				for ( final File file : files )
+					if ( file.getName().startsWith( blockTitle + "_z" ) )
+						file.delete();
+
+			// only if nothing else is in there
+			blockDirectory.delete();
+		}
+
+		finishBlockExport();
+	}
+
 	@Override
 	public boolean queryParameters( final SpimData2 spimData, final boolean is16bit ) { return true; }
 
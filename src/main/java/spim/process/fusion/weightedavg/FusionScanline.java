@@ -0,0 +1,208 @@
+package spim.process.fusion.weightedavg;
+
+import net.imglib2.FinalRealInterval;
+import net.imglib2.Localizable;
+import net.imglib2.RealInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import spim.process.fusion.FusionHelper;
+import spim.process.fusion.boundingbox.BoundingBoxGUI;
+
+/**
+ * Decides for every scanline (line in x) of the fused image which views can contribute and computes
+ * the corresponding positions in the input views incrementally.
+ *
+ * The bounding interval of each transformed view is computed once, it culls all views that do not
+ * overlap with a scanline. For the remaining views the range in x where they intersect is computed
+ * when a new scanline starts, within the scanline the position in each view is advanced by adding the
+ * constant x-column of the inverse affine transform instead of applying the full transformation.
+ *
+ * Works for any iteration order of the fused image, whenever the next pixel is not the right neighbor
+ * of the previous one a new scanline is started.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class FusionScanline
+{
+	final int numViews;
+	final int[][] imgSizes;
+	final AffineTransform3D[] inverse;
+	final int downSampling;
+	final double[] offset;
+
+	// the increment in each view when moving one pixel in x in the fused image
+	final double[][] inc;
+
+	// the bounding interval of each transformed view in pixel coordinates of the fused image
+	final double[][] viewMin, viewMax;
+
+	// the state of the current scanline
+	final int[] active;
+	int numActive;
+	final long[] xMin, xMax;
+	final double[][] t;
+	final double[] s = new double[ 3 ];
+
+	long x, y, z;
+	boolean initialized = false;
+
+	/**
+	 * @param transforms - the transformations of all views
+	 * @param imgSizes - the dimensions of all views
+	 * @param bb - the bounding box that is fused
+	 * @param pixelOffset - the position of the fused image inside the (downsampled) bounding box
+	 */
+	public FusionScanline( final AffineTransform3D[] transforms, final int[][] imgSizes, final BoundingBoxGUI bb, final long[] pixelOffset )
+	{
+		this.numViews = transforms.length;
+		this.imgSizes = imgSizes;
+		this.inverse = new AffineTransform3D[ numViews ];
+		this.downSampling = bb.getDownSampling();
+		this.offset = new double[]{
+				bb.min( 0 ) + pixelOffset[ 0 ] * downSampling,
+				bb.min( 1 ) + pixelOffset[ 1 ] * downSampling,
+				bb.min( 2 ) + pixelOffset[ 2 ] * downSampling };
+
+		this.inc = new double[ numViews ][ 3 ];
+		this.viewMin = new double[ numViews ][ 3 ];
+		this.viewMax = new double[ numViews ][ 3 ];
+
+		this.active = new int[ numViews ];
+		this.xMin = new long[ numViews ];
+		this.xMax = new long[ numViews ];
+		this.t = new double[ numViews ][ 3 ];
+
+		for ( int i = 0; i < numViews; ++i )
+		{
+			inverse[ i ] = transforms[ i ].inverse();
+
+			for ( int d = 0; d < 3; ++d )
+				inc[ i ][ d ] = inverse[ i ].get( d, 0 ) * downSampling;
+
+			final RealInterval bounds = transforms[ i ].estimateBounds(
+					new FinalRealInterval( new double[]{ 0, 0, 0 }, new double[]{ imgSizes[ i ][ 0 ], imgSizes[ i ][ 1 ], imgSizes[ i ][ 2 ] } ) );
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				viewMin[ i ][ d ] = ( bounds.realMin( d ) - offset[ d ] ) / downSampling - 1;
+				viewMax[ i ][ d ] = ( bounds.realMax( d ) - offset[ d ] ) / downSampling + 1;
+			}
+		}
+	}
+
+	/**
+	 * Moves to a new pixel of the fused image, steps incrementally if it is the right neighbor
+	 * of the previous pixel, otherwise starts a new scanline.
+	 *
+	 * @param l - the position in the fused image (without offsets and downsampling)
+	 */
+	public void localize( final Localizable l )
+	{
+		final long px = l.getLongPosition( 0 );
+		final long py = l.getLongPosition( 1 );
+		final long pz = l.getLongPosition( 2 );
+
+		if ( initialized && px == x + 1 && py == y && pz == z )
+		{
+			for ( int k = 0; k < numActive; ++k )
+			{
+				final double[] ti = t[ active[ k ] ];
+				final double[] inci = inc[ active[ k ] ];
+
+				ti[ 0 ] += inci[ 0 ];
+				ti[ 1 ] += inci[ 1 ];
+				ti[ 2 ] += inci[ 2 ];
+			}
+
+			x = px;
+		}
+		else
+		{
+			initScanline( px, py, pz );
+		}
+	}
+
+	protected void initScanline( final long px, final long py, final long pz )
+	{
+		this.x = px;
+		this.y = py;
+		this.z = pz;
+		this.initialized = true;
+
+		s[ 0 ] = px * downSampling + offset[ 0 ];
+		s[ 1 ] = py * downSampling + offset[ 1 ];
+		s[ 2 ] = pz * downSampling + offset[ 2 ];
+
+		numActive = 0;
+
+		for ( int i = 0; i < numViews; ++i )
+		{
+			// cull by the bounding interval of the transformed view
+			if ( py < viewMin[ i ][ 1 ] || py > viewMax[ i ][ 1 ] || pz < viewMin[ i ][ 2 ] || pz > viewMax[ i ][ 2 ] )
+				continue;
+
+			inverse[ i ].apply( s, t[ i ] );
+
+			// the range of steps along the scanline for which the view is intersected
+			double lo = Double.NEGATIVE_INFINITY;
+			double hi = Double.POSITIVE_INFINITY;
+
+			for ( int d = 0; d < 3 && lo <= hi; ++d )
+			{
+				if ( inc[ i ][ d ] == 0 )
+				{
+					if ( t[ i ][ d ] < 0 || t[ i ][ d ] >= imgSizes[ i ][ d ] )
+						lo = Double.POSITIVE_INFINITY;
+				}
+				else
+				{
+					final double a = -t[ i ][ d ] / inc[ i ][ d ];
+					final double b = ( imgSizes[ i ][ d ] - t[ i ][ d ] ) / inc[ i ][ d ];
+
+					lo = Math.max( lo, Math.min( a, b ) );
+					hi = Math.min( hi, Math.max( a, b ) );
+				}
+			}
+
+			// the view is not intersected by the rest of the scanline
+			if ( lo > hi || hi < 0 )
+				continue;
+
+			// conservative range, the exact test is done per pixel
+			xMin[ i ] = px + (long)Math.floor( Math.max( lo, -1 ) );
+			xMax[ i ] = px + (long)Math.ceil( Math.min( hi, Integer.MAX_VALUE ) );
+
+			active[ numActive++ ] = i;
+		}
+	}
+
+	/**
+	 * @return the number of views that can contribute to the current scanline
+	 */
+	public int numActive() { return numActive; }
+
+	/**
+	 * @param k - index in the list of active views
+	 * @return the index of the view
+	 */
+	public int activeView( final int k ) { return active[ k ]; }
+
+	/**
+	 * @param i - the index of the view (must be active)
+	 * @return if the view contributes to the current pixel
+	 */
+	public boolean contributes( final int i )
+	{
+		if ( x < xMin[ i ] || x > xMax[ i ] )
+			return false;
+
+		final double[] ti = t[ i ];
+
+		return FusionHelper.intersects( ti[ 0 ], ti[ 1 ], ti[ 2 ], imgSizes[ i ][ 0 ], imgSizes[ i ][ 1 ], imgSizes[ i ][ 2 ] );
+	}
+
+	/**
+	 * @param i - the index of the view (must be active)
+	 * @return the position of the current pixel in the view
+	 */
+	public double[] position( final int i ) { return t[ i ]; }
+}
@@ -2,15 +2,22 @@ package spim.process.fusion.weightedavg;
 
 import static mpicbg.spim.data.generic.sequence.ImgLoaderHints.LOAD_COMPLETELY;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 import mpicbg.spim.data.sequence.Channel;
 import mpicbg.spim.data.sequence.ImgLoader;
+import mpicbg.spim.data.sequence.MultiResolutionImgLoader;
+import mpicbg.spim.data.sequence.MultiResolutionSetupImgLoader;
 import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.data.sequence.VoxelDimensions;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalDimensions;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessible;
@@ -24,11 +31,14 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.complex.ComplexFloatType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
 import spim.fiji.spimdata.SpimData2;
 import spim.fiji.spimdata.ViewSetupUtils;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
+import spim.process.fusion.deconvolution.ProcessForDeconvolution;
 import spim.process.fusion.weights.Blending;
 import spim.process.fusion.weights.ContentBased;
+import spim.process.fusion.weights.ContentBasedCache;
 
 public abstract class ProcessFusion
 {
@@ -39,6 +49,10 @@ public abstract class ProcessFusion
 	public static double[] defaultContentBasedSigma1 = new double[]{ 20, 20, 20 };
 	public static double[] defaultContentBasedSigma2 = new double[]{ 40, 40, 40 };
 	public static boolean defaultAdjustContentBasedSigmaForAnisotropy = true;
+	// compute the content-based weights on a downsampled copy of each view (relative to full resolution)
+	public static int defaultContentBasedDownsampling = 1;
+	// store the content-based weights next to the dataset and reuse them
+	public static boolean defaultCacheContentBased = false;
 	
 	final protected SpimData2 spimData;
 	final List< ViewId > viewIdsToProcess;
@@ -67,6 +81,14 @@ public abstract class ProcessFusion
 			final Channel channel );
 
 	protected Blending getBlending( final Interval interval, final ViewDescription desc, final ImgLoader imgLoader )
+	{
+		return getBlending( interval, desc, imgLoader, null );
+	}
+
+	/**
+	 * @param levelFactors - the downsampling of the image relative to full resolution (mipmap level), can be null
+	 */
+	protected Blending getBlending( final Interval interval, final ViewDescription desc, final ImgLoader imgLoader, final double[] levelFactors )
 	{
 		final float[] blending = ProcessFusion.defaultBlendingRange.clone();
 		final float[] border = ProcessFusion.defaultBlendingBorder.clone();
@@ -82,11 +104,28 @@ public abstract class ProcessFusion
 				border[ d ] /= ( float ) voxelSize.dimension( d ) / minRes;
 			}
 		}
+
+		if ( levelFactors != null )
+		{
+			for ( int d = 0; d < blending.length; ++d )
+			{
+				blending[ d ] /= ( float ) levelFactors[ d ];
+				border[ d ] /= ( float ) levelFactors[ d ];
+			}
+		}
 		
 		return new Blending( interval, border, blending );
 	}
 
 	protected < T extends RealType< T > > ContentBased< T > getContentBased( final RandomAccessibleInterval< T > img, final ViewDescription desc, final ImgLoader imgLoader )
+	{
+		return getContentBased( img, desc, imgLoader, null );
+	}
+
+	/**
+	 * @param levelFactors - the downsampling of the image relative to full resolution (mipmap level), can be null
+	 */
+	protected < T extends RealType< T > > ContentBased< T > getContentBased( final RandomAccessibleInterval< T > img, final ViewDescription desc, final ImgLoader imgLoader, final double[] levelFactors )
 	{
 		final double[] sigma1 = ProcessFusion.defaultContentBasedSigma1.clone();
 		final double[] sigma2 = ProcessFusion.defaultContentBasedSigma2.clone();
@@ -103,21 +142,71 @@ public abstract class ProcessFusion
 			}
 		}
 
-		return new ContentBased<T>( img, bb.getImgFactory( new ComplexFloatType() ), sigma1, sigma2);
+		if ( levelFactors != null )
+		{
+			for ( int d = 0; d < sigma1.length; ++d )
+			{
+				sigma1[ d ] /= levelFactors[ d ];
+				sigma2[ d ] /= levelFactors[ d ];
+			}
+		}
+
+		// the downsampling relative to the loaded image, which might be a lower resolution level already
+		int downsampling = ProcessFusion.defaultContentBasedDownsampling;
+
+		if ( levelFactors != null )
+			downsampling = (int)Math.round( downsampling / Math.min( levelFactors[ 0 ], Math.min( levelFactors[ 1 ], levelFactors[ 2 ] ) ) );
+
+		downsampling = Math.max( 1, downsampling );
+
+		if ( !ProcessFusion.defaultCacheContentBased || spimData.getBasePath() == null )
+			return new ContentBased<T>( img, bb.getImgFactory( new ComplexFloatType() ), sigma1, sigma2, downsampling );
+
+		final ContentBasedCache cache = new ContentBasedCache( spimData );
+		final File file = cache.getFile( desc, img, sigma1, sigma2, downsampling );
+
+		// the image data cannot be identified
+		if ( file == null )
+			return new ContentBased<T>( img, bb.getImgFactory( new ComplexFloatType() ), sigma1, sigma2, downsampling );
+
+		final Img< FloatType > cached = cache.load( file );
+
+		if ( cached != null )
+		{
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Loaded content-based weights from '" + file.getAbsolutePath() + "'" );
+			return new ContentBased<T>( cached, downsampling );
+		}
+
+		final ContentBased< T > cb = new ContentBased<T>( img, bb.getImgFactory( new ComplexFloatType() ), sigma1, sigma2, downsampling );
+		cache.save( file, cb.getContentBasedImg() );
+
+		return cb;
 	}
 	
 	protected < T extends RealType< T > > ArrayList< RealRandomAccessible< FloatType > > getAllWeights(
 			final RandomAccessibleInterval< T > img,
 			final ViewDescription desc,
 			final ImgLoader imgLoader )
+	{
+		return getAllWeights( img, desc, imgLoader, null );
+	}
+
+	/**
+	 * @param levelFactors - the downsampling of the image relative to full resolution (mipmap level), can be null
+	 */
+	protected < T extends RealType< T > > ArrayList< RealRandomAccessible< FloatType > > getAllWeights(
+			final RandomAccessibleInterval< T > img,
+			final ViewDescription desc,
+			final ImgLoader imgLoader,
+			final double[] levelFactors )
 	{
 		final ArrayList< RealRandomAccessible< FloatType > > weigheners = new ArrayList< RealRandomAccessible< FloatType > >();
 		
 		if ( useBlending )
-			weigheners.add( getBlending( new FinalInterval( img ), desc, imgLoader ) );
+			weigheners.add( getBlending( new FinalInterval( img ), desc, imgLoader, levelFactors ) );
 
 		if ( useContentBased )
-			weigheners.add( getContentBased( img, desc, imgLoader ) );
+			weigheners.add( getContentBased( img, desc, imgLoader, levelFactors ) );
 
 		return weigheners;
 	}
@@ -130,7 +219,32 @@ public abstract class ProcessFusion
 
 	protected AffineTransform3D getTransform( final ViewDescription inputData )
 	{
-		return spimData.getViewRegistrations().getViewRegistration( inputData ).getModel();
+		// a copy, the mipmap transform might be concatenated
+		return spimData.getViewRegistrations().getViewRegistration( inputData ).getModel().copy();
+	}
+
+	/**
+	 * @param vd - the view
+	 * @param transform - the registration of the full resolution view
+	 * @return the part of the (downsampled) bounding box the view contributes to, in pixel coordinates of the fused image
+	 */
+	protected Interval getFootprint( final ViewDescription vd, final AffineTransform3D transform )
+	{
+		final double ds = bb.getDownSampling();
+
+		// from global coordinates to pixels of the fused image
+		final AffineTransform3D toFused = new AffineTransform3D();
+		toFused.set(
+				1.0 / ds, 0, 0, -bb.min( 0 ) / ds,
+				0, 1.0 / ds, 0, -bb.min( 1 ) / ds,
+				0, 0, 1.0 / ds, -bb.min( 2 ) / ds );
+
+		final AffineTransform3D t = transform.copy();
+		t.preConcatenate( toFused );
+
+		final Dimensions size = ViewSetupUtils.getSizeOrLoad( vd.getViewSetup(), vd.getTimePoint(), spimData.getSequenceDescription().getImgLoader() );
+
+		return ProcessForDeconvolution.getFootprint( size, t, new long[ 3 ], new FinalDimensions( bb.getDimensions() ) );
 	}
 
 	protected AffineTransform3D[] getTransforms( final ArrayList< ViewDescription > inputData )
@@ -144,6 +258,98 @@ public abstract class ProcessFusion
 		return transforms;
 	}
 
+	/**
+	 * Loads a view for fusion. If the bounding box is downsampled and the ImgLoader provides multiple resolutions,
+	 * the lowest resolution level is used that still samples at least as dense as the fused image.
+	 *
+	 * @param type - the pixel type
+	 * @param vd - the view
+	 * @param transform - the registration of the view, the mipmap transform of the chosen level is concatenated to it
+	 * @param levelFactors - filled with the downsampling of the chosen level relative to full resolution (can be null)
+	 * @return the image
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	protected < T extends RealType< T > > RandomAccessibleInterval< T > getImage( final T type, final ViewDescription vd, final AffineTransform3D transform, final double[] levelFactors )
+	{
+		final ImgLoader imgLoader = spimData.getSequenceDescription().getImgLoader();
+
+		if ( levelFactors != null )
+			levelFactors[ 0 ] = levelFactors[ 1 ] = levelFactors[ 2 ] = 1;
+
+		if ( bb.getDownSampling() > 1 && MultiResolutionImgLoader.class.isInstance( imgLoader ) )
+		{
+			final MultiResolutionSetupImgLoader< ? > setupImgLoader = ( (MultiResolutionImgLoader)imgLoader ).getSetupImgLoader( vd.getViewSetupId() );
+			final double[][] mipmapResolutions = setupImgLoader.getMipmapResolutions();
+			final int level = getMipmapLevel( mipmapResolutions, transform, bb.getDownSampling() );
+
+			if ( level > 0 )
+			{
+				IOFunctions.println(
+						"(" + new Date( System.currentTimeMillis() ) + "): Using precomputed multiresolution image [" +
+						Util.printCoordinates( mipmapResolutions[ level ] ) + "] (tp=" + vd.getTimePointId() + ", setup=" + vd.getViewSetupId() + ")" );
+
+				transform.concatenate( setupImgLoader.getMipmapTransforms()[ level ] );
+
+				if ( levelFactors != null )
+					for ( int d = 0; d < 3; ++d )
+						levelFactors[ d ] = mipmapResolutions[ level ][ d ];
+
+				if ( (RealType)type instanceof FloatType )
+					return (RandomAccessibleInterval)setupImgLoader.getFloatImage( vd.getTimePointId(), level, false, LOAD_COMPLETELY );
+				else if ( (RealType)type instanceof UnsignedShortType )
+					return (RandomAccessibleInterval)setupImgLoader.getImage( vd.getTimePointId(), level, LOAD_COMPLETELY );
+				else
+					return null;
+			}
+		}
+
+		return getImage( type, spimData, vd, false );
+	}
+
+	/**
+	 * @param mipmapResolutions - the downsampling factors of all levels
+	 * @param transform - the registration of the view (full resolution)
+	 * @param downSampling - the downsampling of the fused image in global coordinates
+	 * @return the level with the largest downsampling that is not coarser than the fused image in any dimension
+	 */
+	public static int getMipmapLevel( final double[][] mipmapResolutions, final AffineTransform3D transform, final int downSampling )
+	{
+		// how many input pixels correspond to one fused pixel in each dimension
+		final double[] maxFactor = new double[ 3 ];
+
+		for ( int d = 0; d < 3; ++d )
+		{
+			final double scale = Math.sqrt(
+					transform.get( 0, d ) * transform.get( 0, d ) +
+					transform.get( 1, d ) * transform.get( 1, d ) +
+					transform.get( 2, d ) * transform.get( 2, d ) );
+
+			// never below full resolution, otherwise levels that are not downsampled in z are rejected for anisotropic data
+			maxFactor[ d ] = Math.max( 1, downSampling / scale );
+		}
+
+		int bestLevel = 0;
+		double bestReduction = 1;
+
+		for ( int level = 0; level < mipmapResolutions.length; ++level )
+		{
+			final double[] factors = mipmapResolutions[ level ];
+
+			if ( factors[ 0 ] <= maxFactor[ 0 ] + 0.01 && factors[ 1 ] <= maxFactor[ 1 ] + 0.01 && factors[ 2 ] <= maxFactor[ 2 ] + 0.01 )
+			{
+				final double reduction = factors[ 0 ] * factors[ 1 ] * factors[ 2 ];
+
+				if ( reduction > bestReduction )
+				{
+					bestReduction = reduction;
+					bestLevel = level;
+				}
+			}
+		}
+
+		return bestLevel;
+	}
+
 	public static < T extends RealType< T > > RandomAccessibleInterval< T > getImage( final T type, final SpimData2 spimData, final ViewId view, final boolean normalize )
 	{
 		return getImage( type, spimData.getSequenceDescription().getImgLoader(), view, normalize );
@@ -14,12 +14,19 @@ import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.data.sequence.ViewSetup;
 import mpicbg.spim.io.IOFunctions;
+import net.imglib2.FinalDimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
 import spim.Threads;
 import spim.fiji.spimdata.SpimData2;
 import spim.process.fusion.FusionHelper;
@@ -27,10 +34,14 @@ import spim.process.fusion.ImagePortion;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 import spim.process.fusion.export.FixedNameImgTitler;
 import spim.process.fusion.export.ImgExport;
+import spim.process.fusion.export.ImgExportBlocks;
 import spim.process.fusion.export.ImgExportTitle;
 
 /**
- * Fused individual images for each input stack, uses the exporter directly
+ * Fused individual images for each input stack, uses the exporter directly. Every view is only transformed
+ * over its footprint in the bounding box, the exporter gets a view of the bounding box that is zero elsewhere.
+ * If block-wise export is selected and supported, this view is written slab by slab, so the bounding box is
+ * never allocated entirely.
  * 
  * @author Stephan Preibisch (stephan.preibisch@gmx.de)
  *
@@ -40,6 +51,7 @@ public class ProcessIndependent extends ProcessFusion
 	final ImgExport export;
 	final Map< ViewSetup, ViewSetup > newViewsetups;
 	final FixedNameImgTitler titler;
+	final boolean exportBlockwise;
 	
 	public ProcessIndependent(
 			final SpimData2 spimData,
@@ -47,11 +59,26 @@ public class ProcessIndependent extends ProcessFusion
 			final BoundingBoxGUI bb,
 			final ImgExport export,
 			final Map< ViewSetup, ViewSetup > newViewsetups )
+	{
+		this( spimData, viewIdsToProcess, bb, export, newViewsetups, false );
+	}
+
+	/**
+	 * @param exportBlockwise - write the bounding box slab by slab if the exporter supports it
+	 */
+	public ProcessIndependent(
+			final SpimData2 spimData,
+			final List< ViewId > viewIdsToProcess,
+			final BoundingBoxGUI bb,
+			final ImgExport export,
+			final Map< ViewSetup, ViewSetup > newViewsetups,
+			final boolean exportBlockwise )
 	{
 		super( spimData, viewIdsToProcess, bb, false, false );
 		
 		this.export = export;
 		this.newViewsetups = newViewsetups;
+		this.exportBlockwise = exportBlockwise && ImgExportBlocks.class.isInstance( export );
 
 		this.titler = new FixedNameImgTitler( "" );
 		if ( this.export instanceof ImgExportTitle )
@@ -82,23 +109,31 @@ public class ProcessIndependent extends ProcessFusion
 		// we will need to run some batches until all is fused
 		for ( int i = 0; i < allInputData.size(); ++i )
 		{
+			final ViewDescription inputData = allInputData.get( i );
+			final AffineTransform3D transform = getTransform( inputData );
+
+			// only the part of the bounding box the view contributes to is transformed
+			final Interval footprint = getFootprint( inputData, transform );
+			final long[] offset = new long[ 3 ];
+			footprint.min( offset );
+
 			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Fusing view " + i + " of " + (allInputData.size()-1) );
-			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Reserving memory for fused image.");
+			IOFunctions.println(
+					"(" + new Date(System.currentTimeMillis()) + "): Reserving memory for fused image, footprint of the view: " + Util.printInterval( footprint ) + " (" +
+					Math.round( 100.0 * Intervals.numElements( footprint ) / Intervals.numElements( new FinalDimensions( bb.getDimensions() ) ) ) + "% of the bounding box)" );
 
 			// try creating the output (type needs to be there to define T)
-			final Img< T > fusedImg = bb.getImgFactory( type ).create( bb.getDimensions(), type );
+			final Img< T > fusedImg = bb.getImgFactory( type ).create( footprint, type );
 
 			if ( fusedImg == null )
 			{
 				IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): WeightedAverageFusion: Cannot create output image."  );
 				return null;
 			}
-	
-			final ViewDescription inputData = allInputData.get( i );
 			
 			// same as in the paralell fusion now more or less
 			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Requesting Img from ImgLoader (tp=" + inputData.getTimePointId() + ", setup=" + inputData.getViewSetupId() + ")" );
-			final RandomAccessibleInterval< T > img = getImage( type, spimData, inputData, false );
+			final RandomAccessibleInterval< T > img = getImage( type, inputData, transform, null );
 						
 			// split up into many parts for multithreading
 			final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( fusedImg.size(), Threads.numThreads() * 4 );
@@ -108,7 +143,7 @@ public class ProcessIndependent extends ProcessFusion
 			final ArrayList< ProcessIndependentPortion< T > > tasks = new ArrayList< ProcessIndependentPortion< T > >();
 
 			for ( final ImagePortion portion : portions )
-				tasks.add( new ProcessIndependentPortion< T >( portion, img, interpolatorFactory, getTransform( inputData ), fusedImg, bb ) );
+				tasks.add( new ProcessIndependentPortion< T >( portion, img, interpolatorFactory, transform, fusedImg, bb, offset ) );
 
 			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Starting fusion process.");
 
@@ -126,16 +161,100 @@ public class ProcessIndependent extends ProcessFusion
 
 			taskExecutor.shutdown();
 
+			// min and max of the footprint, everything else is zero
+			final float[] minmax = FusionHelper.minMax( fusedImg );
+
+			if ( fusedImg.size() < Intervals.numElements( new FinalDimensions( bb.getDimensions() ) ) )
+			{
+				minmax[ 0 ] = Math.min( 0, minmax[ 0 ] );
+				minmax[ 1 ] = Math.max( 0, minmax[ 1 ] );
+			}
+
 			titler.setTitle( "TP" + inputData.getTimePointId() + 
 					"_Channel" + inputData.getViewSetup().getChannel().getName() +
 					"_Illum" + inputData.getViewSetup().getIllumination().getName() +
 					"_Angle" + inputData.getViewSetup().getAngle().getName() );
-			export.exportImage( fusedImg, bb, timepoint, newViewsetups.get( inputData.getViewSetup() ) );
+
+			final ViewSetup vs = newViewsetups.get( inputData.getViewSetup() );
+
+			if ( !exportBlockwise || !exportBlocks( type, getBoundingBoxView( fusedImg, offset ), (ImgExportBlocks)export, timepoint, vs ) )
+				export.exportImage( getBoundingBoxView( fusedImg, offset ), bb, timepoint, vs, minmax[ 0 ], minmax[ 1 ] );
 		}
 		
 		return null;
 	}
+
+	/**
+	 * Writes the bounding box view slab by slab, the exporter only holds one slab at a time
+	 *
+	 * @param type - the pixel type
+	 * @param img - the view of the bounding box
+	 * @param exporter - the block-wise exporter
+	 * @param timepoint - the (new) timepoint
+	 * @param vs - the (new) viewsetup
+	 * @return false if the exporter cannot export this image block-wise (nothing was written), otherwise true
+	 * @throws RuntimeException if a block could not be exported, the incomplete image is removed by the exporter
+	 */
+	protected < T extends RealType< T > & NativeType< T > > boolean exportBlocks(
+			final T type,
+			final RandomAccessibleInterval< T > img,
+			final ImgExportBlocks exporter,
+			final TimePoint timepoint,
+			final ViewSetup vs )
+	{
+		if ( !exporter.startBlockExport( type, bb, timepoint, vs ) )
+			return false;
+
+		final long[] dim = new long[ img.numDimensions() ];
+		img.dimensions( dim );
+
+		final int depth = ProcessParalell.getBlockDepth( dim, type.getBitsPerPixel() / 8, exporter.getBlockAlignment() );
+
+		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Exporting block-wise (" + depth + " planes per block)." );
+
+		for ( long z = 0; z < dim[ 2 ]; z += depth )
+		{
+			final long maxZ = Math.min( z + depth, dim[ 2 ] ) - 1;
+
+			boolean success;
+
+			try
+			{
+				success = exporter.exportBlock( Views.interval( img, new long[]{ 0, 0, z }, new long[]{ dim[ 0 ] - 1, dim[ 1 ] - 1, maxZ } ) );
+			}
+			catch ( final RuntimeException e )
+			{
+				IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Failed to export planes " + z + "-" + maxZ + ": " + e );
+				e.printStackTrace();
+				success = false;
+			}
+
+			if ( !success )
+			{
+				IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Block-wise export failed, removing the incomplete image." );
+				exporter.abortBlockExport();
+				throw new RuntimeException( "Block-wise export of timepoint=" + timepoint.getName() + ", viewsetup=" + vs.getId() + " failed." );
+			}
+		}
+
+		if ( !exporter.finishBlockExport() )
+			throw new RuntimeException( "Block-wise export of timepoint=" + timepoint.getName() + ", viewsetup=" + vs.getId() + " failed." );
+
+		return true;
+	}
 	
+	/**
+	 * @param footprintImg - the transformed part of a view
+	 * @param offset - its position in the (downsampled) bounding box
+	 * @return a view of the entire bounding box that is zero outside of the footprint
+	 */
+	protected < T extends RealType< T > > RandomAccessibleInterval< T > getBoundingBoxView( final Img< T > footprintImg, final long[] offset )
+	{
+		return Views.interval(
+				Views.extendZero( Views.translate( footprintImg, offset ) ),
+				new FinalInterval( bb.getDimensions() ) );
+	}
+
 	protected int numBatches( final int numViews, final int sequentialViews )
 	{
 		return numViews / sequentialViews + Math.min( numViews % sequentialViews, 1 );
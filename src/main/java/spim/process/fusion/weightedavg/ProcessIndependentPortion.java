@@ -30,6 +30,7 @@ public class ProcessIndependentPortion< T extends RealType< T > > implements Cal
 	final AffineTransform3D transform;
 	final Img< T > fusedImg;
 	final BoundingBoxGUI bb;
+	final long[] offset;
 	
 	final boolean doDownSampling;
 	final int downSampling;
@@ -41,6 +42,27 @@ public class ProcessIndependentPortion< T extends RealType< T > > implements Cal
 			final AffineTransform3D transform,
 			final Img< T > fusedImg,
 			final BoundingBoxGUI bb )
+	{
+		this( portion, img, interpolatorFactory, transform, fusedImg, bb, new long[ 3 ] );
+	}
+
+	/**
+	 * @param portion - the portion of fusedImg that is processed
+	 * @param img - the input view
+	 * @param interpolatorFactory - how to interpolate the input view
+	 * @param transform - the transformation of the view
+	 * @param fusedImg - the output, the entire bounding box or a part of it
+	 * @param bb - the bounding box
+	 * @param offset - the position of fusedImg inside the (downsampled) bounding box
+	 */
+	public ProcessIndependentPortion(
+			final ImagePortion portion,
+			final RandomAccessibleInterval< T > img,
+			final InterpolatorFactory<T, RandomAccessible< T > > interpolatorFactory,
+			final AffineTransform3D transform,
+			final Img< T > fusedImg,
+			final BoundingBoxGUI bb,
+			final long[] offset )
 	{
 		this.portion = portion;
 		this.img = img;
@@ -48,6 +70,7 @@ public class ProcessIndependentPortion< T extends RealType< T > > implements Cal
 		this.transform = transform;
 		this.fusedImg = fusedImg;
 		this.bb = bb;
+		this.offset = offset;
 		this.downSampling = bb.getDownSampling();
 		
 		if ( downSampling == 1 )
@@ -74,6 +97,10 @@ public class ProcessIndependentPortion< T extends RealType< T > > implements Cal
 			// move img cursor forward any get the value (saves one access)
 			final T v = cursor.next();
 			cursor.localize( s );
+
+			s[ 0 ] += offset[ 0 ];
+			s[ 1 ] += offset[ 1 ];
+			s[ 2 ] += offset[ 2 ];
 			
 			if ( doDownSampling )
 			{
@@ -11,20 +11,26 @@ import mpicbg.spim.data.sequence.Channel;
 import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.data.sequence.ViewSetup;
 import mpicbg.spim.io.IOFunctions;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
 import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
 import spim.Threads;
 import spim.fiji.spimdata.SpimData2;
 import spim.process.fusion.FusionHelper;
 import spim.process.fusion.ImagePortion;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
+import spim.process.fusion.export.ImgExportBlocks;
+import spim.process.fusion.weights.ContentBased;
 
 public class ProcessParalell extends ProcessFusion
 {	
@@ -38,6 +44,17 @@ public class ProcessParalell extends ProcessFusion
 		super( spimData, viewIdsToProcess, bb, useBlending, useContentBased );
 	}
 
+	// the approximate size of the blocks when fusing block-wise
+	public static int blockSizeMB = 256;
+
+	// if set, all stacks are fused using this thread pool instead of creating one every time
+	protected ExecutorService executorService = null;
+
+	/**
+	 * @param executorService - the thread pool used for fusion (it is not shut down), null creates one for every stack
+	 */
+	public void setExecutorService( final ExecutorService executorService ) { this.executorService = executorService; }
+
 	/** 
 	 * Fuses one stack, i.e. all angles/illuminations for one timepoint and channel
 	 * 
@@ -54,17 +71,59 @@ public class ProcessParalell extends ProcessFusion
 			final TimePoint timepoint, 
 			final Channel channel )
 	{
-		IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Reserving memory for fused image.");
+		final PreparedStack< T > stack = prepareStack( type, timepoint, channel );
 
+		// it can be that for a certain comination of timepoint/channel there is nothing to do
+		// (e.g. fuse timepoint 1 channel 1 and timepoint 2 channel 2)
+		if ( stack == null )
+			return null;
+
+		return fuseStack( type, interpolatorFactory, stack );
+	}
+
+	/**
+	 * Loads all input views of one stack and computes their weights, this can be done while another stack is fused
+	 * 
+	 * @param type
+	 * @param timepoint
+	 * @param channel
+	 * @return the prepared stack or null if there is nothing to fuse
+	 */
+	public < T extends RealType< T > & NativeType< T > > PreparedStack< T > prepareStack(
+			final T type,
+			final TimePoint timepoint,
+			final Channel channel )
+	{
 		// get all views that are fused
 		final ArrayList< ViewDescription > inputData =
 				FusionHelper.assembleInputData( spimData, timepoint, channel, viewIdsToProcess );
 
-		// it can be that for a certain comination of timepoint/channel there is nothing to do
-		// (e.g. fuse timepoint 1 channel 1 and timepoint 2 channel 2)
 		if ( inputData.size() == 0 )
 			return null;
 
+		final AffineTransform3D[] transforms = getTransforms( inputData );
+		final double[][] levelFactors = new double[ inputData.size() ][ 3 ];
+		final ArrayList< RandomAccessibleInterval< T > > imgs = loadImages( type, inputData, transforms, levelFactors );
+		final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights = loadWeights( imgs, inputData, levelFactors );
+
+		return new PreparedStack< T >( timepoint, channel, imgs, weights, transforms, type.getBitsPerPixel() / 8 );
+	}
+
+	/**
+	 * Fuses a prepared stack
+	 * 
+	 * @param type
+	 * @param interpolatorFactory
+	 * @param stack - the input views and weights
+	 * @return the fused image or null if it failed
+	 */
+	public < T extends RealType< T > & NativeType< T > > Img< T > fuseStack(
+			final T type,
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
+			final PreparedStack< T > stack )
+	{
+		IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Reserving memory for fused image.");
+
 		// try creating the output (type needs to be there to define T)
 		final Img< T > fusedImg = bb.getImgFactory( type ).create( bb.getDimensions(), type );
 
@@ -74,65 +133,311 @@ public class ProcessParalell extends ProcessFusion
 			return null;
 		}
 
+		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Starting fusion process.");
+
+		if ( !fuse( fusedImg, new long[ 3 ], stack.imgs, stack.weights, interpolatorFactory, stack.transforms ) )
+			return null;
+
+		return fusedImg;
+	}
+
+	/**
+	 * Fuses one stack block by block (slabs in z) and hands each finished block to the exporter, so that the
+	 * fused image never needs to be held in memory entirely. All input views of the stack are loaded once.
+	 * 
+	 * @param type
+	 * @param interpolatorFactory
+	 * @param timepoint
+	 * @param channel
+	 * @param exporter - the block-wise exporter
+	 * @param vs - the new viewsetup of the fused image
+	 * @return false if the exporter cannot export this stack block-wise (nothing was fused), otherwise true
+	 * @throws RuntimeException if a block could not be fused or exported, the incomplete image is removed by the exporter
+	 */
+	public < T extends RealType< T > & NativeType< T > > boolean fuseStackBlockwise(
+			final T type,
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
+			final TimePoint timepoint, 
+			final Channel channel,
+			final ImgExportBlocks exporter,
+			final ViewSetup vs )
+	{
+		// nothing to do
+		if ( FusionHelper.assembleInputData( spimData, timepoint, channel, viewIdsToProcess ).size() == 0 )
+			return true;
+
+		if ( !exporter.startBlockExport( type, bb, timepoint, vs ) )
+			return false;
+
+		if ( !fuseBlocks( type, interpolatorFactory, prepareStack( type, timepoint, channel ), exporter ) )
+			throw new RuntimeException( "Block-wise fusion of timepoint=" + timepoint.getName() + ", channel=" + channel.getName() + " failed." );
+
+		return true;
+	}
+
+	/**
+	 * Fuses a prepared stack block by block, see {@link #fuseStackBlockwise(RealType, InterpolatorFactory, TimePoint, Channel, ImgExportBlocks, ViewSetup)}
+	 * 
+	 * @param type
+	 * @param interpolatorFactory
+	 * @param stack - the input views and weights
+	 * @param exporter - the block-wise exporter
+	 * @param vs - the new viewsetup of the fused image
+	 * @return false if the exporter cannot export this stack block-wise (nothing was fused), otherwise true
+	 * @throws RuntimeException if a block could not be fused or exported, the incomplete image is removed by the exporter
+	 */
+	public < T extends RealType< T > & NativeType< T > > boolean fuseStackBlockwise(
+			final T type,
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
+			final PreparedStack< T > stack,
+			final ImgExportBlocks exporter,
+			final ViewSetup vs )
+	{
+		if ( !exporter.startBlockExport( type, bb, stack.timepoint, vs ) )
+			return false;
+
+		if ( !fuseBlocks( type, interpolatorFactory, stack, exporter ) )
+			throw new RuntimeException( "Block-wise fusion of timepoint=" + stack.timepoint.getName() + ", channel=" + stack.channel.getName() + " failed." );
+
+		return true;
+	}
+
+	/**
+	 * @return false if a block could not be fused or exported, the export was aborted then
+	 */
+	protected < T extends RealType< T > & NativeType< T > > boolean fuseBlocks(
+			final T type,
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
+			final PreparedStack< T > stack,
+			final ImgExportBlocks exporter )
+	{
+		final long[] dim = bb.getDimensions();
+		final int depth = getBlockDepth( dim, type.getBitsPerPixel() / 8, exporter.getBlockAlignment() );
+		final ImgFactory< T > factory = bb.getImgFactory( type );
+
+		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Starting block-wise fusion process (" + depth + " planes per block).");
+
+		for ( long z = 0; z < dim[ 2 ]; z += depth )
+		{
+			final long[] blockDim = new long[]{ dim[ 0 ], dim[ 1 ], Math.min( depth, dim[ 2 ] - z ) };
+			final Img< T > block = factory.create( blockDim, type );
+
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Fusing planes " + z + "-" + ( z + blockDim[ 2 ] - 1 ) + " of " + dim[ 2 ] );
+
+			boolean success;
+
+			try
+			{
+				success =
+						fuse( block, new long[]{ 0, 0, z }, stack.imgs, stack.weights, interpolatorFactory, stack.transforms ) &&
+						exporter.exportBlock( Views.translate( block, 0, 0, z ) );
+			}
+			catch ( final RuntimeException e )
+			{
+				IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Failed to fuse or export planes " + z + "-" + ( z + blockDim[ 2 ] - 1 ) + ": " + e );
+				e.printStackTrace();
+				success = false;
+			}
+
+			if ( !success )
+			{
+				IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Block-wise fusion failed, removing the incomplete image." );
+				exporter.abortBlockExport();
+				return false;
+			}
+		}
+
+		return exporter.finishBlockExport();
+	}
+
+	/**
+	 * @param dim - dimensions of the fused image
+	 * @param bytesPerPixel - bytes per pixel of the fused image
+	 * @param alignment - the depth of the blocks needs to be a multiple of it
+	 * @return the number of planes per block
+	 */
+	public static int getBlockDepth( final long[] dim, final int bytesPerPixel, final int alignment )
+	{
+		final long bytesPerPlane = Math.max( 1, dim[ 0 ] * dim[ 1 ] * Math.max( 1, bytesPerPixel ) );
+
+		long depth = Math.max( 1, ( blockSizeMB * 1024l * 1024l ) / bytesPerPlane );
+		depth = Math.min( depth, dim[ 2 ] );
+
+		// round up to a multiple of the alignment
+		if ( alignment > 1 )
+			depth = ( ( depth + alignment - 1 ) / alignment ) * alignment;
+
+		return (int)depth;
+	}
+
+	/**
+	 * @param type - the pixel type
+	 * @param inputData - the views
+	 * @param transforms - the registrations of the views, the mipmap transforms are concatenated if lower resolutions are loaded
+	 * @param levelFactors - filled with the downsampling of the loaded image relative to full resolution for each view
+	 * @return the images
+	 */
+	protected < T extends RealType< T > > ArrayList< RandomAccessibleInterval< T > > loadImages(
+			final T type,
+			final ArrayList< ViewDescription > inputData,
+			final AffineTransform3D[] transforms,
+			final double[][] levelFactors )
+	{
 		final ArrayList< RandomAccessibleInterval< T > > imgs = new ArrayList< RandomAccessibleInterval< T > >();
 
 		for ( int i = 0; i < inputData.size(); ++i )
 		{
 			final ViewDescription vd = inputData.get( i );
 			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Requesting Img from ImgLoader (tp=" + vd.getTimePointId() + ", setup=" + vd.getViewSetupId() + ")" );
-			imgs.add( getImage( type, spimData, vd, false ) );
+			imgs.add( getImage( type, vd, transforms[ i ], levelFactors[ i ] ) );
 		}
-		
+
+		return imgs;
+	}
+
+	protected < T extends RealType< T > > ArrayList< ArrayList< RealRandomAccessible< FloatType > > > loadWeights(
+			final ArrayList< RandomAccessibleInterval< T > > imgs,
+			final ArrayList< ViewDescription > inputData,
+			final double[][] levelFactors )
+	{
 		// get all weighting methods
 		final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights = new ArrayList< ArrayList< RealRandomAccessible< FloatType > > >();
 		
 		for ( int i = 0; i < inputData.size(); ++i )
-			weights.add( getAllWeights( imgs.get( i ), inputData.get( i ), spimData.getSequenceDescription().getImgLoader() ) );
-		
+			weights.add( getAllWeights( imgs.get( i ), inputData.get( i ), spimData.getSequenceDescription().getImgLoader(), levelFactors[ i ] ) );
+
+		return weights;
+	}
+
+	/**
+	 * Fuses all views into an image that is located at a certain offset inside the bounding box
+	 * 
+	 * @param fusedImg - the output, the entire bounding box or a block of it
+	 * @param offset - the position of fusedImg in the (downsampled) bounding box
+	 * @param imgs - the input views
+	 * @param weights - the weights of all input views
+	 * @param interpolatorFactory
+	 * @param transforms - the transformations of all views
+	 * @return true if successful
+	 */
+	protected < T extends RealType< T > > boolean fuse(
+			final Img< T > fusedImg,
+			final long[] offset,
+			final ArrayList< RandomAccessibleInterval< T > > imgs,
+			final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights,
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
+			final AffineTransform3D[] transforms )
+	{
 		// split up into many parts for multithreading
 		final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( fusedImg.size(), Threads.numThreads() * 4 );
 
-		// set up executor service
-		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+		// set up executor service (or use the shared one)
+		final ExecutorService taskExecutor = executorService == null ? Executors.newFixedThreadPool( Threads.numThreads() ) : executorService;
 		final ArrayList< ProcessParalellPortion< T > > tasks = new ArrayList< ProcessParalellPortion< T > >();
 
+		for ( final ImagePortion portion : portions )
+			tasks.add( createPortion( portion, imgs, weights, interpolatorFactory, transforms, fusedImg, offset ) );
+
+		try
+		{
+			// invokeAll() returns when all tasks are complete
+			taskExecutor.invokeAll( tasks );
+		}
+		catch ( final InterruptedException e )
+		{
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Failed to compute fusion: " + e );
+			e.printStackTrace();
+
+			if ( executorService == null )
+				taskExecutor.shutdown();
+
+			return false;
+		}
+
+		if ( executorService == null )
+			taskExecutor.shutdown();
+		
+		return true;
+	}
+
+	/**
+	 * @return the task that fuses one portion of fusedImg, depending on the number of weights
+	 */
+	protected < T extends RealType< T > > ProcessParalellPortion< T > createPortion(
+			final ImagePortion portion,
+			final ArrayList< RandomAccessibleInterval< T > > imgs,
+			final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights,
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
+			final AffineTransform3D[] transforms,
+			final Img< T > fusedImg,
+			final long[] offset )
+	{
 		if ( weights.get( 0 ).size() == 0 ) // no weights
-		{		
-			for ( final ImagePortion portion : portions )
-				tasks.add( new ProcessParalellPortion< T >( portion, imgs, interpolatorFactory, getTransforms( inputData ), fusedImg, bb ) );
+		{
+			return new ProcessParalellPortion< T >( portion, imgs, interpolatorFactory, transforms, fusedImg, bb, offset );
 		}
 		else if ( weights.get( 0 ).size() > 1 ) // many weights
 		{
-			for ( final ImagePortion portion : portions )
-				tasks.add( new ProcessParalellPortionWeights< T >( portion, imgs, weights, interpolatorFactory, getTransforms( inputData ), fusedImg, bb ) );
+			return new ProcessParalellPortionWeights< T >( portion, imgs, weights, interpolatorFactory, transforms, fusedImg, bb, offset );
 		}
 		else // one weight
 		{
 			final ArrayList< RealRandomAccessible< FloatType > > singleWeight = new ArrayList< RealRandomAccessible< FloatType > >();
 			
-			for ( int i = 0; i < inputData.size(); ++i )
+			for ( int i = 0; i < imgs.size(); ++i )
 				singleWeight.add( weights.get( i ).get( 0 ) );
-			
-			for ( final ImagePortion portion : portions )
-				tasks.add( new ProcessParalellPortionWeight< T >( portion, imgs, singleWeight, interpolatorFactory, getTransforms( inputData ), fusedImg, bb ) );
+
+			return new ProcessParalellPortionWeight< T >( portion, imgs, singleWeight, interpolatorFactory, transforms, fusedImg, bb, offset );
 		}
+	}
 
-		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Starting fusion process.");
+	/**
+	 * The input views, weights and transformations of one stack (timepoint and channel)
+	 */
+	public static class PreparedStack< T extends RealType< T > >
+	{
+		final TimePoint timepoint;
+		final Channel channel;
+		final ArrayList< RandomAccessibleInterval< T > > imgs;
+		final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights;
+		final AffineTransform3D[] transforms;
+		final int bytesPerPixel;
 
-		try
+		public PreparedStack(
+				final TimePoint timepoint,
+				final Channel channel,
+				final ArrayList< RandomAccessibleInterval< T > > imgs,
+				final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights,
+				final AffineTransform3D[] transforms,
+				final int bytesPerPixel )
 		{
-			// invokeAll() returns when all tasks are complete
-			taskExecutor.invokeAll( tasks );
+			this.timepoint = timepoint;
+			this.channel = channel;
+			this.imgs = imgs;
+			this.weights = weights;
+			this.transforms = transforms;
+			this.bytesPerPixel = bytesPerPixel;
 		}
-		catch ( final InterruptedException e )
+
+		public TimePoint getTimePoint() { return timepoint; }
+		public Channel getChannel() { return channel; }
+
+		/**
+		 * @return the approximate memory of the input views and the precomputed (content-based) weights
+		 */
+		public long getApproximateMemoryMB()
 		{
-			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Failed to compute fusion: " + e );
-			e.printStackTrace();
-			return null;
-		}
+			long bytes = 0;
 
-		taskExecutor.shutdown();
-		
-		return fusedImg;
+			for ( final RandomAccessibleInterval< T > img : imgs )
+				bytes += Views.iterable( img ).size() * bytesPerPixel;
+
+			for ( final ArrayList< RealRandomAccessible< FloatType > > w : weights )
+				for ( final RealRandomAccessible< FloatType > weight : w )
+					if ( ContentBased.class.isInstance( weight ) )
+						bytes += ( (ContentBased< ? >)weight ).getContentBasedImg().size() * 4;
+
+			return bytes / ( 1024 * 1024 ) + 1;
+		}
 	}
 }
@@ -12,7 +12,6 @@ import net.imglib2.interpolation.InterpolatorFactory;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.view.Views;
-import spim.process.fusion.FusionHelper;
 import spim.process.fusion.ImagePortion;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 
@@ -32,8 +31,7 @@ public class ProcessParalellPortion< T extends RealType< T > > implements Callab
 	final Img< T > fusedImg;
 	final BoundingBoxGUI bb;
 	
-	final boolean doDownSampling;
-	final int downSampling;
+	final long[] offset;
 	
 	public ProcessParalellPortion(
 			final ImagePortion portion,
@@ -42,6 +40,21 @@ public class ProcessParalellPortion< T extends RealType< T > > implements Callab
 			final AffineTransform3D[] transforms,
 			final Img< T > fusedImg,
 			final BoundingBoxGUI bb )
+	{
+		this( portion, imgs, interpolatorFactory, transforms, fusedImg, bb, new long[ 3 ] );
+	}
+
+	/**
+	 * @param offset - the position of fusedImg inside the (downsampled) bounding box, e.g. if only a block of it is fused
+	 */
+	public ProcessParalellPortion(
+			final ImagePortion portion,
+			final ArrayList< RandomAccessibleInterval< T > > imgs,
+			final InterpolatorFactory<T, RandomAccessible< T > > interpolatorFactory,
+			final AffineTransform3D[] transforms,
+			final Img< T > fusedImg,
+			final BoundingBoxGUI bb,
+			final long[] offset )
 	{
 		this.portion = portion;
 		this.imgs = imgs;
@@ -49,12 +62,7 @@ public class ProcessParalellPortion< T extends RealType< T > > implements Callab
 		this.transforms = transforms;
 		this.fusedImg = fusedImg;
 		this.bb = bb;
-		this.downSampling = bb.getDownSampling();
-		
-		if ( downSampling == 1 )
-			doDownSampling = false;
-		else
-			doDownSampling = true;
+		this.offset = offset;
 	}
 	
 	@Override
@@ -75,44 +83,36 @@ public class ProcessParalellPortion< T extends RealType< T > > implements Callab
 		}
 
 		final Cursor< T > cursor = fusedImg.localizingCursor();
-		final float[] s = new float[ 3 ];
-		final float[] t = new float[ 3 ];
-		
+		final FusionScanline scanline = new FusionScanline( transforms, imgSizes, bb, offset );
+
 		cursor.jumpFwd( portion.getStartPosition() );
-		
+
 		for ( int j = 0; j < portion.getLoopSize(); ++j )
 		{
 			// move img cursor forward any get the value (saves one access)
 			final T v = cursor.next();
-			cursor.localize( s );
-			
-			if ( doDownSampling )
-			{
-				s[ 0 ] *= downSampling;
-				s[ 1 ] *= downSampling;
-				s[ 2 ] *= downSampling;
-			}
-			
-			s[ 0 ] += bb.min( 0 );
-			s[ 1 ] += bb.min( 1 );
-			s[ 2 ] += bb.min( 2 );
-			
+
+			// only views that overlap the current scanline are tested
+			scanline.localize( cursor );
+
 			double sum = 0;
 			int sumW = 0;
-			
-			for ( int i = 0; i < numViews; ++i )
-			{				
-				transforms[ i ].applyInverse( t, s );
-				
-				if ( FusionHelper.intersects( t[ 0 ], t[ 1 ], t[ 2 ], imgSizes[ i ][ 0 ], imgSizes[ i ][ 1 ], imgSizes[ i ][ 2 ] ) )
+
+			for ( int k = 0; k < scanline.numActive(); ++k )
+			{
+				final int i = scanline.activeView( k );
+
+				if ( scanline.contributes( i ) )
 				{
+					final double[] t = scanline.position( i );
+
 					final RealRandomAccess< T > r = interpolators.get( i );
 					r.setPosition( t );
 					sum += r.get().getRealDouble();
 					++sumW;
 				}
 			}
-			
+
 			if ( sumW > 0 )
 				v.setReal( sum / sumW );
 		}
@@ -13,7 +13,6 @@ import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
-import spim.process.fusion.FusionHelper;
 import spim.process.fusion.ImagePortion;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 
@@ -37,7 +36,20 @@ public class ProcessParalellPortionWeight< T extends RealType< T > > extends Pro
 			final Img< T > fusedImg,
 			final BoundingBoxGUI bb )
 	{
-		super( portion, imgs, interpolatorFactory, transforms, fusedImg, bb );
+		this( portion, imgs, weights, interpolatorFactory, transforms, fusedImg, bb, new long[ 3 ] );
+	}
+
+	public ProcessParalellPortionWeight(
+			final ImagePortion portion,
+			final ArrayList< RandomAccessibleInterval< T > > imgs,
+			final ArrayList< RealRandomAccessible< FloatType > > weights,
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
+			final AffineTransform3D[] transforms,
+			final Img< T > fusedImg,
+			final BoundingBoxGUI bb,
+			final long[] offset )
+	{
+		super( portion, imgs, interpolatorFactory, transforms, fusedImg, bb, offset );
 		
 		this.weights = weights;
 	}
@@ -63,37 +75,29 @@ public class ProcessParalellPortionWeight< T extends RealType< T > > extends Pro
 		}
 
 		final Cursor< T > cursor = fusedImg.localizingCursor();
-		final float[] s = new float[ 3 ];
-		final float[] t = new float[ 3 ];
-		
+		final FusionScanline scanline = new FusionScanline( transforms, imgSizes, bb, offset );
+
 		cursor.jumpFwd( portion.getStartPosition() );
-		
+
 		for ( int j = 0; j < portion.getLoopSize(); ++j )
 		{
 			// move img cursor forward any get the value (saves one access)
 			final T v = cursor.next();
-			cursor.localize( s );
-			
-			if ( doDownSampling )
-			{
-				s[ 0 ] *= downSampling;
-				s[ 1 ] *= downSampling;
-				s[ 2 ] *= downSampling;
-			}
-			
-			s[ 0 ] += bb.min( 0 );
-			s[ 1 ] += bb.min( 1 );
-			s[ 2 ] += bb.min( 2 );
-			
+
+			// only views that overlap the current scanline are tested
+			scanline.localize( cursor );
+
 			double sum = 0;
 			double sumW = 0;
-			
-			for ( int i = 0; i < numViews; ++i )
-			{				
-				transforms[ i ].applyInverse( t, s );
-				
-				if ( FusionHelper.intersects( t[ 0 ], t[ 1 ], t[ 2 ], imgSizes[ i ][ 0 ], imgSizes[ i ][ 1 ], imgSizes[ i ][ 2 ] ) )
+
+			for ( int k = 0; k < scanline.numActive(); ++k )
+			{
+				final int i = scanline.activeView( k );
+
+				if ( scanline.contributes( i ) )
 				{
+					final double[] t = scanline.position( i );
+
 					final RealRandomAccess< T > r = interpolators.get( i );
 					r.setPosition( t );
 					
@@ -106,7 +110,7 @@ public class ProcessParalellPortionWeight< T extends RealType< T > > extends Pro
 					sumW += w;
 				}
 			}
-			
+
 			if ( sumW > 0 )
 				v.setReal( sum / sumW );
 		}
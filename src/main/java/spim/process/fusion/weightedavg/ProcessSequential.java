@@ -14,14 +14,21 @@ import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
 import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.img.Img;
 import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
 import spim.Threads;
 import spim.fiji.spimdata.SpimData2;
 import spim.process.fusion.FusionHelper;
@@ -31,6 +38,7 @@ import spim.process.fusion.boundingbox.BoundingBoxGUI;
 public class ProcessSequential extends ProcessFusion
 {
 	final int numSequentialViews;
+	final boolean compactAccumulation;
 	
 	public ProcessSequential(
 			final SpimData2 spimData,
@@ -39,10 +47,26 @@ public class ProcessSequential extends ProcessFusion
 			final boolean useBlending,
 			final boolean useContentBased,
 			final int numSequentialViews )
+	{
+		this( spimData, viewIdsToProcess, bb, useBlending, useContentBased, numSequentialViews, false );
+	}
+
+	/**
+	 * @param compactAccumulation - accumulate a float weighted average and 16 bit fixed-point weights only over the footprint of all views
+	 */
+	public ProcessSequential(
+			final SpimData2 spimData,
+			final List< ViewId > viewIdsToProcess,
+			final BoundingBoxGUI bb,
+			final boolean useBlending,
+			final boolean useContentBased,
+			final int numSequentialViews,
+			final boolean compactAccumulation )
 	{
 		super( spimData, viewIdsToProcess, bb, useBlending, useContentBased );
 		
 		this.numSequentialViews = numSequentialViews;
+		this.compactAccumulation = compactAccumulation;
 	}
 
 	/** 
@@ -72,6 +96,9 @@ public class ProcessSequential extends ProcessFusion
 		if ( allInputData.size() == 0 )
 			return null;
 
+		if ( compactAccumulation )
+			return fuseStackCompact( type, interpolatorFactory, allInputData );
+
 		// try creating the output (type needs to be there to define T)
 		final Img< T > fusedImg = bb.getImgFactory( type ).create( bb.getDimensions(), type );
 
@@ -105,19 +132,21 @@ public class ProcessSequential extends ProcessFusion
 			
 			// same as in the paralell fusion now more or less
 			final ArrayList< RandomAccessibleInterval< T > > imgs = new ArrayList< RandomAccessibleInterval< T > >();
+			final AffineTransform3D[] transforms = getTransforms( inputData );
+			final double[][] levelFactors = new double[ inputData.size() ][ 3 ];
 
 			for ( int i = 0; i < inputData.size(); ++i )
 			{
 				final ViewDescription vd = inputData.get( i );
 				IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Requesting Img from ImgLoader (tp=" + vd.getTimePointId() + ", setup=" + vd.getViewSetupId() + ")" );
-				imgs.add( getImage( type, spimData, vd, false ) );
+				imgs.add( getImage( type, vd, transforms[ i ], levelFactors[ i ] ) );
 			}
 			
 			// get all weighting methods
 			final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights = new ArrayList< ArrayList< RealRandomAccessible< FloatType > > >();
 			
 			for ( int i = 0; i < inputData.size(); ++i )
-				weights.add( getAllWeights( imgs.get( i ), inputData.get( i ), spimData.getSequenceDescription().getImgLoader() ) );
+				weights.add( getAllWeights( imgs.get( i ), inputData.get( i ), spimData.getSequenceDescription().getImgLoader(), levelFactors[ i ] ) );
 			
 			// split up into many parts for multithreading
 			final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( fusedImg.size(), Threads.numThreads() * 4 );
@@ -129,12 +158,12 @@ public class ProcessSequential extends ProcessFusion
 			if ( weights.get( 0 ).size() == 0 ) // no weights
 			{		
 				for ( final ImagePortion portion : portions )
-					tasks.add( new ProcessSequentialPortion< T >( portion, imgs, interpolatorFactory, getTransforms( inputData ), fusedImg, weightImg, bb ) );
+					tasks.add( new ProcessSequentialPortion< T >( portion, imgs, interpolatorFactory, transforms, fusedImg, weightImg, bb ) );
 			}
 			else if ( weights.get( 0 ).size() > 1 ) // many weights
 			{
 				for ( final ImagePortion portion : portions )
-					tasks.add( new ProcessSequentialPortionWeights< T >( portion, imgs, weights, interpolatorFactory, getTransforms( inputData ), fusedImg, weightImg, bb ) );
+					tasks.add( new ProcessSequentialPortionWeights< T >( portion, imgs, weights, interpolatorFactory, transforms, fusedImg, weightImg, bb ) );
 			}
 			else // one weight
 			{
@@ -144,7 +173,7 @@ public class ProcessSequential extends ProcessFusion
 					singleWeight.add( weights.get( i ).get( 0 ) );
 				
 				for ( final ImagePortion portion : portions )
-					tasks.add( new ProcessSequentialPortionWeight< T >( portion, imgs, singleWeight, interpolatorFactory, getTransforms( inputData ), fusedImg, weightImg, bb ) );
+					tasks.add( new ProcessSequentialPortionWeight< T >( portion, imgs, singleWeight, interpolatorFactory, transforms, fusedImg, weightImg, bb ) );
 			}
 
 			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Starting fusion process.");
@@ -170,6 +199,147 @@ public class ProcessSequential extends ProcessFusion
 		return fusedImg;
 	}
 	
+	/**
+	 * Fuses one stack in batches, storing only the weighted average (float) and the sum of weights (16 bit fixed point)
+	 * over the union of the footprints of all views. A FloatType output is updated in place, any other output type is
+	 * accumulated in a float image that is converted at the end.
+	 * 
+	 * @param type
+	 * @param interpolatorFactory
+	 * @param allInputData - all views of the stack
+	 * @return the fused image
+	 */
+	@SuppressWarnings( "unchecked" )
+	protected < T extends RealType< T > & NativeType< T > > Img< T > fuseStackCompact(
+			final T type,
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
+			final ArrayList< ViewDescription > allInputData )
+	{
+		// the output (zero where no view contributes)
+		final Img< T > fusedImg = bb.getImgFactory( type ).create( bb.getDimensions(), type );
+
+		if ( fusedImg == null )
+		{
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): WeightedAverageFusion: Cannot create output image."  );
+			return null;
+		}
+
+		// only the union of the footprints of all views needs weights
+		final Interval union = getFootprint( allInputData );
+		final long[] unionMin = new long[ 3 ];
+		union.min( unionMin );
+
+		IOFunctions.println(
+				"(" + new Date(System.currentTimeMillis()) + "): Footprint of all views: " + Util.printInterval( union ) + " (" +
+				Math.round( 100.0 * Intervals.numElements( union ) / fusedImg.size() ) + "% of the bounding box)" );
+
+		final Img< UnsignedShortType > weightImg = bb.getImgFactory( new UnsignedShortType() ).create( union, new UnsignedShortType() );
+
+		// the weighted average in the coordinates of the weight image
+		final Img< FloatType > averageImg;
+		final RandomAccessible< FloatType > average;
+
+		if ( FloatType.class.isInstance( type ) )
+		{
+			averageImg = null;
+			average = Views.translate( (Img< FloatType >)(Object)fusedImg, -unionMin[ 0 ], -unionMin[ 1 ], -unionMin[ 2 ] );
+		}
+		else
+		{
+			averageImg = bb.getImgFactory( new FloatType() ).create( union, new FloatType() );
+			average = averageImg;
+		}
+
+		// every view contributes a weight of at most 1
+		final double weightScale = 65535.0 / allInputData.size();
+
+		for ( int batch = 0; batch < numBatches( allInputData.size(), numSequentialViews ); ++batch )
+		{
+			final int start = batch * numSequentialViews;
+			final int end = Math.min( ( batch + 1 ) * numSequentialViews, allInputData.size() );
+			
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Fusing view " + start + " ... " + (end-1) + " of " + (allInputData.size()-1) );
+			
+			final ArrayList< ViewDescription > inputData = new ArrayList< ViewDescription >();
+			
+			for ( int i = start; i < end; ++i )
+				inputData.add( allInputData.get( i ) );
+
+			final ArrayList< RandomAccessibleInterval< T > > imgs = new ArrayList< RandomAccessibleInterval< T > >();
+			final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights = new ArrayList< ArrayList< RealRandomAccessible< FloatType > > >();
+			final AffineTransform3D[] transforms = getTransforms( inputData );
+			final double[][] levelFactors = new double[ inputData.size() ][ 3 ];
+
+			for ( int i = 0; i < inputData.size(); ++i )
+			{
+				final ViewDescription vd = inputData.get( i );
+				IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Requesting Img from ImgLoader (tp=" + vd.getTimePointId() + ", setup=" + vd.getViewSetupId() + ")" );
+				imgs.add( getImage( type, vd, transforms[ i ], levelFactors[ i ] ) );
+				weights.add( getAllWeights( imgs.get( i ), vd, spimData.getSequenceDescription().getImgLoader(), levelFactors[ i ] ) );
+			}
+
+			// split up into many parts for multithreading
+			final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( weightImg.size(), Threads.numThreads() * 4 );
+
+			// set up executor service
+			final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+			final ArrayList< ProcessSequentialPortionCompact< T > > tasks = new ArrayList< ProcessSequentialPortionCompact< T > >();
+
+			for ( final ImagePortion portion : portions )
+				tasks.add( new ProcessSequentialPortionCompact< T >( portion, imgs, weights, interpolatorFactory, transforms, average, weightImg, bb, unionMin, weightScale ) );
+
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Starting fusion process.");
+
+			try
+			{
+				// invokeAll() returns when all tasks are complete
+				taskExecutor.invokeAll( tasks );
+			}
+			catch ( final InterruptedException e )
+			{
+				IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Failed to compute fusion: " + e );
+				e.printStackTrace();
+				taskExecutor.shutdown();
+				return null;
+			}
+
+			taskExecutor.shutdown();
+		}
+
+		// convert the weighted average to the output type
+		if ( averageImg != null )
+		{
+			final Cursor< FloatType > c = averageImg.localizingCursor();
+			final RandomAccess< T > r = Views.translate( fusedImg, -unionMin[ 0 ], -unionMin[ 1 ], -unionMin[ 2 ] ).randomAccess();
+
+			while ( c.hasNext() )
+			{
+				c.fwd();
+				r.setPosition( c );
+				r.get().setReal( Math.max( r.get().getMinValue(), Math.min( r.get().getMaxValue(), Math.round( c.get().get() ) ) ) );
+			}
+		}
+
+		return fusedImg;
+	}
+
+	/**
+	 * @param inputData - the views
+	 * @return the union of the footprints of the views in the (downsampled) bounding box
+	 */
+	protected Interval getFootprint( final ArrayList< ViewDescription > inputData )
+	{
+		Interval union = null;
+
+		for ( final ViewDescription vd : inputData )
+		{
+			final Interval footprint = getFootprint( vd, getTransform( vd ) );
+			union = union == null ? footprint : Intervals.union( union, footprint );
+		}
+
+		return union;
+	}
+
 	protected < T extends RealType< T > > void mergeFinalImage( final Img< T > img, final Img< FloatType > weights )
 	{
 		// split up into many parts for multithreading
@@ -0,0 +1,165 @@
+package spim.process.fusion.weightedavg;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.img.Img;
+import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import spim.process.fusion.ImagePortion;
+import spim.process.fusion.boundingbox.BoundingBoxGUI;
+
+/**
+ * Fuse one portion of a sequential fusion with compact accumulation, supports any number of weight functions.
+ *
+ * Instead of the sums of intensities and weights, the weighted average of all views fused so far is stored
+ * (as float) together with the sum of their weights (as 16 bit fixed point). Every batch of views updates the
+ * average incrementally, so no final division is necessary and the result is always a weighted average of the
+ * input views, the limited precision of the weights only slightly changes the relative influence of the batches.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ *
+ * @param <T>
+ */
+public class ProcessSequentialPortionCompact< T extends RealType< T > > implements Callable< String >
+{
+	final ImagePortion portion;
+	final ArrayList< RandomAccessibleInterval< T > > imgs;
+	final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights;
+	final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory;
+	final AffineTransform3D[] transforms;
+	final RandomAccessible< FloatType > average;
+	final Img< UnsignedShortType > weightImg;
+	final BoundingBoxGUI bb;
+	final long[] offset;
+	final double weightScale;
+
+	/**
+	 * @param portion - the portion of weightImg that is processed
+	 * @param imgs - the input views of this batch
+	 * @param weights - the weight functions of each view (can be empty)
+	 * @param interpolatorFactory - how to interpolate the input views
+	 * @param transforms - the transformations of the views
+	 * @param average - the weighted average so far, in the same coordinates as weightImg
+	 * @param weightImg - the sum of weights so far as fixed point
+	 * @param bb - the bounding box
+	 * @param offset - the position of weightImg inside the (downsampled) bounding box
+	 * @param weightScale - the value of a summed weight of 1 in weightImg
+	 */
+	public ProcessSequentialPortionCompact(
+			final ImagePortion portion,
+			final ArrayList< RandomAccessibleInterval< T > > imgs,
+			final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights,
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
+			final AffineTransform3D[] transforms,
+			final RandomAccessible< FloatType > average,
+			final Img< UnsignedShortType > weightImg,
+			final BoundingBoxGUI bb,
+			final long[] offset,
+			final double weightScale )
+	{
+		this.portion = portion;
+		this.imgs = imgs;
+		this.weights = weights;
+		this.interpolatorFactory = interpolatorFactory;
+		this.transforms = transforms;
+		this.average = average;
+		this.weightImg = weightImg;
+		this.bb = bb;
+		this.offset = offset;
+		this.weightScale = weightScale;
+	}
+
+	@Override
+	public String call() throws Exception
+	{
+		final int numViews = imgs.size();
+
+		// make the interpolators, weights and get the transformations
+		final ArrayList< RealRandomAccess< T > > interpolators = new ArrayList< RealRandomAccess< T > >( numViews );
+		final ArrayList< ArrayList< RealRandomAccess< FloatType > > > weightAccess = new ArrayList< ArrayList< RealRandomAccess< FloatType > > >();
+		final int[][] imgSizes = new int[ numViews ][ 3 ];
+
+		for ( int i = 0; i < numViews; ++i )
+		{
+			final RandomAccessibleInterval< T > img = imgs.get( i );
+			imgSizes[ i ] = new int[]{ (int)img.dimension( 0 ), (int)img.dimension( 1 ), (int)img.dimension( 2 ) };
+
+			interpolators.add( Views.interpolate( Views.extendMirrorSingle( img ), interpolatorFactory ).realRandomAccess() );
+
+			final ArrayList< RealRandomAccess< FloatType > > list = new ArrayList< RealRandomAccess< FloatType > >();
+
+			for ( final RealRandomAccessible< FloatType > rra : weights.get( i ) )
+				list.add( rra.realRandomAccess() );
+
+			weightAccess.add( list );
+		}
+
+		final Cursor< UnsignedShortType > cursorW = weightImg.localizingCursor();
+		final RandomAccess< FloatType > ra = average.randomAccess();
+		final FusionScanline scanline = new FusionScanline( transforms, imgSizes, bb, offset );
+
+		cursorW.jumpFwd( portion.getStartPosition() );
+
+		for ( int j = 0; j < portion.getLoopSize(); ++j )
+		{
+			final UnsignedShortType w = cursorW.next();
+
+			// only views that overlap the current scanline are tested
+			scanline.localize( cursorW );
+
+			double sum = 0;
+			double sumW = 0;
+
+			for ( int k = 0; k < scanline.numActive(); ++k )
+			{
+				final int i = scanline.activeView( k );
+
+				if ( scanline.contributes( i ) )
+				{
+					final double[] t = scanline.position( i );
+
+					final RealRandomAccess< T > r = interpolators.get( i );
+					r.setPosition( t );
+
+					double w1 = 1;
+
+					for ( final RealRandomAccess< FloatType > weight : weightAccess.get( i ) )
+					{
+						weight.setPosition( t );
+						w1 *= weight.get().get();
+					}
+
+					sum += r.get().getRealDouble() * w1;
+					sumW += w1;
+				}
+			}
+
+			if ( sumW > 0 )
+			{
+				ra.setPosition( cursorW );
+				final FloatType v = ra.get();
+
+				// update the weighted average of all views fused so far
+				final double oldW = w.get() / weightScale;
+				final double newW = oldW + sumW;
+				final double avg = v.get();
+
+				v.set( (float)( avg + ( sum - avg * sumW ) / newW ) );
+				w.set( (int)Math.min( 65535, Math.round( newW * weightScale ) ) );
+			}
+		}
+
+		return portion + " finished successfully (compact).";
+	}
+}
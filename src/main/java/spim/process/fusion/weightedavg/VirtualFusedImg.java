@@ -0,0 +1,355 @@
+package spim.process.fusion.weightedavg;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewDescription;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.AbstractInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.real.FloatType;
+import spim.Threads;
+import spim.process.fusion.FusionHelper;
+import spim.process.fusion.ImagePortion;
+
+/**
+ * A fused image (one timepoint and channel) that is computed lazily. It is divided into cells, every cell is
+ * fused in the background when it is accessed for the first time and kept in a bounded LRU cache. Until a cell
+ * is fused it reads as zero, so the rendering threads of the BigDataViewer never wait for it; a repaint is
+ * requested whenever a cell is done. The input views and their weights are loaded (also in the background)
+ * when the first cell is fused.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class VirtualFusedImg extends AbstractInterval implements RandomAccessibleInterval< FloatType >
+{
+	public static int defaultCellSize = 64;
+	public static int defaultCacheSizeMB = 1024;
+
+	// fuses the cells of all virtual fusions, daemon threads so it does not keep Fiji alive
+	final static ExecutorService service = Executors.newFixedThreadPool( Threads.numThreads(), new ThreadFactory()
+	{
+		@Override
+		public Thread newThread( final Runnable r )
+		{
+			final Thread t = new Thread( r, "VirtualFusion" );
+			t.setDaemon( true );
+			return t;
+		}
+	} );
+
+	final ProcessParalell process;
+	final TimePoint timepoint;
+	final Channel channel;
+	final InterpolatorFactory< FloatType, RandomAccessible< FloatType > > interpolatorFactory;
+	final Runnable requestRepaint;
+
+	final int cellSize;
+	final long[] numCells;
+	final int maxCells;
+
+	final LinkedHashMap< Long, FutureTask< float[] > > cells;
+
+	// the input, loaded when the first cell is fused
+	boolean initialized = false;
+	ArrayList< RandomAccessibleInterval< FloatType > > imgs;
+	ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights;
+	AffineTransform3D[] transforms;
+
+	/**
+	 * @param process - defines the views, bounding box and weights
+	 * @param timepoint - the timepoint to fuse
+	 * @param channel - the channel to fuse
+	 * @param interpolatorFactory - how to interpolate the input views
+	 * @param requestRepaint - called whenever a cell was fused (e.g. to repaint the BigDataViewer), can be null
+	 * @param cellSize - the size of the cells in each dimension
+	 * @param cacheSizeMB - the maximal amount of memory used by the cached cells
+	 */
+	public VirtualFusedImg(
+			final ProcessParalell process,
+			final TimePoint timepoint,
+			final Channel channel,
+			final InterpolatorFactory< FloatType, RandomAccessible< FloatType > > interpolatorFactory,
+			final Runnable requestRepaint,
+			final int cellSize,
+			final int cacheSizeMB )
+	{
+		super( process.bb.getDimensions() );
+
+		this.process = process;
+		this.timepoint = timepoint;
+		this.channel = channel;
+		this.interpolatorFactory = interpolatorFactory;
+		this.requestRepaint = requestRepaint;
+		this.cellSize = cellSize;
+
+		this.numCells = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+			numCells[ d ] = ( dimension( d ) + cellSize - 1 ) / cellSize;
+
+		this.maxCells = (int)Math.max( 1, ( cacheSizeMB * 1024l * 1024l ) / ( 4l * cellSize * cellSize * cellSize ) );
+
+		this.cells = new LinkedHashMap< Long, FutureTask< float[] > >( 16, 0.75f, true )
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry( final Map.Entry< Long, FutureTask< float[] > > eldest )
+			{
+				if ( size() <= maxCells )
+					return false;
+
+				// nobody looked at it for a long time, no need to fuse it anymore
+				eldest.getValue().cancel( false );
+
+				return true;
+			}
+		};
+	}
+
+	public VirtualFusedImg( final ProcessParalell process, final TimePoint timepoint, final Channel channel, final InterpolatorFactory< FloatType, RandomAccessible< FloatType > > interpolatorFactory, final Runnable requestRepaint )
+	{
+		this( process, timepoint, channel, interpolatorFactory, requestRepaint, defaultCellSize, defaultCacheSizeMB );
+	}
+
+	/**
+	 * Removes all fused cells from the cache and cancels the cells that are not fused yet, called when the
+	 * image is not displayed anymore
+	 */
+	public void clearCache()
+	{
+		synchronized ( cells )
+		{
+			for ( final FutureTask< float[] > task : cells.values() )
+				task.cancel( false );
+
+			cells.clear();
+		}
+	}
+
+	protected synchronized void init()
+	{
+		if ( initialized )
+			return;
+
+		// do not try again for every cell if loading fails
+		initialized = true;
+
+		final ArrayList< ViewDescription > inputData =
+				FusionHelper.assembleInputData( process.spimData, timepoint, channel, process.viewIdsToProcess );
+
+		if ( inputData.size() > 0 )
+		{
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Loading " + inputData.size() + " views for virtual fusion (tp=" + timepoint.getName() + ", ch=" + channel.getName() + ")" );
+
+			final double[][] levelFactors = new double[ inputData.size() ][ 3 ];
+
+			final AffineTransform3D[] transforms = process.getTransforms( inputData );
+			final ArrayList< RandomAccessibleInterval< FloatType > > imgs = process.loadImages( new FloatType(), inputData, transforms, levelFactors );
+			final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights = process.loadWeights( imgs, inputData, levelFactors );
+
+			// only fuse if everything could be loaded
+			this.transforms = transforms;
+			this.weights = weights;
+			this.imgs = imgs;
+		}
+	}
+
+	/**
+	 * @param index - the index of the cell
+	 * @return the pixels of the cell or null if it is not fused yet (it is submitted for fusion if necessary)
+	 */
+	protected float[] getCell( final long index )
+	{
+		FutureTask< float[] > task;
+
+		synchronized ( cells )
+		{
+			task = cells.get( index );
+
+			if ( task == null )
+			{
+				task = new FutureTask< float[] >( new FuseCell( index ) )
+				{
+					@Override
+					protected void done()
+					{
+						if ( !isCancelled() && requestRepaint != null )
+							requestRepaint.run();
+					}
+				};
+
+				cells.put( index, task );
+				service.execute( task );
+			}
+		}
+
+		if ( !task.isDone() )
+			return null;
+
+		try
+		{
+			return task.get();
+		}
+		catch ( final CancellationException e )
+		{
+			// the cache was cleared in the meantime
+			return null;
+		}
+		catch ( final InterruptedException e )
+		{
+			return null;
+		}
+		catch ( final ExecutionException e )
+		{
+			// cannot happen, FuseCell handles all errors
+			return null;
+		}
+	}
+
+	protected void getCellMinAndDimensions( final long index, final long[] cellMin, final long[] cellDim )
+	{
+		long i = index;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			cellMin[ d ] = ( i % numCells[ d ] ) * cellSize;
+			cellDim[ d ] = Math.min( cellSize, dimension( d ) - cellMin[ d ] );
+			i /= numCells[ d ];
+		}
+	}
+
+	protected class FuseCell implements Callable< float[] >
+	{
+		final long index;
+
+		public FuseCell( final long index ) { this.index = index; }
+
+		@Override
+		public float[] call()
+		{
+			final long[] cellMin = new long[ n ];
+			final long[] cellDim = new long[ n ];
+
+			getCellMinAndDimensions( index, cellMin, cellDim );
+
+			final ArrayImg< FloatType, FloatArray > cell = ArrayImgs.floats( cellDim );
+
+			try
+			{
+				init();
+
+				if ( imgs != null )
+					process.createPortion( new ImagePortion( 0, cell.size() ), imgs, weights, interpolatorFactory, transforms, cell, cellMin ).call();
+			}
+			catch ( final Exception e )
+			{
+				// keep the (empty) cell so it is not fused over and over again
+				IOFunctions.println( "Failed to fuse cell " + index + ": " + e );
+				e.printStackTrace();
+			}
+
+			return cell.update( null ).getCurrentStorageArray();
+		}
+	}
+
+	@Override
+	public RandomAccess< FloatType > randomAccess() { return new VirtualFusedRandomAccess(); }
+
+	@Override
+	public RandomAccess< FloatType > randomAccess( final Interval interval ) { return randomAccess(); }
+
+	public class VirtualFusedRandomAccess extends Point implements RandomAccess< FloatType >
+	{
+		final FloatType type = new FloatType();
+
+		// the cell that was accessed last
+		long currentCell = -1;
+		float[] data;
+		final long[] cellMin, cellDim;
+
+		public VirtualFusedRandomAccess()
+		{
+			super( VirtualFusedImg.this.n );
+
+			this.cellMin = new long[ n ];
+			this.cellDim = new long[ n ];
+		}
+
+		@Override
+		public FloatType get()
+		{
+			long index = 0;
+
+			for ( int d = n - 1; d >= 0; --d )
+			{
+				if ( position[ d ] < 0 || position[ d ] >= dimension( d ) )
+				{
+					type.setZero();
+					return type;
+				}
+
+				index = index * numCells[ d ] + position[ d ] / cellSize;
+			}
+
+			if ( index != currentCell )
+			{
+				final float[] cellData = getCell( index );
+
+				// not fused yet, show it as empty and ask again next time
+				if ( cellData == null )
+				{
+					type.setZero();
+					return type;
+				}
+
+				data = cellData;
+				getCellMinAndDimensions( index, cellMin, cellDim );
+				currentCell = index;
+			}
+
+			long i = 0;
+
+			for ( int d = n - 1; d >= 0; --d )
+				i = i * cellDim[ d ] + position[ d ] - cellMin[ d ];
+
+			type.set( data[ (int)i ] );
+
+			return type;
+		}
+
+		@Override
+		public VirtualFusedRandomAccess copy() { return copyRandomAccess(); }
+
+		@Override
+		public VirtualFusedRandomAccess copyRandomAccess()
+		{
+			final VirtualFusedRandomAccess ra = new VirtualFusedRandomAccess();
+			ra.setPosition( this );
+
+			return ra;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package spim.process.fusion.weightedavg;
+
+import java.util.List;
+
+import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import spim.fiji.spimdata.SpimData2;
+import spim.process.fusion.FusionHelper;
+import spim.process.fusion.boundingbox.BoundingBoxGUI;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+
+/**
+ * A BigDataViewer {@link Source} that shows the weighted-average fusion of one channel without computing
+ * it beforehand, it is backed by a {@link VirtualFusedImg} for the currently displayed timepoint.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class VirtualFusionSource implements Source< FloatType >
+{
+	final ProcessParalell process;
+	final BoundingBoxGUI bb;
+	final Channel channel;
+	final String name;
+	final List< TimePoint > timepoints;
+	final Boolean[] present;
+	final VoxelDimensions voxelSize;
+	final Runnable requestRepaint;
+
+	int currentTimepoint = -1;
+	VirtualFusedImg currentImg = null;
+
+	/**
+	 * @param spimData - the dataset (timepoint indices refer to its ordered timepoints)
+	 * @param viewIdsToProcess - the views that are fused
+	 * @param bb - the bounding box (including downsampling)
+	 * @param channel - the channel that is fused
+	 * @param useBlending - use blending weights
+	 * @param useContentBased - use content-based weights
+	 * @param name - the name of the source
+	 * @param requestRepaint - called whenever a part of the fused image was computed, can be null
+	 */
+	public VirtualFusionSource(
+			final SpimData2 spimData,
+			final List< ViewId > viewIdsToProcess,
+			final BoundingBoxGUI bb,
+			final Channel channel,
+			final boolean useBlending,
+			final boolean useContentBased,
+			final String name,
+			final Runnable requestRepaint )
+	{
+		this.process = new ProcessParalell( spimData, viewIdsToProcess, bb, useBlending, useContentBased );
+		this.bb = bb;
+		this.channel = channel;
+		this.name = name;
+		this.timepoints = spimData.getSequenceDescription().getTimePoints().getTimePointsOrdered();
+		this.present = new Boolean[ timepoints.size() ];
+		this.voxelSize = spimData.getSequenceDescription().getViewSetupsOrdered().get( 0 ).getVoxelSize();
+		this.requestRepaint = requestRepaint;
+	}
+
+	@Override
+	public synchronized boolean isPresent( final int t )
+	{
+		if ( t < 0 || t >= timepoints.size() )
+			return false;
+
+		if ( present[ t ] == null )
+			present[ t ] = FusionHelper.assembleInputData( process.spimData, timepoints.get( t ), channel, process.viewIdsToProcess ).size() > 0;
+
+		return present[ t ];
+	}
+
+	@Override
+	public synchronized RandomAccessibleInterval< FloatType > getSource( final int t, final int level )
+	{
+		// only one timepoint is kept, the input views of a timepoint need a lot of memory
+		if ( t != currentTimepoint )
+		{
+			// free the cells of the previous timepoint and stop fusing them
+			if ( currentImg != null )
+				currentImg.clearCache();
+
+			currentImg = new VirtualFusedImg( process, timepoints.get( t ), channel, new NLinearInterpolatorFactory< FloatType >(), requestRepaint );
+			currentTimepoint = t;
+		}
+
+		return currentImg;
+	}
+
+	@Override
+	public RealRandomAccessible< FloatType > getInterpolatedSource( final int t, final int level, final Interpolation method )
+	{
+		if ( method == Interpolation.NLINEAR )
+			return Views.interpolate( Views.extendZero( getSource( t, level ) ), new NLinearInterpolatorFactory< FloatType >() );
+		else
+			return Views.interpolate( Views.extendZero( getSource( t, level ) ), new NearestNeighborInterpolatorFactory< FloatType >() );
+	}
+
+	@Override
+	public void getSourceTransform( final int t, final int level, final AffineTransform3D transform )
+	{
+		final double scale = bb.getDownSampling();
+
+		transform.set( scale, 0.0, 0.0, bb.min( 0 ),
+					   0.0, scale, 0.0, bb.min( 1 ),
+					   0.0, 0.0, scale, bb.min( 2 ) );
+	}
+
+	public AffineTransform3D getSourceTransform( final int t, final int level )
+	{
+		final AffineTransform3D transform = new AffineTransform3D();
+		getSourceTransform( t, level, transform );
+
+		return transform;
+	}
+
+	@Override
+	public FloatType getType() { return new FloatType(); }
+
+	@Override
+	public String getName() { return name; }
+
+	public VoxelDimensions getVoxelDimensions() { return voxelSize; }
+
+	@Override
+	public int getNumMipmapLevels() { return 1; }
+}
@@ -3,9 +3,18 @@ package spim.process.fusion.weightedavg;
 import ij.gui.GenericDialog;
 
 import java.awt.Choice;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import mpicbg.spim.data.sequence.Angle;
 import mpicbg.spim.data.sequence.Channel;
@@ -15,22 +24,32 @@ import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.data.sequence.ViewSetup;
+import mpicbg.spim.io.IOFunctions;
 import net.imglib2.FinalDimensions;
 import net.imglib2.RandomAccessible;
+import net.imglib2.img.Img;
 import net.imglib2.interpolation.InterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
+import spim.Threads;
+import spim.fiji.ImgLib2Temp.Pair;
+import spim.fiji.ImgLib2Temp.ValuePair;
 import spim.fiji.plugin.Apply_Transformation;
 import spim.fiji.plugin.fusion.Fusion;
+import spim.fiji.plugin.util.GUIHelper;
 import spim.fiji.spimdata.SpimData2;
 import spim.process.fusion.FusionHelper;
+import spim.process.fusion.PipelineMemory;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 import spim.process.fusion.export.FixedNameImgTitler;
 import spim.process.fusion.export.ImgExport;
+import spim.process.fusion.export.ImgExportBlocks;
 import spim.process.fusion.export.ImgExportTitle;
+import spim.process.fusion.weightedavg.ProcessParalell.PreparedStack;
 
 public class WeightedAverageFusion extends Fusion
 {
@@ -39,6 +58,17 @@ public class WeightedAverageFusion extends Fusion
 	
 	public static int defaultNumParalellViewsIndex = 0;
 	protected int numParalellViews = 1;
+
+	public static boolean defaultFuseBlockwise = false;
+	protected boolean fuseBlockwise = false;
+
+	public static boolean defaultPipelined = false;
+	public static long defaultPipelineMemoryMB = -1;
+	protected boolean pipelined = false;
+	protected long pipelineMemoryMB;
+
+	public static boolean defaultCompactAccumulation = false;
+	protected boolean compactAccumulation = false;
 	
 	protected Choice sequentialViews = null;
 
@@ -75,42 +105,377 @@ public class WeightedAverageFusion extends Fusion
 		if ( getFusionType() == WeightedAvgFusionType.FUSEDATA && numParalellViews == 0 )
 			process = new ProcessParalell( spimData, viewIdsToProcess, bb, useBlending, useContentBased );
 		else if ( getFusionType() == WeightedAvgFusionType.FUSEDATA )
-			process = new ProcessSequential( spimData, viewIdsToProcess, bb, useBlending, useContentBased, numParalellViews );
+			process = new ProcessSequential( spimData, viewIdsToProcess, bb, useBlending, useContentBased, numParalellViews, compactAccumulation );
+		else
+			process = new ProcessIndependent( spimData, viewIdsToProcess, bb, exporter, newViewsetups, fuseBlockwise );
+
+
+		// the fused image is never held in memory entirely, it is written block by block
+		final ProcessParalell blockwise;
+
+		if ( fuseBlockwise && getFusionType() == WeightedAvgFusionType.FUSEDATA && exporter instanceof ImgExportBlocks )
+			blockwise = new ProcessParalell( spimData, viewIdsToProcess, bb, useBlending, useContentBased );
 		else
-			process = new ProcessIndependent( spimData, viewIdsToProcess, bb, exporter, newViewsetups );
+			blockwise = null;
+
+		// one thread pool for all stacks
+		final ExecutorService executorService = Executors.newFixedThreadPool( Threads.numThreads() );
+
+		if ( ProcessParalell.class.isInstance( process ) )
+			( (ProcessParalell)process ).setExecutorService( executorService );
+
+		if ( blockwise != null )
+			blockwise.setExecutorService( executorService );
+
+		try
+		{
+			final boolean success;
+
+			if ( pipelined && ProcessParalell.class.isInstance( process ) && timepointsToProcess.size() * channelsToProcess.size() > 1 )
+			{
+				if ( bb.getPixelType() == 0 )
+					success = fuseDataPipelined( new FloatType(), (ProcessParalell)process, bb, exporter, titler );
+				else
+					success = fuseDataPipelined( new UnsignedShortType(), (ProcessParalell)process, bb, exporter, titler );
+			}
+			else
+			{
+				boolean fused = true;
 
+				try
+				{
+					for ( final TimePoint t : timepointsToProcess )
+						for ( final Channel c : channelsToProcess )
+						{
+							titler.setTitle( getTitle( t, c ) );
+
+							final ViewSetup vs = getNewViewSetup( t, c );
+
+							if ( bb.getPixelType() == 0 )
+							{
+								if ( blockwise == null || !blockwise.fuseStackBlockwise( new FloatType(), getInterpolatorFactory( new FloatType() ), t, c, (ImgExportBlocks)exporter, vs ) )
+									exporter.exportImage( process.fuseStack( new FloatType(), getInterpolatorFactory( new FloatType() ), t , c ), bb, t, vs );
+							}
+							else
+							{
+								if ( blockwise == null || !blockwise.fuseStackBlockwise( new UnsignedShortType(), getInterpolatorFactory( new UnsignedShortType() ), t, c, (ImgExportBlocks)exporter, vs ) )
+									exporter.exportImage( process.fuseStack( new UnsignedShortType(), getInterpolatorFactory( new UnsignedShortType() ), t , c ), bb, t, vs );
+							}
+						}
+				}
+				catch ( final RuntimeException e )
+				{
+					// block-wise fusion failed, the incomplete image was removed
+					IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Fusion failed: " + e );
+					fused = false;
+				}
+
+				success = fused;
+			}
+
+			return success;
+		}
+		finally
+		{
+			executorService.shutdown();
+		}
+	}
+
+	protected String getTitle( final TimePoint t, final Channel c )
+	{
+		final List< Angle > anglesToProcess = SpimData2.getAllAnglesForChannelTimepointSorted( spimData, viewIdsToProcess, c, t );
+		final List< Illumination > illumsToProcess = SpimData2.getAllIlluminationsForChannelTimepointSorted( spimData, viewIdsToProcess, c, t );
+
+		return "TP" + t.getName() + "_Ch" + c.getName() + FusionHelper.getIllumName( illumsToProcess ) + FusionHelper.getAngleName( anglesToProcess );
+	}
+
+	protected ViewSetup getNewViewSetup( final TimePoint t, final Channel c )
+	{
+		final List< Angle > anglesToProcess = SpimData2.getAllAnglesForChannelTimepointSorted( spimData, viewIdsToProcess, c, t );
+		final List< Illumination > illumsToProcess = SpimData2.getAllIlluminationsForChannelTimepointSorted( spimData, viewIdsToProcess, c, t );
+
+		return newViewsetups.get( SpimData2.getViewSetup( spimData.getSequenceDescription().getViewSetupsOrdered(), c, anglesToProcess.get( 0 ), illumsToProcess.get( 0 ) ) );
+	}
+
+	/**
+	 * Fuses all timepoints and channels in a pipeline: a background thread loads the input views (and computes
+	 * the weights) of the next stacks as long as they fit into the memory budget, while the current stack is fused
+	 * and the previous one is exported in another background thread. At most one fused image waits for export.
+	 *
+	 * @param type - the pixel type of the fused images
+	 * @param process - loads and fuses the stacks, all views of a stack are fused in paralell
+	 * @param bb - the bounding box
+	 * @param exporter - the exporter
+	 * @param titler - sets the title of the exported images
+	 * @return true if successful
+	 */
+	protected < T extends RealType< T > & NativeType< T > > boolean fuseDataPipelined(
+			final T type,
+			final ProcessParalell process,
+			final BoundingBoxGUI bb,
+			final ImgExport exporter,
+			final FixedNameImgTitler titler )
+	{
+		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Pipelined fusion, memory for loaded stacks: " + pipelineMemoryMB + " MB" );
+
+		final ArrayList< Pair< TimePoint, Channel > > stacks = new ArrayList< Pair< TimePoint, Channel > >();
 
 		for ( final TimePoint t : timepointsToProcess )
 			for ( final Channel c : channelsToProcess )
+				stacks.add( new ValuePair< TimePoint, Channel >( t, c ) );
+
+		final LinkedBlockingQueue< PipelinedStack< T > > prepared = new LinkedBlockingQueue< PipelinedStack< T > >();
+		final PipelineMemory memory = new PipelineMemory( pipelineMemoryMB );
+		final AtomicBoolean stop = new AtomicBoolean( false );
+
+		// loads the stacks in order
+		final Thread preparation = new Thread( new Runnable()
+		{
+			@Override
+			public void run()
 			{
-				final List< Angle > anglesToProcess = SpimData2.getAllAnglesForChannelTimepointSorted( spimData, viewIdsToProcess, c, t );
-				final List< Illumination > illumsToProcess = SpimData2.getAllIlluminationsForChannelTimepointSorted( spimData, viewIdsToProcess, c, t );
+				long lastSizeMB = 0;
 
-				titler.setTitle( "TP" + t.getName() + "_Ch" + c.getName() + FusionHelper.getIllumName( illumsToProcess ) + FusionHelper.getAngleName( anglesToProcess ) );
-				if ( bb.getPixelType() == 0 )
+				for ( final Pair< TimePoint, Channel > tc : stacks )
 				{
-					exporter.exportImage(
-							process.fuseStack( new FloatType(), getInterpolatorFactory( new FloatType() ), t , c ),
-							bb,
-							t,
-							newViewsetups.get( SpimData2.getViewSetup( spimData.getSequenceDescription().getViewSetupsOrdered(), c, anglesToProcess.get( 0 ), illumsToProcess.get( 0 ) ) ));
+					// wait until the stacks that are not fused yet leave enough memory for one more
+					if ( !memory.waitFor( lastSizeMB ) || stop.get() )
+						return;
+
+					final PreparedStack< T > stack;
+
+					try
+					{
+						stack = process.prepareStack( type.createVariable(), tc.getA(), tc.getB() );
+					}
+					catch ( final Throwable e )
+					{
+						IOFunctions.println( "Failed to load views for timepoint=" + tc.getA().getName() + ", channel=" + tc.getB().getName() + ": " + e );
+						e.printStackTrace();
+
+						// tell the fusion that the run failed, nothing is loaded after that
+						prepared.add( new PipelinedStack< T >( tc, null, 0, true ) );
+						return;
+					}
+
+					lastSizeMB = stack == null ? 0 : stack.getApproximateMemoryMB();
+					memory.add( lastSizeMB );
+
+					prepared.add( new PipelinedStack< T >( tc, stack, lastSizeMB, false ) );
 				}
-				else
+			}
+		}, "fusion-preparation" );
+
+		// exports the fused images in order
+		final ExecutorService exportService = Executors.newSingleThreadExecutor();
+		Future< ? > lastExport = null;
+
+		preparation.start();
+
+		boolean success = true;
+
+		// set if the loop completed without errors, otherwise the preparation is stopped
+		boolean completed = false;
+
+		try
+		{
+			try
+			{
+				for ( int i = 0; i < stacks.size() && success; ++i )
 				{
-					exporter.exportImage(
-							process.fuseStack( new UnsignedShortType(), getInterpolatorFactory( new UnsignedShortType() ), t , c ),
-							bb,
-							t,
-							newViewsetups.get( SpimData2.getViewSetup( spimData.getSequenceDescription().getViewSetupsOrdered(), c, anglesToProcess.get( 0 ), illumsToProcess.get( 0 ) ) ));
+					PipelinedStack< T > p;
+
+					while ( ( p = prepared.poll( 1, TimeUnit.SECONDS ) ) == null )
+					{
+						if ( !preparation.isAlive() && prepared.isEmpty() )
+						{
+							IOFunctions.println( "Loading of the stacks for fusion stopped unexpectedly." );
+							success = false;
+							break;
+						}
+					}
+
+					if ( p == null )
+						break;
+
+					final TimePoint t = p.stack.getA();
+					final Channel c = p.stack.getB();
+
+					if ( p.failed )
+					{
+						IOFunctions.println( "FAILED to load timepoint=" + t.getName() + " (id=" + t.getId() + "), channel=" + c.getName() + " (id=" + c.getId() + "), stopping." );
+						success = false;
+						break;
+					}
+
+					// nothing to fuse for this combination of timepoint and channel
+					if ( p.prepared == null )
+					{
+						memory.release( p.sizeMB );
+						continue;
+					}
+
+					final String title = getTitle( t, c );
+					final ViewSetup vs = getNewViewSetup( t, c );
+
+					// wait for the previous export, so at most one fused image waits for export
+					if ( lastExport != null )
+						lastExport.get();
+
+					// block-wise export is done while fusing
+					if ( fuseBlockwise && ImgExportBlocks.class.isInstance( exporter ) )
+					{
+						titler.setTitle( title );
+
+						if ( process.fuseStackBlockwise( type.createVariable(), getInterpolatorFactory( type ), p.prepared, (ImgExportBlocks)exporter, vs ) )
+						{
+							memory.release( p.sizeMB );
+							continue;
+						}
+					}
+
+					final Img< T > fused = process.fuseStack( type.createVariable(), getInterpolatorFactory( type ), p.prepared );
+
+					// the inputs are not needed anymore
+					memory.release( p.sizeMB );
+
+					if ( fused == null )
+					{
+						IOFunctions.println( "FAILED to fuse timepoint=" + t.getName() + " (id=" + t.getId() + "), channel=" + c.getName() + " (id=" + c.getId() + ")" );
+						success = false;
+						break;
+					}
+
+					lastExport = exportService.submit( new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							try
+							{
+								titler.setTitle( title );
+								exporter.exportImage( fused, bb, t, vs );
+							}
+							catch ( final Throwable e )
+							{
+								IOFunctions.println( "Failed to export '" + title + "': " + e );
+								e.printStackTrace();
+
+								// makes the run fail when waiting for this export
+								throw new RuntimeException( e );
+							}
+						}
+					});
 				}
 			}
+			catch ( final InterruptedException e )
+			{
+				IOFunctions.println( "Pipelined fusion interrupted: " + e );
+				success = false;
+			}
+			catch ( final ExecutionException e )
+			{
+				IOFunctions.println( "Export failed: " + e );
+				success = false;
+			}
+			catch ( final RuntimeException e )
+			{
+				// block-wise fusion failed, the incomplete image was removed
+				IOFunctions.println( "Pipelined fusion failed: " + e );
+				success = false;
+			}
 
-		return true;
+			completed = success;
+		}
+		finally
+		{
+			// also if an Error (e.g. OutOfMemoryError) is thrown, the threads must not keep the prepared stacks or the JVM alive
+			if ( !completed )
+			{
+				stop.set( true );
+				preparation.interrupt();
+			}
+
+			exportService.shutdown();
+		}
+
+		// wait for the remaining exports
+		try
+		{
+			exportService.awaitTermination( Long.MAX_VALUE, TimeUnit.MILLISECONDS );
+		}
+		catch ( final InterruptedException e )
+		{
+			IOFunctions.println( "Interrupted while waiting for the export: " + e );
+			return false;
+		}
+
+		// the last export was not checked yet
+		if ( success && lastExport != null )
+		{
+			try
+			{
+				lastExport.get();
+			}
+			catch ( final InterruptedException e )
+			{
+				IOFunctions.println( "Interrupted while waiting for the export: " + e );
+				success = false;
+			}
+			catch ( final ExecutionException e )
+			{
+				IOFunctions.println( "Export failed: " + e );
+				success = false;
+			}
+		}
+
+		return success;
+	}
+
+	/**
+	 * A stack (timepoint/channel) whose input views are loaded for fusion, prepared is null if there is nothing
+	 * to fuse; failed is true if loading failed, this is the last stack that is queued then
+	 */
+	protected static class PipelinedStack< T extends RealType< T > >
+	{
+		final Pair< TimePoint, Channel > stack;
+		final PreparedStack< T > prepared;
+		final long sizeMB;
+		final boolean failed;
+
+		public PipelinedStack( final Pair< TimePoint, Channel > stack, final PreparedStack< T > prepared, final long sizeMB, final boolean failed )
+		{
+			this.stack = stack;
+			this.prepared = prepared;
+			this.sizeMB = sizeMB;
+			this.failed = failed;
+		}
 	}
 
 	@Override
 	public boolean queryParameters()
 	{
+		if ( !pipelined || numParalellViews != 0 || timepointsToProcess.size() * channelsToProcess.size() < 2 )
+			return true;
+
+		if ( defaultPipelineMemoryMB <= 0 )
+			defaultPipelineMemoryMB = Runtime.getRuntime().maxMemory() / ( 1024 * 1024 ) / 2;
+
+		final GenericDialog gd = new GenericDialog( "Pipelined fusion" );
+
+		gd.addNumericField( "Memory_for_loaded_timepoints", defaultPipelineMemoryMB, 0, 10, "MB" );
+		gd.addMessage(
+				"Note: the input views of the next timepoints are loaded while the current one is fused as long as they\n" +
+				"fit into this memory (including the one that is fused). The fused images are exported in the background,\n" +
+				"so two fused images need to fit into the remaining memory.", GUIHelper.mediumstatusfont );
+
+		gd.showDialog();
+
+		if ( gd.wasCanceled() )
+			return false;
+
+		pipelineMemoryMB = defaultPipelineMemoryMB = Math.max( 1, Math.round( gd.getNextNumber() ) );
+
 		return true;
 	}
 
@@ -171,6 +536,15 @@ public class WeightedAverageFusion extends Fusion
 		{
 			gd.addCheckbox( "Blend images smoothly", Fusion.defaultUseBlending );
 			gd.addCheckbox( "Content-based fusion", Fusion.defaultUseContentBased );
+			gd.addNumericField( "Content-based_downsampling", ProcessFusion.defaultContentBasedDownsampling, 0 );
+			gd.addCheckbox( "Cache content-based weights next to the XML", ProcessFusion.defaultCacheContentBased );
+			gd.addCheckbox( "Fuse block-wise (write blocks directly to the export, if supported)", defaultFuseBlockwise );
+			gd.addCheckbox( "Pipeline_timepoints (load next timepoint while fusing, only if all views are processed in paralell)", defaultPipelined );
+			gd.addCheckbox( "Compact_accumulation (16 bit weights over the footprint, only if views are processed sequentially)", defaultCompactAccumulation );
+		}
+		else
+		{
+			gd.addCheckbox( "Fuse block-wise (write blocks directly to the export, if supported)", defaultFuseBlockwise );
 		}
 		gd.addChoice( "Interpolation", Fusion.interpolationTypes, Fusion.interpolationTypes[ Fusion.defaultInterpolation ] );
 	}
@@ -184,10 +558,17 @@ public class WeightedAverageFusion extends Fusion
 			this.numParalellViews = defaultNumParalellViewsIndex;
 			this.useBlending = Fusion.defaultUseBlending = gd.getNextBoolean();
 			this.useContentBased = Fusion.defaultUseContentBased = gd.getNextBoolean();
+			ProcessFusion.defaultContentBasedDownsampling = Math.max( 1, (int)Math.round( gd.getNextNumber() ) );
+			ProcessFusion.defaultCacheContentBased = gd.getNextBoolean();
+			this.fuseBlockwise = defaultFuseBlockwise = gd.getNextBoolean();
+			this.pipelined = defaultPipelined = gd.getNextBoolean();
+			this.compactAccumulation = defaultCompactAccumulation = gd.getNextBoolean();
 		}
 		else
 		{
 			this.useBlending = this.useContentBased = false;
+			this.fuseBlockwise = defaultFuseBlockwise = gd.getNextBoolean();
+			this.pipelined = false;
 		}
 		this.interpolation = Fusion.defaultInterpolation = gd.getNextChoiceIndex();
 
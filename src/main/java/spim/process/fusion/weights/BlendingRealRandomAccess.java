@@ -14,11 +14,22 @@ import net.imglib2.type.numeric.real.FloatType;
 
 public class BlendingRealRandomAccess implements RealRandomAccess< FloatType >
 {
+	/**
+	 * Resolution of the lookup table for the cosine ramp, linear interpolation between the entries
+	 * deviates less than 1e-7 from the exact value
+	 */
+	final public static int LUT_SIZE = 4096;
+	final private static float[] LUT = createLUT( LUT_SIZE );
+
 	final Interval interval;
 	final int[] min, dimMinus1;
 	final float[] l, border, blending;
 	final int n;
 	final FloatType v;
+
+	// the position and the linear ramp of the last evaluation for each dimension,
+	// the ramp of a dimension is only recomputed if the position in it changed
+	final float[] lastL, ramp;
 	
 	/**
 	 * RealRandomAccess that computes a blending function for a certain {@link Interval}
@@ -41,43 +52,90 @@ public class BlendingRealRandomAccess implements RealRandomAccess< FloatType >
 		
 		this.min = new int[ n ];
 		this.dimMinus1 = new int[ n ];
+
+		this.lastL = new float[ n ];
+		this.ramp = new float[ n ];
 		
 		for ( int d = 0; d < n; ++d )
 		{
 			this.min[ d ] = (int)interval.min( d );
 			this.dimMinus1[ d ] = (int)interval.max( d ) - min[ d ];
+			this.lastL[ d ] = Float.NaN;
 		}
 	}
 	
 	@Override
 	public FloatType get()
 	{
-		v.set( computeWeight( l, min, dimMinus1, border, blending, n ) );
+		// the weight is a function of the product of the linear ramps of all dimensions
+		float minDistance = 1;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			if ( l[ d ] != lastL[ d ] )
+			{
+				ramp[ d ] = computeRamp( l[ d ], min[ d ], dimMinus1[ d ], border[ d ], blending[ d ] );
+				lastL[ d ] = l[ d ];
+			}
+
+			minDistance *= ramp[ d ];
+		}
+
+		v.set( lookUpWeight( minDistance ) );
 		return v;
 	}
 
-	final private static float computeWeight(
-			final float[] location,
-			final int[] min, 
-			final int[] dimMinus1,
-			final float[] border, 
-			final float[] blending,
-			final int n )
+	/**
+	 * @return the linear ramp [0...1] of one dimension
+	 */
+	final private static float computeRamp( final float location, final int min, final int dimMinus1, final float border, final float blending )
 	{
-		// compute multiplicative distance to the respective borders [0...1]
-		float minDistance = 1;
+		// the position in the image relative to the boundaries and the border
+		final float l = ( location - min );
 
-		for ( int d = 0; d < n; ++d )
-		{
-			// the position in the image relative to the boundaries and the border
-			final float l = ( location[ d ] - min[ d ] );
+		// the distance to the border that is closer
+		final float dist = Math.max( 0, Math.min( l - border, dimMinus1 - l - border ) );
 
-			// the distance to the border that is closer
-			final float dist = Math.max( 0, Math.min( l - border[ d ], dimMinus1[ d ] - l - border[ d ] ) );
+		return Math.min( 1, dist / blending );
+	}
 
-			minDistance *= Math.min( 1, dist / blending[ d ] );
-		}
+	/**
+	 * @param minDistance - the product of the linear ramps
+	 * @return (cos( (1 - minDistance) * PI ) + 1) / 2, linearly interpolated from the lookup table
+	 */
+	final private static float lookUpWeight( final float minDistance )
+	{
+		if ( minDistance >= 1 )
+			return 1;
+		else if ( minDistance <= 0)
+			return 0;
+
+		final float x = minDistance * LUT_SIZE;
+		final int i = (int)x;
+		final float f = x - i;
+
+		return LUT[ i ] + f * ( LUT[ i + 1 ] - LUT[ i ] );
+	}
 
+	final private static float[] createLUT( final int size )
+	{
+		final float[] lut = new float[ size + 2 ];
+
+		for ( int i = 0; i <= size; ++i )
+			lut[ i ] = computeWeight( (float)i / size );
+
+		// in case of rounding at the upper end
+		lut[ size + 1 ] = 1;
+
+		return lut;
+	}
+
+	/**
+	 * @param minDistance - the product of the linear ramps
+	 * @return the exact cosine weight
+	 */
+	final public static float computeWeight( final float minDistance )
+	{
 		if ( minDistance >= 1 )
 			return 1;
 		else if ( minDistance <= 0)
@@ -6,6 +6,7 @@ import net.imglib2.Cursor;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealInterval;
+import net.imglib2.RealPoint;
 import net.imglib2.RealRandomAccess;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.algorithm.fft2.FFTConvolution;
@@ -39,23 +40,127 @@ public class ContentBased< T extends RealType< T > > implements RealRandomAccess
 	 */
 	final Img< FloatType > contentBasedImg;
 	final int n;
+
+	/**
+	 * The downsampling of contentBasedImg relative to the input image
+	 */
+	final int downsampling;
 	
 	public ContentBased(
 			final RandomAccessibleInterval< T > input,
 			final ImgFactory< ComplexFloatType > imgFactory,
 			final double[] sigma1,
 			final double[] sigma2 )
+	{
+		this( input, imgFactory, sigma1, sigma2, 1 );
+	}
+
+	/**
+	 * Computes the content-based weights on a downsampled copy of the input, the sigmas are adjusted
+	 * accordingly. The weights are interpolated back to full resolution when they are accessed.
+	 * 
+	 * @param input - the input image
+	 * @param imgFactory - the factory for the FFT convolutions
+	 * @param sigma1 - the sigmas for the first gaussian (full resolution)
+	 * @param sigma2 - the sigmas for the second gaussian (full resolution)
+	 * @param downsampling - the downsampling factor (1 means full resolution)
+	 */
+	public ContentBased(
+			final RandomAccessibleInterval< T > input,
+			final ImgFactory< ComplexFloatType > imgFactory,
+			final double[] sigma1,
+			final double[] sigma2,
+			final int downsampling )
 	{
 		this.n = input.numDimensions();
-		
-		this.contentBasedImg = approximateEntropy(
-				new ConvertedRandomAccessibleInterval< T, FloatType >( input, new RealFloatConverter< T >(),  new FloatType() ),
-				imgFactory,
-				sigma1,
-				sigma2 );		
+		this.downsampling = Math.max( 1, downsampling );
+
+		final RandomAccessibleInterval< FloatType > floatInput = new ConvertedRandomAccessibleInterval< T, FloatType >( input, new RealFloatConverter< T >(),  new FloatType() );
+
+		if ( this.downsampling == 1 )
+		{
+			this.contentBasedImg = approximateEntropy( floatInput, imgFactory, sigma1, sigma2 );
+		}
+		else
+		{
+			final double[] s1 = new double[ n ];
+			final double[] s2 = new double[ n ];
+
+			for ( int d = 0; d < n; ++d )
+			{
+				s1[ d ] = Math.max( 0.5, sigma1[ d ] / this.downsampling );
+				s2[ d ] = Math.max( 0.5, sigma2[ d ] / this.downsampling );
+			}
+
+			this.contentBasedImg = approximateEntropy( downsample( floatInput, this.downsampling ), imgFactory, s1, s2 );
+		}
+	}
+
+	/**
+	 * Uses precomputed (e.g. cached) content-based weights
+	 * 
+	 * @param contentBasedImg - the weights
+	 * @param downsampling - the downsampling of the weights relative to the input image
+	 */
+	public ContentBased( final Img< FloatType > contentBasedImg, final int downsampling )
+	{
+		this.n = contentBasedImg.numDimensions();
+		this.contentBasedImg = contentBasedImg;
+		this.downsampling = Math.max( 1, downsampling );
 	}
 	
 	public Img< FloatType > getContentBasedImg() { return contentBasedImg; }
+
+	public int getDownsampling() { return downsampling; }
+
+	/**
+	 * Averages blocks of downsampling^n pixels
+	 * 
+	 * @param input - the image (min must be 0)
+	 * @param downsampling - the size of the blocks
+	 * @return the downsampled image
+	 */
+	public static Img< FloatType > downsample( final RandomAccessibleInterval< FloatType > input, final int downsampling )
+	{
+		final int n = input.numDimensions();
+		final long[] dim = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+			dim[ d ] = ( input.dimension( d ) + downsampling - 1 ) / downsampling;
+
+		final Img< FloatType > sum = ArrayImgs.floats( dim );
+		final Img< FloatType > count = ArrayImgs.floats( dim );
+
+		final Cursor< FloatType > c = Views.flatIterable( input ).localizingCursor();
+		final RandomAccess< FloatType > rs = sum.randomAccess();
+		final RandomAccess< FloatType > rc = count.randomAccess();
+
+		while ( c.hasNext() )
+		{
+			c.fwd();
+
+			for ( int d = 0; d < n; ++d )
+			{
+				final long p = c.getLongPosition( d ) / downsampling;
+				rs.setPosition( p, d );
+				rc.setPosition( p, d );
+			}
+
+			rs.get().set( rs.get().get() + c.get().get() );
+			rc.get().set( rc.get().get() + 1 );
+		}
+
+		final Cursor< FloatType > cs = sum.cursor();
+		final Cursor< FloatType > cc = count.cursor();
+
+		while ( cs.hasNext() )
+		{
+			final FloatType s = cs.next();
+			s.set( s.get() / cc.next().get() );
+		}
+
+		return sum;
+	}
 	
 	protected Img< FloatType > approximateEntropy(
 			final RandomAccessibleInterval< FloatType > input,
@@ -103,6 +208,9 @@ public class ContentBased< T extends RealType< T > > implements RealRandomAccess
 	@Override
 	public RealRandomAccess<FloatType> realRandomAccess()
 	{ 
+		if ( downsampling > 1 )
+			return new DownsampledRealRandomAccess();
+
 		return Views.interpolate(
 			Views.extendZero( this.contentBasedImg ),
 			new NLinearInterpolatorFactory< FloatType >()
@@ -112,12 +220,57 @@ public class ContentBased< T extends RealType< T > > implements RealRandomAccess
 	@Override
 	public RealRandomAccess<FloatType> realRandomAccess( final RealInterval interval )
 	{
+		if ( downsampling > 1 )
+			return new DownsampledRealRandomAccess();
+
 		return Views.interpolate(
 				Views.extendZero( this.contentBasedImg ),
 				new NLinearInterpolatorFactory< FloatType >()
 				).realRandomAccess( interval );
 	}
 
+	/**
+	 * Maps a position in the input image to the downsampled weights and interpolates them, the center of
+	 * a downsampled pixel is the center of the block it was averaged from. The weights are extended by the
+	 * border as only positions inside the input image are queried.
+	 */
+	public class DownsampledRealRandomAccess extends RealPoint implements RealRandomAccess< FloatType >
+	{
+		final RealRandomAccess< FloatType > interpolator;
+		final double offset;
+
+		public DownsampledRealRandomAccess()
+		{
+			super( ContentBased.this.n );
+
+			this.interpolator = Views.interpolate(
+					Views.extendBorder( contentBasedImg ),
+					new NLinearInterpolatorFactory< FloatType >() ).realRandomAccess();
+			this.offset = ( downsampling - 1 ) / 2.0;
+		}
+
+		@Override
+		public FloatType get()
+		{
+			for ( int d = 0; d < n; ++d )
+				interpolator.setPosition( ( position[ d ] - offset ) / downsampling, d );
+
+			return interpolator.get();
+		}
+
+		@Override
+		public DownsampledRealRandomAccess copy() { return copyRealRandomAccess(); }
+
+		@Override
+		public DownsampledRealRandomAccess copyRealRandomAccess()
+		{
+			final DownsampledRealRandomAccess r = new DownsampledRealRandomAccess();
+			r.setPosition( this );
+
+			return r;
+		}
+	}
+
 	final private static Img< FloatType > createGaussianKernel( final double[] sigmas )
 	{
 		final int numDimensions = sigmas.length;
@@ -0,0 +1,185 @@
+package spim.process.fusion.weights;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import spim.fiji.plugin.interestpointdetection.DetectionCache;
+import spim.fiji.spimdata.SpimData2;
+
+/**
+ * Stores downsampled content-based weights of the input views in a directory (usually next to the XML), so they
+ * can be reused by later fusions of the same dataset. The weights only depend on the pixels of a view, not on
+ * its registration. A file is only reused if the view, the fingerprint of its image data (see
+ * {@link DetectionCache#getFingerprint(ViewId)}), its dimensions, the sigmas and the downsampling match.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class ContentBasedCache
+{
+	// the directory inside the base path of the dataset
+	public static String defaultDirectory = "contentbased";
+
+	final private static int MAGIC = 0x43425731; // 'CBW1'
+
+	final File directory;
+	final DetectionCache fingerprints;
+
+	/**
+	 * @param spimData - the dataset, its base path must not be null
+	 */
+	public ContentBasedCache( final SpimData2 spimData )
+	{
+		this.directory = new File( spimData.getBasePath(), defaultDirectory );
+		this.fingerprints = new DetectionCache( spimData );
+	}
+
+	/**
+	 * @param viewId - the view
+	 * @param interval - the dimensions of the image the weights are computed from
+	 * @param sigma1 - the sigmas for the first gaussian
+	 * @param sigma2 - the sigmas for the second gaussian
+	 * @param downsampling - the downsampling of the weights
+	 * @return the file for these parameters, or null if the image data has no fingerprint and the weights cannot be cached
+	 */
+	public File getFile( final ViewId viewId, final Interval interval, final double[] sigma1, final double[] sigma2, final int downsampling )
+	{
+		final String fingerprint = fingerprints.getFingerprint( viewId );
+
+		if ( fingerprint == null )
+			return null;
+
+		final StringBuilder key = new StringBuilder( fingerprint + "," );
+
+		for ( int d = 0; d < interval.numDimensions(); ++d )
+			key.append( interval.dimension( d ) + "," );
+
+		for ( int d = 0; d < sigma1.length; ++d )
+			key.append( sigma1[ d ] + "," + sigma2[ d ] + "," );
+
+		key.append( downsampling );
+
+		return new File( directory, "tpId_" + viewId.getTimePointId() + "_viewSetupId_" + viewId.getViewSetupId() + "_" + hash( key.toString() ) + ".weights" );
+	}
+
+	/**
+	 * @param file - the file
+	 * @return the weights or null if the file does not exist or cannot be read
+	 */
+	public Img< FloatType > load( final File file )
+	{
+		if ( !file.exists() )
+			return null;
+
+		try
+		{
+			final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+
+			if ( in.readInt() != MAGIC )
+			{
+				in.close();
+				return null;
+			}
+
+			final long[] dim = new long[ in.readInt() ];
+
+			for ( int d = 0; d < dim.length; ++d )
+				dim[ d ] = in.readLong();
+
+			final Img< FloatType > img = ArrayImgs.floats( dim );
+			final Cursor< FloatType > cursor = img.cursor();
+
+			while ( cursor.hasNext() )
+				cursor.next().set( in.readFloat() );
+
+			in.close();
+
+			return img;
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Could not load content-based weights '" + file.getAbsolutePath() + "': " + e );
+			return null;
+		}
+	}
+
+	/**
+	 * @param file - the file
+	 * @param img - the weights
+	 */
+	public void save( final File file, final Img< FloatType > img )
+	{
+		File tmpFile = null;
+
+		try
+		{
+			if ( !directory.exists() && !directory.mkdirs() )
+			{
+				IOFunctions.println( "Could not create directory '" + directory.getAbsolutePath() + "' for content-based weights." );
+				return;
+			}
+
+			// write to a temporary file first, so a concurrent fusion never reads a partial file
+			// (unique name, several fusions can write the same weights at the same time)
+			tmpFile = File.createTempFile( file.getName() + ".", ".tmp", directory );
+			final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmpFile ) ) );
+
+			out.writeInt( MAGIC );
+			out.writeInt( img.numDimensions() );
+
+			for ( int d = 0; d < img.numDimensions(); ++d )
+				out.writeLong( img.dimension( d ) );
+
+			// flat order, the weights might be stored in a CellImg
+			final Cursor< FloatType > cursor = Views.flatIterable( img ).cursor();
+
+			while ( cursor.hasNext() )
+				out.writeFloat( cursor.next().get() );
+
+			out.close();
+
+			if ( !tmpFile.renameTo( file ) )
+				tmpFile.delete();
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Could not save content-based weights '" + file.getAbsolutePath() + "': " + e );
+
+			if ( tmpFile != null )
+				tmpFile.delete();
+		}
+	}
+
+	protected static String hash( final String key )
+	{
+		try
+		{
+			final byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest( key.getBytes() );
+			final StringBuilder hex = new StringBuilder();
+
+			for ( int i = 0; i < 8; ++i )
+				hex.append( String.format( "%02x", digest[ i ] & 0xff ) );
+
+			return hex.toString();
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			throw new RuntimeException( "SHA-1 not available: " + e );
+		}
+	}
+}
@@ -51,7 +51,7 @@ public class NormalizingRandomAccessibleInterval< T extends RealType< T > > impl
 	public RandomAccess< T > randomAccess( final Interval interval ) { return randomAccess(); }
 
 	@Override
-	public long min( final int d ){ return interval.min( 0 ); }
+	public long min( final int d ){ return interval.min( d ); }
 
 	@Override
 	public void min( final long[] min ) { interval.min( min ); }
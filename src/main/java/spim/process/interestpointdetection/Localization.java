@@ -2,6 +2,9 @@ package spim.process.interestpointdetection;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussian.SpecialPoint;
 import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
@@ -10,6 +13,8 @@ import mpicbg.imglib.image.Image;
 import mpicbg.imglib.type.numeric.real.FloatType;
 import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.segmentation.SimplePeak;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
 import spim.Threads;
 import spim.fiji.spimdata.interestpoints.InterestPoint;
 
@@ -19,6 +24,9 @@ public class Localization
 	{
 		IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): NO subpixel localization" );
 
+		if ( peaks.size() == 0 )
+			return new ArrayList< InterestPoint >();
+
 		final int n = peaks.get( 0 ).location.length;
 		final ArrayList< InterestPoint > peaks2 = new ArrayList< InterestPoint >();
 		
@@ -80,6 +88,205 @@ public class Localization
 		return peaks2;
 	}
 	
+	/**
+	 * Subpixel localization using a quadratic fit in the 3x3x3 neighborhood of each peak (same as the ImgLib1
+	 * SubpixelLocalization), only the DoG/DoM values around the peaks are accessed.
+	 *
+	 * @param peaks - the peaks
+	 * @param domImg - the 3d image the peaks were found in
+	 * @param findMin
+	 * @param findMax
+	 * @param threshold - the minimal absolute value of the fitted peak
+	 * @return the localized peaks
+	 */
+	public static ArrayList< InterestPoint > computeQuadraticLocalization(
+			final ArrayList< SimplePeak > peaks,
+			final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > domImg,
+			final boolean findMin,
+			final boolean findMax,
+			final float threshold )
+	{
+		IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Subpixel localization using quadratic n-dimensional fit");
+
+		final ArrayList< SimplePeak > peakList = new ArrayList< SimplePeak >();
+
+		for ( final SimplePeak peak : peaks )
+			if ( ( peak.isMax && findMax ) || ( peak.isMin && findMin ) )
+				peakList.add( peak );
+
+		// the fitted location and value of every peak
+		final double[][] fits = new double[ peakList.size() ][];
+		final long[] dim = new long[ domImg.numDimensions() ];
+		domImg.dimensions( dim );
+
+		final int numThreads = Math.max( 1, Math.min( Threads.numThreads(), peakList.size() ) );
+		final ExecutorService taskExecutor = Executors.newFixedThreadPool( numThreads );
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+
+		for ( int t = 0; t < numThreads; ++t )
+		{
+			final int myNumber = t;
+
+			tasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					final RandomAccess< net.imglib2.type.numeric.real.FloatType > ra = domImg.randomAccess();
+
+					for ( int i = myNumber; i < fits.length; i += numThreads )
+						fits[ i ] = fitQuadratic( ra, peakList.get( i ).location, dim, 10, 0.01 );
+
+					return null;
+				}
+			});
+		}
+
+		try
+		{
+			// invokeAll() returns when all tasks are complete
+			taskExecutor.invokeAll( tasks );
+		}
+		catch ( final InterruptedException e )
+		{
+			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Warning! Failed to compute subpixel localization " + e );
+		}
+
+		taskExecutor.shutdown();
+
+		final ArrayList< InterestPoint > peaks2 = new ArrayList< InterestPoint >();
+
+		int id = 0;
+
+		for ( final double[] fit : fits )
+			if ( fit != null && Math.abs( fit[ 3 ] ) > threshold )
+				peaks2.add( new InterestPoint( id++, new double[]{ fit[ 0 ], fit[ 1 ], fit[ 2 ] } ) );
+
+		return peaks2;
+	}
+
+	/**
+	 * Fits a quadratic function to the 3x3x3 neighborhood and moves to the neighboring pixel if the
+	 * offset is larger than 0.5 (plus a tolerance that increases with every move)
+	 *
+	 * @param ra - random access to the image
+	 * @param location - the integer location of the peak
+	 * @param dim - the dimensions of the image
+	 * @param maxNumMoves - how often the peak can move to a neighboring pixel
+	 * @param maximaTolerance - the increase of the allowed offset per move
+	 * @return x, y, z and the fitted value, or null if the fit is singular
+	 */
+	public static double[] fitQuadratic(
+			final RandomAccess< net.imglib2.type.numeric.real.FloatType > ra,
+			final int[] location,
+			final long[] dim,
+			final int maxNumMoves,
+			final double maximaTolerance )
+	{
+		final long[] pos = new long[]{ location[ 0 ], location[ 1 ], location[ 2 ] };
+		final double[] c = new double[ 27 ];
+		final double[] g = new double[ 3 ];
+		final double[] hessian = new double[ 9 ];
+		final int[] step = new int[]{ 1, 3, 9 };
+
+		double[] x;
+		int numMoves = 0;
+		boolean stable;
+
+		do
+		{
+			stable = true;
+
+			// the 3x3x3 neighborhood
+			int i = 0;
+
+			for ( int z = -1; z <= 1; ++z )
+				for ( int y = -1; y <= 1; ++y )
+					for ( int xo = -1; xo <= 1; ++xo )
+					{
+						ra.setPosition( pos[ 0 ] + xo, 0 );
+						ra.setPosition( pos[ 1 ] + y, 1 );
+						ra.setPosition( pos[ 2 ] + z, 2 );
+						c[ i++ ] = ra.get().get();
+					}
+
+			// derivatives and hessian matrix using central differences
+			for ( int a = 0; a < 3; ++a )
+			{
+				g[ a ] = ( c[ 13 + step[ a ] ] - c[ 13 - step[ a ] ] ) / 2.0;
+				hessian[ a * 3 + a ] = c[ 13 + step[ a ] ] - 2 * c[ 13 ] + c[ 13 - step[ a ] ];
+
+				for ( int b = a + 1; b < 3; ++b )
+					hessian[ a * 3 + b ] = hessian[ b * 3 + a ] =
+						( ( c[ 13 + step[ a ] + step[ b ] ] - c[ 13 - step[ a ] + step[ b ] ] ) -
+						  ( c[ 13 + step[ a ] - step[ b ] ] - c[ 13 - step[ a ] - step[ b ] ] ) ) / 4.0;
+			}
+
+			x = solve3x3( hessian, new double[]{ -g[ 0 ], -g[ 1 ], -g[ 2 ] } );
+
+			if ( x == null )
+				return null;
+
+			final double maxOffset = 0.5 + numMoves * maximaTolerance;
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				if ( x[ d ] > maxOffset && pos[ d ] < dim[ d ] - 2 )
+				{
+					++pos[ d ];
+					stable = false;
+				}
+				else if ( x[ d ] < -maxOffset && pos[ d ] > 1 )
+				{
+					--pos[ d ];
+					stable = false;
+				}
+			}
+
+			if ( !stable )
+				++numMoves;
+		}
+		while ( !stable && numMoves < maxNumMoves );
+
+		final double value = c[ 13 ] + 0.5 * ( g[ 0 ] * x[ 0 ] + g[ 1 ] * x[ 1 ] + g[ 2 ] * x[ 2 ] );
+
+		return new double[]{ pos[ 0 ] + x[ 0 ], pos[ 1 ] + x[ 1 ], pos[ 2 ] + x[ 2 ], value };
+	}
+
+	/**
+	 * Solves A*x = b using Cramer's rule
+	 *
+	 * @param a - the matrix, row-major
+	 * @param b - the vector
+	 * @return x or null if A is singular
+	 */
+	public static double[] solve3x3( final double[] a, final double[] b )
+	{
+		final double det =
+				a[ 0 ] * ( a[ 4 ] * a[ 8 ] - a[ 5 ] * a[ 7 ] ) -
+				a[ 1 ] * ( a[ 3 ] * a[ 8 ] - a[ 5 ] * a[ 6 ] ) +
+				a[ 2 ] * ( a[ 3 ] * a[ 7 ] - a[ 4 ] * a[ 6 ] );
+
+		if ( Math.abs( det ) < 1e-12 )
+			return null;
+
+		final double[] x = new double[ 3 ];
+
+		for ( int d = 0; d < 3; ++d )
+		{
+			final double[] m = a.clone();
+
+			for ( int r = 0; r < 3; ++r )
+				m[ r * 3 + d ] = b[ r ];
+
+			x[ d ] = ( m[ 0 ] * ( m[ 4 ] * m[ 8 ] - m[ 5 ] * m[ 7 ] ) -
+					m[ 1 ] * ( m[ 3 ] * m[ 8 ] - m[ 5 ] * m[ 6 ] ) +
+					m[ 2 ] * ( m[ 3 ] * m[ 7 ] - m[ 4 ] * m[ 6 ] ) ) / det;
+		}
+
+		return x;
+	}
+
 	public static ArrayList< InterestPoint > computeGaussLocalization( final ArrayList< SimplePeak > peaks, final Image< FloatType > domImg, final double sigma, final boolean findMin, final boolean findMax, final float threshold )
 	{
 		IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Subpixel localization using Gaussian Mask Localization");					
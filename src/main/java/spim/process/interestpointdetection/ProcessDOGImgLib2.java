@@ -0,0 +1,486 @@
+package spim.process.interestpointdetection;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import mpicbg.spim.io.IOFunctions;
+import mpicbg.spim.registration.bead.laplace.LaPlaceFunctions;
+import mpicbg.spim.segmentation.SimplePeak;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import spim.Threads;
+import spim.fiji.spimdata.interestpoints.InterestPoint;
+import spim.process.fusion.FusionHelper;
+
+/**
+ * Difference-of-Gaussian detection entirely in ImgLib2 (same parameters and results as {@link ProcessDOG} on the CPU).
+ * The larger Gaussian is computed into one additional image, the smaller one in place. Both convolutions are done
+ * line by line in place (see {@link #gaussInPlace(RandomAccessibleInterval, double[])}), so unlike Gauss3 they need
+ * no full-size temporary images. The DoG image itself is never stored, it is computed plane by plane while searching
+ * for the extrema and on the fly for the localization of the peaks, so the detection needs two float images in total.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class ProcessDOGImgLib2
+{
+	/**
+	 * @param img - the image, normalized and smoothed in place
+	 * @param sigma
+	 * @param threshold
+	 * @param localization
+	 * @param imageSigmaX
+	 * @param imageSigmaY
+	 * @param imageSigmaZ
+	 * @param findMin
+	 * @param findMax
+	 * @param minIntensity
+	 * @param maxIntensity
+	 * @return
+	 */
+	public static ArrayList< InterestPoint > compute(
+			final Img< FloatType > img,
+			final float sigma,
+			final float threshold,
+			final int localization,
+			final double imageSigmaX,
+			final double imageSigmaY,
+			final double imageSigmaZ,
+			final boolean findMin,
+			final boolean findMax,
+			final double minIntensity,
+			final double maxIntensity )
+	{
+		final float initialSigma = sigma;
+
+		final float minPeakValue = threshold;
+		final float minInitialPeakValue;
+
+		if ( localization == 0 )
+			minInitialPeakValue = minPeakValue;
+		else
+			minInitialPeakValue = threshold/10.0f;
+
+		final float min, max;
+
+		if ( Double.isNaN( minIntensity ) || Double.isNaN( maxIntensity ) || Double.isInfinite( minIntensity ) || Double.isInfinite( maxIntensity ) || minIntensity == maxIntensity )
+		{
+			final float[] minmax = FusionHelper.minMax( img );
+			min = minmax[ 0 ];
+			max = minmax[ 1 ];
+		}
+		else
+		{
+			min = (float)minIntensity;
+			max = (float)maxIntensity;
+		}
+
+		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): min intensity = " + min + ", max intensity = " + max );
+
+		// normalize image
+		FusionHelper.normalizeImage( img, min, max );
+
+		final float k = LaPlaceFunctions.computeK( 4 );
+		final float K_MIN1_INV = LaPlaceFunctions.computeKWeight(k);
+		final int steps = 3;
+
+		//
+		// Compute the Sigmas for the gaussian convolution
+		//
+		final float[] sigmaStepsX = LaPlaceFunctions.computeSigma( steps, k, initialSigma );
+		final float[] sigmaStepsDiffX = LaPlaceFunctions.computeSigmaDiff( sigmaStepsX, (float)imageSigmaX );
+
+		final float[] sigmaStepsY = LaPlaceFunctions.computeSigma( steps, k, initialSigma );
+		final float[] sigmaStepsDiffY = LaPlaceFunctions.computeSigmaDiff( sigmaStepsY, (float)imageSigmaY );
+
+		final float[] sigmaStepsZ = LaPlaceFunctions.computeSigma( steps, k, initialSigma );
+		final float[] sigmaStepsDiffZ = LaPlaceFunctions.computeSigmaDiff( sigmaStepsZ, (float)imageSigmaZ );
+
+		final double[] sigma1 = new double[]{ sigmaStepsDiffX[0], sigmaStepsDiffY[0], sigmaStepsDiffZ[0] };
+		final double[] sigma2 = new double[]{ sigmaStepsDiffX[1], sigmaStepsDiffY[1], sigmaStepsDiffZ[1] };
+
+		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): computing difference-of-gausian (sigma=" + initialSigma + ", " +
+				"threshold=" + minPeakValue + ", sigma1=" + Util.printCoordinates( sigma1 ) + ", sigma2=" + Util.printCoordinates( sigma2 ) + ")" );
+
+		IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Computing Gaussians (CPU, ImgLib2)." );
+
+		// the larger gaussian in a copy first, then the smaller one in place
+		final Img< FloatType > gauss2 = img.factory().create( img, new FloatType() );
+
+		final Cursor< FloatType > in = Views.flatIterable( img ).cursor();
+		final Cursor< FloatType > out = Views.flatIterable( gauss2 ).cursor();
+
+		while ( in.hasNext() )
+			out.next().set( in.next() );
+
+		gaussInPlace( gauss2, sigma2 );
+		gaussInPlace( img, sigma1 );
+
+		IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Detecting peaks." );
+
+		final ArrayList< SimplePeak > peaks = findPeaks( img, gauss2, K_MIN1_INV, minInitialPeakValue );
+		final ArrayList< InterestPoint > finalPeaks;
+
+		if ( localization == 0 )
+			finalPeaks = Localization.noLocalization( peaks, findMin, findMax );
+		else if ( localization == 1 )
+			finalPeaks = Localization.computeQuadraticLocalization( peaks, Views.interval( new DoGRandomAccessible( img, gauss2, K_MIN1_INV ), img ), findMin, findMax, minPeakValue );
+		else
+			finalPeaks = Localization.computeGaussLocalization( peaks, null, sigma, findMin, findMax, minPeakValue );
+
+		IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Found " + finalPeaks.size() + " peaks." );
+
+		return finalPeaks;
+	}
+
+	/**
+	 * Separable gaussian convolution (same kernels and mirrored border as Gauss3 with Views.extendMirrorSingle) that
+	 * processes one line at a time in place, the only temporary memory is one line per thread.
+	 *
+	 * @param img - the image to convolve
+	 * @param sigma - the sigma in each dimension
+	 */
+	public static void gaussInPlace( final RandomAccessibleInterval< FloatType > img, final double[] sigma )
+	{
+		final double[][] halfkernels = Gauss3.halfkernels( sigma );
+		final int n = img.numDimensions();
+
+		for ( int d = 0; d < n; ++d )
+		{
+			final int dim = d;
+			final double[] kernel = halfkernels[ d ];
+			final int length = (int)img.dimension( d );
+
+			// nothing to do
+			if ( kernel.length < 2 || length < 2 )
+				continue;
+
+			// all lines along the current dimension
+			final long[] lineDim = new long[ n ];
+			long numLines = 1;
+
+			for ( int e = 0; e < n; ++e )
+			{
+				lineDim[ e ] = ( e == d ) ? 1 : img.dimension( e );
+				numLines *= lineDim[ e ];
+			}
+
+			final long totalLines = numLines;
+			final int numTasks = (int)Math.max( 1, Math.min( Threads.numThreads(), numLines ) );
+			final ExecutorService taskExecutor = Executors.newFixedThreadPool( numTasks );
+			final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+
+			for ( int t = 0; t < numTasks; ++t )
+			{
+				final long l0 = t * totalLines / numTasks;
+				final long l1 = ( t + 1 ) * totalLines / numTasks;
+
+				tasks.add( new Callable< Void >()
+				{
+					@Override
+					public Void call() throws Exception
+					{
+						final RandomAccess< FloatType > ra = img.randomAccess();
+						final long[] position = new long[ n ];
+						final double[] line = new double[ length ];
+
+						for ( long l = l0; l < l1; ++l )
+						{
+							// the position of the line
+							long i = l;
+
+							for ( int e = 0; e < n; ++e )
+							{
+								position[ e ] = img.min( e ) + i % lineDim[ e ];
+								i /= lineDim[ e ];
+							}
+
+							ra.setPosition( position );
+
+							for ( int x = 0; x < length; ++x )
+							{
+								line[ x ] = ra.get().get();
+								ra.fwd( dim );
+							}
+
+							ra.setPosition( position );
+
+							for ( int x = 0; x < length; ++x )
+							{
+								double v = kernel[ 0 ] * line[ x ];
+
+								for ( int k = 1; k < kernel.length; ++k )
+									v += kernel[ k ] * ( line[ mirror( x - k, length ) ] + line[ mirror( x + k, length ) ] );
+
+								ra.get().set( (float)v );
+								ra.fwd( dim );
+							}
+						}
+
+						return null;
+					}
+				});
+			}
+
+			try
+			{
+				// invokeAll() returns when all tasks are complete
+				for ( final Future< Void > future : taskExecutor.invokeAll( tasks ) )
+					future.get();
+			}
+			catch ( final Exception e )
+			{
+				IOFunctions.println( "Failed to compute gaussian convolution: " + e );
+				e.printStackTrace();
+			}
+
+			taskExecutor.shutdown();
+		}
+	}
+
+	/**
+	 * @param x - the position, can be outside of the line
+	 * @param length - the length of the line (at least 2)
+	 * @return the position mirrored into the line without repeating the border pixel (like Views.extendMirrorSingle)
+	 */
+	protected static int mirror( int x, final int length )
+	{
+		final int period = 2 * ( length - 1 );
+
+		x %= period;
+
+		if ( x < 0 )
+			x += period;
+
+		return x < length ? x : period - x;
+	}
+
+	/**
+	 * Finds the extrema of the normalized difference of two gaussians in a 3x3x3 neighborhood (same as InteractiveIntegral.findPeaks()
+	 * on the DoG image). Every thread streams through a range of planes, keeping only three planes of the DoG image.
+	 *
+	 * @param gauss1 - the image convolved with the smaller sigma
+	 * @param gauss2 - the image convolved with the larger sigma
+	 * @param norm - the normalization of the difference
+	 * @param minValue - the minimal absolute value of a peak
+	 * @return the peaks (a minimum of the DoG is a maximum in image space and vice versa)
+	 */
+	public static ArrayList< SimplePeak > findPeaks(
+			final RandomAccessibleInterval< FloatType > gauss1,
+			final RandomAccessibleInterval< FloatType > gauss2,
+			final float norm,
+			final float minValue )
+	{
+		final ArrayList< SimplePeak > peaks = new ArrayList< SimplePeak >();
+
+		final int w = (int)gauss1.dimension( 0 );
+		final int h = (int)gauss1.dimension( 1 );
+		final int d = (int)gauss1.dimension( 2 );
+
+		// the border is never a peak
+		if ( w < 3 || h < 3 || d < 3 )
+			return peaks;
+
+		final int numTasks = Math.min( Threads.numThreads(), d - 2 );
+		final ExecutorService taskExecutor = Executors.newFixedThreadPool( numTasks );
+		final ArrayList< Callable< ArrayList< SimplePeak > > > tasks = new ArrayList< Callable< ArrayList< SimplePeak > > >();
+
+		for ( int t = 0; t < numTasks; ++t )
+		{
+			final int z0 = 1 + (int)( (long)t * ( d - 2 ) / numTasks );
+			final int z1 = 1 + (int)( (long)( t + 1 ) * ( d - 2 ) / numTasks );
+
+			tasks.add( new Callable< ArrayList< SimplePeak > >()
+			{
+				@Override
+				public ArrayList< SimplePeak > call() throws Exception
+				{
+					final ArrayList< SimplePeak > myPeaks = new ArrayList< SimplePeak >();
+
+					float[] prev = new float[ w * h ];
+					float[] cur = new float[ w * h ];
+					float[] next = new float[ w * h ];
+
+					dogPlane( gauss1, gauss2, z0 - 1, norm, prev );
+					dogPlane( gauss1, gauss2, z0, norm, cur );
+
+					for ( int z = z0; z < z1; ++z )
+					{
+						dogPlane( gauss1, gauss2, z + 1, norm, next );
+						findPeaks( prev, cur, next, w, h, z, minValue, myPeaks );
+
+						final float[] tmp = prev;
+						prev = cur;
+						cur = next;
+						next = tmp;
+					}
+
+					return myPeaks;
+				}
+			});
+		}
+
+		try
+		{
+			// invokeAll() returns when all tasks are complete
+			final List< Future< ArrayList< SimplePeak > > > futures = taskExecutor.invokeAll( tasks );
+
+			for ( final Future< ArrayList< SimplePeak > > future : futures )
+				peaks.addAll( future.get() );
+		}
+		catch ( final Exception e )
+		{
+			IOFunctions.println( "Failed to find peaks: " + e );
+			e.printStackTrace();
+		}
+
+		taskExecutor.shutdown();
+
+		return peaks;
+	}
+
+	/**
+	 * Computes one plane of the normalized DoG image
+	 */
+	protected static void dogPlane(
+			final RandomAccessibleInterval< FloatType > gauss1,
+			final RandomAccessibleInterval< FloatType > gauss2,
+			final int z,
+			final float norm,
+			final float[] plane )
+	{
+		final Cursor< FloatType > c1 = Views.flatIterable( Views.hyperSlice( gauss1, 2, z ) ).cursor();
+		final Cursor< FloatType > c2 = Views.flatIterable( Views.hyperSlice( gauss2, 2, z ) ).cursor();
+
+		for ( int i = 0; i < plane.length; ++i )
+			plane[ i ] = ( c2.next().get() - c1.next().get() ) * norm;
+	}
+
+	/**
+	 * Tests all pixels of the center plane (except the border) against their 26 neighbors
+	 */
+	protected static void findPeaks(
+			final float[] prev,
+			final float[] cur,
+			final float[] next,
+			final int w,
+			final int h,
+			final int z,
+			final float minValue,
+			final ArrayList< SimplePeak > peaks )
+	{
+		final float[][] planes = new float[][]{ prev, cur, next };
+		final int[] location = new int[ 3 ];
+
+		location[ 2 ] = z;
+
+		for ( int y = 1; y < h - 1; ++y )
+			for ( int x = 1; x < w - 1; ++x )
+			{
+				final int i = y * w + x;
+				final float v = cur[ i ];
+
+				// it can never be a desired peak as it is too low
+				if ( Math.abs( v ) < minValue )
+					continue;
+
+				boolean isMin = true;
+				boolean isMax = true;
+
+				for ( int p = 0; p < 3 && ( isMin || isMax ); ++p )
+				{
+					final float[] plane = planes[ p ];
+
+					for ( int yo = -w; yo <= w && ( isMin || isMax ); yo += w )
+						for ( int xo = -1; xo <= 1; ++xo )
+						{
+							if ( p == 1 && yo == 0 && xo == 0 )
+								continue;
+
+							final float n = plane[ i + yo + xo ];
+
+							isMin &= ( n >= v );
+							isMax &= ( n <= v );
+						}
+				}
+
+				location[ 0 ] = x;
+				location[ 1 ] = y;
+
+				// this mixup is intended, a minimum in the 2nd derivation is a maxima in image space and vice versa
+				if ( isMin )
+					peaks.add( new SimplePeak( location, Math.abs( v ), false, true ) );
+				else if ( isMax )
+					peaks.add( new SimplePeak( location, Math.abs( v ), true, false ) );
+			}
+	}
+
+	/**
+	 * The normalized difference of two gaussians, computed on access
+	 */
+	public static class DoGRandomAccessible implements RandomAccessible< FloatType >
+	{
+		final RandomAccessible< FloatType > gauss1, gauss2;
+		final float norm;
+
+		public DoGRandomAccessible( final RandomAccessible< FloatType > gauss1, final RandomAccessible< FloatType > gauss2, final float norm )
+		{
+			this.gauss1 = gauss1;
+			this.gauss2 = gauss2;
+			this.norm = norm;
+		}
+
+		@Override
+		public int numDimensions() { return gauss1.numDimensions(); }
+
+		@Override
+		public RandomAccess< FloatType > randomAccess() { return new DoGRandomAccess(); }
+
+		@Override
+		public RandomAccess< FloatType > randomAccess( final Interval interval ) { return randomAccess(); }
+
+		public class DoGRandomAccess extends Point implements RandomAccess< FloatType >
+		{
+			final RandomAccess< FloatType > r1 = gauss1.randomAccess();
+			final RandomAccess< FloatType > r2 = gauss2.randomAccess();
+			final FloatType type = new FloatType();
+
+			public DoGRandomAccess() { super( DoGRandomAccessible.this.numDimensions() ); }
+
+			@Override
+			public FloatType get()
+			{
+				r1.setPosition( this );
+				r2.setPosition( this );
+				type.set( ( r2.get().get() - r1.get().get() ) * norm );
+
+				return type;
+			}
+
+			@Override
+			public DoGRandomAccess copy() { return copyRandomAccess(); }
+
+			@Override
+			public DoGRandomAccess copyRandomAccess()
+			{
+				final DoGRandomAccess ra = new DoGRandomAccess();
+				ra.setPosition( this );
+
+				return ra;
+			}
+		}
+	}
+}